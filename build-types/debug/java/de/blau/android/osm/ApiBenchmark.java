@@ -0,0 +1,97 @@
+package de.blau.android.osm;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import android.util.Log;
+import de.blau.android.util.Histogram;
+import de.blau.android.util.SavingHelper;
+
+/**
+ * Benchmarks download, parse, merge and upload cycles against a {@link MockApiServer}, only part of debug builds.
+ * Needs to run on a device or emulator and not on the UI thread, for example
+ * <pre>
+ * MockApiServer mock = new MockApiServer();
+ * mock.setMapData(new File("/sdcard/Vespucci/benchmark.osm"));
+ * mock.setConditions(50, 500000, 0f);
+ * mock.start();
+ * Log.i("ApiBenchmark", new ApiBenchmark(mock).run(10, 100));
+ * mock.stop();
+ * </pre>
+ * @author simon
+ *
+ */
+public class ApiBenchmark {
+
+	private static final String DEBUG_TAG = ApiBenchmark.class.getSimpleName();
+
+	private final MockApiServer mock;
+
+	private final Histogram response = new Histogram();
+	private final Histogram parse = new Histogram();
+	private final Histogram merge = new Histogram();
+	private final Histogram edit = new Histogram();
+	private final Histogram upload = new Histogram();
+
+	/**
+	 * @param mock a started mock server
+	 */
+	public ApiBenchmark(final MockApiServer mock) {
+		this.mock = mock;
+	}
+
+	/**
+	 * Run the benchmark
+	 * @param cycles number of download, parse, merge and upload cycles
+	 * @param edits number of nodes that get a modified tag in each cycle
+	 * @return a description of the results
+	 * @throws Exception if any step fails
+	 */
+	public String run(int cycles, int edits) throws Exception {
+		Server server = new Server(mock.getApiUrl(), "mock", "mock", false, null, null, "Vespucci benchmark");
+		BoundingBox box = new BoundingBox(0, 0, 1000000, 1000000); // the mock server ignores the area
+		mock.resetStats();
+		for (int i = 0; i < cycles; i++) {
+			long start = System.currentTimeMillis();
+			InputStream in = server.getStreamForBox(box);
+			OsmParser osmParser = new OsmParser();
+			try {
+				// the parser reads directly from the connection, so the second value includes the transfer
+				long parseStart = System.currentTimeMillis();
+				osmParser.start(in);
+				long parseEnd = System.currentTimeMillis();
+				response.add(parseStart - start);
+				parse.add(parseEnd - parseStart);
+			} finally {
+				SavingHelper.close(in);
+			}
+
+			StorageDelegator delegator = new StorageDelegator();
+			start = System.currentTimeMillis();
+			if (!delegator.mergeData(osmParser.getStorage())) {
+				throw new IllegalStateException("merge failed in cycle " + i);
+			}
+			merge.add(System.currentTimeMillis() - start);
+
+			start = System.currentTimeMillis();
+			List<Node> nodes = new ArrayList<Node>(delegator.getCurrentStorage().getNodes());
+			for (int j = 0; j < Math.min(edits, nodes.size()); j++) {
+				Node n = nodes.get(j);
+				TreeMap<String, String> tags = new TreeMap<String, String>(n.getTags());
+				tags.put("note", "benchmark " + i);
+				delegator.setTags(n, tags);
+			}
+			edit.add(System.currentTimeMillis() - start);
+
+			start = System.currentTimeMillis();
+			delegator.uploadToServer(server, "benchmark", null, true);
+			upload.add(System.currentTimeMillis() - start);
+		}
+		String result = "response " + response + "\ntransfer and parse " + parse + "\nmerge " + merge + "\nedit " + edit + "\nupload " + upload
+				+ "\nserver " + mock.getStats();
+		Log.i(DEBUG_TAG, result);
+		return result;
+	}
+}
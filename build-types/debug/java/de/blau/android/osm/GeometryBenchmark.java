@@ -0,0 +1,101 @@
+package de.blau.android.osm;
+
+import java.util.List;
+import java.util.Random;
+
+import android.util.Log;
+import de.blau.android.Application;
+import de.blau.android.exception.OsmIllegalOperationException;
+import de.blau.android.util.Histogram;
+
+/**
+ * Benchmarks splitting, orthogonalizing and circulizing large closed ways, only part of debug builds.
+ * The operations use the screen coordinates of the map, so this needs to run on a device or emulator
+ * while Main is displaying the map, for example
+ * <pre>
+ * Log.i("GeometryBenchmark", new GeometryBenchmark().run(20, 1000));
+ * </pre>
+ * Each run uses a new way with the nodes slightly jittered around a circle in the middle of the current view.
+ * @author simon
+ *
+ */
+public class GeometryBenchmark {
+
+	private static final String DEBUG_TAG = GeometryBenchmark.class.getSimpleName();
+
+	private final Histogram circulize = new Histogram();
+	private final Histogram orthogonalize = new Histogram();
+	private final Histogram split = new Histogram();
+
+	private final Random random = new Random(4711); // same shapes every time
+
+	/**
+	 * Run the benchmark
+	 * @param runs number of ways to create and modify
+	 * @param wayNodes number of nodes of each way, at most {@link Way#MAX_WAY_NODES} - 1
+	 * @return a description of the results
+	 * @throws OsmIllegalOperationException if the way can't be created
+	 */
+	public String run(int runs, int wayNodes) throws OsmIllegalOperationException {
+		BoundingBox box = Application.mainActivity.getMap().getViewBox();
+		int[] center = {(box.getBottom() + box.getTop()) / 2, (int) ((box.getLeft() + (long) box.getRight()) / 2)};
+		int radius = Math.min(box.getHeight(), (int) box.getWidth()) / 3;
+		for (int i = 0; i < runs; i++) {
+			StorageDelegator delegator = new StorageDelegator();
+			delegator.getUndo().createCheckpoint("benchmark");
+			Way way = createWay(delegator, center, radius, wayNodes);
+
+			long start = System.currentTimeMillis();
+			delegator.circulizeWay(center, way);
+			circulize.add(System.currentTimeMillis() - start);
+
+			jitter(way, radius);
+			start = System.currentTimeMillis();
+			delegator.orthogonalizeWay(way);
+			orthogonalize.add(System.currentTimeMillis() - start);
+
+			start = System.currentTimeMillis();
+			delegator.splitAtNodes(way, way.getNodes().get(0), way.getNodes().get(wayNodes / 2));
+			split.add(System.currentTimeMillis() - start);
+		}
+		String result = wayNodes + " nodes\ncirculize " + circulize + "\northogonalize " + orthogonalize + "\nsplit " + split;
+		Log.i(DEBUG_TAG, result);
+		return result;
+	}
+
+	/**
+	 * Create a closed way with the nodes on a circle
+	 */
+	private Way createWay(final StorageDelegator delegator, final int[] center, final int radius, final int wayNodes)
+			throws OsmIllegalOperationException {
+		OsmElementFactory factory = delegator.getFactory();
+		Node first = null;
+		Way way = null;
+		for (int i = 0; i < wayNodes; i++) {
+			double angle = 2 * Math.PI * i / wayNodes;
+			Node n = factory.createNodeWithNewId(center[0] + (int) (radius * Math.sin(angle)), center[1] + (int) (radius * Math.cos(angle)));
+			delegator.insertElementSafe(n);
+			if (way == null) {
+				first = n;
+				way = delegator.createAndInsertWay(n);
+			} else {
+				delegator.addNodeToWay(n, way);
+			}
+		}
+		delegator.addNodeToWay(first, way);
+		return way;
+	}
+
+	/**
+	 * Move the nodes of a way randomly by up to a tenth of the radius so that orthogonalizing has something to do
+	 */
+	private void jitter(final Way way, final int radius) {
+		int max = Math.max(1, radius / 10);
+		List<Node> nodes = way.getNodes();
+		for (int i = 0; i < nodes.size() - 1; i++) { // the last node is the first one again
+			Node n = nodes.get(i);
+			n.setLat(n.getLat() + random.nextInt(2 * max) - max);
+			n.setLon(n.getLon() + random.nextInt(2 * max) - max);
+		}
+	}
+}
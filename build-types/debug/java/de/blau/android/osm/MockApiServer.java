@@ -0,0 +1,444 @@
+package de.blau.android.osm;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+import de.blau.android.services.util.StreamUtils;
+import de.blau.android.util.SavingHelper;
+
+/**
+ * Minimal local stand-in for the OSM API 0.6 for performance measurements, only part of debug builds.
+ * Serves a fixed .osm file for map?bbox=... regardless of the bounding box and accepts changesets, element uploads,
+ * diff uploads, notes and GPX uploads without storing anything. Requests for individual elements are not supported. Latency, bandwidth and error rate can be simulated.
+ * Point the API URL of the app (or a {@link Server} instance) at {@link #getApiUrl()}.
+ * @author simon
+ *
+ */
+public class MockApiServer {
+
+	private static final String DEBUG_TAG = MockApiServer.class.getSimpleName();
+
+	private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+	private static final Pattern ELEMENT_PATH = Pattern.compile("(node|way|relation)/(create|[0-9]+)");
+	private static final Pattern CHANGESET_PATH = Pattern.compile("changeset/([0-9]+)(/close|/upload)?");
+	private static final Pattern VERSION_ATTR = Pattern.compile("version=\"([0-9]+)\"");
+	private static final Pattern DIFF_ELEMENT = Pattern.compile("<(create|modify|delete)|</(create|modify|delete)>|<(node|way|relation)\\s(?:[^>]*\\s)?id=\"(-?[0-9]+)\"[^>]*>");
+
+	private ServerSocket serverSocket;
+	private ExecutorService executor;
+	private volatile boolean running = false;
+
+	private byte[] mapData = (XML_HEADER + "<osm version=\"0.6\" generator=\"MockApiServer\"></osm>").getBytes();
+
+	private volatile long latency = 0; // ms per request
+	private volatile long bandwidth = 0; // bytes per second, 0 unlimited
+	private volatile float errorRate = 0f; // fraction of requests answered with 503
+	private final Random random = new Random();
+
+	private long nextId = 1000000000L;
+	private long nextChangesetId = 1;
+
+	private final HashMap<String, int[]> requestCounts = new HashMap<String, int[]>();
+	private long bytesSent = 0;
+
+	/**
+	 * Start listening on a free port on the loopback interface
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		executor = Executors.newCachedThreadPool();
+		running = true;
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					try {
+						final Socket socket = serverSocket.accept();
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								handle(socket);
+							}
+						});
+					} catch (IOException e) {
+						if (running) {
+							Log.e(DEBUG_TAG, "accept failed", e);
+						}
+					}
+				}
+			}
+		}, "MockApiServer");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		Log.i(DEBUG_TAG, "listening on " + getApiUrl());
+	}
+
+	/**
+	 * Stop the server
+	 */
+	public synchronized void stop() {
+		running = false;
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		} catch (IOException e) {
+			// ignore
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the URL to use as API URL, including the version
+	 */
+	public String getApiUrl() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/api/0.6/";
+	}
+
+	/**
+	 * Set the data returned for map?bbox=...
+	 * @param data OSM XML
+	 */
+	public void setMapData(final byte[] data) {
+		mapData = data;
+	}
+
+	/**
+	 * Read the data returned for map?bbox=... from a file
+	 * @param file an .osm file
+	 * @throws IOException
+	 */
+	public void setMapData(final File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			StreamUtils.copy(in, out);
+			mapData = out.toByteArray();
+		} finally {
+			SavingHelper.close(in);
+		}
+	}
+
+	/**
+	 * @param latency delay added to every request in ms
+	 * @param bandwidth maximum bytes per second for responses, 0 for unlimited
+	 * @param errorRate fraction (0-1) of requests that fail with 503
+	 */
+	public void setConditions(long latency, long bandwidth, float errorRate) {
+		this.latency = latency;
+		this.bandwidth = bandwidth;
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * @return number of requests per call type and bytes sent
+	 */
+	public synchronized String getStats() {
+		StringBuilder result = new StringBuilder();
+		for (String key : requestCounts.keySet()) {
+			result.append(key + " " + requestCounts.get(key)[0] + ", ");
+		}
+		return result.toString() + "bytes sent " + bytesSent;
+	}
+
+	/**
+	 * Reset the request statistics
+	 */
+	public synchronized void resetStats() {
+		requestCounts.clear();
+		bytesSent = 0;
+	}
+
+	private synchronized void count(final String call, int bytes) {
+		int[] c = requestCounts.get(call);
+		if (c == null) {
+			c = new int[1];
+			requestCounts.put(call, c);
+		}
+		c[0]++;
+		bytesSent += bytes;
+	}
+
+	private synchronized long newId() {
+		return nextId++;
+	}
+
+	private synchronized long newChangesetId() {
+		return nextChangesetId++;
+	}
+
+	/**
+	 * Handle the requests on one connection
+	 * @param socket the connection
+	 */
+	private void handle(final Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			boolean keepAlive = true;
+			while (keepAlive && running) {
+				String requestLine = readLine(in);
+				if (requestLine == null || requestLine.length() == 0) {
+					break;
+				}
+				String[] parts = requestLine.split(" ");
+				if (parts.length < 2) {
+					break;
+				}
+				String method = parts[0];
+				String path = parts[1];
+				int contentLength = 0;
+				boolean chunked = false;
+				String line;
+				while ((line = readLine(in)) != null && line.length() > 0) {
+					String lower = line.toLowerCase(Locale.US);
+					if (lower.startsWith("content-length:")) {
+						contentLength = Integer.parseInt(line.substring(15).trim());
+					} else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+						chunked = true;
+					} else if (lower.startsWith("connection:") && lower.contains("close")) {
+						keepAlive = false;
+					}
+				}
+				byte[] body = chunked ? readChunked(in) : readFully(in, contentLength);
+				respond(out, method, path, new String(body, "UTF-8"));
+			}
+		} catch (IOException e) {
+			Log.d(DEBUG_TAG, "connection closed " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Answer one request
+	 * @param out the stream to write the response to
+	 * @param method HTTP method
+	 * @param path the request path including query
+	 * @param body the request body
+	 * @throws IOException
+	 */
+	private void respond(final OutputStream out, final String method, final String path, final String body) throws IOException {
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+		}
+		if (errorRate > 0 && random.nextFloat() < errorRate) {
+			count("error", 0);
+			send(out, 503, "text/plain", "Service Unavailable (simulated)".getBytes());
+			return;
+		}
+		int apiPos = path.indexOf("/api/");
+		String call = apiPos >= 0 ? path.substring(apiPos + 5) : path;
+		if (call.startsWith("0.6/")) {
+			call = call.substring(4);
+		}
+		String query = "";
+		int q = call.indexOf('?');
+		if (q >= 0) {
+			query = call.substring(q + 1);
+			call = call.substring(0, q);
+		}
+
+		if ("capabilities".equals(call)) {
+			count(call, 0);
+			send(out, 200, "text/xml", (XML_HEADER + "<osm version=\"0.6\" generator=\"MockApiServer\"><api><version minimum=\"0.6\" maximum=\"0.6\"/>"
+					+ "<status database=\"online\" api=\"online\" gpx=\"online\"/></api></osm>").getBytes());
+		} else if ("map".equals(call)) {
+			count(call, mapData.length);
+			send(out, 200, "text/xml", mapData);
+		} else if ("nodes".equals(call) || "ways".equals(call) || "relations".equals(call)) {
+			count(call, 0); // elements are not indexed, pretend they are all deleted
+			send(out, 200, "text/xml", (XML_HEADER + "<osm version=\"0.6\" generator=\"MockApiServer\"></osm>").getBytes());
+		} else if ("user/details".equals(call)) {
+			count(call, 0);
+			send(out, 200, "text/xml", (XML_HEADER + "<osm version=\"0.6\"><user id=\"1\" display_name=\"mock\"/></osm>").getBytes());
+		} else if (call.startsWith("notes")) {
+			count("notes", 0);
+			if ("GET".equals(method)) {
+				send(out, 200, "text/xml", (XML_HEADER + "<osm version=\"0.6\"></osm>").getBytes());
+			} else {
+				send(out, 200, "text/xml", (XML_HEADER + "<osm version=\"0.6\"><note lon=\"0\" lat=\"0\"><id>" + newId()
+						+ "</id><status>open</status><comments></comments></note></osm>").getBytes());
+			}
+		} else if ("gpx/create".equals(call)) {
+			count(call, 0);
+			send(out, 200, "text/plain", Long.toString(newId()).getBytes());
+		} else if ("changeset/create".equals(call)) {
+			count(call, 0);
+			send(out, 200, "text/plain", Long.toString(newChangesetId()).getBytes());
+		} else if (CHANGESET_PATH.matcher(call).matches()) {
+			Matcher m = CHANGESET_PATH.matcher(call);
+			m.matches();
+			String action = m.group(2);
+			if ("/upload".equals(action)) {
+				count("changeset/upload", 0);
+				send(out, 200, "text/xml", diffResult(body).getBytes());
+			} else if ("/close".equals(action)) {
+				count("changeset/close", 0);
+				send(out, 200, "text/plain", new byte[0]);
+			} else {
+				count("changeset", 0);
+				send(out, 200, "text/xml", (XML_HEADER + "<osm version=\"0.6\"><changeset id=\"" + m.group(1) + "\" open=\"true\"/></osm>").getBytes());
+			}
+		} else if (ELEMENT_PATH.matcher(call).matches()) {
+			Matcher m = ELEMENT_PATH.matcher(call);
+			m.matches();
+			if ("create".equals(m.group(2))) {
+				count("create", 0);
+				send(out, 200, "text/plain", Long.toString(newId()).getBytes());
+			} else if ("PUT".equals(method) || "DELETE".equals(method)) {
+				count("PUT".equals(method) ? "update" : "delete", 0);
+				send(out, 200, "text/plain", Long.toString(version(body) + 1).getBytes());
+			} else {
+				count("element", 0);
+				send(out, 404, "text/plain", "Not found".getBytes());
+			}
+		} else {
+			Log.w(DEBUG_TAG, "unsupported call " + method + " " + call + " " + query);
+			count("unsupported", 0);
+			send(out, 404, "text/plain", "Not found".getBytes());
+		}
+	}
+
+	/**
+	 * @param body an element as XML
+	 * @return the version of the element or 0
+	 */
+	private static long version(final String body) {
+		Matcher m = VERSION_ATTR.matcher(body);
+		return m.find() ? Long.parseLong(m.group(1)) : 0;
+	}
+
+	/**
+	 * Build the response to an osmChange upload, new elements get new ids and all versions are incremented
+	 * @param body the osmChange document
+	 * @return the diffResult document
+	 */
+	private String diffResult(final String body) {
+		StringBuilder result = new StringBuilder(XML_HEADER + "<diffResult version=\"0.6\" generator=\"MockApiServer\">\n");
+		String mode = "";
+		Matcher m = DIFF_ELEMENT.matcher(body);
+		while (m.find()) {
+			if (m.group(1) != null) {
+				mode = m.group(1);
+			} else if (m.group(2) != null) {
+				mode = "";
+			} else if (m.group(3) != null && mode.length() > 0) {
+				String type = m.group(3);
+				String id = m.group(4);
+				Matcher v = VERSION_ATTR.matcher(m.group(0)); // the whole start tag
+				long version = v.find() ? Long.parseLong(v.group(1)) : 0;
+				if ("create".equals(mode)) {
+					result.append("<" + type + " old_id=\"" + id + "\" new_id=\"" + newId() + "\" new_version=\"1\"/>\n");
+				} else if ("modify".equals(mode)) {
+					result.append("<" + type + " old_id=\"" + id + "\" new_id=\"" + id + "\" new_version=\"" + (version + 1) + "\"/>\n");
+				} else {
+					result.append("<" + type + " old_id=\"" + id + "\"/>\n");
+				}
+			}
+		}
+		result.append("</diffResult>\n");
+		return result.toString();
+	}
+
+	/**
+	 * Write a response, throttled to the configured bandwidth
+	 */
+	private void send(final OutputStream out, int code, final String contentType, final byte[] data) throws IOException {
+		String header = "HTTP/1.1 " + code + " " + (code == 200 ? "OK" : "Error") + "\r\n"
+				+ "Content-Type: " + contentType + "; charset=utf-8\r\n"
+				+ "Content-Length: " + data.length + "\r\n"
+				+ "\r\n";
+		out.write(header.getBytes("US-ASCII"));
+		if (bandwidth <= 0) {
+			out.write(data);
+		} else {
+			int chunk = (int) Math.max(1, bandwidth / 10); // 100 ms worth of data
+			for (int offset = 0; offset < data.length; offset += chunk) {
+				out.write(data, offset, Math.min(chunk, data.length - offset));
+				out.flush();
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+			}
+		}
+		out.flush();
+	}
+
+	private static String readLine(final InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				break;
+			}
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		if (c == -1 && line.length() == 0) {
+			return null;
+		}
+		return line.toString();
+	}
+
+	private static byte[] readFully(final InputStream in, int length) throws IOException {
+		byte[] result = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int count = in.read(result, read, length - read);
+			if (count < 0) {
+				throw new IOException("unexpected end of request");
+			}
+			read += count;
+		}
+		return result;
+	}
+
+	private static byte[] readChunked(final InputStream in) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		while (true) {
+			String sizeLine = readLine(in);
+			if (sizeLine == null) {
+				throw new IOException("unexpected end of request");
+			}
+			int semicolon = sizeLine.indexOf(';');
+			int size = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+			if (size == 0) {
+				readLine(in); // trailing empty line
+				return result.toByteArray();
+			}
+			result.write(readFully(in, size));
+			readLine(in);
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package de.blau.android.osm;
+
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import de.blau.android.exception.StorageException;
+import de.blau.android.util.Histogram;
+
+/**
+ * Stress test for changing the data from background threads, only part of debug builds.
+ *
+ * One thread merges downloads, one uploads the pending changes to a {@link MockApiServer} and one keeps writing
+ * the data with {@link StorageDelegator#save(OutputStream)} and {@link StorageDelegator#export(OutputStream)}.
+ * Meanwhile the UI thread edits a few nodes every frame and reads all ways like rendering does, checking that all
+ * their nodes are present. The results show how late frames ran, i.e. how long the UI thread was blocked, and how
+ * many inconsistencies and failures were seen. {@link StorageDelegator#writeToFile()} is not run as it would
+ * overwrite the saved state of the app.
+ *
+ * Needs to run on a device or emulator and not on the UI thread, for example
+ * <pre>
+ * MockApiServer mock = new MockApiServer();
+ * mock.setConditions(50, 500000, 0f);
+ * mock.start();
+ * Log.i("PublishStressTest", new PublishStressTest(mock).run(100));
+ * mock.stop();
+ * </pre>
+ * @author simon
+ *
+ */
+public class PublishStressTest {
+
+	private static final String DEBUG_TAG = PublishStressTest.class.getSimpleName();
+
+	private static final int WAYS_PER_DOWNLOAD = 50;
+	private static final int NODES_PER_WAY = 10;
+	private static final int EDITS_PER_FRAME = 5;
+	private static final long FRAME = 16; // ms
+	private static final long PAUSE = 100; // ms between background operations
+
+	private final MockApiServer mock;
+
+	private final Histogram frame = new Histogram();
+	private final Histogram lateness = new Histogram();
+	private final Histogram merge = new Histogram();
+	private final Histogram upload = new Histogram();
+	private final Histogram save = new Histogram();
+
+	private final AtomicInteger inconsistencies = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	private StorageDelegator delegator;
+	private volatile boolean stop = false;
+
+	/**
+	 * @param mock a started mock server
+	 */
+	public PublishStressTest(final MockApiServer mock) {
+		this.mock = mock;
+	}
+
+	/**
+	 * Run the test
+	 * @param downloads number of downloads to merge, the test ends when they have been merged
+	 * @return a description of the results
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	public String run(final int downloads) throws InterruptedException {
+		delegator = new StorageDelegator();
+		stop = false;
+		mock.resetStats();
+
+		Thread merger = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Random random = new Random(4711);
+				long nextId = 1;
+				for (int i = 0; i < downloads; i++) {
+					try {
+						Storage download = new Storage();
+						for (int w = 0; w < WAYS_PER_DOWNLOAD; w++) {
+							Way way = OsmElementFactory.createWay(nextId++, 1, OsmElement.STATE_UNCHANGED);
+							for (int n = 0; n < NODES_PER_WAY; n++) {
+								Node node = OsmElementFactory.createNode(nextId++, 1, OsmElement.STATE_UNCHANGED,
+										random.nextInt(1000000), random.nextInt(1000000));
+								download.insertNodeUnsafe(node);
+								way.addNode(node);
+							}
+							download.insertWayUnsafe(way);
+						}
+						long start = System.currentTimeMillis();
+						if (!delegator.mergeData(download)) {
+							Log.e(DEBUG_TAG, "merge failed");
+							failures.incrementAndGet();
+						}
+						merge.add(System.currentTimeMillis() - start);
+						Thread.sleep(PAUSE);
+					} catch (StorageException e) {
+						Log.e(DEBUG_TAG, "merge failed " + e);
+						failures.incrementAndGet();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "merge");
+
+		Thread uploader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Server server = new Server(mock.getApiUrl(), "mock", "mock", false, null, null, "Vespucci stress test");
+				while (!stop) {
+					try {
+						long start = System.currentTimeMillis();
+						delegator.uploadToServer(server, "stress test", null, true);
+						upload.add(System.currentTimeMillis() - start);
+						Thread.sleep(PAUSE);
+					} catch (InterruptedException e) {
+						return;
+					} catch (Exception e) {
+						Log.e(DEBUG_TAG, "upload failed " + e);
+						failures.incrementAndGet();
+					}
+				}
+			}
+		}, "upload");
+
+		Thread saver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				OutputStream discard = new OutputStream() {
+					@Override
+					public void write(int b) {
+						// nothing to do
+					}
+				};
+				while (!stop) {
+					try {
+						long start = System.currentTimeMillis();
+						delegator.save(discard);
+						delegator.export(discard);
+						save.add(System.currentTimeMillis() - start);
+						Thread.sleep(PAUSE);
+					} catch (InterruptedException e) {
+						return;
+					} catch (Exception e) {
+						Log.e(DEBUG_TAG, "save failed " + e);
+						failures.incrementAndGet();
+					}
+				}
+			}
+		}, "save");
+
+		Runnable frameRunnable = new Runnable() {
+			final Random random = new Random(42);
+			long scheduled = System.currentTimeMillis();
+
+			@Override
+			public void run() {
+				long start = System.currentTimeMillis();
+				lateness.add(start - scheduled);
+				edit(random);
+				check();
+				frame.add(System.currentTimeMillis() - start);
+				if (!stop) {
+					scheduled = System.currentTimeMillis() + FRAME;
+					handler.postDelayed(this, FRAME);
+				}
+			}
+		};
+
+		handler.post(frameRunnable);
+		merger.start();
+		uploader.start();
+		saver.start();
+		merger.join();
+		stop = true; // let the running upload and save finish
+		uploader.join();
+		saver.join();
+		handler.removeCallbacks(frameRunnable);
+
+		String result = "frame " + frame + "\nframe lateness " + lateness + "\nmerge " + merge + "\nupload " + upload + "\nsave and export " + save
+				+ "\ninconsistencies " + inconsistencies.get() + " failures " + failures.get() + "\nserver " + mock.getStats();
+		Log.i(DEBUG_TAG, result);
+		return result;
+	}
+
+	/**
+	 * Change the tags of some nodes, runs on the UI thread
+	 */
+	private void edit(final Random random) {
+		List<Node> nodes = delegator.getCurrentStorage().getNodes();
+		if (nodes.isEmpty()) {
+			return;
+		}
+		delegator.getUndo().createCheckpoint("stress test");
+		for (int i = 0; i < EDITS_PER_FRAME; i++) {
+			Node n = nodes.get(random.nextInt(nodes.size()));
+			TreeMap<String, String> tags = new TreeMap<String, String>(n.getTags());
+			tags.put("note", "stress test " + random.nextInt());
+			delegator.setTags(n, tags);
+		}
+	}
+
+	/**
+	 * Check that all way nodes are present like rendering expects, runs on the UI thread
+	 */
+	private void check() {
+		Storage current = delegator.getCurrentStorage();
+		HashSet<Node> nodes = new HashSet<Node>(current.getNodes());
+		for (Way w:current.getWays()) {
+			for (Node n:w.getNodes()) {
+				if (!nodes.contains(n)) {
+					Log.e(DEBUG_TAG, "way " + w.getOsmId() + " has missing node " + n.getOsmId());
+					inconsistencies.incrementAndGet();
+					return;
+				}
+			}
+		}
+	}
+}
@@ -93,6 +93,8 @@ public class DialogFactory {
 	public static final int GPX_UPLOAD = 22;
 	
 	public static final int UPLOAD_CONFLICT = 23;
+	
+	public static final int PROGRESS_DOWNLOAD_CANCELABLE = 24;
 		
 	private final Main caller;
 	
@@ -253,6 +255,9 @@ public class DialogFactory {
 		case PROGRESS_DOWNLOAD:
 			return createBasicProgressDialog(R.string.progress_download_message);
 			
+		case PROGRESS_DOWNLOAD_CANCELABLE:
+			return createCancelableDownloadDialog();
+			
 		case UPLOAD_PROBLEM:
 			return uploadProblem.create();
 			
@@ -389,6 +394,26 @@ public class DialogFactory {
 		return progress;
 	}
 	
+	/**
+	 * Progress dialog for downloads that can be stopped, the data received so far is displayed behind it
+	 */
+	private ProgressDialog createCancelableDownloadDialog() {
+		ProgressDialog progress = createBasicProgressDialog(R.string.progress_download_message);
+		progress.setButton(DialogInterface.BUTTON_NEGATIVE, caller.getString(R.string.cancel), new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				Main.logic.cancelDownload();
+			}
+		});
+		progress.setOnCancelListener(new DialogInterface.OnCancelListener() {
+			@Override
+			public void onCancel(DialogInterface dialog) {
+				Main.logic.cancelDownload();
+			}
+		});
+		return progress;
+	}
+	
 	private Dialog createSearchDialog(final Main caller) {
 		final LayoutInflater inflater = (LayoutInflater)caller.getApplicationContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
 		Builder searchBuilder = createBasicDialog(R.string.menu_find, R.string.find_message);
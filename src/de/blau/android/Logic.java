@@ -13,11 +13,14 @@ import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.concurrent.ExecutionException;
@@ -49,15 +52,19 @@ import de.blau.android.exception.OsmServerException;
 import de.blau.android.exception.StorageException;
 import de.blau.android.osb.Bug;
 import de.blau.android.osm.BoundingBox;
+import de.blau.android.osm.MemoryBudget;
+import de.blau.android.osm.MultiFetcher;
 import de.blau.android.osm.Node;
 import de.blau.android.osm.OsmElement;
 import de.blau.android.osm.OsmParser;
+import de.blau.android.osm.PendingChanges;
 import de.blau.android.osm.Relation;
 import de.blau.android.osm.RelationMember;
 import de.blau.android.osm.RelationMemberDescription;
 import de.blau.android.osm.Server;
 import de.blau.android.osm.Server.UserDetails;
 import de.blau.android.osm.Server.Visibility;
+import de.blau.android.osm.StagingArea;
 import de.blau.android.osm.Storage;
 import de.blau.android.osm.StorageDelegator;
 import de.blau.android.osm.Track;
@@ -70,6 +77,10 @@ import de.blau.android.util.EditState;
 import de.blau.android.util.GeoMath;
 import de.blau.android.util.Offset;
 import de.blau.android.util.SavingHelper;
+import de.blau.android.validation.DuplicateNodeFinder;
+import de.blau.android.validation.Intersection;
+import de.blau.android.validation.IntersectionFinder;
+import de.blau.android.validation.Validator;
 import de.blau.android.views.util.OpenStreetMapTileServer;
 
 /**
@@ -196,10 +207,25 @@ public class Logic {
 	 */
 	private static final int MAX_NODES_FOR_MOVE = 100;
 	
+	/**
+	 * smallest fraction of a requested download area we will reduce the area to if memory is short
+	 */
+	private static final float MIN_DOWNLOAD_FRACTION = 0.1f;
+	
 	/**
 	 * See {@link StorageDelegator}.
 	 */
 	protected final StorageDelegator delegator = new StorageDelegator();
+	
+	/**
+	 * Checks the data in the background, see {@link Validator}.
+	 */
+	private final Validator validator;
+	
+	/**
+	 * Result of the last {@link #findIntersections()}, highlighted on the map
+	 */
+	private volatile List<Intersection> intersections = Collections.emptyList();
 
 	/**
 	 * Stores the {@link Preferences} as soon as they are available.
@@ -270,7 +296,11 @@ public class Logic {
 	 * An instance of the map. Value set by Main via constructor.
 	 */
 	private Map map;
-
+	
+	/**
+	 * Elements of the download in progress, displayed until the download has been merged
+	 */
+	private volatile StagingArea staging = null;
 	
 	private Set<OsmElement> clickableElements;
 	
@@ -315,6 +345,16 @@ public class Logic {
 		// map.setPaints(paints);
 		map.setDelegator(delegator);
 		map.setViewBox(viewBox);
+		
+		validator = new Validator(delegator);
+		validator.setOnResults(new Runnable() {
+			@Override
+			public void run() {
+				map.invalidate();
+			}
+		});
+		delegator.setChangeListener(validator);
+		validator.validateAll();
 	}
 
 
@@ -404,13 +444,26 @@ public class Logic {
 	public UndoStorage getUndo() {
 		return delegator.getUndo();
 	}
+	
+	/**
+	 * @return the validator checking the data in the background
+	 */
+	public Validator getValidator() {
+		return validator;
+	}
 
 	/**
 	 * Wrapper to ensure the dirty flag is set 
 	 * @return
 	 */
 	public String undo() {
-		String name = delegator.getUndo().undo();
+		delegator.beginBatch(); // checkpoints can contain many elements
+		String name;
+		try {
+			name = delegator.getUndo().undo();
+		} finally {
+			delegator.endBatch();
+		}
 		delegator.dirty();
 		return name;
 	}
@@ -420,7 +473,13 @@ public class Logic {
 	 * @return
 	 */
 	public String redo() {
-		String name = delegator.getUndo().redo();
+		delegator.beginBatch();
+		String name;
+		try {
+			name = delegator.getUndo().redo();
+		} finally {
+			delegator.endBatch();
+		}
 		delegator.dirty();
 		return name;
 	}
@@ -1323,6 +1382,61 @@ public class Logic {
 		}
 	}
 
+	/**
+	 * Delete many elements as one operation with a single undo checkpoint.
+	 * 
+	 * @param elements the elements to delete
+	 * @param deleteOrphanNodes if true untagged nodes of deleted ways that are not used by other ways are deleted too
+	 */
+	public void performEraseMultipleObjects(final Collection<OsmElement> elements, final boolean deleteOrphanNodes) {
+		createCheckpoint(R.string.undo_action_delete_objects);
+		boolean outside = false;
+		delegator.beginBatch();
+		try {
+			ArrayList<Node> nodes = new ArrayList<Node>();
+			HashSet<Node> wayNodes = new HashSet<Node>();
+			for (OsmElement e:elements) {
+				if (e instanceof Relation) {
+					delegator.removeRelation((Relation) e);
+				}
+			}
+			for (OsmElement e:elements) {
+				if (e instanceof Way) {
+					outside = outside || !isInDownload((Way) e);
+					if (deleteOrphanNodes) {
+						wayNodes.addAll(((Way) e).getNodes());
+					}
+					delegator.removeWay((Way) e);
+				} else if (e instanceof Node) {
+					outside = outside || !isInDownload((Node) e);
+					nodes.add((Node) e);
+				}
+			}
+			if (!wayNodes.isEmpty()) {
+				wayNodes.removeAll(nodes);
+				for (Way w:delegator.getCurrentStorage().getWays()) { // one pass instead of one per node
+					if (wayNodes.isEmpty()) {
+						break;
+					}
+					wayNodes.removeAll(w.getNodes());
+				}
+				for (Node n:wayNodes) {
+					if (n.getTags().isEmpty()) {
+						nodes.add(n);
+					}
+				}
+			}
+			delegator.removeNodes(nodes);
+		} finally {
+			delegator.endBatch();
+		}
+		map.invalidate();
+		if (outside) {
+			// warning toast
+			Toast.makeText(Application.mainActivity, R.string.toast_outside_of_download, Toast.LENGTH_SHORT).show();
+		}
+	}
+
 	/**
 	 * Splits all ways at the given node.
 	 * 
@@ -1710,24 +1824,41 @@ public class Logic {
 	/**
 	 * Loads the area defined by mapBox from the OSM-Server.
 	 * 
-	 * @param mapBox Box defining the area to be loaded.
+	 * If the data for the area is not expected to fit in to the available memory the area is reduced, 
+	 * or nothing is downloaded if the area would become too small.
+	 * 
+	 * @param requestedBox Box defining the area to be loaded.
 	 * @param add if true add this data to existing
 	 * @param auto download is being done automatically, try not mess up/move the display
 	 */
-	void downloadBox(final BoundingBox mapBox, final boolean add, final boolean auto) {
+	void downloadBox(final BoundingBox requestedBox, final boolean add, final boolean auto) {
 		try {
-			mapBox.makeValidForApi();
+			requestedBox.makeValidForApi();
 		} catch (OsmException e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
 		} // TODO remove this? and replace with better error messaging
 		
+		final BoundingBox mapBox = fitToMemory(requestedBox, auto);
+		if (mapBox == null) {
+			return;
+		}
+		
+		// elements are displayed as they are parsed, the download is only merged once it is complete
+		final StagingArea downloadStaging = new StagingArea(new Runnable() {
+			@Override
+			public void run() {
+				map.postInvalidate();
+			}
+		});
+		
 		new AsyncTask<Boolean, Void, Integer>() {
 			
 			@Override
 			protected void onPreExecute() {
+				staging = downloadStaging;
 				if (!auto) {
-					Application.mainActivity.showDialog(DialogFactory.PROGRESS_LOADING);
+					Application.mainActivity.showDialog(DialogFactory.PROGRESS_DOWNLOAD_CANCELABLE);
 				}
 			}
 			
@@ -1736,32 +1867,18 @@ public class Logic {
 				int result = 0;
 				try {
 					final OsmParser osmParser = new OsmParser();
+					osmParser.setStagingArea(downloadStaging);
 					final InputStream in = prefs.getServer().getStreamForBox(mapBox);
 					try {
 						osmParser.start(in);
+						MemoryBudget.recordDownload(mapBox, osmParser.getStorage());
 						if (arg[0]) { // incremental load
-							if (!delegator.mergeData(osmParser.getStorage())) {
+							// if we are simply expanding the area no need keep the old bounding boxes
+							if (!delegator.mergeData(osmParser.getStorage(), mapBox)) {
 								result = DialogFactory.DATA_CONFLICT;
-							} else {
-								if (mapBox != null) {
-									// if we are simply expanding the area no need keep the old bounding boxes
-									List<BoundingBox> origBbs = delegator.getBoundingBoxes();
-									List<BoundingBox> bbs = new ArrayList<BoundingBox>(origBbs);
-									for (BoundingBox bb:bbs) {
-										if (mapBox.contains(bb)) {
-											origBbs.remove(bb);
-										}
-									}
-									delegator.addBoundingBox(mapBox);
-								}
 							}
 						} else { // replace data with new download
-							delegator.reset();
-							delegator.setCurrentStorage(osmParser.getStorage());
-							if (mapBox != null) {
-								Log.d("Logic","setting original bbox");
-								delegator.setOriginalBox(mapBox);
-							}
+							delegator.replaceData(osmParser.getStorage(), mapBox);
 						}
 						if (!auto) {
 							viewBox.setBorders(mapBox != null ? mapBox : delegator.getLastBox()); // set to current or previous
@@ -1770,11 +1887,14 @@ public class Logic {
 						SavingHelper.close(in);
 					}
 				} catch (SAXException e) {
-					Log.e("Vespucci", "Problem parsing", e);
 					Exception ce = e.getException();
-					if ((ce instanceof StorageException) && ((StorageException)ce).getCode() == StorageException.OOM) {
+					if (downloadStaging.isCancelled()) {
+						Log.d("Logic", "Download cancelled");
+					} else if ((ce instanceof StorageException) && ((StorageException)ce).getCode() == StorageException.OOM) {
+						Log.e("Vespucci", "Problem parsing", e);
 						result = DialogFactory.OUT_OF_MEMORY;
 					} else {
+						Log.e("Vespucci", "Problem parsing", e);
 						result = DialogFactory.INVALID_DATA_RECEIVED;
 					}
 				} catch (ParserConfigurationException e) {
@@ -1794,9 +1914,13 @@ public class Logic {
 			
 			@Override
 			protected void onPostExecute(Integer result) {
+				if (staging == downloadStaging) {
+					staging = null;
+					map.invalidate();
+				}
 				if (!auto) {
 					try {
-						Application.mainActivity.dismissDialog(DialogFactory.PROGRESS_LOADING);
+						Application.mainActivity.dismissDialog(DialogFactory.PROGRESS_DOWNLOAD_CANCELABLE);
 					} catch (IllegalArgumentException e) {
 						 // Avoid crash if dialog is already dismissed
 						Log.d("Logic", "", e);
@@ -1844,6 +1968,190 @@ public class Logic {
 		downloadBox(viewBox.copy(),add, false);
 	}
 	
+	/**
+	 * Check if the data in an area is expected to fit in to the available memory and reduce the area if not
+	 * @param box the area to download
+	 * @param auto if true the download is automatic and the area will not be reduced
+	 * @return box, a smaller area around the same center, or null if nothing should be downloaded
+	 */
+	private BoundingBox fitToMemory(final BoundingBox box, final boolean auto) {
+		float fit = MemoryBudget.fitDownload(box);
+		if (fit >= 1f) {
+			return box;
+		}
+		Log.w("Logic", "Download of " + box + " predicted to need " + MemoryBudget.predictDownload(box) + " bytes, headroom " + MemoryBudget.getHeadroom());
+		if (!auto && fit >= MIN_DOWNLOAD_FRACTION) {
+			// scale both sides, leave some margin as the prediction is rough
+			double scale = Math.sqrt(fit * 0.9f);
+			long halfWidth = (long) (box.getWidth() * scale / 2);
+			long halfHeight = (long) (box.getHeight() * scale / 2);
+			long centerLon = box.getLeft() + box.getWidth() / 2;
+			long centerLat = box.getBottom() + (long) box.getHeight() / 2;
+			try {
+				BoundingBox trimmed = new BoundingBox((int) (centerLon - halfWidth), (int) (centerLat - halfHeight), (int) (centerLon + halfWidth), (int) (centerLat + halfHeight));
+				Toast.makeText(Application.mainActivity, R.string.toast_download_area_reduced, Toast.LENGTH_LONG).show();
+				return trimmed;
+			} catch (OsmException e) {
+				Log.e("Logic", "Reducing download area failed " + e.getMessage());
+			}
+		}
+		if (!auto) {
+			Application.mainActivity.showDialog(delegator.isDirty() ? DialogFactory.OUT_OF_MEMORY_DIRTY : DialogFactory.OUT_OF_MEMORY);
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the staging area of the download in progress or null
+	 */
+	public StagingArea getStagingArea() {
+		return staging;
+	}
+	
+	/**
+	 * Search all ways for crossings without a common node and for self-intersecting areas in the background,
+	 * the results are highlighted on the map and shown as a list
+	 */
+	public void findIntersections() {
+		final List<Way> ways = new ArrayList<Way>(delegator.getCurrentStorage().getWays());
+		new AsyncTask<Void, Void, List<Intersection>>() {
+			
+			@Override
+			protected void onPreExecute() {
+				Application.mainActivity.showDialog(DialogFactory.PROGRESS_SEARCHING);
+			}
+			
+			@Override
+			protected List<Intersection> doInBackground(Void... arg) {
+				try {
+					return IntersectionFinder.find(ways);
+				} catch (ConcurrentModificationException e) {
+					Log.d("Logic", "data changed while searching for intersections", e);
+				} catch (IndexOutOfBoundsException e) {
+					Log.d("Logic", "data changed while searching for intersections", e);
+				}
+				return null;
+			}
+			
+			@Override
+			protected void onPostExecute(List<Intersection> result) {
+				try {
+					Application.mainActivity.dismissDialog(DialogFactory.PROGRESS_SEARCHING);
+				} catch (IllegalArgumentException e) {
+					 // Avoid crash if dialog is already dismissed
+					Log.d("Logic", "", e);
+				}
+				if (result == null) {
+					Toast.makeText(Application.mainActivity, R.string.toast_data_changed_during_search, Toast.LENGTH_SHORT).show();
+					return;
+				}
+				intersections = result;
+				map.invalidate();
+				Application.mainActivity.showIntersectionList();
+			}
+			
+		}.execute();
+	}
+	
+	/**
+	 * @return the intersections found by the last search that are still present
+	 */
+	public List<Intersection> getIntersections() {
+		List<Intersection> current = intersections;
+		ArrayList<Intersection> result = new ArrayList<Intersection>(current.size());
+		for (Intersection i:current) {
+			if (i.isValid()) {
+				result.add(i);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the intersections found by the last search including fixed ones, for drawing
+	 */
+	List<Intersection> getIntersectionsUnchecked() {
+		return intersections;
+	}
+	
+	/**
+	 * Search for nodes at the same or almost the same position in the background and propose to merge them
+	 * @param tolerance maximum distance in metres between nodes that should be merged
+	 */
+	public void findDuplicateNodes(final float tolerance) {
+		final List<Node> nodes = new ArrayList<Node>(delegator.getCurrentStorage().getNodes());
+		final List<Way> ways = new ArrayList<Way>(delegator.getCurrentStorage().getWays());
+		new AsyncTask<Void, Void, List<DuplicateNodeFinder.Merge>>() {
+			
+			@Override
+			protected void onPreExecute() {
+				Application.mainActivity.showDialog(DialogFactory.PROGRESS_SEARCHING);
+			}
+			
+			@Override
+			protected List<DuplicateNodeFinder.Merge> doInBackground(Void... arg) {
+				try {
+					return DuplicateNodeFinder.find(nodes, ways, delegator, tolerance);
+				} catch (ConcurrentModificationException e) {
+					Log.d("Logic", "data changed while searching for duplicate nodes", e);
+				} catch (IndexOutOfBoundsException e) {
+					Log.d("Logic", "data changed while searching for duplicate nodes", e);
+				}
+				return null;
+			}
+			
+			@Override
+			protected void onPostExecute(List<DuplicateNodeFinder.Merge> result) {
+				try {
+					Application.mainActivity.dismissDialog(DialogFactory.PROGRESS_SEARCHING);
+				} catch (IllegalArgumentException e) {
+					 // Avoid crash if dialog is already dismissed
+					Log.d("Logic", "", e);
+				}
+				if (result == null) {
+					Toast.makeText(Application.mainActivity, R.string.toast_data_changed_during_search, Toast.LENGTH_SHORT).show();
+					return;
+				}
+				Application.mainActivity.showNodeMerges(result);
+			}
+			
+		}.execute();
+	}
+	
+	/**
+	 * Merge nodes as one operation with a single undo checkpoint, merges of nodes that no longer exist are skipped
+	 * @param merges the merges proposed by {@link DuplicateNodeFinder}
+	 * @return the number of nodes that were merged in to other nodes
+	 */
+	public int performMergeNodes(final List<DuplicateNodeFinder.Merge> merges) {
+		int merged = 0;
+		LinkedHashMap<Node, Node> mergeInto = new LinkedHashMap<Node, Node>();
+		for (DuplicateNodeFinder.Merge merge:merges) {
+			for (Node n:merge.getNodes()) {
+				mergeInto.put(n, merge.getTarget());
+			}
+		}
+		createCheckpoint(R.string.undo_action_merge_nodes);
+		delegator.beginBatch();
+		try {
+			merged = delegator.mergeNodes(mergeInto);
+		} finally {
+			delegator.endBatch();
+		}
+		map.invalidate();
+		return merged;
+	}
+	
+	/**
+	 * Stop the download in progress, nothing received so far will be merged
+	 */
+	public void cancelDownload() {
+		StagingArea s = staging;
+		if (s != null) {
+			s.cancel();
+		}
+	}
+	
 	/**
 	 * Re-downloads the same area as last time
 	 * @see #downloadBox(Main, BoundingBox, boolean)
@@ -2009,6 +2317,89 @@ public class Logic {
 	}
 	
 
+	/**
+	 * Download all members of a relation that are not present locally, the downloads are batched and run in parallel
+	 * @param relation the relation
+	 */
+	public void downloadMissingMembers(final Relation relation) {
+		final List<Long> nodeIds = new ArrayList<Long>();
+		final List<Long> wayIds = new ArrayList<Long>();
+		final List<Long> relationIds = new ArrayList<Long>();
+		for (RelationMember rm:relation.getMembers()) {
+			if (rm.getElement() == null) {
+				if (Node.NAME.equals(rm.getType())) {
+					nodeIds.add(rm.getRef());
+				} else if (Way.NAME.equals(rm.getType())) {
+					wayIds.add(rm.getRef());
+				} else if (Relation.NAME.equals(rm.getType())) {
+					relationIds.add(rm.getRef());
+				}
+			}
+		}
+		if (nodeIds.isEmpty() && wayIds.isEmpty() && relationIds.isEmpty()) {
+			return;
+		}
+		
+		new AsyncTask<Void, Void, Integer>() {
+			
+			@Override
+			protected void onPreExecute() {
+				Application.mainActivity.showDialog(DialogFactory.PROGRESS_DOWNLOAD);
+			}
+			
+			@Override
+			protected Integer doInBackground(Void... arg) {
+				int result = 0;
+				try {
+					Storage storage = new MultiFetcher(prefs.getServer()).fetch(nodeIds, wayIds, relationIds);
+					if (!delegator.mergeData(storage)) {
+						result = DialogFactory.DATA_CONFLICT;
+					}
+				} catch (SAXException e) {
+					Log.e("Vespucci", "Problem parsing", e);
+					Exception ce = e.getException();
+					if ((ce instanceof StorageException) && ((StorageException)ce).getCode() == StorageException.OOM) {
+						result = DialogFactory.OUT_OF_MEMORY;
+					} else {
+						result = DialogFactory.INVALID_DATA_RECEIVED;
+					}
+				} catch (ParserConfigurationException e) {
+					Log.e("Vespucci", "Problem parsing", e);
+					result = DialogFactory.INVALID_DATA_RECEIVED;
+				} catch (OsmServerException e) {
+					result = DialogFactory.NO_CONNECTION;
+					Log.e("Vespucci", "Problem downloading", e);
+				} catch (IOException e) {
+					result = DialogFactory.NO_CONNECTION;
+					Log.e("Vespucci", "Problem downloading", e);
+				}
+				return result;
+			}
+			
+			@Override
+			protected void onPostExecute(Integer result) {
+				try {
+					Application.mainActivity.dismissDialog(DialogFactory.PROGRESS_DOWNLOAD);
+				} catch (IllegalArgumentException e) {
+					 // Avoid crash if dialog is already dismissed
+					Log.d("Logic", "", e);
+				}
+				if (result != 0) {
+					try {
+						if (!Application.mainActivity.isFinishing()) {
+							Application.mainActivity.showDialog(result);
+						}
+					} catch (Exception ex) { // now and then this seems to throw a WindowManager.BadTokenException, however report, don't crash
+						ACRA.getErrorReporter().putCustomData("STATUS","NOCRASH");
+						ACRA.getErrorReporter().handleException(ex);
+					}
+				}
+				map.invalidate();
+			}
+			
+		}.execute();
+	}
+
 	/**
 	 * Element is deleted on server, delete locally but don't upload
 	 * A bit iffy because of memberships in other objects
@@ -2061,9 +2452,7 @@ public class Logic {
 					try {
 						osmParser.start(in);
 						
-						delegator.reset();
-						delegator.setCurrentStorage(osmParser.getStorage());
-						delegator.fixupApiStorage();
+						delegator.replaceData(osmParser.getStorage(), null);
 						
 						viewBox.setBorders(delegator.getLastBox()); // set to current or previous
 					} finally {
@@ -2657,10 +3046,10 @@ public class Logic {
 	}
 	
 	/**
-	 * @return a list of all pending changes to upload
+	 * @return all pending changes to upload
 	 */
-	public List<String> getPendingChanges(final Context aCaller) {
-		return delegator.listChanges(aCaller.getResources());
+	public PendingChanges getPendingChanges() {
+		return delegator.getPendingChanges();
 	}
 
 	/**
@@ -2879,28 +3268,80 @@ public class Logic {
 
 
 	public void copyToClipboard(OsmElement element) {
-		if (element instanceof Node) {
-			delegator.copyToClipboard(element, ((Node)element).getLat(), ((Node)element).getLon());
-		} else if (element instanceof Way) {
-			// use current centroid of way
-			int result[] = Logic.centroid(map.getWidth(), map.getHeight(), viewBox,(Way)element);
-			Log.d("Logic","centroid " + result[0] + " " + result[1]);
-			delegator.copyToClipboard(element, result[0], result[1]);
+		copyToClipboard(Collections.singletonList(element));
+	}
+	
+	/**
+	 * Copy elements to the clipboard
+	 * @param elements the selected elements
+	 */
+	public void copyToClipboard(List<OsmElement> elements) {
+		int position[] = clipboardPosition(elements);
+		if (position != null) {
+			delegator.copyToClipboard(elements, position[0], position[1]);
 		}
 	}
 
-
 	public void cutToClipboard(OsmElement element) {
-		createCheckpoint(R.string.undo_action_cut);
-		if (element instanceof Node) {
-			delegator.cutToClipboard(element, ((Node)element).getLat(), ((Node)element).getLon());
-		} else if (element instanceof Way) {
-			int result[] = Logic.centroid(map.getWidth(), map.getHeight(), viewBox,(Way)element);
-			Log.d("Logic","centroid " + result[0] + " " + result[1]);
-			delegator.cutToClipboard(element, result[0], result[1]);
+		cutToClipboard(Collections.singletonList(element));
+	}
+	
+	/**
+	 * Cut elements to the clipboard, this creates an undo checkpoint
+	 * @param elements the selected elements
+	 */
+	public void cutToClipboard(List<OsmElement> elements) {
+		int position[] = clipboardPosition(elements);
+		if (position != null) {
+			createCheckpoint(R.string.undo_action_cut);
+			delegator.cutToClipboard(elements, position[0], position[1]);
 		}
 		map.invalidate();
 	}
+	
+	/**
+	 * The position that the pasted elements are placed relative to: the position of a single node,
+	 * the centroid of a single way, else the center of the bounding box of the elements
+	 * @param elements the selected elements
+	 * @return latitude and longitude, null if the elements have no position
+	 */
+	private int[] clipboardPosition(List<OsmElement> elements) {
+		if (elements.size() == 1) {
+			OsmElement element = elements.get(0);
+			if (element instanceof Node) {
+				return new int[] {((Node)element).getLat(), ((Node)element).getLon()};
+			} else if (element instanceof Way) {
+				// use current centroid of way
+				int result[] = Logic.centroid(map.getWidth(), map.getHeight(), viewBox,(Way)element);
+				if (result != null) {
+					return result;
+				}
+			}
+		}
+		int minLat = Integer.MAX_VALUE;
+		int maxLat = Integer.MIN_VALUE;
+		int minLon = Integer.MAX_VALUE;
+		int maxLon = Integer.MIN_VALUE;
+		ArrayList<OsmElement> todo = new ArrayList<OsmElement>(elements);
+		HashSet<Relation> seen = new HashSet<Relation>();
+		while (!todo.isEmpty()) {
+			OsmElement e = todo.remove(todo.size() - 1);
+			if (e instanceof Node) {
+				minLat = Math.min(minLat, ((Node)e).getLat());
+				maxLat = Math.max(maxLat, ((Node)e).getLat());
+				minLon = Math.min(minLon, ((Node)e).getLon());
+				maxLon = Math.max(maxLon, ((Node)e).getLon());
+			} else if (e instanceof Way) {
+				todo.addAll(((Way)e).getNodes());
+			} else if (e instanceof Relation && seen.add((Relation)e)) {
+				todo.addAll(((Relation)e).getMemberElements());
+			}
+		}
+		if (minLat > maxLat) {
+			return null;
+		}
+		return new int[] {(int) (((long) minLat + maxLat) / 2), (int) (((long) minLon + maxLon) / 2)};
+	}
 
 	public void pasteFromClipboard(float x, float y) {
 		createCheckpoint(R.string.undo_action_paste);
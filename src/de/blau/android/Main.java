@@ -35,6 +35,7 @@ import android.os.Environment;
 import android.os.IBinder;
 import android.provider.Settings;
 import android.text.Html;
+import android.text.InputType;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.ContextMenu;
@@ -56,7 +57,9 @@ import android.webkit.WebViewClient;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.RelativeLayout;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
@@ -87,7 +90,9 @@ import de.blau.android.osb.CommitTask;
 import de.blau.android.osm.BoundingBox;
 import de.blau.android.osm.Node;
 import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.PendingChanges;
 import de.blau.android.osm.Relation;
+import de.blau.android.osm.RelationMember;
 import de.blau.android.osm.Server;
 import de.blau.android.osm.Server.Visibility;
 import de.blau.android.osm.StorageDelegator;
@@ -105,6 +110,8 @@ import de.blau.android.services.TrackerService.TrackerLocationListener;
 import de.blau.android.util.GeoMath;
 import de.blau.android.util.OAuthHelper;
 import de.blau.android.util.SavingHelper;
+import de.blau.android.validation.DuplicateNodeFinder;
+import de.blau.android.validation.Intersection;
 import de.blau.android.views.overlay.OpenStreetMapViewOverlay;
 
 /**
@@ -148,6 +155,11 @@ public class Main extends SherlockActivity implements OnNavigationListener, Serv
 	 * Where we install the current version of vespucci
 	 */
 	private static final String VERSION_FILE = "version.dat"; 
+	
+	/**
+	 * Default maximum distance in metres for merging duplicate nodes
+	 */
+	private static final float DEFAULT_MERGE_TOLERANCE = 0.5f;
 
 	private DialogFactory dialogFactory;
 	
@@ -882,6 +894,29 @@ public class Main extends SherlockActivity implements OnNavigationListener, Serv
 			showDialog(DialogFactory.BACKGROUND_PROPERTIES);
 			return true;
 			
+		case R.id.menu_tools_validation_problems:
+			showProblemList();
+			return true;
+			
+		case R.id.menu_tools_find_intersections:
+			logic.findIntersections();
+			return true;
+			
+		case R.id.menu_tools_merge_duplicate_nodes:
+			showMergeToleranceDialog();
+			return true;
+			
+		case R.id.menu_tools_export_tile_stats:
+			File statsFile = new File(Environment.getExternalStorageDirectory().getPath() + "/Vespucci/tilestats.csv");
+			try {
+				statsFile.getParentFile().mkdirs();
+				map.getOpenStreetMapTilesOverlay().getTileProvider().exportStats(statsFile);
+				Toast.makeText(this, getResources().getString(R.string.toast_exported_tile_stats, statsFile.getPath()), Toast.LENGTH_LONG).show();
+			} catch (IOException e) {
+				Toast.makeText(this, getResources().getString(R.string.toast_export_tile_stats_failed, e.getMessage()), Toast.LENGTH_LONG).show();
+			}
+			return true;
+			
 		}
 		
 		return false;
@@ -1039,8 +1074,13 @@ public class Main extends SherlockActivity implements OnNavigationListener, Serv
 			AlertDialog ad = (AlertDialog)dialog;
 			switch (id) {
 			case DialogFactory.CONFIRM_UPLOAD:
+				PendingChanges pending = logic.getPendingChanges();
 				TextView changes = (TextView)ad.findViewById(R.id.upload_changes);
-				changes.setText(getString(R.string.confirm_upload_text, getPendingChanges()));
+				changes.setText(getString(R.string.confirm_upload_text, getString(R.string.confirm_upload_summary,
+						pending.getNodeCount(), pending.getWayCount(), pending.getRelationCount())));
+				ListView changeList = (ListView)ad.findViewById(R.id.upload_changes_list);
+				changeList.setAdapter(new PendingChangesAdapter(this, pending, (Spinner)ad.findViewById(R.id.upload_changes_type),
+						(Spinner)ad.findViewById(R.id.upload_changes_state)));
 				break;
 			case DialogFactory.SEARCH:
 				dialog.getWindow().setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_STATE_VISIBLE);
@@ -1471,6 +1511,180 @@ public class Main extends SherlockActivity implements OnNavigationListener, Serv
 			exitOnBackPressed();
 	}
 		
+	/**
+	 * Show the elements the validator found problems with
+	 */
+	void showProblemList() {
+		List<OsmElement> problems = logic.getValidator().getProblems();
+		if (problems.isEmpty()) {
+			Toast.makeText(this, R.string.toast_no_validation_problems, Toast.LENGTH_SHORT).show();
+			return;
+		}
+		String[] labels = new String[problems.size()];
+		for (int i = 0; i < labels.length; i++) {
+			OsmElement e = problems.get(i);
+			labels[i] = e.getDescription() + "\n" + logic.getValidator().describeProblem(e, this);
+		}
+		showElementList(R.string.validation_problems_title, problems, labels);
+	}
+	
+	/**
+	 * Show the crossing and self-intersecting ways found by the last search, selecting an entry moves to the crossing
+	 */
+	void showIntersectionList() {
+		final List<Intersection> intersections = logic.getIntersections();
+		if (intersections.isEmpty()) {
+			Toast.makeText(this, R.string.toast_no_intersections, Toast.LENGTH_SHORT).show();
+			return;
+		}
+		String[] labels = new String[intersections.size()];
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = intersections.get(i).getDescription(this);
+		}
+		new AlertDialog.Builder(this)
+		.setTitle(R.string.intersections_title)
+		.setItems(labels, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				Intersection intersection = intersections.get(which);
+				setFollowGPS(false);
+				map.setFollowGPS(false);
+				map.getViewBox().moveTo(intersection.getLon(), intersection.getLat());
+				logic.setZoom(19);
+				if (logic.getMode() == Mode.MODE_EASYEDIT && easyEditManager != null && logic.exists(intersection.getWay1())) {
+					easyEditManager.editElement(intersection.getWay1());
+				}
+				map.invalidate();
+			}
+		})
+		.setNegativeButton(R.string.cancel, null)
+		.create().show();
+	}
+	
+	/**
+	 * Ask for the maximum distance between nodes that should be merged and start the search
+	 */
+	void showMergeToleranceDialog() {
+		final EditText input = new EditText(this);
+		input.setInputType(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL);
+		input.setText(Float.toString(DEFAULT_MERGE_TOLERANCE));
+		new AlertDialog.Builder(this)
+		.setTitle(R.string.merge_nodes_title)
+		.setMessage(R.string.merge_nodes_tolerance)
+		.setView(input)
+		.setPositiveButton(R.string.okay, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				float tolerance = DEFAULT_MERGE_TOLERANCE;
+				try {
+					tolerance = Math.max(0f, Float.parseFloat(input.getText().toString().trim()));
+				} catch (NumberFormatException e) {
+					Log.d("Main", "invalid tolerance " + input.getText());
+				}
+				logic.findDuplicateNodes(tolerance);
+			}
+		})
+		.setNegativeButton(R.string.cancel, null)
+		.create().show();
+	}
+	
+	/**
+	 * Show the merges found by the duplicate node search and let the user apply them or look at them
+	 * @param merges the proposed merges
+	 */
+	void showNodeMerges(final List<DuplicateNodeFinder.Merge> merges) {
+		if (merges.isEmpty()) {
+			Toast.makeText(this, R.string.toast_no_duplicate_nodes, Toast.LENGTH_SHORT).show();
+			return;
+		}
+		int count = 0;
+		for (DuplicateNodeFinder.Merge m:merges) {
+			count += m.getNodes().size();
+		}
+		new AlertDialog.Builder(this)
+		.setTitle(R.string.merge_nodes_title)
+		.setMessage(getString(R.string.merge_nodes_confirm, count, merges.size()))
+		.setPositiveButton(R.string.merge_nodes_merge, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				int merged = logic.performMergeNodes(merges);
+				Toast.makeText(Main.this, getString(R.string.toast_merged_nodes, merged), Toast.LENGTH_SHORT).show();
+				triggerMenuInvalidation();
+			}
+		})
+		.setNeutralButton(R.string.merge_nodes_show, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				List<Node> targets = new ArrayList<Node>(merges.size());
+				String[] labels = new String[merges.size()];
+				for (int i = 0; i < labels.length; i++) {
+					DuplicateNodeFinder.Merge m = merges.get(i);
+					targets.add(m.getTarget());
+					labels[i] = getString(R.string.merge_nodes_entry, m.getTarget().getDescription(), m.getNodes().size());
+				}
+				showElementList(R.string.merge_nodes_title, targets, labels);
+			}
+		})
+		.setNegativeButton(R.string.cancel, null)
+		.create().show();
+	}
+	
+	/**
+	 * Show a list of elements, selecting an entry centers the map on the element and, in easy edit mode, selects it
+	 * @param title resource id of the title
+	 * @param elements the elements
+	 * @param labels the text to display for each element
+	 */
+	void showElementList(final int title, final List<? extends OsmElement> elements, final String[] labels) {
+		new AlertDialog.Builder(this)
+		.setTitle(title)
+		.setItems(labels, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				gotoElement(elements.get(which));
+			}
+		})
+		.setNegativeButton(R.string.cancel, null)
+		.create().show();
+	}
+	
+	/**
+	 * Center the map on an element and zoom in, in easy edit mode the element is selected too
+	 * @param element the element
+	 */
+	void gotoElement(final OsmElement element) {
+		Node position = null;
+		if (element instanceof Node) {
+			position = (Node) element;
+		} else if (element instanceof Way) {
+			List<Node> nodes = ((Way) element).getNodes();
+			position = nodes.isEmpty() ? null : nodes.get(nodes.size() / 2);
+		} else if (element instanceof Relation) {
+			for (RelationMember m : ((Relation) element).getMembers()) {
+				OsmElement member = m.getElement();
+				if (member instanceof Node) {
+					position = (Node) member;
+				} else if (member instanceof Way && !((Way) member).getNodes().isEmpty()) {
+					position = ((Way) member).getNodes().get(0);
+				}
+				if (position != null) {
+					break;
+				}
+			}
+		}
+		if (position == null || !logic.exists(element)) {
+			return;
+		}
+		setFollowGPS(false);
+		map.setFollowGPS(false);
+		map.getViewBox().moveTo(position.getLon(), position.getLat());
+		logic.setZoom(19);
+		if (logic.getMode() == Mode.MODE_EASYEDIT && easyEditManager != null) {
+			easyEditManager.editElement(element);
+		}
+		map.invalidate();
+	}
+	
 	/**
 	 * pop up a dialog asking for confirmation and exit
 	 */
@@ -2056,7 +2270,7 @@ public class Main extends SherlockActivity implements OnNavigationListener, Serv
 				for (OsmElement e : clickedNodesAndWays) {
 					String toast = e.getDescription();
 					if (e.hasProblem()) {
-						String problem = e.describeProblem();
+						String problem = logic.getValidator().describeProblem(e, Main.this);
 						toast = !problem.equals("") ? toast + "\n" + problem : toast;
 					}
 					Toast.makeText(getApplicationContext(), toast, Toast.LENGTH_SHORT).show();
@@ -2162,18 +2376,6 @@ public class Main extends SherlockActivity implements OnNavigationListener, Serv
 	}
 	
 	
-	/**
-	 * @return a list of all pending changes to upload (contains newlines)
-	 */
-	public String getPendingChanges() {
-		List<String> changes = logic.getPendingChanges(this);
-		StringBuilder retval = new StringBuilder();
-		for (String change : changes) {
-			retval.append(change).append('\n');
-		}
-		return retval.toString();
-	}
-	
 	/**
 	 * Invalidates (redraws) the map
 	 */
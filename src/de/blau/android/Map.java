@@ -29,11 +29,13 @@ import android.view.View;
 import de.blau.android.Logic.Mode;
 import de.blau.android.exception.OsmException;
 import de.blau.android.osm.BoundingBox;
+import de.blau.android.osm.MemoryBudget;
 import de.blau.android.osm.GeoPoint;
 import de.blau.android.osm.GeoPoint.InterruptibleGeoPoint;
 import de.blau.android.osm.Node;
 import de.blau.android.osm.OsmElement;
 import de.blau.android.osm.Relation;
+import de.blau.android.osm.StagingArea;
 import de.blau.android.osm.StorageDelegator;
 import de.blau.android.osm.Tags;
 import de.blau.android.osm.Way;
@@ -46,6 +48,7 @@ import de.blau.android.services.TrackerService;
 import de.blau.android.util.Density;
 import de.blau.android.util.GeoMath;
 import de.blau.android.util.Offset;
+import de.blau.android.validation.Intersection;
 import de.blau.android.views.IMapView;
 import de.blau.android.views.overlay.OpenStreetMapOverlayTilesOverlay;
 import de.blau.android.views.overlay.OpenStreetMapTilesOverlay;
@@ -73,6 +76,10 @@ public class Map extends View implements IMapView {
 	private static final Method mIsHardwareAccelerated;
 
 	private static final int HOUSE_NUMBER_RADIUS = 10;
+	private static final float STAGED_NODE_RADIUS = 3f;
+	
+	/** radius in dp of the circles marking crossing ways */
+	private static final float INTERSECTION_RADIUS = 12f;
 	
 	/** half the width/height of a node icon in px */
 	private final int iconRadius;
@@ -300,7 +307,7 @@ public class Map extends View implements IMapView {
 			paintOsmData(canvas);
 		if (zoomLevel > 10) {
 			if (tmpDrawingEditMode != Mode.MODE_ALIGN_BACKGROUND)
-				paintStorageBox(canvas, new ArrayList<BoundingBox>(delegator.getBoundingBoxes())); // shallow copy to avoid modiciaftion issues
+				paintStorageBox(canvas, delegator.getBoundingBoxes()); // copy on write list, safe to iterate while a download adds to it
 			paintGpsTrack(canvas);
 		}
 		paintGpsPos(canvas);
@@ -466,6 +473,9 @@ public class Map extends View implements IMapView {
 		}
 	}
 	
+	private String memorySummary = null;
+	private long memorySummaryTime = 0;
+	
 	private void paintStats(final Canvas canvas, final int fps) {
 		int pos = 1;
 		String text = "";
@@ -485,8 +495,20 @@ public class Map extends View implements IMapView {
 		text = "Nodes (current/Waynodes/API) :" + delegator.getCurrentStorage().getNodes().size() + "/"
 				+ delegator.getCurrentStorage().getWaynodes().size() + "/" + delegator.getApiNodeCount();
 		canvas.drawText(text, 5, getHeight() - textSize * pos++, infotextPaint);
+		long now = System.currentTimeMillis();
+		if (memorySummary == null || now - memorySummaryTime > 1000) { // sampling the storage is not free
+			memorySummary = MemoryBudget.getSummary(delegator);
+			memorySummaryTime = now;
+		}
+		canvas.drawText(memorySummary, 5, getHeight() - textSize * pos++, infotextPaint);
 		text = "fps: " + fps;
 		canvas.drawText(text, 5, getHeight() - textSize * pos++, infotextPaint);
+		OpenStreetMapTilesOverlay tilesOverlay = getOpenStreetMapTilesOverlay();
+		if (tilesOverlay != null) {
+			for (String line:tilesOverlay.getTileProvider().getStatsSummary()) {
+				canvas.drawText(line, 5, getHeight() - textSize * pos++, infotextPaint);
+			}
+		}
 	}
 	
 	/**
@@ -545,6 +567,12 @@ public class Map extends View implements IMapView {
 		// 
 		tmpDrawingInEditRange = Main.logic.isInEditZoomRange(); // do this after density calc
 		
+		// Paint data of a download that is still in progress
+		StagingArea staging = Main.logic.getStagingArea();
+		if (staging != null) {
+			paintStaged(canvas, staging, viewBox);
+		}
+		
 		//Paint all ways
 		List<Way> ways = delegator.getCurrentStorage().getWays();
 		for (int i = 0, size = ways.size(); i < size; ++i) {
@@ -555,9 +583,60 @@ public class Map extends View implements IMapView {
 		for (Node n:paintNodes) {
 			paintNode(canvas, n);
 		}
+		paintIntersections(canvas, viewBox);
 		paintHandles(canvas);
 	}
 	
+	/**
+	 * Mark the crossing ways found by the last search, crossings that have been fixed are skipped
+	 * @param canvas Canvas, where the data shall be painted on.
+	 * @param viewBox the current view box
+	 */
+	private void paintIntersections(final Canvas canvas, final BoundingBox viewBox) {
+		List<Intersection> intersections = Main.logic.getIntersectionsUnchecked();
+		if (intersections.isEmpty()) {
+			return;
+		}
+		Paint paint = Profile.getCurrent(Profile.PROBLEM_WAY).getPaint();
+		float radius = Density.dpToPx(INTERSECTION_RADIUS);
+		int w = getWidth();
+		int h = getHeight();
+		for (Intersection i:intersections) {
+			if (i.isValid()) {
+				int lat = i.getLat();
+				int lon = i.getLon();
+				if (viewBox.isIn(lat, lon)) {
+					canvas.drawCircle(GeoMath.lonE7ToX(w, viewBox, lon), GeoMath.latE7ToY(h, w, viewBox, lat), radius, paint);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Paint the elements of a download that hasn't been merged yet, they are not editable and are drawn in grey
+	 * @param canvas Canvas, where the data shall be painted on.
+	 * @param staging the staging area of the download
+	 * @param viewBox the current view box
+	 */
+	private void paintStaged(final Canvas canvas, final StagingArea staging, final BoundingBox viewBox) {
+		Paint paint = Profile.getCurrent(Profile.STAGED_WAY).getPaint();
+		for (Way[] batch:staging.getWays()) {
+			for (Way w:batch) {
+				canvas.drawLines(pointListToLinePointsArray(w.getNodes()), paint);
+			}
+		}
+		int w = getWidth();
+		int h = getHeight();
+		float radius = Density.dpToPx(STAGED_NODE_RADIUS);
+		for (Node[] batch:staging.getNodes()) {
+			for (Node n:batch) {
+				if (viewBox.isIn(n.getLat(), n.getLon())) {
+					canvas.drawCircle(GeoMath.lonE7ToX(w, viewBox, n.getLon()), GeoMath.latE7ToY(h, w, viewBox, n.getLat()), radius, paint);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * 
 	 * @return true if too many nodes are on screen for editing
@@ -0,0 +1,93 @@
+package de.blau.android;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemSelectedListener;
+import android.widget.BaseAdapter;
+import android.widget.Spinner;
+import android.widget.TextView;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.PendingChanges;
+import de.blau.android.osm.Relation;
+import de.blau.android.osm.Way;
+
+/**
+ * List adapter for the changes shown in the upload dialog, descriptions are only formatted for rows that are displayed.
+ * The two spinners select the element type and change state to show, their entries correspond to {@link #TYPES} and
+ * {@link #STATES}.
+ * @author simon
+ *
+ */
+public class PendingChangesAdapter extends BaseAdapter implements OnItemSelectedListener {
+
+	/** element types in the order of the entries of R.array.upload_changes_types */
+	private static final String[] TYPES = {PendingChanges.ALL_TYPES, Node.NAME, Way.NAME, Relation.NAME};
+
+	/** change states in the order of the entries of R.array.upload_changes_states */
+	private static final byte[] STATES = {PendingChanges.ALL_STATES, OsmElement.STATE_CREATED, OsmElement.STATE_MODIFIED, OsmElement.STATE_DELETED};
+
+	private final Context context;
+	private final PendingChanges changes;
+	private final Spinner typeFilter;
+	private final Spinner stateFilter;
+
+	/**
+	 * Create the adapter and reset the filter spinners to show everything
+	 * @param context Android context
+	 * @param changes the changes to show
+	 * @param typeFilter spinner with the R.array.upload_changes_types entries
+	 * @param stateFilter spinner with the R.array.upload_changes_states entries
+	 */
+	public PendingChangesAdapter(final Context context, final PendingChanges changes, final Spinner typeFilter, final Spinner stateFilter) {
+		this.context = context;
+		this.changes = changes;
+		this.typeFilter = typeFilter;
+		this.stateFilter = stateFilter;
+		typeFilter.setSelection(0);
+		stateFilter.setSelection(0);
+		typeFilter.setOnItemSelectedListener(this);
+		stateFilter.setOnItemSelectedListener(this);
+	}
+
+	@Override
+	public int getCount() {
+		return changes.size();
+	}
+
+	@Override
+	public Object getItem(int position) {
+		return changes.get(position);
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		TextView view = (TextView) convertView;
+		if (view == null) {
+			view = (TextView) LayoutInflater.from(context).inflate(android.R.layout.simple_list_item_1, parent, false);
+		}
+		view.setText(changes.getDescription(position, context.getResources()));
+		return view;
+	}
+
+	@Override
+	public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+		int type = Math.max(0, typeFilter.getSelectedItemPosition());
+		int state = Math.max(0, stateFilter.getSelectedItemPosition());
+		changes.setFilter(TYPES[type], STATES[state]);
+		notifyDataSetChanged();
+	}
+
+	@Override
+	public void onNothingSelected(AdapterView<?> parent) {
+		// nothing to do
+	}
+}
@@ -3,6 +3,7 @@ package de.blau.android.easyedit;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Locale;
 import java.util.Set;
 import java.util.SortedMap;
@@ -43,6 +44,7 @@ import de.blau.android.exception.OsmIllegalOperationException;
 import de.blau.android.osm.Node;
 import de.blau.android.osm.OsmElement;
 import de.blau.android.osm.Relation;
+import de.blau.android.osm.RelationMember;
 import de.blau.android.osm.Server;
 import de.blau.android.osm.Tags;
 import de.blau.android.osm.Way;
@@ -112,6 +114,9 @@ public class EasyEditManager {
 	 */
 	public void nothingTouched() {
 		// User clicked an empty area. If something is selected, deselect it.
+		if (currentActionModeCallback instanceof MultiSelectActionModeCallback) {
+			return; // keep the selection, a mis-click shouldn't lose it
+		}
 		if (currentActionModeCallback instanceof ElementSelectionActionModeCallback) currentActionMode.finish();
 		logic.setSelectedNode(null);
 		logic.setSelectedWay(null);
@@ -134,7 +139,7 @@ public class EasyEditManager {
 				main.startActionMode(cb);
 				String toast = element.getDescription();
 				if (element.hasProblem()) {
-					String problem = element.describeProblem();
+					String problem = logic.getValidator().describeProblem(element, main);
 					toast = !problem.equals("") ? toast + "\n" + problem : toast;
 				}
 				Toast.makeText(main, toast, Toast.LENGTH_SHORT).show();
@@ -734,6 +739,8 @@ public class EasyEditManager {
 		private static final int MENUITEM_CUT = 5;
 		private static final int MENUITEM_RELATION = 6;
 		
+		private static final int MENUITEM_EXTEND_SELECTION = 16;
+		
 		private static final int MENUITEM_TAG_LAST = 20;
 		
 		protected OsmElement element = null;
@@ -770,6 +777,9 @@ public class EasyEditManager {
 				menu.add(Menu.NONE, MENUITEM_CUT, Menu.CATEGORY_SECONDARY, R.string.menu_cut).setIcon(R.drawable.ic_menu_cut_holo_dark).setShowAsAction(showAlways());
 			}
 			menu.add(Menu.NONE, MENUITEM_RELATION, Menu.CATEGORY_SYSTEM, R.string.menu_relation).setIcon(R.drawable.relation).setShowAsAction(showAlways());;
+			if (!(element instanceof Relation)) {
+				menu.add(GROUP_BASE, MENUITEM_EXTEND_SELECTION, Menu.CATEGORY_SYSTEM, R.string.menu_select_more);
+			}
 			if (element.getOsmId() > 0) {
 				menu.add(GROUP_BASE, MENUITEM_HISTORY, Menu.CATEGORY_SYSTEM, R.string.menu_history).setIcon(R.drawable.tag_menu_history);
 			}
@@ -788,6 +798,7 @@ public class EasyEditManager {
 			case MENUITEM_COPY: logic.copyToClipboard(element); currentActionMode.finish(); break;
 			case MENUITEM_CUT: logic.cutToClipboard(element); currentActionMode.finish(); break;
 			case MENUITEM_RELATION: main.startActionMode(new  AddRelationMemberActionModeCallback(element)); break;
+			case MENUITEM_EXTEND_SELECTION: main.startActionMode(new MultiSelectActionModeCallback(element)); break;
 			default: return false;
 			}
 			return true;
@@ -1296,6 +1307,7 @@ public class EasyEditManager {
 	private class RelationSelectionActionModeCallback extends ElementSelectionActionModeCallback {
 	
 		private static final int MENUITEM_ADD_RELATION_MEMBERS = 7;
+		private static final int MENUITEM_DOWNLOAD_MISSING_MEMBERS = 8;
 		
 		private RelationSelectionActionModeCallback(Relation relation) {
 			super(relation);
@@ -1317,6 +1329,12 @@ public class EasyEditManager {
 		public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
 			super.onPrepareActionMode(mode, menu);
 			menu.add(Menu.NONE, MENUITEM_ADD_RELATION_MEMBERS, Menu.NONE, R.string.menu_add_relation_member);
+			for (RelationMember rm:((Relation)element).getMembers()) {
+				if (rm.getElement() == null) {
+					menu.add(Menu.NONE, MENUITEM_DOWNLOAD_MISSING_MEMBERS, Menu.NONE, R.string.menu_download_missing_members);
+					break;
+				}
+			}
 			return true;
 		}
 		
@@ -1325,6 +1343,7 @@ public class EasyEditManager {
 			if (!super.onActionItemClicked(mode, item)) {
 				switch (item.getItemId()) {
 				case MENUITEM_ADD_RELATION_MEMBERS: main.startActionMode(new  AddRelationMemberActionModeCallback((Relation)element, null)); break;
+				case MENUITEM_DOWNLOAD_MISSING_MEMBERS: logic.downloadMissingMembers((Relation)element); mode.finish(); break;
 				default: return false;
 				}
 			}
@@ -1638,4 +1657,171 @@ public class EasyEditManager {
 		}
 		
 	}	
+	
+	/**
+	 * Selection of many nodes and ways, clicking an element adds it to or removes it from the selection.
+	 * Operations on the selection are performed as one bulk operation with a single undo checkpoint.
+	 */
+	private class MultiSelectActionModeCallback extends EasyEditActionModeCallback {
+		private static final int MENUITEM_DELETE = 1;
+		private static final int MENUITEM_RELATION = 2;
+		private static final int MENUITEM_COPY = 3;
+		private static final int MENUITEM_CUT = 4;
+		
+		private final LinkedHashSet<OsmElement> selection = new LinkedHashSet<OsmElement>();
+		
+		public MultiSelectActionModeCallback(OsmElement element) {
+			super();
+			addElement(element);
+		}
+		
+		private void addElement(OsmElement element) {
+			selection.add(element);
+			if (element instanceof Way) {
+				logic.addSelectedRelationWay((Way)element);
+			} else if (element instanceof Node) {
+				logic.addSelectedRelationNode((Node)element);
+			}
+		}
+		
+		private void removeElement(OsmElement element) {
+			selection.remove(element);
+			if (element instanceof Way) {
+				logic.removeSelectedRelationWay((Way)element);
+			} else if (element instanceof Node) {
+				logic.removeSelectedRelationNode((Node)element);
+			}
+		}
+		
+		@Override
+		public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+			super.onCreateActionMode(mode, menu);
+			logic.setReturnRelations(false);
+			logic.setSelectedNode(null);
+			logic.setSelectedWay(null);
+			mode.setTitle(R.string.actionmode_multiselect);
+			setSubtitle(mode);
+			main.invalidateMap();
+			return true;
+		}
+		
+		private void setSubtitle(ActionMode mode) {
+			mode.setSubtitle(main.getString(R.string.actionmode_multiselect_count, selection.size()));
+		}
+		
+		@Override
+		public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+			super.onPrepareActionMode(mode, menu);
+			menu.clear();
+			menu.add(Menu.NONE, MENUITEM_DELETE, Menu.CATEGORY_SYSTEM, R.string.delete).setIcon(R.drawable.tag_menu_delete).setShowAsAction(showAlways());
+			menu.add(Menu.NONE, MENUITEM_COPY, Menu.CATEGORY_SECONDARY, R.string.menu_copy).setIcon(R.drawable.ic_menu_copy_holo_dark).setShowAsAction(showAlways());
+			menu.add(Menu.NONE, MENUITEM_CUT, Menu.CATEGORY_SECONDARY, R.string.menu_cut).setIcon(R.drawable.ic_menu_cut_holo_dark).setShowAsAction(showAlways());
+			menu.add(Menu.NONE, MENUITEM_RELATION, Menu.CATEGORY_SYSTEM, R.string.menu_relation).setIcon(R.drawable.relation).setShowAsAction(showAlways());
+			menu.add(GROUP_BASE, MENUITEM_HELP, Menu.CATEGORY_SYSTEM|10, R.string.menu_help);
+			return true;
+		}
+		
+		@Override
+		public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+			if (!super.onActionItemClicked(mode, item)) {
+				switch (item.getItemId()) {
+				case MENUITEM_DELETE: menuDelete(); break;
+				case MENUITEM_COPY: logic.copyToClipboard(new ArrayList<OsmElement>(selection)); mode.finish(); break;
+				case MENUITEM_CUT: logic.cutToClipboard(new ArrayList<OsmElement>(selection)); mode.finish(); break;
+				case MENUITEM_RELATION: 
+					ArrayList<OsmElement> members = new ArrayList<OsmElement>(selection);
+					mode.finish();
+					main.performTagEdit(logic.createRelation(null, members), "type", false);
+					break;
+				default: return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Same checks as for single elements: ways that are not completely downloaded can't be deleted,
+		 * relation membership and nodes outside of the download need confirmation
+		 */
+		private void menuDelete() {
+			int notDownloaded = 0;
+			boolean hasWays = false;
+			boolean isRelationMember = false;
+			boolean outside = false;
+			for (OsmElement e:selection) {
+				if (e instanceof Way) {
+					hasWays = true;
+					if (!logic.isInDownload((Way)e)) {
+						notDownloaded++;
+					}
+				} else if (e instanceof Node && !logic.isInDownload((Node)e)) {
+					outside = true;
+				}
+				isRelationMember = isRelationMember || e.hasParentRelations();
+			}
+			if (notDownloaded > 0) {
+				new AlertDialog.Builder(main)
+				.setTitle(R.string.delete)
+				.setMessage(main.getString(R.string.deleteobjects_notdownloaded_description, notDownloaded))
+				.setPositiveButton(R.string.okay, null)
+				.show();
+				return;
+			}
+			StringBuilder message = new StringBuilder(main.getString(R.string.deleteobjects_description, selection.size()));
+			if (isRelationMember) {
+				message.append("\n\n").append(main.getString(R.string.deleteobjects_relation_description));
+			}
+			if (outside) {
+				message.append("\n\n").append(main.getString(R.string.deleteobjects_outside_description));
+			}
+			AlertDialog.Builder builder = new AlertDialog.Builder(main)
+				.setTitle(R.string.delete)
+				.setMessage(message.toString())
+				.setPositiveButton(R.string.delete,
+					new DialogInterface.OnClickListener() {	
+						@Override
+						public void onClick(DialogInterface dialog, int which) {
+							logic.performEraseMultipleObjects(new ArrayList<OsmElement>(selection), false);
+							currentActionMode.finish();
+						}
+					})
+				.setNegativeButton(R.string.cancel, null);
+			if (hasWays) {
+				builder.setNeutralButton(R.string.deleteobjects_withwaynodes,
+					new DialogInterface.OnClickListener() {	
+						@Override
+						public void onClick(DialogInterface dialog, int which) {
+							logic.performEraseMultipleObjects(new ArrayList<OsmElement>(selection), true);
+							currentActionMode.finish();
+						}
+					});
+			}
+			builder.show();
+		}
+		
+		@Override
+		public boolean handleElementClick(OsmElement element) {
+			super.handleElementClick(element);
+			if (selection.contains(element)) {
+				removeElement(element);
+			} else {
+				addElement(element);
+			}
+			if (selection.isEmpty()) {
+				currentActionMode.finish();
+			} else {
+				setSubtitle(currentActionMode);
+				main.invalidateMap();
+			}
+			return true;
+		}
+		
+		@Override
+		public void onDestroyActionMode(ActionMode mode) {
+			logic.setReturnRelations(true);
+			logic.setSelectedRelationWays(null);
+			logic.setSelectedRelationNodes(null);
+			super.onDestroyActionMode(mode);
+		}
+	}
 }
@@ -0,0 +1,187 @@
+package de.blau.android.osb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Rect;
+import de.blau.android.osm.BoundingBox;
+
+/**
+ * Cache for bugs/notes organised in a fixed grid. Bugs are downloaded per grid cell,
+ * each cell remembers when it was downloaded so that only missing or stale cells need
+ * to be requested when the view changes.
+ * Not thread safe, all access should be from the UI thread.
+ * @author simon
+ *
+ */
+public class BugCache {
+
+	/** size of a grid cell in degrees * 1E7, 0.05 degrees are roughly 5 km */
+	public static final int CELL_SIZE = 500000;
+	/** cells older than this are downloaded again when they are displayed */
+	public static final long TTL = 10 * 60 * 1000L;
+	/** cells older than this are removed from the cache */
+	private static final long MAX_AGE = 6 * TTL;
+
+	private static final long LON_OFFSET = 180L * 10000000L;
+	private static final long LAT_OFFSET = 90L * 10000000L;
+
+	/** download time for each cell we have */
+	private final HashMap<Long, Long> loaded = new HashMap<Long, Long>();
+	/** bugs by cell */
+	private final HashMap<Long, ArrayList<Bug>> cells = new HashMap<Long, ArrayList<Bug>>();
+	/** bugs that exist on the server by id */
+	private final HashMap<Long, Bug> byId = new HashMap<Long, Bug>();
+
+	/**
+	 * @param lonE7 longitude * 1E7
+	 * @return the column of the grid cell
+	 */
+	private static int column(long lonE7) {
+		return (int) ((lonE7 + LON_OFFSET) / CELL_SIZE);
+	}
+
+	/**
+	 * @param latE7 latitude * 1E7
+	 * @return the row of the grid cell
+	 */
+	private static int row(long latE7) {
+		return (int) ((latE7 + LAT_OFFSET) / CELL_SIZE);
+	}
+
+	private static long key(int column, int row) {
+		return ((long) column << 32) | (row & 0xffffffffL);
+	}
+
+	/**
+	 * Get the area covered by a cell
+	 * @param key the key of the cell
+	 * @return the area of the cell in the format expected by {@link de.blau.android.osm.Server#getNotesForBox(Rect, long)}
+	 */
+	public static Rect getCellRect(long key) {
+		int column = (int) (key >> 32);
+		int row = (int) key;
+		int left = (int) (column * (long) CELL_SIZE - LON_OFFSET);
+		int bottom = (int) (row * (long) CELL_SIZE - LAT_OFFSET);
+		return new Rect(left, (int) Math.min(LAT_OFFSET, bottom + (long) CELL_SIZE), (int) Math.min(LON_OFFSET, left + (long) CELL_SIZE), bottom);
+	}
+
+	/**
+	 * Get the cells covering an area that have never been downloaded or are older than {@link #TTL}
+	 * @param box the area
+	 * @return the keys of the cells
+	 */
+	public List<Long> getMissingCells(final BoundingBox box) {
+		List<Long> result = new ArrayList<Long>();
+		long now = System.currentTimeMillis();
+		for (int c = column(box.getLeft()); c <= column(box.getRight()); c++) {
+			for (int r = row(box.getBottom()); r <= row(box.getTop()); r++) {
+				Long key = Long.valueOf(key(c, r));
+				Long time = loaded.get(key);
+				if (time == null || now - time.longValue() > TTL) {
+					result.add(key);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Replace the contents of a cell with freshly downloaded bugs
+	 * @param key the key of the cell
+	 * @param bugs the downloaded bugs
+	 */
+	public void setCell(long key, final List<Bug> bugs) {
+		Long k = Long.valueOf(key);
+		ArrayList<Bug> old = cells.get(k);
+		if (old != null) {
+			// new bugs that haven't been uploaded yet are kept
+			for (Iterator<Bug> it = old.iterator(); it.hasNext();) {
+				Bug b = it.next();
+				if (b.getId() != 0) {
+					it.remove();
+					byId.remove(Long.valueOf(b.getId()));
+				}
+			}
+		}
+		for (Bug b : bugs) {
+			add(b);
+		}
+		loaded.put(k, Long.valueOf(System.currentTimeMillis()));
+		prune();
+	}
+
+	/**
+	 * Add a single bug, replacing any bug with the same id
+	 * @param bug the bug
+	 */
+	public void add(final Bug bug) {
+		if (bug.getId() != 0) {
+			Bug old = byId.put(Long.valueOf(bug.getId()), bug);
+			if (old != null) {
+				ArrayList<Bug> cell = cells.get(Long.valueOf(key(column(old.getLon()), row(old.getLat()))));
+				if (cell != null) {
+					cell.remove(old);
+				}
+			}
+		}
+		Long k = Long.valueOf(key(column(bug.getLon()), row(bug.getLat())));
+		ArrayList<Bug> cell = cells.get(k);
+		if (cell == null) {
+			cell = new ArrayList<Bug>();
+			cells.put(k, cell);
+		}
+		cell.add(bug);
+	}
+
+	/**
+	 * Get all bugs in an area
+	 * @param box the area
+	 * @return the bugs inside box
+	 */
+	public List<Bug> getBugs(final BoundingBox box) {
+		List<Bug> result = new ArrayList<Bug>();
+		for (int c = column(box.getLeft()); c <= column(box.getRight()); c++) {
+			for (int r = row(box.getBottom()); r <= row(box.getTop()); r++) {
+				ArrayList<Bug> cell = cells.get(Long.valueOf(key(c, r)));
+				if (cell != null) {
+					for (Bug b : cell) {
+						if (box.isIn(b.getLat(), b.getLon())) {
+							result.add(b);
+						}
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Remove cells that haven't been downloaded for a long time, new bugs are kept
+	 */
+	private void prune() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<Long, Long>> it = loaded.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Long, Long> e = it.next();
+			if (now - e.getValue().longValue() > MAX_AGE) {
+				it.remove();
+				ArrayList<Bug> cell = cells.get(e.getKey());
+				if (cell != null) {
+					for (Iterator<Bug> bi = cell.iterator(); bi.hasNext();) {
+						Bug b = bi.next();
+						if (b.getId() != 0) {
+							bi.remove();
+							byId.remove(Long.valueOf(b.getId()));
+						}
+					}
+					if (cell.isEmpty()) {
+						cells.remove(e.getKey());
+					}
+				}
+			}
+		}
+	}
+}
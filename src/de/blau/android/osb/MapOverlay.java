@@ -2,13 +2,16 @@ package de.blau.android.osb;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
-import android.os.AsyncTask;
 import android.os.Handler;
+import android.util.Log;
 import de.blau.android.Application;
 import de.blau.android.Map;
 import de.blau.android.osm.BoundingBox;
@@ -27,11 +30,18 @@ public class MapOverlay extends OpenStreetMapViewOverlay {
 	/** viewbox needs to be less wide than this for displaying bugs, just to avoid querying the whole world for bugs */ 
 	private static final int TOLERANCE_MIN_VIEWBOX_WIDTH = 40000 * 32;
 	
+	/** maximum number of bugs requested for one cell of the cache */
+	private static final int CELL_LIMIT = 1000;
+	
+	/** maximum number of concurrent requests */
+	private static final int MAX_REQUESTS = 3;
+	
 	/** Previously requested area. */
 	private Rect prev;
 	
 	/** Current area. */
 	private Rect cur;
+	private BoundingBox curBox;
 	
 	/** Paint for open bugs. */
 	private final Paint openPaint;
@@ -42,55 +52,86 @@ public class MapOverlay extends OpenStreetMapViewOverlay {
 	/** Map this is an overlay of. */
 	private final Map map;
 	
-	/** Bugs visible on the overlay. */
-	private Collection<Bug> bugs;
+	/** All bugs we have downloaded. */
+	private final BugCache bugs;
+	
+	/** Cells of the cache that are currently being downloaded. */
+	private final HashSet<Long> requested = new HashSet<Long>();
+	
+	private final ExecutorService executor = Executors.newFixedThreadPool(MAX_REQUESTS);
 	
 	/** Event handlers for the overlay. */
 	private final Handler handler;
 	
 	private Server server;
 	
-	/** Request to update the bugs for the current view.
-	 * Ensure cur is set before invoking.
+	/** Request the cells of the cache that are missing or stale for the current view.
+	 * Ensure curBox is set before invoking.
 	 */
 	private final Runnable getBugs = new Runnable() {
 		@Override
 		public void run() {
-			new AsyncTask<Void, Void, Collection<Bug>>() {
-				@Override
-				protected Collection<Bug> doInBackground(Void... params) {
-					return server.getNotesForBox(cur,100);
+			if (executor.isShutdown()) {
+				return;
+			}
+			prev.set(cur);
+			for (Long key : bugs.getMissingCells(curBox)) {
+				if (requested.add(key)) {
+					executor.execute(new GetCell(key.longValue()));
 				}
-				
+			}
+		}
+	};
+	
+	/**
+	 * Download the bugs for one cell of the cache, the result is added to the cache on the UI thread
+	 */
+	private class GetCell implements Runnable {
+		final long key;
+		
+		GetCell(long key) {
+			this.key = key;
+		}
+		
+		@Override
+		public void run() {
+			Collection<Bug> result = server.getNotesForBox(BugCache.getCellRect(key), CELL_LIMIT);
+			final List<Bug> cell = new ArrayList<Bug>();
+			if (result != null) {
+				if (result.size() >= CELL_LIMIT) {
+					Log.w("MapOverlay", "Cell limit reached, some bugs may be missing");
+				}
+				long now = System.currentTimeMillis();
+				for (Bug b : result) {
+					// add open bugs or closed bugs younger than 7 days
+					if (!b.isClosed() || (now - b.getMostRecentChange().getTime()) < MAX_CLOSED_AGE) {
+						cell.add(b);
+					}
+				}
+			}
+			final boolean failed = result == null;
+			handler.post(new Runnable() {
 				@Override
-				protected void onPostExecute(Collection<Bug> result) {
-					if (result == null)
-						return;
-					prev.set(cur);
-					bugs.clear();
-					long now = System.currentTimeMillis();
-					for (Bug b : result) {
-						// add open bugs or closed bugs younger than 7 days
-						if (!b.isClosed() || (now - b.getMostRecentChange().getTime()) < MAX_CLOSED_AGE) {
-							bugs.add(b);
-						}
+				public void run() {
+					requested.remove(Long.valueOf(key));
+					if (failed) {
+						return; // will be retried the next time the view changes
 					}
-
-					if (!bugs.isEmpty()) {
+					bugs.setCell(key, cell);
+					if (!cell.isEmpty()) {
 						map.invalidate(); // if other overlay is going invalidate we shoudn't
 					}
 				}
-				
-			}.execute();
+			});
 		}
-	};
+	}
 	
 	public MapOverlay(final Map map, Server s) {
 		this.map = map;
 		server = s;
 		prev = new Rect();
 		cur = new Rect();
-		bugs = new ArrayList<Bug>();
+		bugs = new BugCache();
 		handler = new Handler();
 		openPaint = Profile.getCurrent(Profile.OPEN_NOTE).getPaint();
 		closedPaint = Profile.getCurrent(Profile.CLOSED_NOTE).getPaint();
@@ -120,18 +161,17 @@ public class MapOverlay extends OpenStreetMapViewOverlay {
 			if (!cur.equals(prev)) {
 				// map has moved/zoomed - need to refresh the bugs on display
 				// don't flood OSB with requests - wait for 1s
+				curBox = bb;
 				handler.removeCallbacks(getBugs);
 				handler.postDelayed(getBugs, 1000);
 			}
 			// draw all the bugs on the map as slightly transparent circles
 			int w = Application.mainActivity.getMap().getWidth();
 			int h = Application.mainActivity.getMap().getHeight();
-			for (Bug b : bugs) {
-				if (bb.isIn(b.getLat(), b.getLon())) {
-					float x = GeoMath.lonE7ToX(w , bb, b.getLon());
-					float y = GeoMath.latE7ToY(h, w, bb, b.getLat()); 
-					c.drawCircle(x, y, radius, b.isClosed() ? closedPaint : openPaint);
-				}
+			for (Bug b : bugs.getBugs(bb)) {
+				float x = GeoMath.lonE7ToX(w , bb, b.getLon());
+				float y = GeoMath.latE7ToY(h, w, bb, b.getLat()); 
+				c.drawCircle(x, y, radius, b.isClosed() ? closedPaint : openPaint);
 			}
 		}
 	}
@@ -141,6 +181,16 @@ public class MapOverlay extends OpenStreetMapViewOverlay {
 		// do nothing
 	}
 	
+	/**
+	 * Stop the download threads, the overlay is not used any more
+	 */
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		handler.removeCallbacks(getBugs);
+		executor.shutdownNow();
+	}
+	
 	/**
 	 * Given screen coordinates, find all nearby bugs.
 	 * @param x Screen X-coordinate.
@@ -152,7 +202,7 @@ public class MapOverlay extends OpenStreetMapViewOverlay {
 		List<Bug> result = new ArrayList<Bug>();
 		if (map.getPrefs().isOpenStreetBugsEnabled()) {
 			final float tolerance = Profile.getCurrent().nodeToleranceValue;
-			for (Bug b : bugs) {
+			for (Bug b : bugs.getBugs(viewBox)) {
 				int lat = b.getLat();
 				int lon = b.getLon();
 				float differenceX = Math.abs(GeoMath.lonE7ToX(map.getWidth(), viewBox, lon) - x);
@@ -1,125 +1,393 @@
 package de.blau.android.osm;
 
 import java.io.Serializable;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
 
-import android.util.Log;
-import de.blau.android.exception.StorageException;
-
+/**
+ * Holds copied or cut elements, any number of nodes, ways and relations can be stored.
+ *
+ * Elements are numbered, nodes first, then ways and then relations, way nodes and relation members refer to
+ * other elements by this number. Node positions are stored as offsets to the position the selection was made at,
+ * so the elements can be pasted anywhere with the same geometry.
+ *
+ * Copied elements are only stored in this form and are created new on every paste. Cut elements have been deleted
+ * from the data, they are kept with their state from before the deletion so that the paste can restore them with
+ * their ids, this can only be done once. A cut only takes the selected elements and the nodes of selected ways,
+ * members of cut relations that are not cut themselves are stored by type and id and refer to the elements in the
+ * data again when pasted.
+ * @author simon
+ *
+ */
 public class ClipboardStorage implements Serializable  {
-	
+
 	/**
-	 * 
+	 *
 	 */
 	private static final long serialVersionUID = 1L;
 
 	public enum Mode { COPY, CUT };
-	
+
 	private Mode mode;
-	
-	private Storage storage;
-	
+
 	/*
-	 * save where object (really only necessary for ways) was selected
+	 * save where the selection was made, the node positions are relative to this
 	 */
 	private int selectionLat;
 	private	int selectionLon;
-	
+
+	private int nodeCount = 0;
+	private int wayCount = 0;
+	private int relationCount = 0;
+
+	/**
+	 * position of the nodes relative to the selection position
+	 */
+	private int[] latOffsets;
+	private int[] lonOffsets;
+
+	/**
+	 * the nodes of the ways
+	 */
+	private int[][] wayNodes;
+
+	/**
+	 * the members of the relations and their roles
+	 */
+	private int[][] members;
+	private String[][] roles;
+
 	/**
-	 * cut elements are deleted and have their state set appropriately, the original pre-cut state has to be restored on paste
+	 * for cut relations the type and id of members that are not stored, their entry in members is -1
 	 */
-	private byte savedState;
-	private HashMap<Node,Byte> savedNdState;
-	
+	private String[][] memberTypes;
+	private long[][] memberIds;
+
+	/**
+	 * tags of all elements, null for untagged elements
+	 */
+	private ArrayList<TreeMap<String, String>> tags;
+
+	/**
+	 * cut elements are deleted and have their state set appropriately, the original pre-cut state has to be restored on paste,
+	 * null if the elements were copied, entries are null for elements that have to be created new
+	 */
+	private OsmElement[] originals;
+	private byte[] savedStates;
+
 	ClipboardStorage() {
-		storage = new Storage();
+		reset();
 	}
-	
+
 	private void reset() {
-		storage = new Storage();
+		nodeCount = 0;
+		wayCount = 0;
+		relationCount = 0;
+		latOffsets = null;
+		lonOffsets = null;
+		wayNodes = null;
+		members = null;
+		roles = null;
+		memberTypes = null;
+		memberIds = null;
+		tags = null;
+		originals = null;
+		savedStates = null;
 	}
-	
+
 	/**
-	 * assumes the element has already been cloned
-	 * note no need to store nodes separate from ways
-	 * @param e
-	 * @param lat
-	 * @param lon
+	 * Determine the elements that will be stored for a selection: the selected elements and the nodes of selected ways,
+	 * if related elements are included also the downloaded members of selected relations and all relations whose members
+	 * are completely included.
+	 * @param selection the selected elements
+	 * @param related include related elements, for copying
+	 * @return the elements, nodes first, then ways, then relations
 	 */
-	public void copyTo(OsmElement e, int lat, int lon) {
-		reset();
-		selectionLat = lat;
-		selectionLon = lon;
-		mode = Mode.COPY;
-		
-		try {
-			storage.insertElementUnsafe(e);
-		} catch (StorageException sex) {
-			// TODO handle oom situation
-			sex.printStackTrace();
+	static List<OsmElement> collect(final Collection<? extends OsmElement> selection, final boolean related) {
+		LinkedHashSet<Node> nodes = new LinkedHashSet<Node>();
+		LinkedHashSet<Way> ways = new LinkedHashSet<Way>();
+		LinkedHashSet<Relation> relations = new LinkedHashSet<Relation>();
+		ArrayList<OsmElement> todo = new ArrayList<OsmElement>(selection);
+		while (!todo.isEmpty()) {
+			OsmElement e = todo.remove(todo.size() - 1);
+			if (e instanceof Node) {
+				nodes.add((Node) e);
+			} else if (e instanceof Way) {
+				if (ways.add((Way) e)) {
+					nodes.addAll(((Way) e).getNodes());
+				}
+			} else if (e instanceof Relation) {
+				if (relations.add((Relation) e) && related) {
+					todo.addAll(((Relation) e).getMemberElements());
+				}
+			}
+		}
+		// add relations that are complete, repeat for relations of relations
+		Set<OsmElement> stored = new HashSet<OsmElement>(nodes);
+		stored.addAll(ways);
+		stored.addAll(relations);
+		ArrayList<OsmElement> added = new ArrayList<OsmElement>(related ? stored : Collections.<OsmElement>emptySet());
+		while (!added.isEmpty()) {
+			LinkedHashSet<Relation> candidates = new LinkedHashSet<Relation>();
+			for (OsmElement e:added) {
+				if (e.hasParentRelations()) {
+					candidates.addAll(e.getParentRelations());
+				}
+			}
+			added.clear();
+			for (Relation r:candidates) {
+				if (!stored.contains(r) && isComplete(r, stored)) {
+					relations.add(r);
+					stored.add(r);
+					added.add(r);
+				}
+			}
 		}
+		List<OsmElement> result = new ArrayList<OsmElement>(stored.size());
+		result.addAll(nodes);
+		result.addAll(ways);
+		result.addAll(relations);
+		return result;
 	}
-	
-	/**
-	 * assumes that element will be deleted and any necessary objects cloned
-	 * @param e
-	 * @param lat
-	 * @param lon
-	 */
-	public void cutTo(OsmElement e, int lat, int lon) {
-		copyTo(e, lat, lon);
-		savedState = e.getState();
-		if (e instanceof Way) {
-			savedNdState = new HashMap<Node,Byte>();
-			for (Node nd:((Way)e).getNodes()) {
-				Log.d("CutTo","Saving state for " + nd.getOsmId());
-				savedNdState.put(nd, nd.getState());
+
+	/**
+	 * @return true if all members of the relation are downloaded and in stored
+	 */
+	private static boolean isComplete(final Relation r, final Set<OsmElement> stored) {
+		for (RelationMember rm:r.getMembers()) {
+			if (rm.getElement() == null || !stored.contains(rm.getElement())) {
+				return false;
 			}
 		}
+		return true;
+	}
+
+	/**
+	 * Store copies of elements, relation members that are not stored are dropped
+	 * @param elements the elements as returned by {@link #collect(Collection, boolean)}
+	 * @param lat latitude of the selection position
+	 * @param lon longitude of the selection position
+	 */
+	void copyTo(final List<OsmElement> elements, final int lat, final int lon) {
+		store(elements, lat, lon, null);
+		mode = Mode.COPY;
+	}
+
+	/**
+	 * Store elements that are going to be deleted, relation members that are not stored are kept as references
+	 * @param elements the elements as returned by {@link #collect(Collection, boolean)}
+	 * @param lat latitude of the selection position
+	 * @param lon longitude of the selection position
+	 * @param copiedNodes nodes that will not be deleted, these will be created new on paste
+	 */
+	void cutTo(final List<OsmElement> elements, final int lat, final int lon, final Set<Node> copiedNodes) {
+		store(elements, lat, lon, copiedNodes);
 		mode = Mode.CUT;
 	}
-	
-	public boolean isEmpty() {
-		return storage.isEmpty();
-	}
-	
-	/**
-	 * returns whatever is in the clipboard
-	 * @return
-	 */
-	public OsmElement pasteFrom() {
-		List<Way> ways = storage.getWays();
-		List<Node> nodes = storage.getNodes();
-		if (mode == Mode.CUT) {
-			reset(); // can only paste a cut way once
-			if (ways.size() == 1) { // restore original state
-				Way w = ways.get(0);
-				w.setState(savedState);
-				for (Node nd:w.getNodes()) {
-					Log.d("PasteFrom","Restoring state for " + nd.getOsmId());
-					nd.setState(savedNdState.get(nd));
+
+	private void store(final List<OsmElement> elements, final int lat, final int lon, final Set<Node> copiedNodes) {
+		reset();
+		selectionLat = lat;
+		selectionLon = lon;
+		IdentityHashMap<OsmElement, Integer> index = new IdentityHashMap<OsmElement, Integer>(elements.size());
+		for (OsmElement e:elements) {
+			index.put(e, Integer.valueOf(index.size()));
+			if (e instanceof Node) {
+				nodeCount++;
+			} else if (e instanceof Way) {
+				wayCount++;
+			} else {
+				relationCount++;
+			}
+		}
+		latOffsets = new int[nodeCount];
+		lonOffsets = new int[nodeCount];
+		wayNodes = new int[wayCount][];
+		members = new int[relationCount][];
+		roles = new String[relationCount][];
+		tags = new ArrayList<TreeMap<String, String>>(elements.size());
+		if (copiedNodes != null) {
+			originals = new OsmElement[elements.size()];
+			savedStates = new byte[elements.size()];
+			memberTypes = new String[relationCount][];
+			memberIds = new long[relationCount][];
+		}
+		for (int i = 0; i < elements.size(); i++) {
+			OsmElement e = elements.get(i);
+			if (e instanceof Node) {
+				latOffsets[i] = ((Node) e).getLat() - lat;
+				lonOffsets[i] = ((Node) e).getLon() - lon;
+			} else if (e instanceof Way) {
+				List<Node> nodes = ((Way) e).getNodes();
+				int[] refs = new int[nodes.size()];
+				for (int j = 0; j < refs.length; j++) {
+					refs[j] = index.get(nodes.get(j)).intValue();
+				}
+				wayNodes[i - nodeCount] = refs;
+			} else {
+				// members that are not stored are dropped when copying and referred to by type and id when cutting
+				List<RelationMember> rms = ((Relation) e).getMembers();
+				int[] refs = new int[rms.size()];
+				String[] r = new String[rms.size()];
+				int count = 0;
+				int relation = i - nodeCount - wayCount;
+				if (copiedNodes != null) {
+					memberTypes[relation] = new String[rms.size()];
+					memberIds[relation] = new long[rms.size()];
+				}
+				for (RelationMember rm:rms) {
+					Integer ref = rm.getElement() != null ? index.get(rm.getElement()) : null;
+					if (ref != null) {
+						refs[count] = ref.intValue();
+						r[count] = rm.getRole();
+						count++;
+					} else if (copiedNodes != null) {
+						refs[count] = -1;
+						r[count] = rm.getRole();
+						memberTypes[relation][count] = rm.getType();
+						memberIds[relation][count] = rm.getRef();
+						count++;
+					}
 				}
-				return w;
-			} else if (nodes.size() == 1) {
-				Node n = nodes.get(0);
-				n.setState(savedState);
-				return n;
+				if (count < refs.length) {
+					int[] tempRefs = new int[count];
+					System.arraycopy(refs, 0, tempRefs, 0, count);
+					refs = tempRefs;
+					String[] tempRoles = new String[count];
+					System.arraycopy(r, 0, tempRoles, 0, count);
+					r = tempRoles;
+				}
+				members[relation] = refs;
+				roles[relation] = r;
 			}
-		} else {
-			if (ways.size() == 1) {
-				return ways.get(0);
-			} else if (nodes.size() == 1) {
-				return nodes.get(0);
+			tags.add(e.isTagged() ? new TreeMap<String, String>(e.getTags()) : null);
+			if (copiedNodes != null && !copiedNodes.contains(e)) {
+				originals[i] = e;
+				savedStates[i] = e.getState();
 			}
 		}
-		return null;
 	}
-	
+
+	/**
+	 * Remove everything, after a cut has been pasted
+	 */
+	void clear() {
+		reset();
+	}
+
+	public boolean isEmpty() {
+		return nodeCount + wayCount + relationCount == 0;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	int getNodeCount() {
+		return nodeCount;
+	}
+
+	int getWayCount() {
+		return wayCount;
+	}
+
+	int getRelationCount() {
+		return relationCount;
+	}
+
+	/**
+	 * @param node number of the node
+	 * @return latitude offset to the selection position
+	 */
+	int getLatOffset(final int node) {
+		return latOffsets[node];
+	}
+
+	/**
+	 * @param node number of the node
+	 * @return longitude offset to the selection position
+	 */
+	int getLonOffset(final int node) {
+		return lonOffsets[node];
+	}
+
+	/**
+	 * @param way number of the way counted from the first way
+	 * @return the numbers of the way nodes
+	 */
+	int[] getWayNodes(final int way) {
+		return wayNodes[way];
+	}
+
+	/**
+	 * @param relation number of the relation counted from the first relation
+	 * @return the numbers of the member elements, -1 for members of cut relations that are not stored
+	 */
+	int[] getMembers(final int relation) {
+		return members[relation];
+	}
+
+	/**
+	 * @param relation number of the relation counted from the first relation
+	 * @return the roles of the members
+	 */
+	String[] getRoles(final int relation) {
+		return roles[relation];
+	}
+
+	/**
+	 * @param relation number of the relation counted from the first relation
+	 * @param member position of the member
+	 * @return the type of a member that is not stored
+	 */
+	String getMemberType(final int relation, final int member) {
+		return memberTypes[relation][member];
+	}
+
+	/**
+	 * @param relation number of the relation counted from the first relation
+	 * @param member position of the member
+	 * @return the id of a member that is not stored
+	 */
+	long getMemberId(final int relation, final int member) {
+		return memberIds[relation][member];
+	}
+
+	/**
+	 * @param element number of the element
+	 * @return the tags of the element, null if it has none
+	 */
+	TreeMap<String, String> getTags(final int element) {
+		return tags.get(element);
+	}
+
+	/**
+	 * @param element number of the element
+	 * @return the cut element, null if the element has to be created
+	 */
+	OsmElement getOriginal(final int element) {
+		return originals != null ? originals[element] : null;
+	}
+
+	/**
+	 * @param element number of the element
+	 * @return the state of the cut element before it was deleted
+	 */
+	byte getSavedState(final int element) {
+		return savedStates[element];
+	}
+
 	public int getSelectionLat() {
 		return selectionLat;
 	}
-	
+
 	public int getSelectionLon() {
 		return selectionLon;
 	}
@@ -0,0 +1,191 @@
+package de.blau.android.osm;
+
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Rough heap accounting for OSM data: estimates how much memory the loaded data and the undo checkpoints use,
+ * predicts the size of a download from the area and the density observed in previous downloads, and checks
+ * predicted sizes against the memory that is still available.
+ * The per element sizes are approximations for a 32 bit VM and are only meant to avoid downloads that are
+ * obviously going to fail.
+ * @author simon
+ *
+ */
+public class MemoryBudget {
+
+	private static final String DEBUG_TAG = MemoryBudget.class.getSimpleName();
+
+	// estimated sizes in bytes
+	private static final int NODE_BYTES = 64;
+	private static final int WAY_BYTES = 72;
+	static final int WAY_NODE_BYTES = 8; // reference in the ArrayList plus growth slack
+	private static final int RELATION_BYTES = 80;
+	static final int MEMBER_BYTES = 40;
+	static final int TAG_BYTES = 120; // two strings and the map entry
+	static final int UNDO_ELEMENT_BYTES = 96;
+
+	/** number of elements per type looked at when estimating the size of a storage */
+	private static final int SAMPLE_SIZE = 500;
+
+	/** memory that should stay free for everything else, fraction of the maximum heap */
+	private static final float RESERVE = 0.25f;
+
+	/** memory the undo history may use, fraction of the maximum heap */
+	private static final float UNDO_SHARE = 0.0625f;
+
+	/** parsing and merging need temporary structures on top of the data itself */
+	private static final float DOWNLOAD_OVERHEAD = 1.5f;
+
+	/** bytes per square degree assumed before we have seen a download, roughly a suburban area */
+	private static final double DEFAULT_DENSITY = 2E9d;
+	/** weight of a new observation in the density average */
+	private static final double DENSITY_WEIGHT = 0.5d;
+
+	private static double density = DEFAULT_DENSITY;
+	private static boolean densityObserved = false;
+
+	/**
+	 * Estimate the memory used by the elements in a storage, tags, way nodes and members are extrapolated from a sample
+	 * @param storage the storage
+	 * @return the estimated size in bytes
+	 */
+	public static long estimate(final Storage storage) {
+		return estimateNodes(storage.getNodes()) + estimateWays(storage.getWays()) + estimateRelations(storage.getRelations());
+	}
+
+	private static long estimateNodes(final List<Node> nodes) {
+		int size = nodes.size();
+		if (size == 0) {
+			return 0;
+		}
+		int step = Math.max(1, size / SAMPLE_SIZE);
+		long sample = 0;
+		int count = 0;
+		for (int i = 0; i < size; i += step) {
+			sample += NODE_BYTES + nodes.get(i).tags.size() * TAG_BYTES;
+			count++;
+		}
+		return sample * size / count;
+	}
+
+	private static long estimateWays(final List<Way> ways) {
+		int size = ways.size();
+		if (size == 0) {
+			return 0;
+		}
+		int step = Math.max(1, size / SAMPLE_SIZE);
+		long sample = 0;
+		int count = 0;
+		for (int i = 0; i < size; i += step) {
+			Way w = ways.get(i);
+			sample += WAY_BYTES + w.tags.size() * TAG_BYTES + w.nodes.size() * WAY_NODE_BYTES;
+			count++;
+		}
+		return sample * size / count;
+	}
+
+	private static long estimateRelations(final List<Relation> relations) {
+		int size = relations.size();
+		if (size == 0) {
+			return 0;
+		}
+		int step = Math.max(1, size / SAMPLE_SIZE);
+		long sample = 0;
+		int count = 0;
+		for (int i = 0; i < size; i += step) {
+			Relation r = relations.get(i);
+			sample += RELATION_BYTES + r.tags.size() * TAG_BYTES + r.members.size() * MEMBER_BYTES;
+			count++;
+		}
+		return sample * size / count;
+	}
+
+	/**
+	 * Estimate the memory used by undo checkpoints
+	 * @param undo the undo storage
+	 * @return the estimated size in bytes
+	 */
+	public static long estimate(final UndoStorage undo) {
+		return undo.getEstimatedSize();
+	}
+
+	/**
+	 * @return the number of bytes the undo history may use before old checkpoints are discarded
+	 */
+	public static long getUndoBudget() {
+		return (long) (Runtime.getRuntime().maxMemory() * UNDO_SHARE);
+	}
+
+	/**
+	 * @param box an area
+	 * @return the area in square degrees
+	 */
+	private static double area(final BoundingBox box) {
+		return ((double) box.getWidth() / 1E7d) * ((double) box.getHeight() / 1E7d);
+	}
+
+	/**
+	 * Update the density estimate with the result of a download
+	 * @param box the downloaded area
+	 * @param storage the downloaded data
+	 */
+	public static synchronized void recordDownload(final BoundingBox box, final Storage storage) {
+		double area = area(box);
+		if (area <= 0) {
+			return;
+		}
+		double observed = estimate(storage) / area;
+		density = densityObserved ? density * (1 - DENSITY_WEIGHT) + observed * DENSITY_WEIGHT : observed;
+		densityObserved = true;
+		Log.d(DEBUG_TAG, "observed density " + (long) observed + " average " + (long) density + " bytes per square degree");
+	}
+
+	/**
+	 * Predict how much memory downloading an area will need
+	 * @param box the area
+	 * @return predicted size in bytes including parsing overhead
+	 */
+	public static synchronized long predictDownload(final BoundingBox box) {
+		return (long) (area(box) * density * DOWNLOAD_OVERHEAD);
+	}
+
+	/**
+	 * @return the number of bytes that can still be allocated without eating in to the reserve
+	 */
+	public static long getHeadroom() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return runtime.maxMemory() - used - (long) (runtime.maxMemory() * RESERVE);
+	}
+
+	/**
+	 * Check if downloading an area is expected to fit in to memory
+	 * @param box the area
+	 * @return 1 if it fits, otherwise the fraction of the area that is expected to fit (0 if nothing fits)
+	 */
+	public static float fitDownload(final BoundingBox box) {
+		long predicted = predictDownload(box);
+		long headroom = getHeadroom();
+		if (predicted <= headroom) {
+			return 1f;
+		}
+		if (headroom <= 0) {
+			return 0f;
+		}
+		return (float) headroom / predicted;
+	}
+
+	/**
+	 * @param delegator the delegator holding the data
+	 * @return a one line summary for the debug display
+	 */
+	public static String getSummary(final StorageDelegator delegator) {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return "Memory (data/API/undo/heap/max/headroom) kB: " + estimate(delegator.getCurrentStorage()) / 1024 + "/"
+				+ estimate(delegator.getApiStorage()) / 1024 + "/" + estimate(delegator.getUndo()) / 1024 + "/" + used / 1024 + "/"
+				+ runtime.maxMemory() / 1024 + "/" + getHeadroom() / 1024;
+	}
+}
@@ -0,0 +1,325 @@
+package de.blau.android.osm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Merge of downloaded data in to the current data, split in to two steps so that the current data is only modified
+ * in one short step.
+ *
+ * {@link #plan(Snapshot, List, List, List, List, List, List)} decides which elements are added and which replace
+ * existing ones, detects conflicts and determines the existing ways and relations that refer to added elements.
+ * It only reads copies of the elements made on the UI thread and can run on any thread.
+ * {@link #apply(Storage)} then modifies the current storage and fixes up the nodes of those ways and the members of
+ * those relations, elements that are replaced or referenced are checked again in case they have been edited since
+ * the copies were made.
+ * @author simon
+ *
+ */
+class MergePlan {
+
+	private static final String DEBUG_TAG = MergePlan.class.getSimpleName();
+
+	private final Storage download;
+
+	/**
+	 * all elements by id after the merge, as far as they were known when planning
+	 */
+	private final HashMap<Long, Node> nodeIndex = new HashMap<Long, Node>();
+	private final HashMap<Long, Way> wayIndex = new HashMap<Long, Way>();
+	private final HashMap<Long, Relation> relationIndex = new HashMap<Long, Relation>();
+
+	/**
+	 * downloaded elements that will be added, including those replacing existing elements
+	 */
+	private final ArrayList<Node> addedNodes = new ArrayList<Node>();
+	private final ArrayList<Way> addedWays = new ArrayList<Way>();
+	private final ArrayList<Relation> addedRelations = new ArrayList<Relation>();
+
+	/**
+	 * existing elements that are replaced by newer versions and their replacements
+	 */
+	private final IdentityHashMap<Node, Node> replacedNodes = new IdentityHashMap<Node, Node>();
+	private final IdentityHashMap<Way, Way> replacedWays = new IdentityHashMap<Way, Way>();
+	private final IdentityHashMap<Relation, Relation> replacedRelations = new IdentityHashMap<Relation, Relation>();
+
+	/**
+	 * existing ways that contain replaced nodes
+	 */
+	private final ArrayList<Way> affectedWays = new ArrayList<Way>();
+
+	/**
+	 * added relations and existing relations that have added elements as members
+	 */
+	private final ArrayList<Relation> affectedRelations = new ArrayList<Relation>();
+
+	/**
+	 * @param download the downloaded data
+	 */
+	MergePlan(final Storage download) {
+		this.download = download;
+	}
+
+	/**
+	 * Determine the changes
+	 * @param snapshot the snapshot the copies were made with, no further copies may be made
+	 * @param nodes copies of the current nodes
+	 * @param ways copies of the current ways
+	 * @param relations copies of the current relations
+	 * @param apiNodes copies of the changed nodes
+	 * @param apiWays copies of the changed ways
+	 * @param apiRelations copies of the changed relations
+	 * @return false if there are conflicts that need to be resolved by uploading first
+	 */
+	boolean plan(final Snapshot snapshot, final List<Node> nodes, final List<Way> ways, final List<Relation> relations,
+			final List<Node> apiNodes, final List<Way> apiWays, final List<Relation> apiRelations) {
+		for (Node n:nodes) {
+			nodeIndex.put(n.getOsmId(), n);
+		}
+		for (Way w:ways) {
+			wayIndex.put(w.getOsmId(), w);
+		}
+		for (Relation r:relations) {
+			relationIndex.put(r.getOsmId(), r);
+		}
+		Map<Long, Long> deletedNodes = deletedVersions(apiNodes);
+		Map<Long, Long> deletedWays = deletedVersions(apiWays);
+		Map<Long, Long> deletedRelations = deletedVersions(apiRelations);
+		IdentityHashMap<Node, Node> replacedNodeCopies = new IdentityHashMap<Node, Node>();
+		IdentityHashMap<Way, Way> replacedWayCopies = new IdentityHashMap<Way, Way>();
+		IdentityHashMap<Relation, Relation> replacedRelationCopies = new IdentityHashMap<Relation, Relation>();
+		if (!planElements(download.getNodes(), nodeIndex, deletedNodes, addedNodes, replacedNodeCopies)
+				|| !planElements(download.getWays(), wayIndex, deletedWays, addedWays, replacedWayCopies)) {
+			return false;
+		}
+		// all nodes of new ways should be known now, however somebody may have deleted nodes outside of the downloaded bounding box
+		for (Way w:addedWays) {
+			for (Node n:w.getNodes()) {
+				if (!nodeIndex.containsKey(n.getOsmId())) {
+					Log.e(DEBUG_TAG, "null way node");
+					return false;
+				}
+			}
+		}
+		if (!planElements(download.getRelations(), relationIndex, deletedRelations, addedRelations, replacedRelationCopies)) {
+			return false;
+		}
+		for (Relation r:addedRelations) {
+			for (RelationMember rm:r.getMembers()) {
+				Long ref = Long.valueOf(rm.getRef());
+				if ((Node.NAME.equals(rm.getType()) && !nodeIndex.containsKey(ref) && deletedNodes.containsKey(ref))
+						|| (Way.NAME.equals(rm.getType()) && !wayIndex.containsKey(ref) && deletedWays.containsKey(ref))
+						|| (Relation.NAME.equals(rm.getType()) && !relationIndex.containsKey(ref) && deletedRelations.containsKey(ref))) {
+					Log.e(DEBUG_TAG, "deleted " + rm.getType() + " in downloaded relation");
+					return false; // can't resolve conflicts, upload first
+				}
+			}
+		}
+
+		// ways and relations that need to be fixed up
+		for (Way w:ways) {
+			if (!replacedWayCopies.containsKey(w)) {
+				for (Node n:w.getNodes()) {
+					if (replacedNodeCopies.containsKey(n)) {
+						affectedWays.add(snapshot.getOriginal(w));
+						break;
+					}
+				}
+			}
+		}
+		Set<Long> addedNodeIds = new HashSet<Long>();
+		Set<Long> addedWayIds = new HashSet<Long>();
+		Set<Long> addedRelationIds = new HashSet<Long>();
+		for (Node n:addedNodes) {
+			addedNodeIds.add(n.getOsmId());
+		}
+		for (Way w:addedWays) {
+			addedWayIds.add(w.getOsmId());
+		}
+		for (Relation r:addedRelations) {
+			addedRelationIds.add(r.getOsmId());
+		}
+		for (Relation r:relations) {
+			if (!replacedRelationCopies.containsKey(r)) {
+				for (RelationMember rm:r.getMembers()) {
+					Long ref = Long.valueOf(rm.getRef());
+					if ((Node.NAME.equals(rm.getType()) && addedNodeIds.contains(ref))
+							|| (Way.NAME.equals(rm.getType()) && addedWayIds.contains(ref))
+							|| (Relation.NAME.equals(rm.getType()) && addedRelationIds.contains(ref))) {
+						affectedRelations.add(snapshot.getOriginal(r));
+						break;
+					}
+				}
+			}
+		}
+		affectedRelations.addAll(addedRelations);
+
+		// from here on only the original elements are used
+		toOriginals(snapshot, nodeIndex, replacedNodeCopies, replacedNodes);
+		toOriginals(snapshot, wayIndex, replacedWayCopies, replacedWays);
+		toOriginals(snapshot, relationIndex, replacedRelationCopies, replacedRelations);
+		return true;
+	}
+
+	/**
+	 * @return versions of the deleted elements by id
+	 */
+	private static Map<Long, Long> deletedVersions(final List<? extends OsmElement> apiElements) {
+		HashMap<Long, Long> result = new HashMap<Long, Long>();
+		for (OsmElement e:apiElements) {
+			if (e.getState() == OsmElement.STATE_DELETED) {
+				result.put(e.getOsmId(), e.getOsmVersion());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Sort the downloaded elements of one type in to new ones and replacements of existing ones
+	 * @return false if an element can't be merged
+	 */
+	private static <T extends OsmElement> boolean planElements(final List<T> downloaded, final Map<Long, T> index,
+			final Map<Long, Long> deleted, final List<T> added, final Map<T, T> replaced) {
+		for (T e:downloaded) {
+			Long id = Long.valueOf(e.getOsmId());
+			Long deletedVersion = deleted.get(id);
+			if (deletedVersion != null) { // deleted and not uploaded yet
+				if (deletedVersion.longValue() >= e.getOsmVersion()) {
+					continue; // can use the element we already have
+				}
+				return false; // can't resolve conflicts, upload first
+			}
+			T existing = index.get(id);
+			if (existing == null) { // new element no problem
+				added.add(e);
+				index.put(id, e);
+			} else if (existing.getOsmVersion() < e.getOsmVersion()) { // larger just to be on the safe side
+				if (!existing.isUnchanged()) {
+					return false; // can't resolve conflicts, upload first
+				}
+				added.add(e);
+				replaced.put(existing, e);
+				index.put(id, e); // overwrite existing entry in index
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Replace the copies in the index and in the replaced elements by the original elements
+	 */
+	private static <T extends OsmElement> void toOriginals(final Snapshot snapshot, final Map<Long, T> index,
+			final Map<T, T> replacedCopies, final Map<T, T> replaced) {
+		for (Entry<Long, T> entry:index.entrySet()) {
+			T original = snapshot.getOriginal(entry.getValue());
+			if (original != null) { // null for downloaded elements
+				entry.setValue(original);
+			}
+		}
+		for (Entry<T, T> entry:replacedCopies.entrySet()) {
+			replaced.put(snapshot.getOriginal(entry.getKey()), entry.getValue());
+		}
+	}
+
+	/**
+	 * Modify the current data, must only be called on the thread that edits the data and only if the data hasn't
+	 * been edited since the copies for planning were made
+	 * @param current the current storage
+	 * @return false if elements have been edited in a way that conflicts with the merge, nothing is changed in that case
+	 */
+	boolean apply(final Storage current) {
+		if (!unchanged(replacedNodes.keySet()) || !unchanged(replacedWays.keySet()) || !unchanged(replacedRelations.keySet())) {
+			return false;
+		}
+		for (Way w:addedWays) {
+			for (Node n:w.getNodes()) {
+				if (nodeIndex.get(n.getOsmId()).getState() == OsmElement.STATE_DELETED) {
+					return false;
+				}
+			}
+		}
+		for (Relation r:addedRelations) {
+			for (RelationMember rm:r.getMembers()) {
+				OsmElement e = getIndexed(rm.getType(), rm.getRef());
+				if (e != null && e.getState() == OsmElement.STATE_DELETED) {
+					return false;
+				}
+			}
+		}
+
+		replace(current.getNodes(), addedNodes, replacedNodes);
+		replace(current.getWays(), addedWays, replacedWays);
+		replace(current.getRelations(), addedRelations, replacedRelations);
+
+		// fix up way nodes, new ways have references to copies not in storage
+		for (Way w:addedWays) {
+			List<Node> nodes = w.getNodes();
+			for (int i = 0; i < nodes.size(); i++) {
+				nodes.set(i, nodeIndex.get(nodes.get(i).getOsmId()));
+			}
+		}
+		for (Way w:affectedWays) {
+			List<Node> nodes = w.getNodes();
+			for (int i = 0; i < nodes.size(); i++) {
+				Node n = replacedNodes.get(nodes.get(i));
+				if (n != null) {
+					nodes.set(i, n);
+				}
+			}
+		}
+
+		// fixup relation back links and memberships, uses the parent relation index of large memberships
+		for (Relation r:affectedRelations) {
+			for (RelationMember rm:r.getMembers()) {
+				OsmElement e = getIndexed(rm.getType(), rm.getRef());
+				if (e != null) { // if the element is downloaded always re-set it
+					rm.setElement(e);
+					if (e.hasParentRelation(r.getOsmId())) {
+						e.removeParentRelation(r.getOsmId()); // this removes based on id
+					}										  // net effect is to remove the old rel
+					e.addParentRelation(r);					  // and add the updated one
+				}
+			}
+			r.invalidateIndex(); // members are indexed by element
+		}
+		return true;
+	}
+
+	private OsmElement getIndexed(final String type, final long ref) {
+		if (Node.NAME.equals(type)) {
+			return nodeIndex.get(ref);
+		} else if (Way.NAME.equals(type)) {
+			return wayIndex.get(ref);
+		} else if (Relation.NAME.equals(type)) {
+			return relationIndex.get(ref);
+		}
+		return null;
+	}
+
+	private static boolean unchanged(final Iterable<? extends OsmElement> elements) {
+		for (OsmElement e:elements) {
+			if (!e.isUnchanged()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Remove the replaced elements from the list and append the added ones
+	 */
+	private static <T extends OsmElement> void replace(final List<T> list, final List<T> added, final Map<T, T> replaced) {
+		if (!replaced.isEmpty()) {
+			list.removeAll(replaced.keySet()); // identity set, linear in the size of the list
+		}
+		list.addAll(added);
+	}
+}
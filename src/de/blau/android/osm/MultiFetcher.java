@@ -0,0 +1,224 @@
+package de.blau.android.osm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import android.util.Log;
+import de.blau.android.exception.OsmServerException;
+import de.blau.android.services.util.StreamUtils;
+import de.blau.android.util.SavingHelper;
+
+/**
+ * Downloads many elements by id with the multi fetch calls of the API (nodes?nodes=..., ways?ways=..., relations?relations=...).
+ * The ids are split in to batches that fit in to an URL and the batches are downloaded in parallel.
+ * The nodes of downloaded ways are fetched too, all data is parsed in the order nodes, ways, relations
+ * so that the result can be merged with {@link StorageDelegator#mergeData(Storage)}.
+ * @author simon
+ *
+ */
+public class MultiFetcher {
+
+	private static final String DEBUG_TAG = MultiFetcher.class.getSimpleName();
+
+	/** maximum length of the id list in one request, keeps the URL well below the common 8k limits */
+	private static final int MAX_ID_CHARS = 6000;
+
+	/** maximum number of requests running at the same time */
+	private static final int MAX_CONCURRENT_REQUESTS = 4;
+
+	private final Server server;
+
+	/**
+	 * @param server the API server to download from
+	 */
+	public MultiFetcher(final Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Download elements, elements that don't exist (any more) on the server are skipped
+	 * @param nodeIds ids of nodes to download
+	 * @param wayIds ids of ways to download, their nodes are downloaded too
+	 * @param relationIds ids of relations to download, their members are not downloaded
+	 * @return the storage containing the downloaded elements
+	 * @throws OsmServerException if the server returned an error other than for missing elements
+	 * @throws IOException
+	 * @throws SAXException
+	 * @throws ParserConfigurationException
+	 */
+	public Storage fetch(final Collection<Long> nodeIds, final Collection<Long> wayIds, final Collection<Long> relationIds)
+			throws OsmServerException, IOException, SAXException, ParserConfigurationException {
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS);
+		try {
+			List<Future<List<byte[]>>> wayResults = submit(executor, Way.NAME, wayIds);
+			List<Future<List<byte[]>>> relationResults = submit(executor, Relation.NAME, relationIds);
+
+			// ways need all their nodes present when they are parsed
+			List<byte[]> ways = get(wayResults);
+			Set<Long> allNodeIds = new LinkedHashSet<Long>(nodeIds);
+			for (byte[] data:ways) {
+				getWayNodeIds(data, allNodeIds);
+			}
+			List<byte[]> nodes = get(submit(executor, Node.NAME, allNodeIds));
+			List<byte[]> relations = get(relationResults);
+
+			OsmParser osmParser = new OsmParser();
+			parse(osmParser, nodes);
+			parse(osmParser, ways);
+			parse(osmParser, relations);
+			Log.d(DEBUG_TAG, "fetched " + allNodeIds.size() + " nodes " + wayIds.size() + " ways " + relationIds.size()
+					+ " relations in " + (System.currentTimeMillis() - start) + " ms");
+			return osmParser.getStorage();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Split ids in to batches and submit a download for each of them
+	 * @param executor the executor to run the downloads
+	 * @param type the type of the elements
+	 * @param ids the ids
+	 * @return a Future for each batch
+	 */
+	private List<Future<List<byte[]>>> submit(final ExecutorService executor, final String type, final Collection<Long> ids) {
+		List<Future<List<byte[]>>> result = new ArrayList<Future<List<byte[]>>>();
+		List<Long> batch = new ArrayList<Long>();
+		int length = 0;
+		for (Long id:ids) {
+			int idLength = id.toString().length() + 1;
+			if (length + idLength > MAX_ID_CHARS && !batch.isEmpty()) {
+				result.add(executor.submit(new Download(type, batch)));
+				batch = new ArrayList<Long>();
+				length = 0;
+			}
+			batch.add(id);
+			length += idLength;
+		}
+		if (!batch.isEmpty()) {
+			result.add(executor.submit(new Download(type, batch)));
+		}
+		return result;
+	}
+
+	/**
+	 * Wait for the downloads to finish
+	 * @param futures the running downloads
+	 * @return the downloaded data
+	 * @throws OsmServerException
+	 * @throws IOException
+	 */
+	private List<byte[]> get(final List<Future<List<byte[]>>> futures) throws OsmServerException, IOException {
+		List<byte[]> result = new ArrayList<byte[]>();
+		for (Future<List<byte[]>> f:futures) {
+			try {
+				result.addAll(f.get());
+			} catch (InterruptedException e) {
+				throw new IOException("Download interrupted");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof OsmServerException) {
+					throw (OsmServerException) cause;
+				} else if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				throw new IOException(cause != null ? cause.getMessage() : e.getMessage());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Download one batch, if the server tells us that some of the elements don't exist
+	 * the batch is split and the halves are tried separately
+	 */
+	private class Download implements Callable<List<byte[]>> {
+		final String type;
+		final List<Long> ids;
+
+		Download(final String type, final List<Long> ids) {
+			this.type = type;
+			this.ids = ids;
+		}
+
+		@Override
+		public List<byte[]> call() throws OsmServerException, IOException {
+			List<byte[]> result = new ArrayList<byte[]>();
+			download(ids, result);
+			return result;
+		}
+
+		private void download(final List<Long> batch, final List<byte[]> result) throws OsmServerException, IOException {
+			InputStream in = null;
+			try {
+				in = server.getStreamForElements(type, batch);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				StreamUtils.copy(in, out);
+				result.add(out.toByteArray());
+			} catch (OsmServerException e) {
+				int code = e.getErrorCode();
+				if (code != 404 && code != 410) {
+					throw e;
+				}
+				if (batch.size() > 1) {
+					int half = batch.size() / 2;
+					download(batch.subList(0, half), result);
+					download(batch.subList(half, batch.size()), result);
+				} else {
+					Log.w(DEBUG_TAG, type + " " + batch.get(0) + " not found on server");
+				}
+			} finally {
+				SavingHelper.close(in);
+			}
+		}
+	}
+
+	/**
+	 * Collect the ids of the nodes referenced by the ways in downloaded data
+	 * @param data the downloaded ways
+	 * @param ids the set the ids are added to
+	 * @throws IOException
+	 */
+	private static void getWayNodeIds(final byte[] data, final Set<Long> ids) throws IOException {
+		try {
+			XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+			parser.setInput(new ByteArrayInputStream(data), null);
+			int eventType;
+			while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
+				if (eventType == XmlPullParser.START_TAG && "nd".equals(parser.getName())) {
+					ids.add(Long.valueOf(parser.getAttributeValue(null, "ref")));
+				}
+			}
+		} catch (XmlPullParserException e) {
+			throw new IOException("Invalid data received " + e.getMessage());
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid data received " + e.getMessage());
+		}
+	}
+
+	private static void parse(final OsmParser osmParser, final List<byte[]> data) throws SAXException, IOException, ParserConfigurationException {
+		for (byte[] d:data) {
+			osmParser.start(new ByteArrayInputStream(d));
+		}
+	}
+}
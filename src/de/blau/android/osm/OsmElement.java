@@ -5,6 +5,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -44,16 +45,33 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
 
 	protected long osmVersion;
 
+	/**
+	 * once the element has been added to the data the map is never modified, {@link #setTags(Map)} replaces it,
+	 * so copies made for other threads can share it, see {@link Snapshot}
+	 */
 	protected SortedMap<String, String> tags;
 
 	protected byte state;
 	
+	/**
+	 * the relations this element is a member of, a relation is included once for every membership
+	 */
 	protected ArrayList<Relation> parentRelations;
 	
 	/**
-	 * hasProblem() is an expensive test, so the results are cached.
+	 * below this number of parent relations searching the list is as fast as the index
 	 */
-	private Boolean cachedHasProblem;
+	private static final int PARENT_INDEX_THRESHOLD = 8;
+	
+	/**
+	 * parentRelations by relation id, null if there are few parent relations or if the index needs to be rebuilt
+	 */
+	private transient HashMap<Long, ArrayList<Relation>> parentRelationIndex = null;
+	
+	/**
+	 * Validation result, one bit per rule, written by the validator on the UI thread
+	 */
+	private transient int problems;
 	
 	static {
 		// Create the array of important tags. Tags are listed from most important to least.
@@ -70,7 +88,6 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
 		this.tags = new TreeMap<String, String>();
 		this.state = state;
 		this.parentRelations = null;
-		cachedHasProblem = null;
 	}
 
 	public long getOsmId() {
@@ -115,29 +132,34 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
 		state = newState;
 	}
 
+	/**
+	 * Only for elements that haven't been added to the data yet, modifies the tags in place
+	 */
 	void addOrUpdateTag(final String tag, final String value) {
 		tags.put(tag, value);
-		cachedHasProblem = null;
 	}
 
 	/**
 	 * Add the tags of the element, replacing any existing tags.
+	 * Only for elements that haven't been added to the data yet, modifies the tags in place.
 	 * @param tags New tags to add or to replace existing tags.
 	 */
 	void addTags(final Map<String, String> tags) {
 		if (tags != null) this.tags.putAll(tags);
-		cachedHasProblem = null;
 	}
 
 	/**
-	 * Set the tags of the element, replacing all existing tags.
+	 * Set the tags of the element, replacing all existing tags. The old tags are not modified.
 	 * @param tags New tags to replace existing tags.
 	 * @return Flag indicating if the tags have actually changed.
 	 */
 	boolean setTags(final Map<String, String> tags) {
 		if (!this.tags.equals(tags)) {
-			this.tags.clear();
-			addTags(tags);
+			SortedMap<String, String> newTags = new TreeMap<String, String>();
+			if (tags != null) {
+				newTags.putAll(tags);
+			}
+			this.tags = newTags;
 			return true;
 		}
 		return false;
@@ -229,6 +251,9 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
 			parentRelations = new ArrayList<Relation>();
 		}
 		parentRelations.add(relation);
+		if (parentRelationIndex != null) {
+			indexParentRelation(relation);
+		}
 	}
 	
 	/**
@@ -237,7 +262,15 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
 	 * @return
 	 */
 	public boolean hasParentRelation(Relation relation) {
-		return (parentRelations == null ? false : parentRelations.contains(relation));
+		if (parentRelations == null) {
+			return false;
+		}
+		HashMap<Long, ArrayList<Relation>> index = getParentRelationIndex();
+		if (index != null) {
+			ArrayList<Relation> l = index.get(Long.valueOf(relation.getOsmId()));
+			return l != null && l.contains(relation);
+		}
+		return parentRelations.contains(relation);
 	}
 	
 	/**
@@ -249,6 +282,10 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
 		if (parentRelations == null) {
 			return false;
 		}
+		HashMap<Long, ArrayList<Relation>> index = getParentRelationIndex();
+		if (index != null) {
+			return index.containsKey(Long.valueOf(osmId));
+		}
 		for (Relation r:parentRelations) {
 			if (osmId == r.getOsmId())
 				return true;
@@ -265,7 +302,7 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
 		}
 		//  dedup
 		for (Relation r : relations) {
-			if (!parentRelations.contains(r)) {
+			if (!hasParentRelation(r)) {
 				addParentRelation(r);
 			}
 		}
@@ -284,8 +321,15 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
 	 * does not check for id
 	 */
 	public void removeParentRelation(Relation relation) {
-		if (parentRelations != null) {
-			parentRelations.remove(relation);
+		if (parentRelations != null && parentRelations.remove(relation) && parentRelationIndex != null) {
+			Long key = Long.valueOf(relation.getOsmId());
+			ArrayList<Relation> l = parentRelationIndex.get(key);
+			if (l != null) {
+				l.remove(relation);
+				if (l.isEmpty()) {
+					parentRelationIndex.remove(key);
+				}
+			}
 		}
 	}
 	
@@ -294,6 +338,14 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
 	 */
 	public void removeParentRelation(long osmId) {
 		if (parentRelations != null) {
+			HashMap<Long, ArrayList<Relation>> index = getParentRelationIndex();
+			if (index != null) {
+				ArrayList<Relation> l = index.remove(Long.valueOf(osmId));
+				if (l != null) {
+					parentRelations.removeAll(l);
+				}
+				return;
+			}
 			ArrayList<Relation> tempRelList = new ArrayList<Relation>(parentRelations);
 			for (Relation r:tempRelList) {
 				if (osmId == r.getOsmId())
@@ -301,6 +353,36 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
 			}
 		}
 	}
+	
+	/**
+	 * @return the index of the parent relations, null if there are only a few
+	 */
+	private HashMap<Long, ArrayList<Relation>> getParentRelationIndex() {
+		if (parentRelationIndex == null && parentRelations != null && parentRelations.size() >= PARENT_INDEX_THRESHOLD) {
+			parentRelationIndex = new HashMap<Long, ArrayList<Relation>>();
+			for (Relation r:parentRelations) {
+				indexParentRelation(r);
+			}
+		}
+		return parentRelationIndex;
+	}
+	
+	private void indexParentRelation(final Relation relation) {
+		Long key = Long.valueOf(relation.getOsmId());
+		ArrayList<Relation> l = parentRelationIndex.get(key);
+		if (l == null) {
+			l = new ArrayList<Relation>(1);
+			parentRelationIndex.put(key, l);
+		}
+		l.add(relation);
+	}
+	
+	/**
+	 * Drop the parent relation index, needs to be called when parentRelations is replaced or the id of a parent relation changes
+	 */
+	void invalidateParentRelationIndex() {
+		parentRelationIndex = null;
+	}
 
 
 	/**
@@ -362,47 +444,27 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
 	}
 	
 	/**
-	 * Test if the element has any problems by searching all the tags for the words
-	 * "fixme" or "todo".
-	 * @return true if the element has any noted problems, false otherwise.
+	 * Test if the element has a problem, the result of the last validation run, see
+	 * {@link de.blau.android.validation.Validator}. This is cheap and safe to call while painting.
+	 * @return true if the element has a problem, false if it doesn't or hasn't been validated yet.
 	 */
-	protected boolean calcProblem() {
-		final String pattern = "(?i).*\\b(?:fixme|todo)\\b.*";
-		for (String key : tags.keySet()) {
-			// test key and value against pattern
-			if (key.matches(pattern) || tags.get(key).matches(pattern)) {
-				return true;
-			}
-		}
-		return false;
+	public boolean hasProblem() {
+		return problems != 0;
 	}
 	
 	/**
-	 * return a string giving the problem
+	 * @return the problems found by the last validation run, one bit per rule
 	 */
-	public String describeProblem() {
-		final String pattern = "(?i).*\\b(?:fixme|todo)\\b.*";
-		for (String key : tags.keySet()) {
-			// test key and value against pattern
-			if (key.matches(pattern) || tags.get(key).matches(pattern)) {
-				return key + ": " + tags.get(key);
-			}
-		}
-		return "";
+	public int getProblems() {
+		return problems;
 	}
 	
 	/**
-	 * Test if the element has a noted problem. A noted problem is where someone has
-	 * tagged the element with a "fixme" or "todo" key/value.
-	 * @return true if the element has a noted problem, false if it doesn't.
+	 * Set by the validator
+	 * @param problems one bit per rule that found a problem
 	 */
-	public boolean hasProblem() {
-		// This implementation assumes that calcProblem() may be expensive, and
-		// caches the calculation.
-		if (cachedHasProblem == null) {
-			cachedHasProblem = calcProblem();
-		}
-		return cachedHasProblem;
+	public void setProblems(final int problems) {
+		this.problems = problems;
 	}
 	
 	
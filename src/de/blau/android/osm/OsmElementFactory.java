@@ -35,4 +35,37 @@ public class OsmElementFactory implements Serializable {
 	public Relation createRelationWithNewId() {
 		return createRelation(--relationId, 1, OsmElement.STATE_CREATED);
 	}
+	
+	/**
+	 * Reserve new ids for creating many nodes at once
+	 * @param count number of ids
+	 * @return the first id, the others are the following lower numbers
+	 */
+	public long reserveNodeIds(final int count) {
+		long first = nodeId - 1;
+		nodeId -= count;
+		return first;
+	}
+	
+	/**
+	 * Reserve new ids for creating many ways at once
+	 * @param count number of ids
+	 * @return the first id, the others are the following lower numbers
+	 */
+	public long reserveWayIds(final int count) {
+		long first = wayId - 1;
+		wayId -= count;
+		return first;
+	}
+	
+	/**
+	 * Reserve new ids for creating many relations at once
+	 * @param count number of ids
+	 * @return the first id, the others are the following lower numbers
+	 */
+	public long reserveRelationIds(final int count) {
+		long first = relationId - 1;
+		relationId -= count;
+		return first;
+	}
 }
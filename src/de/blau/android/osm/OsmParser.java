@@ -45,6 +45,9 @@ public class OsmParser extends DefaultHandler {
 	private final ArrayList<Exception> exceptions;
 	
 	private ArrayList<RelationMember> missingRelations;
+	
+	/** if set completed elements are added here for display while parsing is still going on */
+	private StagingArea staging = null;
 
 	public OsmParser() {
 		super();
@@ -59,6 +62,14 @@ public class OsmParser extends DefaultHandler {
 	public Storage getStorage() {
 		return storage;
 	}
+	
+	/**
+	 * Publish elements to a staging area while parsing, this also allows the parsing to be cancelled
+	 * @param staging the staging area
+	 */
+	public void setStagingArea(final StagingArea staging) {
+		this.staging = staging;
+	}
 
 	/**
 	 * Triggers the beginning of parsing.
@@ -88,6 +99,9 @@ public class OsmParser extends DefaultHandler {
 				Log.d(DEBUG_TAG, "Added relation " + rm.ref);
 			}
 		}
+		if (staging != null) {
+			staging.flush();
+		}
 		Log.d(DEBUG_TAG, "Finished parsing input.");
 	}
 	
@@ -123,13 +137,22 @@ public class OsmParser extends DefaultHandler {
 	 */
 	@Override
 	public void endElement(final String uri, final String name, final String qName) throws SAXException {
+		if (staging != null && staging.isCancelled()) {
+			throw new SAXException("Parsing cancelled");
+		}
 		try {
 			if (isNode(name)) {
 				storage.insertNodeUnsafe(currentNode);
+				if (staging != null) {
+					staging.add(currentNode);
+				}
 				currentNode = null;
 			} else if (isWay(name)) {
 				if (currentWay.getNodes() != null && currentWay.getNodes().size() > 0) {
 					storage.insertWayUnsafe(currentWay);
+					if (staging != null) {
+						staging.add(currentWay);
+					}
 				} else {
 					Log.e(DEBUG_TAG,"Way " + currentWay.getOsmId() + " has no nodes! Ignored.");
 				}
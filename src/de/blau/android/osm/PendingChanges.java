@@ -0,0 +1,143 @@
+package de.blau.android.osm;
+
+import java.util.List;
+
+import android.content.res.Resources;
+
+/**
+ * The changes that would be uploaded, for displaying them in a list.
+ *
+ * Nothing is copied or formatted up front: the elements are accessed in the lists of the api storage, the counts
+ * per element type are the sizes of these lists and descriptions are only formatted for the rows that are actually
+ * requested. Restricting the list to one change state needs a single pass over the elements of the selected type.
+ *
+ * Positions count the nodes first, then the ways and then the relations. An instance is only valid as long as the
+ * api storage doesn't change.
+ * @author simon
+ *
+ */
+public class PendingChanges {
+
+	/** filter value for elements of all types */
+	public static final String ALL_TYPES = null;
+
+	/** filter value for elements in all states */
+	public static final byte ALL_STATES = -1;
+
+	private final List<Node> nodes;
+	private final List<Way> ways;
+	private final List<Relation> relations;
+
+	/**
+	 * the elements of the selected type are from first (inclusive) to end (exclusive)
+	 */
+	private int first;
+	private int end;
+
+	/**
+	 * positions of the elements in the selected state, null if all states are shown
+	 */
+	private int[] positions = null;
+	private int positionCount = 0;
+
+	PendingChanges(final Storage apiStorage) {
+		nodes = apiStorage.getNodes();
+		ways = apiStorage.getWays();
+		relations = apiStorage.getRelations();
+		setFilter(ALL_TYPES, ALL_STATES);
+	}
+
+	public int getNodeCount() {
+		return nodes.size();
+	}
+
+	public int getWayCount() {
+		return ways.size();
+	}
+
+	public int getRelationCount() {
+		return relations.size();
+	}
+
+	/**
+	 * @return the number of all changes regardless of the filter
+	 */
+	public int getTotalCount() {
+		return nodes.size() + ways.size() + relations.size();
+	}
+
+	/**
+	 * Restrict the list to elements of one type and/or one state
+	 * @param type {@link Node#NAME}, {@link Way#NAME}, {@link Relation#NAME} or {@link #ALL_TYPES}
+	 * @param state {@link OsmElement#STATE_CREATED}, {@link OsmElement#STATE_MODIFIED}, {@link OsmElement#STATE_DELETED}
+	 *  or {@link #ALL_STATES}
+	 */
+	public void setFilter(final String type, final byte state) {
+		if (type == ALL_TYPES) {
+			first = 0;
+			end = getTotalCount();
+		} else if (Node.NAME.equals(type)) {
+			first = 0;
+			end = nodes.size();
+		} else if (Way.NAME.equals(type)) {
+			first = nodes.size();
+			end = first + ways.size();
+		} else if (Relation.NAME.equals(type)) {
+			first = nodes.size() + ways.size();
+			end = first + relations.size();
+		} else {
+			throw new IllegalArgumentException("Unknown element type " + type);
+		}
+		positions = null;
+		positionCount = 0;
+		if (state != ALL_STATES) {
+			positions = new int[end - first];
+			for (int i = first; i < end; i++) {
+				if (getElement(i).getState() == state) {
+					positions[positionCount++] = i;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of changes matching the filter
+	 */
+	public int size() {
+		return positions != null ? positionCount : end - first;
+	}
+
+	/**
+	 * @param position position in the filtered list
+	 * @return the changed element
+	 */
+	public OsmElement get(final int position) {
+		if (position < 0 || position >= size()) {
+			throw new IndexOutOfBoundsException("Position " + position + " size " + size());
+		}
+		return getElement(positions != null ? positions[position] : first + position);
+	}
+
+	/**
+	 * @param position position in the filtered list
+	 * @param aResources the translations
+	 * @return the localized description of the change
+	 */
+	public String getDescription(final int position, final Resources aResources) {
+		return get(position).getStateDescription(aResources);
+	}
+
+	/**
+	 * @param i position counting all nodes, ways and relations
+	 */
+	private OsmElement getElement(int i) {
+		if (i < nodes.size()) {
+			return nodes.get(i);
+		}
+		i -= nodes.size();
+		if (i < ways.size()) {
+			return ways.get(i);
+		}
+		return relations.get(i - ways.size());
+	}
+}
@@ -1,7 +1,10 @@
 package de.blau.android.osm;
 
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 
@@ -12,6 +15,11 @@ import android.util.Log;
 /**
  * Relation represents an OSM relation element which essentially is a collection of other OSM elements.
  * 
+ * Members are indexed by object and by element so that lookups don't need to search the member list,
+ * the index is built on first use. Removed members leave an empty slot in the list until the next call
+ * of {@link #getMembers()}, so that removing many members from a large relation doesn't shift the list
+ * every time.
+ * 
  * @author simon
  *
  */
@@ -22,7 +30,25 @@ public class Relation extends OsmElement {
 	 */
 	private static final long serialVersionUID = 1104911642016294265L;
 
+	/**
+	 * the members in order, contains null for removed members until {@link #compact()} is called
+	 */
 	protected final ArrayList<RelationMember> members;
+	
+	/**
+	 * number of null entries in members
+	 */
+	private transient int removed = 0;
+	
+	/**
+	 * the slots of the members in members, ascending, null if the index needs to be rebuilt
+	 */
+	private transient IdentityHashMap<RelationMember, int[]> slots = null;
+	
+	/**
+	 * members by element, or by type and id if not downloaded, in order of their first slot
+	 */
+	private transient HashMap<Object, ArrayList<RelationMember>> byElement = null;
 
 	public static final String NAME = "relation";
 
@@ -35,26 +61,39 @@ public class Relation extends OsmElement {
 
 	public void addMember(final RelationMember member) {
 		members.add(member);
+		if (slots != null) {
+			indexMember(member, members.size() - 1);
+		}
 	}
 
 	public List<RelationMember> getMembers() {
+		compact();
 		return members;
 	}
 	
+	/**
+	 * @param e the element
+	 * @return the first member referring to the element, null if none
+	 */
 	public RelationMember getMember(OsmElement e) {
-		for (int i = 0; i < members.size(); i++) {
-			RelationMember member = members.get(i);
-			if (member.getElement() == e) {
-				return member;
-			}
-		}
-		return null;
+		ArrayList<RelationMember> l = getIndex().get(e);
+		return l != null ? l.get(0) : null;
 	}
 	
+	/**
+	 * @param type element type
+	 * @param id element id
+	 * @return the first member with this type and id, null if none
+	 */
 	public RelationMember getMember(String type, long id) {
+		ArrayList<RelationMember> l = getIndex().get(key(type, id));
+		if (l != null) {
+			return l.get(0);
+		}
+		// downloaded members are indexed by element
 		for (int i = 0; i < members.size(); i++) {
 			RelationMember member = members.get(i);
-			if (member.getRef() == id && member.getType().equals(type)) {
+			if (member != null && member.getRef() == id && member.getType().equals(type)) {
 				return member;
 			}
 		}
@@ -62,7 +101,9 @@ public class Relation extends OsmElement {
 	}
 
 	public int getPosition(RelationMember e) {
-		return members.indexOf(e);
+		compact();
+		int[] s = getSlots().get(e);
+		return s != null ? s[0] : -1;
 	}
 	
 	/**
@@ -70,8 +111,159 @@ public class Relation extends OsmElement {
 	 * @return list of members allowing {@link Iterator#remove()}.
 	 */
 	Iterator<RelationMember> getRemovableMembers() {
+		compact();
+		invalidateIndex();
 		return members.iterator();
 	}
+	
+	/**
+	 * Replace all members, used by undo
+	 * @param newMembers the new members
+	 */
+	void setMembers(List<RelationMember> newMembers) {
+		members.clear();
+		members.addAll(newMembers);
+		removed = 0;
+		invalidateIndex();
+	}
+	
+	/**
+	 * Drop the member index, needs to be called when the element of a member has been changed
+	 */
+	void invalidateIndex() {
+		slots = null;
+		byElement = null;
+	}
+	
+	/**
+	 * Remove the slots of removed members, this changes the positions of the following members
+	 */
+	private void compact() {
+		if (removed == 0) {
+			return;
+		}
+		int size = 0;
+		for (int i = 0; i < members.size(); i++) {
+			RelationMember rm = members.get(i);
+			if (rm != null) {
+				members.set(size++, rm);
+			}
+		}
+		members.subList(size, members.size()).clear();
+		removed = 0;
+		invalidateIndex();
+	}
+	
+	private IdentityHashMap<RelationMember, int[]> getSlots() {
+		if (slots == null) {
+			buildIndex();
+		}
+		return slots;
+	}
+	
+	private HashMap<Object, ArrayList<RelationMember>> getIndex() {
+		if (slots == null) {
+			buildIndex();
+		}
+		return byElement;
+	}
+	
+	private void buildIndex() {
+		slots = new IdentityHashMap<RelationMember, int[]>(members.size());
+		byElement = new HashMap<Object, ArrayList<RelationMember>>(members.size());
+		for (int i = 0; i < members.size(); i++) {
+			RelationMember rm = members.get(i);
+			if (rm != null) {
+				indexMember(rm, i);
+			}
+		}
+	}
+	
+	/**
+	 * Add a slot of a member to the index
+	 */
+	private void indexMember(final RelationMember rm, final int slot) {
+		int[] s = slots.get(rm);
+		if (s == null) {
+			s = new int[] {slot};
+		} else { // the same member object more than once
+			int[] temp = new int[s.length + 1];
+			int i = 0;
+			for (; i < s.length && s[i] < slot; i++) {
+				temp[i] = s[i];
+			}
+			temp[i] = slot;
+			System.arraycopy(s, i, temp, i + 1, s.length - i);
+			s = temp;
+		}
+		slots.put(rm, s);
+		Object key = key(rm);
+		ArrayList<RelationMember> l = byElement.get(key);
+		if (l == null) {
+			l = new ArrayList<RelationMember>(1);
+			byElement.put(key, l);
+		} else {
+			l.remove(rm);
+		}
+		int pos = l.size();
+		while (pos > 0 && slots.get(l.get(pos - 1))[0] > s[0]) {
+			pos--;
+		}
+		l.add(pos, rm);
+	}
+	
+	/**
+	 * Remove all slots of a member from the index
+	 */
+	private void unindexMember(final RelationMember rm) {
+		slots.remove(rm);
+		Object key = key(rm);
+		ArrayList<RelationMember> l = byElement.get(key);
+		if (l != null) {
+			l.remove(rm);
+			if (l.isEmpty()) {
+				byElement.remove(key);
+			}
+		}
+	}
+	
+	private static Object key(final RelationMember rm) {
+		return rm.element != null ? rm.element : key(rm.type, rm.ref);
+	}
+	
+	private static Object key(final String type, final long id) {
+		return type + id;
+	}
+	
+	/**
+	 * Insert a member, the list must be compacted before
+	 */
+	private void insertMember(final int pos, final RelationMember newMember) {
+		if (pos == members.size()) {
+			addMember(newMember);
+		} else {
+			members.add(pos, newMember);
+			invalidateIndex(); // following slots have changed
+		}
+	}
+	
+	@Override
+	void setOsmId(final long osmId) {
+		if (osmId != this.osmId) {
+			super.setOsmId(osmId);
+			// the parent relations of the members are indexed by id
+			for (RelationMember rm:getMembers()) {
+				if (rm.element != null) {
+					rm.element.invalidateParentRelationIndex();
+				}
+			}
+		}
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		compact();
+		out.defaultWriteObject();
+	}
 
 	@Override
 	public String getName() {
@@ -99,7 +291,7 @@ public class Relation extends OsmElement {
 		if (changeSetId != null) s.attribute("", "changeset", Long.toString(changeSetId));
 		s.attribute("", "version", Long.toString(osmVersion));
 
-		for (RelationMember member : members) {
+		for (RelationMember member : getMembers()) {
 			s.startTag("", "member");
 			s.attribute("", "type", member.getType());
 			s.attribute("", "ref", Long.toString(member.getRef()));
@@ -124,7 +316,7 @@ public class Relation extends OsmElement {
 		s.attribute("", "version", Long.toString(osmVersion));
 		s.attribute("", "visible", "true");
 		
-		for (RelationMember member : members) {
+		for (RelationMember member : getMembers()) {
 			s.startTag("", "member");
 			s.attribute("", "type", member.getType());
 			s.attribute("", "ref", Long.toString(member.getRef()));
@@ -137,32 +329,44 @@ public class Relation extends OsmElement {
 	}
 	
 	public boolean hasMember(final RelationMember member) {
-		return members.contains(member);
+		return getSlots().containsKey(member);
 	}
 
+	/**
+	 * Remove all occurrences of a member, leaves empty slots that are removed on the next {@link #getMembers()}
+	 * @param member the member
+	 */
 	void removeMember(final RelationMember member) {
-		while (members.remove(member)) {
-			;
+		int[] s = getSlots().get(member);
+		if (s == null) {
+			return;
+		}
+		for (int slot:s) {
+			members.set(slot, null);
 		}
+		removed += s.length;
+		unindexMember(member);
 	}
 
 	void appendMember(final RelationMember refMember, final RelationMember newMember) {
+		compact();
 		if (members.get(0) == refMember) {
-			members.add(0, newMember);
+			insertMember(0, newMember);
 		} else if (members.get(members.size() - 1) == refMember) {
-			members.add(newMember);
+			addMember(newMember);
 		}
 	}
 
 	void addMemberAfter(final RelationMember memberBefore, final RelationMember newMember) {
-		members.add(members.indexOf(memberBefore) + 1, newMember);
+		insertMember(getPosition(memberBefore) + 1, newMember);
 	}
 	
 	void addMember(int pos, final RelationMember newMember) {
+		compact();
 		if (pos < 0 || pos > members.size()) {
 			pos = members.size(); // append
 		}
-		members.add(pos, newMember);
+		insertMember(pos, newMember);
 	}
 	
 	/**
@@ -173,15 +377,19 @@ public class Relation extends OsmElement {
 	 */
 	void addMembers(List<RelationMember> newMembers, boolean atBeginning) {
 		if (atBeginning) {
+			compact();
 			members.addAll(0, newMembers);
+			invalidateIndex();
 		} else {
-			members.addAll(newMembers);
+			for (RelationMember rm:newMembers) {
+				addMember(rm);
+			}
 		}
 	}
 	
 	public ArrayList <RelationMember> getMembersWithRole(String role) {
 		ArrayList <RelationMember> rl = new ArrayList<RelationMember>();
-		for (RelationMember rm : members) {
+		for (RelationMember rm : getMembers()) {
 			Log.d("Relation", "getMembersWithRole " + rm.getRole());
 			if (role.equals(rm.getRole())) {
 				rl.add(rm);
@@ -196,9 +404,14 @@ public class Relation extends OsmElement {
 	 * @param newMember The new member.
 	 */
 	void replaceMember(RelationMember existing, RelationMember newMember) {
-		int idx;
-		while ((idx = members.indexOf(existing)) != -1) {
-			members.set(idx, newMember);
+		int[] s = getSlots().get(existing);
+		if (s == null || existing == newMember) {
+			return;
+		}
+		unindexMember(existing);
+		for (int slot:s) {
+			members.set(slot, newMember);
+			indexMember(newMember, slot);
 		}
 	}
 
@@ -243,16 +456,6 @@ public class Relation extends OsmElement {
 	}
 
 	
-	/**
-	 * Test if the relation has a problem.
-	 * @return true if the relation has a problem, false if it doesn't.
-	 */
-	@Override
-	protected boolean calcProblem() {
-		
-		return super.calcProblem();
-	}
-
 	@Override
 	public ElementType getType() {
 		return ElementType.RELATION;
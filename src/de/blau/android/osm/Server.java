@@ -386,6 +386,54 @@ public class Server {
 		}
 	}
 	
+	/**
+	 * Get multiple elements of the same type from the API with one request, unlike 
+	 * {@link #getStreamForElement(String, String, long)} errors are not displayed to the user
+	 * @param type the type of the elements
+	 * @param ids the ids of the elements, the length of the URL is not checked
+	 * @return the stream
+	 * @throws OsmServerException if the server returned an error, for example 404 if one of the elements doesn't exist
+	 * @throws IOException
+	 */
+	public InputStream getStreamForElements(final String type, final List<Long> ids) throws OsmServerException, IOException {
+		StringBuilder idList = new StringBuilder();
+		for (Long id:ids) {
+			if (idList.length() > 0) {
+				idList.append(',');
+			}
+			idList.append(id);
+		}
+		URL url = new URL(serverURL + type + "s?" + type + "s=" + idList.toString());
+		Log.d("Server", "getStreamForElements " + type + " " + ids.size());
+		
+		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		con.setReadTimeout(TIMEOUT);
+		con.setConnectTimeout(TIMEOUT);
+		con.setRequestProperty("Accept-Encoding", "gzip");
+		con.setRequestProperty("User-Agent", Application.userAgent);
+		
+		// retry if we have no response-code
+		if (con.getResponseCode() == -1) {
+			Log.w(getClass().getName()+ ":getStreamForElements", "no valid http response-code, trying again");
+			con = (HttpURLConnection) url.openConnection();
+			con.setReadTimeout(TIMEOUT);
+			con.setConnectTimeout(TIMEOUT);
+			con.setRequestProperty("Accept-Encoding", "gzip");
+			con.setRequestProperty("User-Agent", Application.userAgent);
+		}
+
+		if (con.getResponseCode() != HttpURLConnection.HTTP_OK) {
+			throw new OsmServerException(con.getResponseCode(), "The API server does not except the request: " + con
+					+ ", response code: " + con.getResponseCode() + " \"" + con.getResponseMessage() + "\"");
+		}
+
+		if ("gzip".equals(con.getHeaderField("Content-encoding"))) {
+			return new GZIPInputStream(con.getInputStream());
+		} else {
+			return con.getInputStream();
+		}
+	}
+	
 	/**
 	 * Get a single element from the API
 	 * @param full TODO
@@ -996,10 +1044,11 @@ public class Server {
 	 */
 	
 	/**
-	 * Perform an HTTP request to download up to 100 bugs inside the specified area.
+	 * Perform an HTTP request to download up to limit bugs inside the specified area.
 	 * Blocks until the request is complete.
 	 * @param area Latitude/longitude *1E7 of area to download.
-	 * @return All the bugs in the given area.
+	 * @param limit maximum number of bugs to download
+	 * @return All the bugs in the given area, null if the request failed.
 	 */
 	public Collection<Bug> getNotesForBox(Rect area, long limit) {
 		Collection<Bug> result = new ArrayList<Bug>();
@@ -1027,7 +1076,7 @@ public class Server {
 			isServerGzipEnabled = "gzip".equals(con.getHeaderField("Content-encoding"));
 			
 			if (con.getResponseCode() != HttpURLConnection.HTTP_OK) {
-				return new ArrayList<Bug>(); //TODO reutn empty list ... this is better than throwing an uncatched exception, but we should provide some user feedback
+				return null; //TODO we should provide some user feedback
 //				throw new OsmServerException(con.getResponseCode(), "The API server does not except the request: " + con
 //						+ ", response code: " + con.getResponseCode() + " \"" + con.getResponseMessage() + "\"");
 			}
@@ -1064,14 +1113,14 @@ public class Server {
 			}
 		} catch (XmlPullParserException e) {
 			Log.e("Vespucci", "Server.getNotesForBox:Exception", e);
-			return new ArrayList<Bug>(); // empty list
+			return null;
 		} catch (IOException e) {
 			Log.e("Vespucci", "Server.getNotesForBox:Exception", e);
-			return new ArrayList<Bug>(); // empty list
+			return null;
 		} catch (OutOfMemoryError e) {
 			Log.e("Vespucci", "Server.getNotesForBox:Exception", e);
 			// TODO ask the user to exit
-			return new ArrayList<Bug>(); // empty list
+			return null;
 		}
 		
 
@@ -0,0 +1,143 @@
+package de.blau.android.osm;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * Copies of elements for reading them on other threads, for example when saving, uploading, merging or validating.
+ *
+ * The copies must be made on the UI thread, they can then be used on one other thread while the data is edited.
+ * Copies of ways contain copies of their nodes. In a complete snapshot copies of relations contain copies of their
+ * members and copies of elements copies of their parent relations, otherwise relation members only refer to the
+ * elements by type and id and parent relations are not copied, which is enough for writing the elements out.
+ * Nothing reachable from a copy is modified by editing. Tags are shared with the original element as they are
+ * never modified in place, see {@link OsmElement#setTags(java.util.Map)}. Every element is only copied once.
+ * @author simon
+ *
+ */
+public class Snapshot {
+
+	private final boolean complete;
+
+	private final IdentityHashMap<OsmElement, OsmElement> copies = new IdentityHashMap<OsmElement, OsmElement>();
+
+	/**
+	 * copies to originals, built when first needed
+	 */
+	private IdentityHashMap<OsmElement, OsmElement> originals = null;
+
+	/**
+	 * @param complete if true copy relation members and parent relations too
+	 */
+	public Snapshot(final boolean complete) {
+		this.complete = complete;
+	}
+
+	/**
+	 * @param n the node, must be called on the UI thread
+	 * @return the copy of the node
+	 */
+	public Node copy(final Node n) {
+		Node copy = (Node) copies.get(n);
+		if (copy == null) {
+			copy = new Node(n.osmId, n.osmVersion, n.state, n.lat, n.lon);
+			add(n, copy);
+		}
+		return copy;
+	}
+
+	/**
+	 * @param w the way, must be called on the UI thread
+	 * @return the copy of the way
+	 */
+	public Way copy(final Way w) {
+		Way copy = (Way) copies.get(w);
+		if (copy == null) {
+			copy = new Way(w.osmId, w.osmVersion, w.state);
+			add(w, copy);
+			copy.nodes.ensureCapacity(w.nodes.size());
+			for (Node n:w.nodes) {
+				copy.nodes.add(copy(n));
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * @param r the relation, must be called on the UI thread
+	 * @return the copy of the relation
+	 */
+	public Relation copy(final Relation r) {
+		Relation copy = (Relation) copies.get(r);
+		if (copy == null) {
+			copy = new Relation(r.osmId, r.osmVersion, r.state);
+			add(r, copy);
+			for (RelationMember rm:r.getMembers()) {
+				if (rm.element == null || !complete) {
+					copy.addMember(new RelationMember(rm.getType(), rm.getRef(), rm.role));
+				} else {
+					copy.addMember(new RelationMember(rm.role, copy(rm.element)));
+				}
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * @param e the element, must be called on the UI thread
+	 * @return the copy of the element
+	 */
+	public OsmElement copy(final OsmElement e) {
+		if (e instanceof Node) {
+			return copy((Node) e);
+		} else if (e instanceof Way) {
+			return copy((Way) e);
+		}
+		return copy((Relation) e);
+	}
+
+	/**
+	 * @param elements the elements, must be called on the UI thread
+	 * @return a new list with the copies of the elements
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends OsmElement> ArrayList<T> copy(final List<T> elements) {
+		ArrayList<T> result = new ArrayList<T>(elements.size());
+		for (T e:elements) {
+			result.add((T) copy(e));
+		}
+		return result;
+	}
+
+	/**
+	 * Register the copy before copying what it references so that cycles end, then copy the tags and parent relations
+	 */
+	private void add(final OsmElement original, final OsmElement copy) {
+		copies.put(original, copy);
+		copy.tags = original.tags;
+		if (complete && original.parentRelations != null) {
+			copy.parentRelations = new ArrayList<Relation>(original.parentRelations.size());
+			for (Relation r:original.parentRelations) {
+				copy.parentRelations.add(copy(r));
+			}
+		}
+	}
+
+	/**
+	 * Can be called on the thread using the copies once no more copies are made
+	 * @param copy a copy made by this
+	 * @return the original element, null if the element isn't a copy made by this
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends OsmElement> T getOriginal(final T copy) {
+		if (originals == null) {
+			originals = new IdentityHashMap<OsmElement, OsmElement>(copies.size());
+			for (Entry<OsmElement, OsmElement> entry:copies.entrySet()) {
+				originals.put(entry.getValue(), entry.getKey());
+			}
+		}
+		return (T) originals.get(copy);
+	}
+}
@@ -0,0 +1,113 @@
+package de.blau.android.osm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds elements of a download that is still in progress so that they can be displayed before the download
+ * has finished and been merged. The parser adds elements as they are completed, they are published in batches
+ * so that the UI thread can read them without locking.
+ * The download can be cancelled via {@link #cancel()}, the parser checks this after every element.
+ * @author simon
+ *
+ */
+public class StagingArea {
+
+	/** maximum number of elements to collect before publishing */
+	private static final int BATCH_SIZE = 1000;
+	/** maximum time between publishing batches in ms */
+	private static final long BATCH_INTERVAL = 250;
+
+	private final CopyOnWriteArrayList<Way[]> ways = new CopyOnWriteArrayList<Way[]>();
+	private final CopyOnWriteArrayList<Node[]> nodes = new CopyOnWriteArrayList<Node[]>();
+
+	// only accessed by the parser
+	private final ArrayList<Way> pendingWays = new ArrayList<Way>();
+	private final ArrayList<Node> pendingNodes = new ArrayList<Node>();
+	private long lastPublished = System.currentTimeMillis();
+
+	private volatile boolean cancelled = false;
+
+	/** run every time a batch has been published, may be null */
+	private final Runnable onPublish;
+
+	/**
+	 * @param onPublish run (on the parser thread) every time new elements are available, may be null
+	 */
+	public StagingArea(final Runnable onPublish) {
+		this.onPublish = onPublish;
+	}
+
+	/**
+	 * Add a completely parsed node, only tagged nodes are kept as the others are displayed as part of their ways
+	 * @param node the node
+	 */
+	void add(final Node node) {
+		if (node.isTagged()) {
+			pendingNodes.add(node);
+			publishIfNeeded();
+		}
+	}
+
+	/**
+	 * Add a completely parsed way
+	 * @param way the way
+	 */
+	void add(final Way way) {
+		pendingWays.add(way);
+		publishIfNeeded();
+	}
+
+	private void publishIfNeeded() {
+		if (pendingWays.size() + pendingNodes.size() >= BATCH_SIZE || System.currentTimeMillis() - lastPublished >= BATCH_INTERVAL) {
+			flush();
+		}
+	}
+
+	/**
+	 * Publish all elements that have been added
+	 */
+	void flush() {
+		boolean published = false;
+		if (!pendingWays.isEmpty()) {
+			ways.add(pendingWays.toArray(new Way[pendingWays.size()]));
+			pendingWays.clear();
+			published = true;
+		}
+		if (!pendingNodes.isEmpty()) {
+			nodes.add(pendingNodes.toArray(new Node[pendingNodes.size()]));
+			pendingNodes.clear();
+			published = true;
+		}
+		lastPublished = System.currentTimeMillis();
+		if (published && onPublish != null) {
+			onPublish.run();
+		}
+	}
+
+	/**
+	 * @return the published ways in batches
+	 */
+	public List<Way[]> getWays() {
+		return ways;
+	}
+
+	/**
+	 * @return the published tagged nodes in batches
+	 */
+	public List<Node[]> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Ask the parser to stop
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
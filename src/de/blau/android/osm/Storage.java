@@ -1,9 +1,12 @@
 package de.blau.android.osm;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Collections;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import android.util.Log;
 import de.blau.android.exception.OsmException;
@@ -22,14 +25,23 @@ public class Storage implements Serializable {
 	
 	private final ArrayList<Relation> relations;
 
+	/**
+	 * copy on write so that the boxes can be drawn while a download adds to them without copying them every frame
+	 */
 	private List<BoundingBox> bboxes;
+	
+	/**
+	 * Identity index of all elements, only maintained while a bulk operation is running so that
+	 * {@link #contains(OsmElement)} doesn't have to scan the lists, see {@link StorageDelegator#beginBatch()} 
+	 */
+	private transient IdentityHashMap<OsmElement, Boolean> index = null;
 
 	Storage() {
 		nodes = new ArrayList<Node>();
 		ways = new ArrayList<Way>();
 		relations = new ArrayList<Relation>();
 		try {
-			bboxes = Collections.synchronizedList(new ArrayList<BoundingBox>());
+			bboxes = new CopyOnWriteArrayList<BoundingBox>();
 			// a default entry may not make sense
 			bboxes.add(new BoundingBox(-BoundingBox.MAX_LON, -BoundingBox.MAX_LAT_E7, BoundingBox.MAX_LON,
 					BoundingBox.MAX_LAT_E7));
@@ -38,6 +50,29 @@ public class Storage implements Serializable {
 		}
 	}
 
+	/**
+	 * Shallow copy, the copy has its own lists but shares the elements
+	 * @param storage the storage to copy
+	 */
+	Storage(final Storage storage) {
+		nodes = new ArrayList<Node>(storage.nodes);
+		ways = new ArrayList<Way>(storage.ways);
+		relations = new ArrayList<Relation>(storage.relations);
+		bboxes = storage.bboxes != null ? new CopyOnWriteArrayList<BoundingBox>(storage.bboxes) : null;
+	}
+
+	/**
+	 * Copy with copies of the elements that can be read on another thread, must be created on the UI thread
+	 * @param storage the storage to copy
+	 * @param snapshot the copies of the elements
+	 */
+	Storage(final Storage storage, final Snapshot snapshot) {
+		nodes = snapshot.copy(storage.nodes);
+		ways = snapshot.copy(storage.ways);
+		relations = snapshot.copy(storage.relations);
+		bboxes = storage.bboxes != null ? new CopyOnWriteArrayList<BoundingBox>(storage.bboxes) : null;
+	}
+
 	public Node getNode(final long nodeOsmId) { 
 		for (int i = 0, size = nodes.size(); i < size; ++i) {
             if (nodes.get(i).getOsmId() == nodeOsmId) {
@@ -98,6 +133,9 @@ public class Storage implements Serializable {
 	}
 
 	public boolean contains(final OsmElement elem) {
+		if (index != null) {
+			return index.containsKey(elem);
+		}
 		if (elem instanceof Way) {
             return ways.contains(elem);
 		} else if (elem instanceof Node) {
@@ -147,9 +185,35 @@ public class Storage implements Serializable {
         return waynodes;
 	}
 
+	/**
+	 * Start maintaining the identity index
+	 */
+	void buildIndex() {
+		index = new IdentityHashMap<OsmElement, Boolean>(nodes.size() + ways.size() + relations.size());
+		for (Node n:nodes) {
+			index.put(n, Boolean.TRUE);
+		}
+		for (Way w:ways) {
+			index.put(w, Boolean.TRUE);
+		}
+		for (Relation r:relations) {
+			index.put(r, Boolean.TRUE);
+		}
+	}
+	
+	/**
+	 * Stop maintaining the identity index
+	 */
+	void dropIndex() {
+		index = null;
+	}
+	
 	void insertNodeUnsafe(final Node node) throws StorageException {
 		try {
 			nodes.add(node);
+			if (index != null) {
+				index.put(node, Boolean.TRUE);
+			}
 		} catch (Error err) { // should really only be OutOfMemory
 			throw new StorageException(StorageException.OOM);
 		}
@@ -159,6 +223,9 @@ public class Storage implements Serializable {
 	void insertWayUnsafe(final Way way)  throws StorageException  {
 		try {
 			ways.add(way);
+			if (index != null) {
+				index.put(way, Boolean.TRUE);
+			}
 		} catch (Error err) { // should really only be OutOfMemory
 			throw new StorageException(StorageException.OOM);
 		}
@@ -167,6 +234,9 @@ public class Storage implements Serializable {
 	void insertRelationUnsafe(final Relation relation) throws StorageException  {
 		try {
 			relations.add(relation);
+			if (index != null) {
+				index.put(relation, Boolean.TRUE);
+			}
 		} catch (Error err) { // should really only be OutOfMemory
 			throw new StorageException(StorageException.OOM);
 		}
@@ -189,18 +259,30 @@ public class Storage implements Serializable {
 	}
 
 	boolean removeNode(final Node node) {
+		if (index != null && index.remove(node) == null) {
+			return false;
+		}
 		return nodes.remove(node);
 	}
 
 	boolean removeWay(final Way way) {
+		if (index != null && index.remove(way) == null) {
+			return false;
+		}
 		return ways.remove(way);
 	}
 
 	boolean removeRelation(final Relation relation) {
+		if (index != null && index.remove(relation) == null) {
+			return false;
+		}
 		return relations.remove(relation);
 	}
 	
 	boolean removeElement(final OsmElement element) {
+		if (index != null && index.remove(element) == null) {
+			return false; // not present, no need to scan the list
+		}
 		if (element instanceof Way) {
 			return ways.remove(element);
 		} else if (element instanceof Node) {
@@ -220,7 +302,7 @@ public class Storage implements Serializable {
 	 * @param bbox
 	 */
 	void setBoundingBox(final BoundingBox bbox) {
-		this.bboxes = new ArrayList<BoundingBox>();
+		this.bboxes = new CopyOnWriteArrayList<BoundingBox>();
 		this.bboxes.add(bbox);
 	}
 	
@@ -230,7 +312,7 @@ public class Storage implements Serializable {
 	 */
 	void addBoundingBox(final BoundingBox bbox) {
 		if (this.bboxes == null)
-			this.bboxes = new ArrayList<BoundingBox>();
+			this.bboxes = new CopyOnWriteArrayList<BoundingBox>();
 		this.bboxes.add(bbox);
 	}
 
@@ -290,4 +372,14 @@ public class Storage implements Serializable {
 		BoundingBox result  = new BoundingBox(left, bottom, right, top);
 		return result;
 	}
+
+	/**
+	 * Older saved states have other list types for the bounding boxes
+	 */
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (bboxes != null && !(bboxes instanceof CopyOnWriteArrayList)) {
+			bboxes = new CopyOnWriteArrayList<BoundingBox>(bboxes);
+		}
+	}
 }
@@ -3,19 +3,23 @@ package de.blau.android.osm;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.acra.ACRA;
@@ -23,7 +27,8 @@ import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 import org.xmlpull.v1.XmlSerializer;
 
-import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 import de.blau.android.Application;
@@ -45,7 +50,15 @@ public class StorageDelegator implements Serializable, Exportable {
 
 	private Storage apiStorage;
 
-	private UndoStorage undo;
+	/**
+	 * saved separately, see {@link UndoStorage#writeToFile(long)}
+	 */
+	private transient UndoStorage undo;
+	
+	/**
+	 * identifies the saved state so that a saved undo history from a different state is not used
+	 */
+	private long undoToken = 0;
 	
 	private ClipboardStorage clipboard;
 	
@@ -54,6 +67,13 @@ public class StorageDelegator implements Serializable, Exportable {
 	 */
 	private transient ReentrantLock readingLock = new ReentrantLock();
 	
+	/**
+	 * incremented every time changes are published, see {@link #publish(Runnable)}
+	 */
+	private transient volatile int version = 0;
+	
+	private transient Handler mainHandler = new Handler(Looper.getMainLooper());
+	
 	/**
 	 * Indicates whether changes have been made since the last save to disk.
 	 * Since a newly created storage is not saved, the constructor sets it to true.
@@ -62,11 +82,38 @@ public class StorageDelegator implements Serializable, Exportable {
 	 */
 	private transient boolean dirty;	
 	
+	/**
+	 * nesting level of bulk operations, see {@link #beginBatch()}
+	 */
+	private transient int batchLevel = 0;
+	
+	/**
+	 * notified of changes, see {@link #setChangeListener(ChangeListener)}
+	 */
+	private transient ChangeListener changeListener = null;
+	
 	private final static String DEBUG_TAG = StorageDelegator.class.getSimpleName();
 
 	public final static String FILENAME = "lastActivity.res";
 
-	private transient SavingHelper<StorageDelegator> savingHelper = new SavingHelper<StorageDelegator>();
+	/**
+	 * Saved states of older versions contain the undo history, which is now saved separately, see {@link UndoStorage#writeToFile(long)}.
+	 * Its classes are not resolved when loading, the value of the removed field is then skipped instead of failing the whole load.
+	 */
+	private transient SavingHelper<StorageDelegator> savingHelper = new SavingHelper<StorageDelegator>() {
+		@Override
+		protected ObjectInputStream createObjectInputStream(InputStream in) throws IOException {
+			return new ObjectInputStream(in) {
+				@Override
+				protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+					if (desc.getName().startsWith(UndoStorage.class.getName())) {
+						throw new ClassNotFoundException("Undo history in old saved state " + desc.getName());
+					}
+					return super.resolveClass(desc);
+				}
+			};
+		}
+	};
 
 	/**
 	 * A OsmElementFactory that is used to create new elements.
@@ -75,25 +122,67 @@ public class StorageDelegator implements Serializable, Exportable {
 	 */
 	private OsmElementFactory factory;
 
-	public void setCurrentStorage(final Storage currentStorage) {
-		dirty = true;
-		apiStorage = new Storage();
-		clipboard = new ClipboardStorage();
-		this.currentStorage = currentStorage;
-		undo = new UndoStorage(currentStorage, apiStorage);
+	/**
+	 * Replace all data with new data in one step, can be called on any thread.
+	 * Elements that are in a modified or deleted state, for example when the data was read from a file with changes,
+	 * are added to the changes.
+	 * @param newStorage the new data, must not be used by the caller afterwards
+	 * @param box the area of the new data, null to keep the bounding boxes of newStorage
+	 */
+	public void replaceData(final Storage newStorage, final BoundingBox box) {
+		// nothing else refers to the new storages yet, so they can be set up before publishing them
+		final Storage newApiStorage = new Storage();
+		fixupApiStorage(newStorage, newApiStorage);
+		if (box != null) {
+			Log.d("StorageDelegator","setting original bbox");
+			newStorage.setBoundingBox(box);
+		}
+		publish(new Runnable() {
+			@Override
+			public void run() {
+				dirty = true;
+				currentStorage = newStorage;
+				apiStorage = newApiStorage;
+				clipboard = new ClipboardStorage();
+				setUndo(new UndoStorage(currentStorage, apiStorage));
+				factory = new OsmElementFactory();
+				if (changeListener != null) {
+					changeListener.onDataChanged();
+				}
+			}
+		});
 	}
 
 	public StorageDelegator() {
 		reset();
 	}
+	
+	/**
+	 * Copy of the data for saving it while it is being edited, must be created on the UI thread.
+	 * The copy has its own element lists but shares the elements.
+	 * @param original the delegator to copy
+	 */
+	private StorageDelegator(final StorageDelegator original) {
+		currentStorage = new Storage(original.currentStorage);
+		apiStorage = new Storage(original.apiStorage);
+		undo = original.undo;
+		undoToken = original.undoToken;
+		clipboard = original.clipboard;
+		factory = original.factory;
+	}
 
 	public void reset() {
-		dirty = true;
-		apiStorage = new Storage();
-		currentStorage = new Storage();
-		clipboard = new ClipboardStorage();
-		undo = new UndoStorage(currentStorage, apiStorage);
-		factory = new OsmElementFactory();
+		publish(new Runnable() {
+			@Override
+			public void run() {
+				dirty = true;
+				apiStorage = new Storage();
+				currentStorage = new Storage();
+				clipboard = new ClipboardStorage();
+				setUndo(new UndoStorage(currentStorage, apiStorage));
+				factory = new OsmElementFactory();
+			}
+		});
 	}
 
 	public boolean isDirty() {
@@ -118,9 +207,130 @@ public class StorageDelegator implements Serializable, Exportable {
 	 * Clears the undo storage. Must be called on the main thread due to menu invalidation.
 	 */
 	public void clearUndo() {
-		undo = new UndoStorage(currentStorage, apiStorage);
+		setUndo(new UndoStorage(currentStorage, apiStorage));
 		Main.triggerMenuInvalidationStatic();
 	}
+	
+	private void setUndo(final UndoStorage newUndo) {
+		undo = newUndo;
+		undo.setChangeListener(changeListener);
+	}
+	
+	/**
+	 * Interface for things that need to know about changes to the data, for example validation.
+	 * Changes may be reported on any thread.
+	 */
+	public interface ChangeListener {
+		/**
+		 * Called before an element is changed and after it has been restored by undo/redo
+		 * @param element the element
+		 */
+		void onElementChanged(OsmElement element);
+		
+		/**
+		 * Called when the data has been replaced or new data has been merged
+		 */
+		void onDataChanged();
+	}
+	
+	/**
+	 * @param changeListener the listener to notify of changes, null to stop notifications
+	 */
+	public void setChangeListener(final ChangeListener changeListener) {
+		this.changeListener = changeListener;
+		undo.setChangeListener(changeListener);
+	}
+
+	/**
+	 * Start a bulk operation that is going to change many elements. Until the matching {@link #endBatch()}
+	 * the storages maintain identity indices so that the per element presence checks done for undo and
+	 * for tracking changes don't need to scan the element lists. 
+	 * 
+	 * All changes made between the two calls belong to the undo checkpoint that was current when the batch started,
+	 * the caller is responsible for redrawing once when the batch has ended. Calls can be nested, the storages 
+	 * must only be modified via this delegator while a batch is running.
+	 */
+	public void beginBatch() {
+		if (batchLevel++ == 0) {
+			currentStorage.buildIndex();
+			apiStorage.buildIndex();
+		}
+	}
+	
+	/**
+	 * End a bulk operation started with {@link #beginBatch()}
+	 */
+	public void endBatch() {
+		if (batchLevel == 0) {
+			Log.e(DEBUG_TAG, "endBatch called without beginBatch");
+			return;
+		}
+		if (--batchLevel == 0) {
+			currentStorage.dropIndex();
+			apiStorage.dropIndex();
+			dirty = true;
+		}
+	}
+	
+	/**
+	 * @return true if a bulk operation is running
+	 */
+	public boolean inBatch() {
+		return batchLevel > 0;
+	}
+	
+	/**
+	 * Run something on the UI thread and wait for it to finish, runs it directly when called on the UI thread
+	 * @param r what to run
+	 */
+	private void onMainThread(final Runnable r) {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			r.run();
+			return;
+		}
+		FutureTask<Void> task = new FutureTask<Void>(r, null);
+		mainHandler.post(task);
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					task.get();
+					break;
+				} catch (InterruptedException e) {
+					// the task will run anyway, so the caller has to wait for it
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Change the data from a background task. Returns when the change has been made.
+	 * 
+	 * The data is only modified on the UI thread. Background tasks (downloads, uploads, loading) prepare their results
+	 * without modifying it and hand them over with this, so rendering, hit testing and editing never see partial changes
+	 * and never wait for a download. Other threads that read the data, for example when saving, copy the elements
+	 * on the UI thread first and then work on the copies, see {@link Snapshot}, nothing is locked while they run.
+	 * @param change the change
+	 */
+	private void publish(final Runnable change) {
+		onMainThread(new Runnable() {
+			@Override
+			public void run() {
+				change.run();
+				version++;
+			}
+		});
+	}
 
 	/**
 	 * Get the current OsmElementFactory instance used by this delegator.
@@ -182,7 +392,7 @@ public class StorageDelegator implements Serializable, Exportable {
 	 * Create apiStorage (aka the changes to the original data) based on state field of the elements.
 	 * Assumes that apiStorage is empty.
 	 */
-	public void fixupApiStorage() {
+	private static void fixupApiStorage(final Storage currentStorage, final Storage apiStorage) {
 		try {
 			List<Node> nl = new ArrayList<Node>(currentStorage.getNodes());
 			for (Node n:nl) {
@@ -346,7 +556,6 @@ public class StorageDelegator implements Serializable, Exportable {
 		dirty = true;
 		try {
 			HashSet<Node> nodes = new HashSet<Node>(way.getNodes()); // Guarantee uniqueness
-			Coordinates coords[] = nodeListToCooardinateArray(new ArrayList<Node>(nodes));
 			
 			// save nodes for undo
 			for (Node nd:nodes) { 
@@ -356,24 +565,33 @@ public class StorageDelegator implements Serializable, Exportable {
 			int width = Application.mainActivity.getMap().getWidth();
 			int height = Application.mainActivity.getMap().getHeight();
 			BoundingBox box = Application.mainActivity.getMap().getViewBox();
-			Coordinates center = new Coordinates(GeoMath.lonE7ToX(width, box, c[1]), GeoMath.latE7ToY(height,width, box, c[0]));
+			float centerX = GeoMath.lonE7ToX(width, box, c[1]);
+			float centerY = GeoMath.latE7ToY(height,width, box, c[0]);
+			
+			// screen coordinates relative to the center
+			int count = nodes.size();
+			float x[] = new float[count];
+			float y[] = new float[count];
+			double distance[] = new double[count];
+			int i = 0;
+			for (Node nd:nodes) {
+				x[i] = GeoMath.lonE7ToX(width, box, nd.getLon()) - centerX;
+				y[i] = GeoMath.latE7ToY(height, width, box, nd.getLat()) - centerY;
+				distance[i] = Math.sqrt(x[i]*x[i]+y[i]*y[i]);
+				i++;
+			}
 			
 			// caclulate average radius
 			double r = 0.0f;
-			for (Coordinates p:coords) {
-				Log.d("StorageDelegator","r="+Math.sqrt((p.x-center.x)*(p.x-center.x)+(p.y-center.y)*(p.y-center.y)));
-				r = r + Math.sqrt((p.x-center.x)*(p.x-center.x)+(p.y-center.y)*(p.y-center.y));
-			}
-			r = r / coords.length;
-			for (Coordinates p:coords) {
-				double ratio = r/Math.sqrt((p.x-center.x)*(p.x-center.x)+(p.y-center.y)*(p.y-center.y));
-				p.x = (float) ((p.x-center.x) * ratio)+center.x;
-				p.y = (float) ((p.y-center.y) * ratio)+center.y;
+			for (i=0;i<count;i++) {
+				r = r + distance[i];
 			}
-			int i=0;
+			r = r / count;
+			i=0;
 			for (Node nd:nodes) { 
-				nd.setLon(GeoMath.xToLonE7(width, box, coords[i].x));
-				nd.setLat(GeoMath.yToLatE7(height, width, box, coords[i].y));
+				double ratio = r/distance[i];
+				nd.setLon(GeoMath.xToLonE7(width, box, (float) (x[i] * ratio)+centerX));
+				nd.setLat(GeoMath.yToLatE7(height, width, box, (float) (y[i] * ratio)+centerY));
 				apiStorage.insertElementSafe(nd);
 				nd.updateState(OsmElement.STATE_MODIFIED);
 				i++;
@@ -386,6 +604,8 @@ public class StorageDelegator implements Serializable, Exportable {
 	
 	/**
 	 * "square" a way/polygon, based on the algorithm used by iD and before that by P2, originally written by Matt Amos
+	 * 
+	 * The screen coordinates of the nodes are kept in arrays so that the iterations don't allocate anything.
 	 * @param way
 	 */
 	public void orthogonalizeWay(Way way) {
@@ -400,74 +620,74 @@ public class StorageDelegator implements Serializable, Exportable {
 		}
 		dirty = true;
 		try {
+			List<Node> wayNodes = way.getNodes();
 			// save nodes for undo
 			Node firstNode = way.getFirstNode();
-			for (int i = 0; i < way.getNodes().size(); i++) { 
-				Node nd = way.getNodes().get(i);
+			for (int i = 0; i < wayNodes.size(); i++) { 
+				Node nd = wayNodes.get(i);
 				if (i == 0 || !nd.equals(firstNode)) {
 					undo.save(nd);
 				}
 			}
-			Coordinates coords[] = nodeListToCooardinateArray(way.getNodes());
-			Coordinates a, b, c, p, q;
+			int width = Application.mainActivity.getMap().getWidth();
+			int height = Application.mainActivity.getMap().getHeight();
+			BoundingBox box = Application.mainActivity.getMap().getViewBox();
+			int length = wayNodes.size();
+			double x[] = new double[length];
+			double y[] = new double[length];
+			for (int i = 0; i < length; i++) {
+				x[i] = GeoMath.lonE7ToX(width, box, wayNodes.get(i).getLon());
+				y[i] = GeoMath.latE7ToY(height, width, box, wayNodes.get(i).getLat());
+			}
+			double motionX[] = new double[length];
+			double motionY[] = new double[length];
+			double corner[] = new double[5];
 			int start = 0;
-			int end = coords.length;
+			int end = length;
 			if (!way.isClosed()) {
 				start = 1;
 				end = end-1;
 			}
 			// iterate until score is low enough
 			for (int iteration = 0; iteration < 1000; iteration++) {
-				Coordinates motions[] = new Coordinates[coords.length];
 				for (int i=start;i<end;i++) {
-					a = coords[(i - 1 + coords.length) % coords.length];
-					b = coords[i];
-			        c = coords[(i + 1) % coords.length];
-			        p = a.subtract(b);
-			        q = c.subtract(b);
-			        double scale = 2 * Math.min(Math.hypot(p.x,p.y), Math.hypot(q.x,q.y));
-		            p = normalize(p, 1.0);
-		            q = normalize(q, 1.0);
-		            double dotp = filter((p.x * q.x + p.y * q.y), lowerThreshold, upperThreshold);
-
-		            // nasty hack to deal with almost-straight segments (angle is closer to 180 than to 90/270).   
-		            if (dotp < -0.707106781186547) {
-		            	dotp += 1.0;
-		            }
-		            motions[i] = normalize(p.add(q), 0.1 * dotp * scale);
+					double dotp = corner(x, y, i, lowerThreshold, upperThreshold, corner);
+					// nasty hack to deal with almost-straight segments (angle is closer to 180 than to 90/270).   
+					if (dotp < -0.707106781186547) {
+						dotp += 1.0;
+					}
+					// move along the bisector, corner contains the normalized vectors to the neighbours and the scale
+					double mx = corner[0] + corner[2];
+					double my = corner[1] + corner[3];
+					double scale = 0.1 * dotp * corner[4];
+					double l = Math.hypot(mx, my);
+					if (l != 0) {
+						scale = scale / l;
+					}
+					motionX[i] = mx * scale;
+					motionY[i] = my * scale;
 				}
 				// apply position changes
 				for (int i=start;i<end;i++) {
-					coords[i] = coords[i].add(motions[i]);
+					x[i] += motionX[i];
+					y[i] += motionY[i];
 				}
 				// calculate score
 				double score = 0.0;
 				for (int i=start;i<end;i++) {
-					// yes I know that this -nearly- dups the code above
-					a = coords[(i - 1 + coords.length) % coords.length];
-					b = coords[i];
-			        c = coords[(i + 1) % coords.length];
-			        p = a.subtract(b);
-			        q = c.subtract(b);
-			        p = normalize(p, 1.0);
-		            q = normalize(q, 1.0);
-		            double dotp = filter((p.x * q.x + p.y * q.y), lowerThreshold, upperThreshold);
-		            
-		            score = score + 2.0 * Math.min(Math.abs(dotp-1.0), Math.min(Math.abs(dotp), Math.abs(dotp+1.0)));
+					double dotp = corner(x, y, i, lowerThreshold, upperThreshold, corner);
+					score = score + 2.0 * Math.min(Math.abs(dotp-1.0), Math.min(Math.abs(dotp), Math.abs(dotp+1.0)));
 				}
 				// Log.d("StorageDelegator", "orthogonalize way iteration/score " + iteration + "/" + score);
 				if (score < epsilon) break;
 			}
 			
 			// prepare updated nodes for upload
-			int width = Application.mainActivity.getMap().getWidth();
-			int height = Application.mainActivity.getMap().getHeight();
-			BoundingBox box = Application.mainActivity.getMap().getViewBox();
-			for (int i = 0; i < way.getNodes().size(); i++) { 
-				Node nd = way.getNodes().get(i);
+			for (int i = 0; i < length; i++) { 
+				Node nd = wayNodes.get(i);
 				if (i == 0 || !nd.equals(firstNode)) {
-					nd.setLon(GeoMath.xToLonE7(width, box, coords[i].x));
-					nd.setLat(GeoMath.yToLatE7(height, width, box, coords[i].y));
+					nd.setLon(GeoMath.xToLonE7(width, box, (float) x[i]));
+					nd.setLat(GeoMath.yToLatE7(height, width, box, (float) y[i]));
 					apiStorage.insertElementSafe(nd);
 					nd.updateState(OsmElement.STATE_MODIFIED);
 				}
@@ -478,65 +698,46 @@ public class StorageDelegator implements Serializable, Exportable {
 		}
 	}
 	
-	// TODO move this and following code somewhere else and generalize
-	private Coordinates normalize(Coordinates p, double scale) {
-		Coordinates result = p;
-		double length = p.length();
-		if (length != 0) {
-			result = p.divide(length);
-		}
-		return result.multiply(scale);
+	/**
+	 * Calculate the normalized vectors from a point to its neighbours
+	 * @param x x coordinates
+	 * @param y y coordinates
+	 * @param i index of the point
+	 * @param lower lower threshold for {@link #filter(double, double, double)}
+	 * @param upper upper threshold for {@link #filter(double, double, double)}
+	 * @param result the vector to the previous and to the next point and twice the length of the shorter vector
+	 * @return the filtered dot product of the vectors
+	 */
+	private static double corner(double[] x, double[] y, int i, double lower, double upper, double[] result) {
+		int length = x.length;
+		int prev = (i - 1 + length) % length;
+		int next = (i + 1) % length;
+		double px = x[prev] - x[i];
+		double py = y[prev] - y[i];
+		double qx = x[next] - x[i];
+		double qy = y[next] - y[i];
+		double pl = Math.hypot(px, py);
+		double ql = Math.hypot(qx, qy);
+		result[4] = 2 * Math.min(pl, ql);
+		if (pl != 0) {
+			px = px / pl;
+			py = py / pl;
+		}
+		if (ql != 0) {
+			qx = qx / ql;
+			qy = qy / ql;
+		}
+		result[0] = px;
+		result[1] = py;
+		result[2] = qx;
+		result[3] = qy;
+		return filter(px * qx + py * qy, lower, upper);
 	}
 	
-	private double filter(double v, double lower, double upper) {
+	private static double filter(double v, double lower, double upper) {
 		return (lower > Math.abs(v)) || (Math.abs(v) > upper) ? v : 0.0;
 	}
 	
-	private class Coordinates {
-		float x;
-		float y;
-		
-		Coordinates (float x, float y) {
-			this.x = x;
-			this.y = y;
-		}
-		
-		Coordinates subtract(Coordinates s) {
-			return new Coordinates(this.x-s.x,this.y-s.y);
-		}
-		
-		Coordinates add(Coordinates p) {
-			return new Coordinates(this.x+p.x,this.y+p.y);
-		}
-		
-		Coordinates multiply(double m) {
-			return new Coordinates((float)(this.x*m),(float)(this.y*m));
-		}
-		
-		Coordinates divide(double d) {
-			return new Coordinates((float)(this.x/d),(float)(this.y/d));
-		}
-		
-		float length() {
-			return (float)Math.hypot(x, y);
-		}
-	}
-	
-	private Coordinates[] nodeListToCooardinateArray(List<Node>nodes) {
-		Coordinates points[] = new Coordinates[nodes.size()];
-		int width = Application.mainActivity.getMap().getWidth();
-		int height = Application.mainActivity.getMap().getHeight();
-		BoundingBox box = Application.mainActivity.getMap().getViewBox();
-		
-		//loop over all nodes
-		for (int i=0;i<nodes.size();i++) {
-			points[i] = new Coordinates(0.0f,0.0f);
-			points[i].x = GeoMath.lonE7ToX(width, box, nodes.get(i).getLon());
-			points[i].y = GeoMath.latE7ToY(height, width, box, nodes.get(i).getLat());
-		}
-		return points;
-	}
-	
 	/**
 	 * Rotate all nodes in a way, since the nodes keep their ids, the way itself doesn't change and doesn't need to be saved
 	 * apply translation only once to the first node if way is closed. Rotation is done in screen coords
@@ -581,6 +782,44 @@ public class StorageDelegator implements Serializable, Exportable {
 	 * @param node
 	 */
 	public void removeNode(final Node node) {
+		removeNode(node, null);
+	}
+	
+	/**
+	 * Delete many nodes, the ways containing the nodes are determined in one pass over all ways
+	 * instead of once per node
+	 * @param nodes the nodes to delete
+	 */
+	public void removeNodes(final Collection<Node> nodes) {
+		HashMap<Node, List<Way>> waysForNodes = new HashMap<Node, List<Way>>();
+		for (Node n:nodes) {
+			waysForNodes.put(n, new ArrayList<Way>());
+		}
+		for (Way w:currentStorage.getWays()) {
+			for (Node n:w.getNodes()) {
+				List<Way> ways = waysForNodes.get(n);
+				if (ways != null && (ways.isEmpty() || ways.get(ways.size() - 1) != w)) {
+					ways.add(w);
+				}
+			}
+		}
+		for (Node n:nodes) {
+			// ways may have been deleted or changed by the removal of previous nodes
+			List<Way> ways = new ArrayList<Way>();
+			for (Way w:waysForNodes.get(n)) {
+				if (w.hasNode(n) && currentStorage.contains(w)) {
+					ways.add(w);
+				}
+			}
+			removeNode(n, ways);
+		}
+	}
+	
+	/**
+	 * @param node the node to delete
+	 * @param ways the ways containing the node, if null they will be determined here
+	 */
+	private void removeNode(final Node node, final List<Way> ways) {
 		// undo - node saved here, affected ways saved in removeWayNodes
 		dirty = true;
 		if (node.state == OsmElement.STATE_DELETED) {
@@ -594,7 +833,7 @@ public class StorageDelegator implements Serializable, Exportable {
 			} else {
 				apiStorage.insertElementSafe(node);
 			}
-			removeWayNodes(node);
+			removeWayNodes(node, ways != null ? ways : currentStorage.getWays(node));
 			removeElementFromRelations(node);
 			currentStorage.removeNode(node);
 			node.updateState(OsmElement.STATE_DELETED);
@@ -631,56 +870,46 @@ public class StorageDelegator implements Serializable, Exportable {
 			return;
 		}
 		
-		/* convention iterate over list, copy everything between first split node found and 2nd split node found
-		 * if 2nd split node found first the same
+		/* convention: the new way gets everything between the first split node found and the 2nd split node found,
+		 * the old way everything up to the first and from the 2nd split node
 		 */
-		List<Node> nodesForNewWay = new LinkedList<Node>();
-		List<Node> nodesForOldWay1 = new LinkedList<Node>();
-		List<Node> nodesForOldWay2 = new LinkedList<Node>();
-		boolean found1 = false;
-		boolean found2 = false;
-		for (Iterator<Node> it = way.getRemovableNodes(); it.hasNext();) {
-			Node wayNode = it.next();
-			if (!found1 && wayNode.getOsmId() == node1.getOsmId()) {
-				found1 = true;
-				nodesForNewWay.add(wayNode); 
-				if (!found2)
-					nodesForOldWay1.add(wayNode);
-				else
-					nodesForOldWay2.add(wayNode);
-			} else if (!found2 && wayNode.getOsmId() == node2.getOsmId()) {
-				found2 = true;
-				nodesForNewWay.add(wayNode);
-				if (!found1)
-					nodesForOldWay1.add(wayNode);
-				else
-					nodesForOldWay2.add(wayNode);
-			} else if ((found1 && !found2) || (!found1 && found2)) {
-				nodesForNewWay.add(wayNode);
-			} else if (!found1 && !found2) {
-				nodesForOldWay1.add(wayNode);
-			} else if (found1 && found2) {
-				nodesForOldWay2.add(wayNode);
-			}
+		int index1 = indexOfId(nodes, node1, 0);
+		int index2 = indexOfId(nodes, node2, node1.getOsmId() == node2.getOsmId() ? index1 + 1 : 0);
+		int first = index1 == -1 ? index2 : (index2 == -1 ? index1 : Math.min(index1, index2));
+		int second = index1 == -1 || index2 == -1 ? -1 : Math.max(index1, index2);
+		List<Node> nodesForNewWay;
+		List<Node> nodesForOldWay1;
+		List<Node> nodesForOldWay2;
+		if (first == -1) {
+			nodesForNewWay = new ArrayList<Node>();
+			nodesForOldWay1 = new ArrayList<Node>(nodes);
+			nodesForOldWay2 = new ArrayList<Node>();
+		} else if (second == -1) {
+			nodesForNewWay = new ArrayList<Node>(nodes.subList(first, nodes.size()));
+			nodesForOldWay1 = new ArrayList<Node>(nodes.subList(0, first + 1));
+			nodesForOldWay2 = new ArrayList<Node>();
+		} else {
+			nodesForNewWay = new ArrayList<Node>(nodes.subList(first, second + 1));
+			nodesForOldWay1 = nodes.subList(0, first + 1);
+			nodesForOldWay2 = nodes.subList(second, nodes.size());
 		}
 		
 		// shuffle the nodes around for the original way so that they are in sequence and the way isn't closed
 		Log.d("StorageDelegator","nodesForNewWay " + nodesForNewWay.size() + " oldNodes1 " + nodesForOldWay1.size() + " oldNodes2 " + nodesForOldWay2.size());
-		List<Node> oldNodes = way.getNodes();
-		oldNodes.clear();
+		List<Node> oldNodes = new ArrayList<Node>(nodes.size() - nodesForNewWay.size() + 2);
 		if (nodesForOldWay1.size() == 0) {
 			oldNodes.addAll(nodesForOldWay2);
 		} else if (nodesForOldWay2.size() == 0) {
 			oldNodes.addAll(nodesForOldWay1);
 		} else if (nodesForOldWay1.get(0) == nodesForOldWay2.get(nodesForOldWay2.size()-1)) {
 			oldNodes.addAll(nodesForOldWay2);
-			nodesForOldWay1.remove(0);
-			oldNodes.addAll(nodesForOldWay1);
+			oldNodes.addAll(nodesForOldWay1.subList(1, nodesForOldWay1.size()));
 		} else {
 			oldNodes.addAll(nodesForOldWay1);
-			nodesForOldWay2.remove(0);
-			oldNodes.addAll(nodesForOldWay2);
+			oldNodes.addAll(nodesForOldWay2.subList(1, nodesForOldWay2.size()));
 		}
+		nodes.clear();
+		nodes.addAll(oldNodes);
 		try {
 			way.updateState(OsmElement.STATE_MODIFIED);
 			apiStorage.insertElementSafe(way);
@@ -732,17 +961,15 @@ public class StorageDelegator implements Serializable, Exportable {
 		}
 		// we assume this node is only contained in the way once.
 		// else the user needs to split the remaining way again.
-		List<Node> nodesForNewWay = new LinkedList<Node>();
-		boolean found = false;
-		for (Iterator<Node> it = way.getRemovableNodes(); it.hasNext();) {
-			Node wayNode = it.next();
-			if (!found && wayNode.getOsmId() == node.getOsmId()) {
-				found = true;
-				nodesForNewWay.add(wayNode);
-			} else if (found) {
-				nodesForNewWay.add(wayNode);
-				it.remove();
-			}
+		List<Node> nodesForNewWay;
+		int index = indexOfId(nodes, node, 0);
+		if (index == -1) {
+			nodesForNewWay = new ArrayList<Node>();
+		} else {
+			// copy the tail and remove it in one step instead of node by node
+			List<Node> tail = nodes.subList(index, nodes.size());
+			nodesForNewWay = new ArrayList<Node>(tail);
+			tail.subList(1, tail.size()).clear();
 		}
 		if (nodesForNewWay.size() <= 1) {
 			Log.d("StorageDelegator", "splitAtNode can't split, new way would have " + nodesForNewWay.size() + " node(s)");
@@ -824,6 +1051,22 @@ public class StorageDelegator implements Serializable, Exportable {
 		}
 	}
 	
+	/**
+	 * @param nodes list of nodes
+	 * @param node the node to look for
+	 * @param from index to start at
+	 * @return the index of the first node from the start index on with the same id as node, -1 if none
+	 */
+	private static int indexOfId(List<Node> nodes, Node node, int from) {
+		long id = node.getOsmId();
+		for (int i = Math.max(0, from), size = nodes.size(); i < size; i++) {
+			if (nodes.get(i).getOsmId() == id) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
 	/**
 	 * Merge two nodes into one.
 	 * Updated for relation support
@@ -831,6 +1074,86 @@ public class StorageDelegator implements Serializable, Exportable {
 	 * @param mergeFrom The node to merge from. Is deleted.
 	 */
 	public boolean mergeNodes(Node mergeInto, Node mergeFrom) {
+		return mergeNodes(mergeInto, mergeFrom, currentStorage.getWays(mergeFrom), apiStorage.getWays(mergeFrom));
+	}
+	
+	/**
+	 * Merge many nodes, the ways containing the nodes are determined in one pass over all ways
+	 * instead of scanning all ways for every merged node
+	 * @param merges the nodes to merge from mapped to the node they are merged in to, pairs with a node
+	 *  that doesn't exist (any more) are skipped
+	 * @return the number of nodes merged
+	 */
+	public int mergeNodes(final Map<Node, Node> merges) {
+		HashMap<Node, List<Way>> currentWays = new HashMap<Node, List<Way>>();
+		HashMap<Node, List<Way>> apiWays = new HashMap<Node, List<Way>>();
+		for (Map.Entry<Node, Node> merge:merges.entrySet()) {
+			currentWays.put(merge.getKey(), new ArrayList<Way>());
+			apiWays.put(merge.getKey(), new ArrayList<Way>());
+			currentWays.put(merge.getValue(), new ArrayList<Way>());
+			apiWays.put(merge.getValue(), new ArrayList<Way>());
+		}
+		indexWayNodes(currentStorage.getWays(), currentWays);
+		indexWayNodes(apiStorage.getWays(), apiWays);
+		int merged = 0;
+		for (Map.Entry<Node, Node> merge:merges.entrySet()) {
+			Node mergeFrom = merge.getKey();
+			Node mergeInto = merge.getValue();
+			if (!currentStorage.contains(mergeInto) || !currentStorage.contains(mergeFrom)) {
+				continue;
+			}
+			// ways may have been changed by previous merges
+			List<Way> fromCurrentWays = waysWithNode(currentStorage, currentWays.get(mergeFrom), mergeFrom);
+			List<Way> fromApiWays = waysWithNode(apiStorage, apiWays.get(mergeFrom), mergeFrom);
+			mergeNodes(mergeInto, mergeFrom, fromCurrentWays, fromApiWays);
+			// the ways now contain the target node, in case it is merged in to another node later
+			addWays(currentWays.get(mergeInto), fromCurrentWays);
+			addWays(apiWays.get(mergeInto), fromApiWays);
+			merged++;
+		}
+		return merged;
+	}
+	
+	/**
+	 * Add ways to the lists of the nodes they contain, nodes without a list are ignored
+	 */
+	private static void indexWayNodes(final List<Way> ways, final Map<Node, List<Way>> waysForNodes) {
+		for (Way w:ways) {
+			for (Node n:w.getNodes()) {
+				List<Way> nodeWays = waysForNodes.get(n);
+				if (nodeWays != null && (nodeWays.isEmpty() || nodeWays.get(nodeWays.size() - 1) != w)) {
+					nodeWays.add(w);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the ways of the candidates that are still in the storage and still contain the node
+	 */
+	private static List<Way> waysWithNode(final Storage storage, final List<Way> candidates, final Node node) {
+		List<Way> result = new ArrayList<Way>();
+		for (Way w:candidates) {
+			if (w.hasNode(node) && storage.contains(w)) {
+				result.add(w);
+			}
+		}
+		return result;
+	}
+	
+	private static void addWays(final List<Way> ways, final List<Way> toAdd) {
+		for (Way w:toAdd) {
+			if (!ways.contains(w)) {
+				ways.add(w);
+			}
+		}
+	}
+	
+	/**
+	 * @param currentWays the ways in the current storage containing mergeFrom
+	 * @param apiWays the ways in the api storage containing mergeFrom
+	 */
+	private boolean mergeNodes(final Node mergeInto, final Node mergeFrom, final List<Way> currentWays, final List<Way> apiWays) {
 		boolean mergeOK = true;
 		dirty = true;
 		mergeOK = !roleConflict(mergeInto, mergeFrom); // need to do this before we remove objects from relations.
@@ -844,15 +1167,15 @@ public class StorageDelegator implements Serializable, Exportable {
 			}
 		}
 		// replace references to mergeFrom node in ways with mergeInto
-		for (Way way : currentStorage.getWays(mergeFrom)) {
+		for (Way way : currentWays) {
 			replaceNodeInWay(mergeFrom, mergeInto, way);
 		}
-		for (Way way : apiStorage.getWays(mergeFrom)) {
+		for (Way way : apiWays) {
 			replaceNodeInWay(mergeFrom, mergeInto, way);
 		}
 		mergeElementsRelations(mergeInto, mergeFrom); 
-		// delete mergeFrom node
-		removeNode(mergeFrom);
+		// delete mergeFrom node, no way contains it any more
+		removeNode(mergeFrom, new ArrayList<Way>());
 		return mergeOK;
 	}
 	
@@ -950,7 +1273,7 @@ public class StorageDelegator implements Serializable, Exportable {
 	 * @param o2
 	 * @return
 	 */
-	private boolean roleConflict(OsmElement o1, OsmElement o2) {
+	public boolean roleConflict(OsmElement o1, OsmElement o2) {
 		
 		ArrayList<Relation> r1 = o1.getParentRelations() != null ? o1.getParentRelations() : new ArrayList<Relation>();
 		ArrayList<Relation> r2 = o2.getParentRelations() != null ? o2.getParentRelations() : new ArrayList<Relation>();
@@ -1073,12 +1396,11 @@ public class StorageDelegator implements Serializable, Exportable {
 		}
 	}
 
-	private int removeWayNodes(final Node node) {
+	private int removeWayNodes(final Node node, final List<Way> ways) {
 		// undo - node is not changed, affected way(s) are stored below
 		dirty = true;
 		int deleted = 0;
 		try {
-			List<Way> ways = currentStorage.getWays(node);
 			for (int i = 0, size = ways.size(); i < size; ++i) {
 				Way way = ways.get(i);
 				undo.save(way);
@@ -1239,8 +1561,7 @@ public class StorageDelegator implements Serializable, Exportable {
 	
 	public void addElementToRelation(final OsmElement e, final int pos, final String role, final Relation rel)
 	{
-		ArrayList<Relation> relations = e.getParentRelations();
-		if (relations == null || !relations.contains(rel)) {
+		if (!e.hasParentRelation(rel)) {
 			dirty = true;
 			undo.save(rel);
 			undo.save(e);
@@ -1440,112 +1761,207 @@ public class StorageDelegator implements Serializable, Exportable {
 	}
 	
 	/**
-	 * ake a copy of the element and store it in the clipboard
-	 * @param e
-	 * @param lat
-	 * @param lon
+	 * Store a copy of elements in the clipboard, see {@link ClipboardStorage#collect(Collection, boolean)} for what is included
+	 * @param elements the selected elements
+	 * @param lat latitude of the selection position
+	 * @param lon longitude of the selection position
 	 */
-	public void copyToClipboard(OsmElement e, int lat, int lon) {
+	public void copyToClipboard(Collection<? extends OsmElement> elements, int lat, int lon) {
 		dirty = true; // otherwise clipboard will not get saved without other changes
-		if (e instanceof Node) {
-			Node newNode = factory.createNodeWithNewId(((Node) e).getLat(), ((Node) e).getLon());
-			newNode.setTags(e.getTags());
-			clipboard.copyTo(newNode, lat, lon);
-		} else if (e instanceof Way) {
-			Way newWay = factory.createWayWithNewId();
-			newWay.setTags(e.getTags());
-			for (Node nd: ((Way)e).getNodes()) {
-				Node newNode = factory.createNodeWithNewId(nd.getLat(), nd.getLon());
-				newNode.setTags(nd.getTags());
-				newWay.addNode(nd);
-			}
-			clipboard.copyTo(newWay, lat, lon);
-		}	
+		clipboard.copyTo(ClipboardStorage.collect(elements, true), lat, lon);
 	}
 	
 	/**
-	 * cut original element to clipboard, does -not- preserve relation memberships
-	 * @param e
-	 * @param lat
-	 * @param lon
+	 * cut original elements to clipboard, does -not- preserve memberships in relations that are not cut
+	 * Only the selected elements and the nodes of selected ways are cut, members of cut relations stay and are
+	 * members again when the relation is pasted. Nodes of cut ways that are used by other ways stay, they are copied instead.
+	 * @param elements the selected elements
+	 * @param lat latitude of the selection position
+	 * @param lon longitude of the selection position
 	 */
-	public void cutToClipboard(OsmElement e, int lat, int lon) {
+	public void cutToClipboard(Collection<? extends OsmElement> elements, int lat, int lon) {
 		dirty = true; // otherwise clipboard will not get saved without other changes
-		if (e instanceof Node) {
-			clipboard.cutTo(e, lat, lon);
-			removeNode((Node)e);
-		} else if (e instanceof Way) {
-
-			// clone all nodes that are members of other ways
-			ArrayList<Node> nodes = new ArrayList<Node>(((Way)e).getNodes());
-			for (Node nd: nodes) {
-				if (currentStorage.getWays(nd).size() > 1) { // 1 is expected (our way will be deleted later)
-					Log.d("StorageDelegator","Duplicating node");
-					Node newNode = factory.createNodeWithNewId(nd.getLat(), nd.getLon());
-					newNode.setTags(nd.getTags());
-					((Way)e).replaceNode(nd, newNode);
+		List<OsmElement> cut = ClipboardStorage.collect(elements, false);
+		HashSet<OsmElement> selected = new HashSet<OsmElement>(elements);
+		HashSet<OsmElement> cutSet = new HashSet<OsmElement>(cut);
+		HashSet<Node> copiedNodes = new HashSet<Node>();
+		for (Way w:currentStorage.getWays()) {
+			if (!cutSet.contains(w)) {
+				for (Node nd:w.getNodes()) {
+					if (cutSet.contains(nd) && !selected.contains(nd)) {
+						copiedNodes.add(nd);
+					}
 				}
 			}
-			clipboard.cutTo(e, lat, lon);
-			removeWay((Way)e);
-			nodes = new ArrayList<Node>(((Way)e).getNodes());
-			for (Node nd: nodes) {
-				removeNode(nd); // 
+		}
+		clipboard.cutTo(cut, lat, lon, copiedNodes);
+		beginBatch();
+		try {
+			// relations first so that their members are not removed from them
+			List<Node> nodes = new ArrayList<Node>();
+			for (int i = cut.size() - 1; i >= 0; i--) {
+				OsmElement e = cut.get(i);
+				if (e instanceof Relation) {
+					removeRelation((Relation) e);
+				} else if (e instanceof Way) {
+					removeWay((Way) e);
+				} else if (!copiedNodes.contains(e)) {
+					nodes.add((Node) e);
+				}
 			}
+			removeNodes(nodes);
+		} finally {
+			endBatch();
 		}
 	}
 	
+	/**
+	 * Paste the clipboard, the elements keep their positions relative to the position the selection was made at.
+	 * Copied elements are created new with ids reserved in one block, cut elements are restored and the clipboard is emptied.
+	 * @param lat latitude to paste at
+	 * @param lon longitude to paste at
+	 * @return false if the clipboard was empty
+	 */
 	public boolean pasteFromClipboard(int lat, int lon) {
-		OsmElement e = clipboard.pasteFrom();
-		// if the clipboard isn't empty now we need to clone the element
-		if (!clipboard.isEmpty()) { // paste from copy
-			if (e instanceof Node) {
-				Node newNode = factory.createNodeWithNewId(lat, lon);
-				newNode.setTags(e.getTags());
-				insertElementSafe(newNode);
-			} else if (e instanceof Way) {
-				Way newWay = factory.createWayWithNewId();
-				newWay.setTags(e.getTags());
-				int deltaLat = lat - clipboard.getSelectionLat();
-				int deltaLon = lon - clipboard.getSelectionLon();
-				Node firstNode = ((Way)e).getFirstNode();
-				List<Node> nodes = ((Way)e).getNodes();
-				for (int i = 0; i < nodes.size(); i++) { 
-					Node nd = nodes.get(i);
-					if (i == 0 || !nd.equals(firstNode)) {
-						Log.d("StorageDelegator", "Pasting to " + (nd.getLat() + deltaLat) + " " + (nd.getLon() + deltaLon));
-						Node newNode = factory.createNodeWithNewId(nd.getLat() + deltaLat, nd.getLon() + deltaLon);
-						newNode.setTags(nd.getTags());
-						newWay.addNode(newNode);
-						insertElementSafe(newNode);
-					} else if (nd.equals(firstNode)) {
-						newWay.addNode(newWay.getFirstNode());
-					}
+		if (clipboard.isEmpty()) {
+			return false;
+		}
+		dirty = true;
+		int nodeCount = clipboard.getNodeCount();
+		int wayCount = clipboard.getWayCount();
+		int relationCount = clipboard.getRelationCount();
+		OsmElement[] pasted = new OsmElement[nodeCount + wayCount + relationCount];
+		int newNodes = 0;
+		for (int i = 0; i < nodeCount; i++) {
+			if (clipboard.getOriginal(i) == null) {
+				newNodes++;
+			}
+		}
+		long nodeId = factory.reserveNodeIds(newNodes);
+		long wayId = clipboard.getMode() == ClipboardStorage.Mode.COPY ? factory.reserveWayIds(wayCount) : 0;
+		long relationId = clipboard.getMode() == ClipboardStorage.Mode.COPY ? factory.reserveRelationIds(relationCount) : 0;
+		beginBatch();
+		try {
+			for (int i = 0; i < nodeCount; i++) {
+				int nodeLat = lat + clipboard.getLatOffset(i);
+				int nodeLon = lon + clipboard.getLonOffset(i);
+				Node nd = (Node) clipboard.getOriginal(i);
+				if (nd != null) {
+					undo.save(nd);
+					nd.setState(clipboard.getSavedState(i));
+					nd.setLat(nodeLat);
+					nd.setLon(nodeLon);
+					nd.updateState(OsmElement.STATE_MODIFIED);
+				} else {
+					nd = OsmElementFactory.createNode(nodeId--, 1, OsmElement.STATE_CREATED, nodeLat, nodeLon);
+					pasteTags(nd, i);
 				}
-				insertElementSafe(newWay);
-			}	
-		} else { // paste from cut
-			if (e instanceof Node) {
-				((Node)e).setLat(lat);
-				((Node)e).setLon(lon);
-			} else if (e instanceof Way) {
-				int deltaLat = lat - clipboard.getSelectionLat();
-				int deltaLon = lon - clipboard.getSelectionLon();
-				Node firstNode = ((Way)e).getFirstNode();
-				for (int i = 0; i < ((Way)e).getNodes().size(); i++) { 
-					Node nd = ((Way)e).getNodes().get(i);
-					if (i == 0 || !nd.equals(firstNode)) {
-						nd.setLat(nd.getLat() + deltaLat);
-						nd.setLon(nd.getLon() + deltaLon);
-						nd.updateState(OsmElement.STATE_MODIFIED);
-						insertElementSafe(nd); 
-					} 
+				insertElementSafe(nd);
+				pasted[i] = nd;
+			}
+			for (int i = 0; i < wayCount; i++) {
+				int element = nodeCount + i;
+				Way way = (Way) clipboard.getOriginal(element);
+				if (way != null) {
+					undo.save(way);
+					way.setState(clipboard.getSavedState(element));
+					way.getNodes().clear();
+					way.updateState(OsmElement.STATE_MODIFIED);
+				} else {
+					way = OsmElementFactory.createWay(wayId--, 1, OsmElement.STATE_CREATED);
+					pasteTags(way, element);
+				}
+				for (int nd:clipboard.getWayNodes(i)) {
+					way.addNode((Node) pasted[nd]);
 				}
+				insertElementSafe(way);
+				pasted[element] = way;
 			}
-			e.updateState(OsmElement.STATE_MODIFIED);
-			insertElementSafe(e); 
+			// create all relations before adding members, they can be members of each other
+			for (int i = 0; i < relationCount; i++) {
+				int element = nodeCount + wayCount + i;
+				Relation relation = (Relation) clipboard.getOriginal(element);
+				if (relation != null) {
+					undo.save(relation);
+					relation.setState(clipboard.getSavedState(element));
+					relation.setMembers(new ArrayList<RelationMember>());
+					relation.updateState(OsmElement.STATE_MODIFIED);
+				} else {
+					relation = OsmElementFactory.createRelation(relationId--, 1, OsmElement.STATE_CREATED);
+					pasteTags(relation, element);
+				}
+				pasted[element] = relation;
+			}
+			HashMap<String, HashMap<Long, OsmElement>> byId = new HashMap<String, HashMap<Long, OsmElement>>();
+			for (int i = 0; i < relationCount; i++) {
+				Relation relation = (Relation) pasted[nodeCount + wayCount + i];
+				int[] members = clipboard.getMembers(i);
+				String[] roles = clipboard.getRoles(i);
+				for (int j = 0; j < members.length; j++) {
+					if (members[j] >= 0) {
+						OsmElement e = pasted[members[j]];
+						relation.addMember(new RelationMember(roles[j], e));
+						e.addParentRelation(relation);
+						continue;
+					}
+					// member of a cut relation that was not cut
+					String type = clipboard.getMemberType(i, j);
+					long id = clipboard.getMemberId(i, j);
+					OsmElement e = getCurrentElement(type, id, byId);
+					if (e != null) {
+						undo.save(e);
+						relation.addMember(new RelationMember(roles[j], e));
+						e.addParentRelation(relation);
+					} else if (apiStorage.getOsmElement(type, id) == null) { // not downloaded, deleted members are dropped
+						relation.addMember(new RelationMember(type, id, roles[j]));
+					}
+				}
+				insertElementSafe(relation);
+			}
+		} finally {
+			endBatch();
+		}
+		if (clipboard.getMode() == ClipboardStorage.Mode.CUT) {
+			clipboard.clear(); // can only paste cut elements once
+		}
+		return true;
+	}
+	
+	/**
+	 * Find an element in current storage, the elements of a type are indexed on first use
+	 * @param type the element type
+	 * @param id the element id
+	 * @param byId the indices by type
+	 * @return the element, null if it is not in current storage
+	 */
+	private OsmElement getCurrentElement(final String type, final long id, final Map<String, HashMap<Long, OsmElement>> byId) {
+		HashMap<Long, OsmElement> index = byId.get(type);
+		if (index == null) {
+			List<? extends OsmElement> elements;
+			if (Node.NAME.equals(type)) {
+				elements = currentStorage.getNodes();
+			} else if (Way.NAME.equals(type)) {
+				elements = currentStorage.getWays();
+			} else {
+				elements = currentStorage.getRelations();
+			}
+			index = new HashMap<Long, OsmElement>(elements.size());
+			for (OsmElement e:elements) {
+				index.put(Long.valueOf(e.getOsmId()), e);
+			}
+			byId.put(type, index);
+		}
+		return index.get(Long.valueOf(id));
+	}
+
+	/**
+	 * Set the tags of a new element from the clipboard
+	 */
+	private void pasteTags(OsmElement e, int element) {
+		Map<String, String> tags = clipboard.getTags(element);
+		if (tags != null) {
+			e.setTags(tags);
 		}
-		return e != null;
 	}
 	
 	public boolean clipboardIsEmpty() {
@@ -1564,8 +1980,10 @@ public class StorageDelegator implements Serializable, Exportable {
 //		return currentStorage.getBoundingBox().copy();
 //	}
 
+	/**
+	 * @return the bounding boxes of the downloaded data, a copy on write list that can be iterated without copying
+	 */
 	public List<BoundingBox> getBoundingBoxes() {
-		// TODO make a copy?
 		return  currentStorage.getBoundingBoxes();
 	}
 	
@@ -1578,6 +1996,20 @@ public class StorageDelegator implements Serializable, Exportable {
 		dirty = true;
 		currentStorage.addBoundingBox(box);
 	}
+	
+	/**
+	 * Add a downloaded area, the bounding boxes it contains are no longer needed
+	 * @param box the downloaded area
+	 */
+	private void addBoundingBoxReplacingContained(final BoundingBox box) {
+		List<BoundingBox> boxes = currentStorage.getBoundingBoxes(); // copy on write, can be modified while iterating
+		for (BoundingBox bb:boxes) {
+			if (box.contains(bb)) {
+				boxes.remove(bb);
+			}
+		}
+		addBoundingBox(box);
+	}
 
 	public int getApiNodeCount() {
 		return apiStorage.getNodes().size();
@@ -1623,8 +2055,22 @@ public class StorageDelegator implements Serializable, Exportable {
 		}
 
 		if (readingLock.tryLock()) {
+			// changes may be published on the UI thread while saving, so save a copy of the lists
+			final StorageDelegator[] snapshot = new StorageDelegator[1];
+			onMainThread(new Runnable() {
+				@Override
+				public void run() {
+					snapshot[0] = new StorageDelegator(StorageDelegator.this);
+				}
+			});
+			// the undo history is saved first, if saving the state fails the new history won't match the old state and will be ignored
+			undoToken = System.currentTimeMillis();
+			snapshot[0].undoToken = undoToken;
+			if (!snapshot[0].undo.writeToFile(undoToken)) {
+				Log.e("StorageDelegator", "saving undo history failed");
+			}
 			// TODO this doesn't really help with error conditions need to throw exception
-			if (savingHelper.save(FILENAME, this, true)) { 
+			if (savingHelper.save(FILENAME, snapshot[0], true)) { 
 				dirty = false;
 			} else {
 				// this is essentially catastrophic and can only happen if something went really wrong
@@ -1644,25 +2090,40 @@ public class StorageDelegator implements Serializable, Exportable {
 	public boolean readFromFile() {
 		try {
 			readingLock.lock();
-			StorageDelegator newDelegator = savingHelper.load(FILENAME, true); 
+			final StorageDelegator newDelegator = savingHelper.load(FILENAME, true); 
 
 
 			if (newDelegator != null) {
 				Log.d("StorageDelegator", "read saved state");
-				currentStorage = newDelegator.currentStorage;
-				if (currentStorage.getBoundingBoxes() == null) { // can happen if data was added before load
+				if (newDelegator.currentStorage.getBoundingBoxes() == null) { // can happen if data was added before load
 					try {
-						currentStorage.setBoundingBox(currentStorage.calcBoundingBoxFromData());
+						newDelegator.currentStorage.setBoundingBox(newDelegator.currentStorage.calcBoundingBoxFromData());
 					} catch (OsmException e) {
 						// TODO Auto-generated catch block
 						e.printStackTrace();
 					}
 				}
-				apiStorage = newDelegator.apiStorage;
-				undo = newDelegator.undo;
-				clipboard = newDelegator.clipboard;
-				factory = newDelegator.factory;
-				dirty = false; // data was just read, i.e. memory and file are in sync
+				UndoStorage loadedUndo = UndoStorage.readFromFile(newDelegator.currentStorage, newDelegator.apiStorage, newDelegator.undoToken);
+				if (loadedUndo == null) {
+					Log.d("StorageDelegator", "no matching undo history");
+					loadedUndo = new UndoStorage(newDelegator.currentStorage, newDelegator.apiStorage);
+				}
+				final UndoStorage savedUndo = loadedUndo;
+				publish(new Runnable() {
+					@Override
+					public void run() {
+						currentStorage = newDelegator.currentStorage;
+						apiStorage = newDelegator.apiStorage;
+						undoToken = newDelegator.undoToken;
+						setUndo(savedUndo);
+						clipboard = newDelegator.clipboard;
+						factory = newDelegator.factory;
+						dirty = false; // data was just read, i.e. memory and file are in sync
+						if (changeListener != null) {
+							changeListener.onDataChanged();
+						}
+					}
+				});
 				return true;
 			} else {
 				Log.d("StorageDelegator", "saved state null");
@@ -1674,26 +2135,13 @@ public class StorageDelegator implements Serializable, Exportable {
 	}
 
 	/**
-	 * Return a localized list of strings describing the changes we would upload on {@link #uploadToServer(Server)}.
+	 * Return the changes we would upload on {@link #uploadToServer(Server)}, this takes constant time,
+	 * descriptions are only formatted when requested.
 	 * 
-	 * @param aResources the translations
-	 * @return the changes
+	 * @return the changes, only valid until the data is modified
 	 */
-	public List<String> listChanges(final Resources aResources) {
-		List<String> retval = new ArrayList<String>();
-		
-		for (Node node : new ArrayList<Node>(apiStorage.getNodes())) {
-			retval.add(node.getStateDescription(aResources));
-		}
-		
-		for (Way way : new ArrayList<Way>(apiStorage.getWays())) {
-			retval.add(way.getStateDescription(aResources));
-		}
-		
-		for (Relation relation : new ArrayList<Relation>(apiStorage.getRelations())) {
-			retval.add(relation.getStateDescription(aResources));
-		}
-		return retval;
+	public PendingChanges getPendingChanges() {
+		return new PendingChanges(apiStorage);
 	}
 
 	/**
@@ -1712,18 +2160,31 @@ public class StorageDelegator implements Serializable, Exportable {
 		dirty = true; // storages will get modified as data is uploaded, these changes need to be saved to file
 		// upload methods set dirty flag too, in case the file is saved during an upload
 		server.openChangeset(comment, source, null);
+		// elements are removed from the api storage on the UI thread as they are uploaded, so work on a copy of the lists,
+		// the elements themselves are copied when they are sent
+		final List<Node> nodes = new ArrayList<Node>();
+		final List<Way> ways = new ArrayList<Way>();
+		final List<Relation> relations = new ArrayList<Relation>();
+		onMainThread(new Runnable() {
+			@Override
+			public void run() {
+				nodes.addAll(apiStorage.getNodes());
+				ways.addAll(apiStorage.getWays());
+				relations.addAll(apiStorage.getRelations());
+			}
+		});
 		Log.d("StorageDelegator","Uploading Nodes");
-		uploadCreatedOrModifiedElements(server, apiStorage.getNodes());
+		uploadCreatedOrModifiedElements(server, nodes);
 		Log.d("StorageDelegator","Uploading Ways");
-		uploadCreatedOrModifiedElements(server, apiStorage.getWays());
+		uploadCreatedOrModifiedElements(server, ways);
 		Log.d("StorageDelegator","Uploading Relations");
-		uploadCreatedOrModifiedElements(server, apiStorage.getRelations());
+		uploadCreatedOrModifiedElements(server, relations);
 		Log.d("StorageDelegator","Deleting Relations");
-		uploadDeletedElements(server, apiStorage.getRelations());
+		uploadDeletedElements(server, relations);
 		Log.d("StorageDelegator","Deleting Ways");
-		uploadDeletedElements(server, apiStorage.getWays());
+		uploadDeletedElements(server, ways);
 		Log.d("StorageDelegator","Deleting Nodes");
-		uploadDeletedElements(server, apiStorage.getNodes());
+		uploadDeletedElements(server, nodes);
 		
 		if (closeChangeset) {
 			server.closeChangeset();
@@ -1737,57 +2198,66 @@ public class StorageDelegator implements Serializable, Exportable {
 		}
 	}
 
-	//TODO make a shallow copy of the list instead of bookkeeping here
+	/**
+	 * @param elements copy of the elements in the api storage
+	 */
 	private void uploadDeletedElements(final Server server, final List<? extends OsmElement> elements)
 			throws MalformedURLException, ProtocolException, OsmServerException, IOException {
-		for (int i = 0, size = elements.size(); i < size; ++i) {
-			OsmElement element = elements.get(i);
-			if (element.getState() == OsmElement.STATE_DELETED) {
-				server.deleteElement(element);
-				if (apiStorage.removeElement(element)) {
-					--i;
-					--size;
-				}
+		for (final OsmElement element:elements) {
+			final OsmElement copy = copyForUpload(element);
+			if (copy.getState() == OsmElement.STATE_DELETED) {
+				server.deleteElement(copy);
+				publish(new Runnable() {
+					@Override
+					public void run() {
+						apiStorage.removeElement(element);
+					}
+				});
 				Log.w(DEBUG_TAG, element + " deleted in API");
 				dirty = true;
 			}
 		}
 	}
 
-	//TODO make a shallow copy of the list instead of bookkeeping here
+	/**
+	 * @param elements copy of the elements in the api storage
+	 */
 	private void uploadCreatedOrModifiedElements(final Server server, final List<? extends OsmElement> elements)
 			throws MalformedURLException, ProtocolException, OsmServerException, IOException {
 		Log.d("StorageDelegator", "uploadCreatedOrModifiedElements: number of elements " + elements.size() );
-		for (int i = 0, size = elements.size(); i < size; ++i) {
-			OsmElement element = elements.get(i);
-			Log.d("StorageDelegator", "uploadCreatedOrModifiedElements: element added for upload, id " + element.osmId);
-			switch (element.getState()) {
+		for (final OsmElement element:elements) {
+			// copied right before sending so that ways and relations refer to the ids of elements that have just been created
+			final OsmElement copy = copyForUpload(element);
+			Log.d("StorageDelegator", "uploadCreatedOrModifiedElements: element added for upload, id " + copy.osmId);
+			switch (copy.getState()) {
 			case OsmElement.STATE_CREATED:
-				long osmId = server.createElement(element);
+				final long osmId = server.createElement(copy);
 				if (osmId > 0) {
-					element.setOsmId(osmId);
-					if (apiStorage.removeElement(element)) {
-						//
-						--i;
-						--size;
-					}
+					publish(new Runnable() {
+						@Override
+						public void run() {
+							element.setOsmId(osmId);
+							apiStorage.removeElement(element);
+							element.setState(OsmElement.STATE_UNCHANGED);
+						}
+					});
 					Log.w(DEBUG_TAG, "New " + element + " added to API");
-					element.setState(OsmElement.STATE_UNCHANGED);
 				} else {
 					Log.d(DEBUG_TAG, "Didn't get new ID: " + osmId);
 				}
 				break;
 			case OsmElement.STATE_MODIFIED:
-				long osmVersion = server.updateElement(element);
+				final long osmVersion = server.updateElement(copy);
 				if (osmVersion > 0) {
-					element.osmVersion = osmVersion;
-					if (apiStorage.removeElement(element)) {
-						//
-						--i;
-						--size;
-					}
+					publish(new Runnable() {
+						@Override
+						public void run() {
+							element.osmVersion = osmVersion;
+							apiStorage.removeElement(element);
+							element.setState(OsmElement.STATE_UNCHANGED);
+						}
+					});
 					Log.w(DEBUG_TAG, element + " updated in API");
-					element.setState(OsmElement.STATE_UNCHANGED);
 				} else {
 					Log.d(DEBUG_TAG, "Didn't get new version: " + osmVersion);
 				}
@@ -1796,41 +2266,52 @@ public class StorageDelegator implements Serializable, Exportable {
 			dirty = true;
 		}
 	}
+
+	/**
+	 * @param element the element to upload
+	 * @return a copy of the current state of the element that can be read while the data is edited
+	 */
+	private OsmElement copyForUpload(final OsmElement element) {
+		final OsmElement[] copy = new OsmElement[1];
+		onMainThread(new Runnable() {
+			@Override
+			public void run() {
+				copy[0] = new Snapshot(false).copy(element);
+			}
+		});
+		return copy[0];
+	}
 	
 	/**
 	 * Exports changes as a OsmChange file. 
 	 */
 	@Override
 	public void export(OutputStream outputStream) throws Exception {
+		// the data may be edited on the UI thread while writing, so work on copies of the elements
+		final List<OsmElement> elements = new ArrayList<OsmElement>();
+		onMainThread(new Runnable() {
+			@Override
+			public void run() {
+				Snapshot copies = new Snapshot(false);
+				elements.addAll(copies.copy(apiStorage.getNodes()));
+				elements.addAll(copies.copy(apiStorage.getWays()));
+				elements.addAll(copies.copy(apiStorage.getRelations()));
+			}
+		});
+
 		XmlSerializer serializer = XmlPullParserFactory.newInstance().newSerializer();
 		serializer.setOutput(outputStream, "UTF-8");
 		serializer.startDocument("UTF-8", null);
 		serializer.startTag(null, "osmChange");
 		serializer.attribute(null, "generator", Application.userAgent);
 		serializer.attribute(null, "version", "0.6");
-		
+	
 		ArrayList<OsmElement> createdElements = new ArrayList<OsmElement>();
 		ArrayList<OsmElement> modifiedElements = new ArrayList<OsmElement>();
 		ArrayList<OsmElement> deletedElements = new ArrayList<OsmElement>();
-		
-		for (OsmElement elem : apiStorage.getNodes()) {
-			Log.d("StorageDelegator", "node added to list for upload, id " + elem.osmId);
-			switch (elem.state) {
-			case OsmElement.STATE_CREATED:   createdElements.add(elem);   break;
-			case OsmElement.STATE_MODIFIED:  modifiedElements.add(elem);  break;
-			case OsmElement.STATE_DELETED:   deletedElements.add(elem);   break;
-			}
-		}
-		for (OsmElement elem : apiStorage.getWays()) {
-			Log.d("StorageDelegator", "way added to list for upload, id " + elem.osmId);
-			switch (elem.state) {
-			case OsmElement.STATE_CREATED:   createdElements.add(elem);   break;
-			case OsmElement.STATE_MODIFIED:  modifiedElements.add(elem);  break;
-			case OsmElement.STATE_DELETED:   deletedElements.add(elem);   break;
-			}
-		}
-		for (OsmElement elem : apiStorage.getRelations()) {
-			Log.d("StorageDelegator", "relation added to list for upload, id " + elem.osmId);
+	
+		for (OsmElement elem : elements) {
+			Log.d("StorageDelegator", elem.getName() + " added to list for upload, id " + elem.osmId);
 			switch (elem.state) {
 			case OsmElement.STATE_CREATED:   createdElements.add(elem);   break;
 			case OsmElement.STATE_MODIFIED:  modifiedElements.add(elem);  break;
@@ -1849,13 +2330,13 @@ public class StorageDelegator implements Serializable, Exportable {
 			for (OsmElement elem : modifiedElements) elem.toXml(serializer, null);
 			serializer.endTag(null, "modify");
 		}
-				
+			
 		if (!deletedElements.isEmpty()) {
 			serializer.startTag(null, "delete");
 			for (OsmElement elem : deletedElements) elem.toXml(serializer, null);
 			serializer.endTag(null, "delete");
 		}
-		
+	
 		serializer.endTag(null, "osmChange");
 		serializer.endDocument();
 	}
@@ -1873,6 +2354,19 @@ public class StorageDelegator implements Serializable, Exportable {
 	 * @throws IllegalArgumentException 
 	 */
 	public void save(OutputStream outputStream) throws XmlPullParserException, IllegalArgumentException, IllegalStateException, IOException  {
+		// the data may be edited on the UI thread while writing, so work on copies of the elements
+		final Storage[] snapshot = new Storage[2];
+		onMainThread(new Runnable() {
+			@Override
+			public void run() {
+				Snapshot copies = new Snapshot(false);
+				snapshot[0] = new Storage(currentStorage, copies);
+				snapshot[1] = new Storage(apiStorage, copies);
+			}
+		});
+		Storage current = snapshot[0];
+		Storage api = snapshot[1];
+
 		XmlSerializer serializer = XmlPullParserFactory.newInstance().newSerializer();
 		serializer.setOutput(outputStream, "UTF-8");
 		serializer.startDocument("UTF-8", null);
@@ -1880,37 +2374,37 @@ public class StorageDelegator implements Serializable, Exportable {
 		serializer.attribute(null, "generator", Application.userAgent);
 		serializer.attribute(null, "version", "0.6");
 		serializer.attribute(null, "upload", "true");
-		
-		ArrayList<Node> saveNodes = new ArrayList<Node>(currentStorage.getNodes());
-		ArrayList<Way> saveWays = new ArrayList<Way>(currentStorage.getWays());
-		ArrayList<Relation> saveRelations = new ArrayList<Relation>(currentStorage.getRelations());
-		
-		for (Node elem : apiStorage.getNodes()) {
+	
+		List<Node> saveNodes = current.getNodes();
+		List<Way> saveWays = current.getWays();
+		List<Relation> saveRelations = current.getRelations();
+	
+		for (Node elem : api.getNodes()) {
 			if (elem.state == OsmElement.STATE_DELETED) {
 				Log.d("StorageDelegator", "deleted node added to list for save, id " + elem.osmId);
 				saveNodes.add(elem);
 			}
 		}
-		for (Way elem : apiStorage.getWays()) {
+		for (Way elem : api.getWays()) {
 			if (elem.state == OsmElement.STATE_DELETED) {
 				Log.d("StorageDelegator", "deleted way added to list for save, id " + elem.osmId);
 				saveWays.add(elem);
 			}
 		}
-		for (Way elem : apiStorage.getWays()) {
+		for (Relation elem : api.getRelations()) {
 			if (elem.state == OsmElement.STATE_DELETED) {
-				Log.d("StorageDelegator", "deleted way added to list for save, id " + elem.osmId);
-				saveWays.add(elem);
+				Log.d("StorageDelegator", "deleted relation added to list for save, id " + elem.osmId);
+				saveRelations.add(elem);
 			}
 		}
-		
+	
 		// TODO output bounding boxes
-		for (BoundingBox b:currentStorage.getBoundingBoxes()) {
+		for (BoundingBox b:current.getBoundingBoxes()) {
 			b.toJosmXml(serializer);
 		}
-		
+	
 		//TODO sort arrays here
-		
+	
 		if (!saveNodes.isEmpty()) {
 			for (OsmElement elem : saveNodes) elem.toJosmXml(serializer);
 		}
@@ -1920,8 +2414,8 @@ public class StorageDelegator implements Serializable, Exportable {
 		if (!saveRelations.isEmpty()) {
 			for (OsmElement elem : saveRelations) elem.toJosmXml(serializer);
 		}
-		
-		
+	
+	
 		serializer.endTag(null, "osm");
 		serializer.endDocument();
 	}
@@ -1929,198 +2423,78 @@ public class StorageDelegator implements Serializable, Exportable {
 	
 	
 	/**
-	 * Merge additional data with existing, copy to a new storage because this may fail
-	 * @param storage
+	 * Merge additional data with existing, can be called on any thread.
+	 * 
+	 * Conflicts are detected on copies of the elements without modifying anything, see {@link MergePlan},
+	 * then the changes are published in one step. If the data has been changed in the mean time the
+	 * merge is planned again.
+	 * @param storage the downloaded data
+	 * @return false if there were conflicts, the data is not changed in that case
+	 */
+	public boolean mergeData(final Storage storage) {
+		return mergeData(storage, null);
+	}
+
+	/**
+	 * Merge additional data with existing and add the downloaded area in the same step, can be called on any thread.
+	 * @param storage the downloaded data
+	 * @param box the downloaded area, replaces the bounding boxes it contains, null if none
+	 * @return false if there were conflicts, the data is not changed in that case
 	 */
-	synchronized public boolean mergeData(Storage storage) {
+	synchronized public boolean mergeData(final Storage storage, final BoundingBox box) {
 		Log.d("StorageDelegator","mergeData called");
-		// make temp copy of current storage
-		Storage temp = new Storage();
-		boolean first = true;
-		for (BoundingBox bb:currentStorage.getBoundingBoxes()) {
-			if (first) {
-				temp.setBoundingBox(bb);
-				first = false;
-			} else {
-				temp.addBoundingBox(bb);
-			}
-		}
-		temp.getNodes().addAll(currentStorage.getNodes());
-		temp.getWays().addAll(currentStorage.getWays());
-		temp.getRelations().addAll(currentStorage.getRelations());
-		
-		// build indices for the existing data
-		HashMap<Long,Node> nodeIndex = new HashMap<Long, Node>();
-		for (Node n:temp.getNodes()) {
-			nodeIndex.put(n.getOsmId(),n);
-		}
-		HashMap<Long,Way> wayIndex = new HashMap<Long, Way>();
-		for (Way w:temp.getWays()) {
-			wayIndex.put(w.getOsmId(),w);
-		}
-		HashMap<Long,Relation> relationIndex = new HashMap<Long, Relation>();
-		for (Relation r:temp.getRelations()) {
-			relationIndex.put(r.getOsmId(),r);
-		}
-		
-		// add nodes
-		for (Node n:storage.getNodes()) {
-			Node apiNode = apiStorage.getNode(n.getOsmId()); // can contain deleted elements
-			if (!nodeIndex.containsKey(n.getOsmId()) &&  apiNode == null) { // new node no problem
-				temp.getNodes().add(n);
-				nodeIndex.put(n.getOsmId(),n);
-			} else {
-				if (apiNode != null && apiNode.getState() == OsmElement.STATE_DELETED) {
-					if (apiNode.getOsmVersion() >= n.getOsmVersion())
-						continue; // can use node we already have
-					else
-						return false; // can't resolve conflicts, upload first
-				}
-				Node existingNode = temp.getNode(n.getOsmId());
-				if (existingNode.getOsmVersion() >= n.getOsmVersion()) // larger just to be on the safe side
-					continue; // can use node we already have
-				else {
-					if (existingNode.isUnchanged()) {
-						temp.getNodes().remove(existingNode);
-						temp.getNodes().add(n);
-						nodeIndex.put(n.getOsmId(),n); // overwrite existing entry in index
-					} else
-						return false; // can't resolve conflicts, upload first
-				}
-			}
-		}
-		
-		// add ways
-		for (Way w:storage.getWays()) {
-			Way apiWay = apiStorage.getWay(w.getOsmId()); // can contain deleted elements
-			if (!wayIndex.containsKey(w.getOsmId()) && apiWay == null) { // new way no problem
-				temp.getWays().add(w);
-				wayIndex.put(w.getOsmId(),w);
-			} else {
-				if (apiWay != null && apiWay.getState() == OsmElement.STATE_DELETED) {
-					if (apiWay.getOsmVersion() >= w.getOsmVersion())
-						continue; // can use way we already have
-					else
-						return false; // can't resolve conflicts, upload first
-				}
-				Way existingWay = temp.getWay(w.getOsmId());
-				if (existingWay.getOsmVersion() >= w.getOsmVersion()) // larger just to be on the safe side
-					continue; // can use way we already have
-				else {
-					if (existingWay.isUnchanged()) {
-						temp.getWays().remove(existingWay);
-						temp.getWays().add(w);
-						wayIndex.put(w.getOsmId(),w); // overwrite existing entry in index
-					} else
-						return false; // can't resolve conflicts, upload first
+		while (true) {
+			final Snapshot snapshot = new Snapshot(false);
+			final List<Node> nodes = new ArrayList<Node>();
+			final List<Way> ways = new ArrayList<Way>();
+			final List<Relation> relations = new ArrayList<Relation>();
+			final List<Node> apiNodes = new ArrayList<Node>();
+			final List<Way> apiWays = new ArrayList<Way>();
+			final List<Relation> apiRelations = new ArrayList<Relation>();
+			final UndoStorage[] snapshotUndo = new UndoStorage[1];
+			final int[] snapshotVersion = new int[2]; // published changes, edits
+			onMainThread(new Runnable() {
+				@Override
+				public void run() {
+					nodes.addAll(snapshot.copy(currentStorage.getNodes()));
+					ways.addAll(snapshot.copy(currentStorage.getWays()));
+					relations.addAll(snapshot.copy(currentStorage.getRelations()));
+					apiNodes.addAll(snapshot.copy(apiStorage.getNodes()));
+					apiWays.addAll(snapshot.copy(apiStorage.getWays()));
+					apiRelations.addAll(snapshot.copy(apiStorage.getRelations()));
+					snapshotUndo[0] = undo;
+					snapshotVersion[0] = version;
+					snapshotVersion[1] = undo.getChangeCount();
 				}
+			});
+			final MergePlan plan = new MergePlan(storage);
+			if (!plan.plan(snapshot, nodes, ways, relations, apiNodes, apiWays, apiRelations)) {
+				return false; // can't resolve conflicts, upload first
 			}
-		}
-		
-		// fix up way nodes
-		// all nodes should be in storage now, however new ways will have references to copies not in storage
-		for (Way w:temp.getWays()) {
-			List<Node> nodes = w.getNodes();
-			for (int i=0;i<nodes.size();i++) {
-				Node n = nodeIndex.get(nodes.get(i).getOsmId());
-				if (n != null) {
-					nodes.set(i,n);
-				} else {
-					// node might have been deleted, aka somebody deleted nodes outside of the down loaded data bounding box
-					Log.e("StorageDelegator","mergeData null way node");
-					ACRA.getErrorReporter().putCustomData("STATUS","NOCRASH");
-					ACRA.getErrorReporter().handleException(null);
-					return false;
-				}
-			}
-		}
-				
-		// add relations
-		for (Relation r:storage.getRelations()) {
-			Relation apiRelation = apiStorage.getRelation(r.getOsmId()); // can contain deleted elements
-			if (!relationIndex.containsKey(r.getOsmId()) && apiRelation == null) { // new relation no problem
-				temp.getRelations().add(r);
-				relationIndex.put(r.getOsmId(),r);
-			} else {
-				if (apiRelation != null && apiRelation.getState() == OsmElement.STATE_DELETED) {
-					if (apiRelation.getOsmVersion() >= r.getOsmVersion())
-						continue; // can use relation we already have
-					else
-						return false; // can't resolve conflicts, upload first
-				}
-				Relation existingRelation = temp.getRelation(r.getOsmId());
-				if (existingRelation.getOsmVersion() >= r.getOsmVersion()) { // larger just to be on the safe side
-					continue; // can use relation we already have
-				}
-				else {
-					if (existingRelation.isUnchanged()) {
-						temp.getRelations().remove(existingRelation);
-						temp.getRelations().add(r);
-						relationIndex.put(r.getOsmId(),r); // overwrite existing entry in index
-					} else
-						return false; // can't resolve conflicts, upload first
-				}
-			}
-		}
-		
-		// fixup relation back links and memberships 
-		for (Relation r:temp.getRelations()) {
-			for (RelationMember rm:r.getMembers()) {
-				if (rm.getType().equals(Node.NAME)) {
-					if (nodeIndex.containsKey(rm.getRef())) { // if node is downloaded always re-set it
-						Node n = nodeIndex.get(rm.getRef());
-						rm.setElement(n);
-						if (n.hasParentRelation(r.getOsmId())) {
-							n.removeParentRelation(r.getOsmId()); // this removes based on id
-						}							   			  // net effect is to remove the old rel
-						n.addParentRelation(r);		   			  // and add the updated one
-					} else { // check if deleted
-						Node apiNode = apiStorage.getNode(rm.getRef());
-						if (apiNode != null && apiNode.getState() == OsmElement.STATE_DELETED) {
-							Log.e("StorageDelegator","mergeData deleted node in downloaded relation");
-							ACRA.getErrorReporter().handleException(null);
-							return false; // can't resolve conflicts, upload first
-						}
+			final boolean[] result = new boolean[2]; // applied, merged
+			publish(new Runnable() {
+				@Override
+				public void run() {
+					if (version != snapshotVersion[0] || undo != snapshotUndo[0] || undo.getChangeCount() != snapshotVersion[1]) {
+						return; // data has been replaced or edited, plan again
 					}
-				} else if (rm.getType().equals(Way.NAME)) { // same logic as for nodes
-					if (wayIndex.containsKey(rm.getRef())) {
-						Way w = wayIndex.get(rm.getRef());
-						rm.setElement(w);
-						if (w.hasParentRelation(r.getOsmId())) {
-							w.removeParentRelation(r.getOsmId());
+					result[0] = true;
+					result[1] = plan.apply(currentStorage);
+					if (result[1]) {
+						if (box != null) {
+							addBoundingBoxReplacingContained(box);
 						}
-						w.addParentRelation(r);
-					} else { // check if deleted
-						Way apiWay = apiStorage.getWay(rm.getRef());
-						if (apiWay != null && apiWay.getState() == OsmElement.STATE_DELETED) {
-							Log.e("StorageDelegator","mergeData deleted way in downloaded relation");
-							ACRA.getErrorReporter().handleException(null);
-							return false; // can't resolve conflicts, upload first
-						}
-					}
-				} else if (rm.getType().equals(Relation.NAME)) { // same logic as for nodes
-					if (relationIndex.containsKey(rm.getRef())) {
-						Relation r2 = relationIndex.get(rm.getRef());
-						rm.setElement(r2);
-						if (r2.hasParentRelation(r.getOsmId())) {
-							r2.removeParentRelation(r.getOsmId());
-						}
-						r2.addParentRelation(r);
-					} else { // check if deleted
-						Relation apiRel = apiStorage.getRelation(rm.getRef());
-						if (apiRel != null && apiRel.getState() == OsmElement.STATE_DELETED) {
-							Log.e("StorageDelegator","mergeData deleted relation in downloaded relation");
-							ACRA.getErrorReporter().handleException(null);
-							return false; // can't resolve conflicts, upload first
+						if (changeListener != null) {
+							changeListener.onDataChanged();
 						}
 					}
 				}
+			});
+			if (result[0]) {
+				return result[1];
 			}
+			Log.d("StorageDelegator","mergeData data changed, retrying");
 		}
-		
-		currentStorage = temp;
-		undo.setCurrentStorage(temp);
-		return true; // Success
 	}
 
 	/**
@@ -2150,7 +2524,7 @@ public class StorageDelegator implements Serializable, Exportable {
 	 * @return
 	 */
 	public boolean isInDownload(int lat, int lon) {
-		for (BoundingBox bb:new ArrayList<BoundingBox>(currentStorage.getBoundingBoxes())) { // make shallow copy
+		for (BoundingBox bb:currentStorage.getBoundingBoxes()) {
 			if (bb.isIn(lat, lon))
 				return true;
 		}
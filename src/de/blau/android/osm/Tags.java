@@ -57,6 +57,9 @@ public class Tags {
 	
 	
 	public static final String KEY_RAILWAY = "railway";
+	public static final String KEY_LAYER = "layer";
+	public static final String KEY_BRIDGE = "bridge";
+	public static final String KEY_TUNNEL = "tunnel";
 	//
 	public static final String KEY_SOURCE = "source";
 	public static final String VALUE_SURVEY = "survey";
@@ -72,5 +75,6 @@ public class Tags {
 	public static final String KEY_SOURCE_ELE = "ele:source";
 	//
 	public static final String VALUE_YES = "yes";
+	public static final String VALUE_NO = "no";
 	
 }
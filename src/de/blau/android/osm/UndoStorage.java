@@ -1,9 +1,17 @@
 package de.blau.android.osm;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -17,6 +25,7 @@ import de.blau.android.Logic;
 import de.blau.android.Main;
 import de.blau.android.R;
 import de.blau.android.exception.StorageException;
+import de.blau.android.util.SavingHelper;
 
 /**
  * This class provides undo support.
@@ -34,22 +43,45 @@ import de.blau.android.exception.StorageException;
  * in the currentStorage and apiStorage. For this reason, the state includes whether the element was in each
  * of the storages, and on undo, it will be added or deleted if necessary.
  * 
+ * When the next checkpoint is created the saved states are reduced to the differences to the then current state
+ * of the elements (changed tags, the changed section of way node and member lists), which is all that is needed to
+ * restore the state as checkpoints are always restored in order. The history is limited by its estimated size
+ * in memory, see {@link MemoryBudget#getUndoBudget()}, and not by the number of checkpoints.
+ * 
+ * The undo history is saved in its own file, elements that are present in the storages are written as references
+ * and resolved when loading, see {@link #writeToFile(long)} and {@link #readFromFile(Storage, Storage, long)}.
+ * 
  * Avoid calling functions that change the state from other threads except the main one.
  * This may mess up your menu due to calls to updateIcon. You have been warned.
  * 
  * @author Jan Schejbal
  */
 public class UndoStorage implements Serializable {
-	private static final long serialVersionUID = 2L;
+	private static final long serialVersionUID = 3L;
 
 	private static final String TAG = "UndoStorage";
 	
-	// Original storages for "contains" checks and restoration
-	private Storage currentStorage;
-	private final Storage apiStorage;
+	public final static String FILENAME = "undo.res";
+	
+	// Original storages for "contains" checks and restoration, not saved with the undo history
+	private transient Storage currentStorage;
+	private transient Storage apiStorage;
+	
+	// notified of every element that is saved or restored, not saved with the undo history
+	private transient StorageDelegator.ChangeListener changeListener;
 	
 	private final LinkedList<Checkpoint> undoCheckpoints = new LinkedList<Checkpoint>();
 	private final LinkedList<Checkpoint> redoCheckpoints = new LinkedList<Checkpoint>();
+	
+	/**
+	 * identifies the saved state this history belongs to
+	 */
+	private long token = 0;
+	
+	/**
+	 * number of elements saved or restored, lets background tasks notice edits made after they copied the data
+	 */
+	private transient int changeCount = 0;
 
 	/**
 	 * Creates a new UndoStorage.
@@ -74,6 +106,13 @@ public class UndoStorage implements Serializable {
 		this.currentStorage = currentStorage;
 	}
 	
+	/**
+	 * @param changeListener notified of every element that is about to be changed or has been restored, may be null
+	 */
+	void setChangeListener(StorageDelegator.ChangeListener changeListener) {
+		this.changeListener = changeListener;
+	}
+	
 	/**
 	 * Updates the "undo" icon visibility by invalidating the menu.
 	 * Avoid calling this off the main thread, or bad things may happen to your menu.
@@ -92,6 +131,9 @@ public class UndoStorage implements Serializable {
 	public void createCheckpoint(String name) {
 		Log.d("UndoStorage", "creating checkpoint " + name);
 		if (undoCheckpoints.isEmpty() || !undoCheckpoints.getLast().isEmpty()) {
+			if (!undoCheckpoints.isEmpty()) {
+				undoCheckpoints.getLast().seal();
+			}
 			undoCheckpoints.add(new Checkpoint(name));
 			redoCheckpoints.clear();
 		} else {
@@ -100,12 +142,28 @@ public class UndoStorage implements Serializable {
 			undoCheckpoints.getLast().name = name;
 		}
 		
-		while (undoCheckpoints.size() > 100) {
-			undoCheckpoints.removeFirst();
+		long budget = MemoryBudget.getUndoBudget();
+		long size = getEstimatedSize();
+		while (size > budget && undoCheckpoints.size() > 1) {
+			size -= undoCheckpoints.removeFirst().getEstimatedSize();
 		}
 		updateIcon();
 	}
 	
+	/**
+	 * @return the estimated memory used by all undo and redo checkpoints in bytes
+	 */
+	public long getEstimatedSize() {
+		long size = 0;
+		for (Checkpoint checkpoint:undoCheckpoints) {
+			size += checkpoint.getEstimatedSize();
+		}
+		for (Checkpoint checkpoint:redoCheckpoints) {
+			size += checkpoint.getEstimatedSize();
+		}
+		return size;
+	}
+	
 	/**
 	 * remove checkpoint from list. typically called when we otherwise would have an empty checkpoint at the top
 	 */
@@ -121,6 +179,10 @@ public class UndoStorage implements Serializable {
 	 * @param element the element to save
 	 */
 	protected void save(OsmElement element) {
+		changeCount++;
+		if (changeListener != null) {
+			changeListener.onElementChanged(element);
+		}
 		try {
 		if (undoCheckpoints.isEmpty()) {
 			Log.e(TAG, "Attempted to save without valid checkpoint - forgot to call createCheckpoint()");
@@ -129,12 +191,27 @@ public class UndoStorage implements Serializable {
 		undoCheckpoints.getLast().add(element);
 		redoCheckpoints.clear();
 		} catch (Exception ex) {
-			ACRA.getErrorReporter().putCustomData("STATUS","NOCRASH");
-			ACRA.getErrorReporter().handleException(ex); // don't crash the app send a report
-			Toast.makeText(Application.mainActivity, R.string.toast_inconsistent_state, Toast.LENGTH_LONG).show();
+			reportInconsistency(ex);
 		}
 	}
 	
+	/**
+	 * @return the number of elements saved or restored so far, only changes when the data is edited
+	 */
+	int getChangeCount() {
+		return changeCount;
+	}
+	
+	/**
+	 * Send an error report without crashing and tell the user
+	 * @param ex the exception to report
+	 */
+	private static void reportInconsistency(Exception ex) {
+		ACRA.getErrorReporter().putCustomData("STATUS","NOCRASH");
+		ACRA.getErrorReporter().handleException(ex); // don't crash the app send a report
+		Toast.makeText(Application.mainActivity, R.string.toast_inconsistent_state, Toast.LENGTH_LONG).show();
+	}
+	
 	/**
 	 * Performs an undo operation, restoring the state at the last undo checkpoint.
 	 * A redo checkpoint is automatically created.
@@ -149,6 +226,7 @@ public class UndoStorage implements Serializable {
 		String name = undoCheckpoints.getLast().name;
 		Checkpoint redoPoint = new Checkpoint(name);
 		undoCheckpoints.removeLast().restore(redoPoint);
+		redoPoint.seal();
 		redoCheckpoints.add(redoPoint);
 		updateIcon();
 		return name;
@@ -168,6 +246,7 @@ public class UndoStorage implements Serializable {
 		String name = redoCheckpoints.getLast().name;
 		Checkpoint reundoPoint = new Checkpoint(name);
 		redoCheckpoints.removeLast().restore(reundoPoint);
+		reundoPoint.seal();
 		undoCheckpoints.add(reundoPoint);
 		updateIcon();
 		return name;
@@ -194,10 +273,12 @@ public class UndoStorage implements Serializable {
 	 * the original element state is saved.
 	 * (This is ensured by calling {@link #add(OsmElement)} on each change - repeated changes are ignored.)
 	 * 
+	 * Once no further changes are expected the saved states are reduced to differences with {@link #seal()}.
+	 * 
 	 * The checkpoint can later be restored using {@link #restore(Checkpoint)}.
 	 */
 	private class Checkpoint implements Serializable {
-		private static final long serialVersionUID = 1L;
+		private static final long serialVersionUID = 2L;
 		
 		private final HashMap<OsmElement, UndoElement> elements = new HashMap<OsmElement, UndoElement>();
 		public String name;
@@ -209,10 +290,18 @@ public class UndoStorage implements Serializable {
 		/**
 		 * Store the current state of the element, unless a state is already stored.
 		 * Called before any changes to the element occur via {@link UndoStorage#save(OsmElement)}.
+		 * If only the differences to the current state are stored, the complete state is restored
+		 * as the element is going to change.
 		 * @param element the element to save
 		 */
 		public void add(OsmElement element) throws IllegalArgumentException {
-			if (elements.containsKey(element)) return;
+			UndoElement saved = elements.get(element);
+			if (saved != null) {
+				if (saved.isSealed()) {
+					saved.unseal();
+				}
+				return;
+			}
 			
 			if (element instanceof Node) elements.put(element, new UndoNode((Node)element));
 			else if (element instanceof Way) elements.put(element, new UndoWay((Way)element));
@@ -220,6 +309,19 @@ public class UndoStorage implements Serializable {
 			else throw new IllegalArgumentException("Unsupported element type");
 		}
 		
+		/**
+		 * Reduce the saved states to the differences to the current state of the elements.
+		 * Must only be called when the elements are in the state the checkpoint will be restored from. 
+		 */
+		public void seal() {
+			for (Entry<OsmElement, UndoElement> entry : elements.entrySet()) {
+				UndoElement saved = entry.getValue();
+				if (!saved.isSealed()) {
+					saved.seal();
+				}
+			}
+		}
+		
 		/**
 		 * Restores the storages to the state at the time of the creation of this checkpoint.
 		 * @param redoCheckpoint optional - if given, the reverted elements are added to this checkpoint
@@ -228,7 +330,15 @@ public class UndoStorage implements Serializable {
 		public void restore(Checkpoint redoCheckpoint) {
 			for (Entry<OsmElement, UndoElement> entry : elements.entrySet()) {
 				if (redoCheckpoint != null) redoCheckpoint.add(entry.getKey()); // save current state
-				entry.getValue().restore();
+				changeCount++;
+				try {
+					entry.getValue().restore();
+				} catch (IllegalStateException ex) {
+					reportInconsistency(ex);
+				}
+				if (changeListener != null) {
+					changeListener.onElementChanged(entry.getKey());
+				}
 			}
 		}
 		
@@ -239,6 +349,17 @@ public class UndoStorage implements Serializable {
 			return elements.isEmpty();
 		}
 		
+		/**
+		 * @return the estimated memory used by the saved states in bytes
+		 */
+		public long getEstimatedSize() {
+			long size = 0;
+			for (UndoElement saved : elements.values()) {
+				size += saved.getEstimatedSize();
+			}
+			return size;
+		}
+		
 		/**
 		 * @return a string representation of the Checkpoint (its name)
 		 */
@@ -248,22 +369,96 @@ public class UndoStorage implements Serializable {
 		}
 	}
 	
+	/**
+	 * The difference between two lists, the elements between a common prefix and suffix of the old list are stored.
+	 * Elements are compared by identity as the list contents are restored as is.
+	 * @param <T> the type of the list elements
+	 */
+	private static class ListDelta<T> implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		private final int prefix;
+		private final int suffix;
+		private final ArrayList<T> middle;
+		
+		private ListDelta(int prefix, int suffix, ArrayList<T> middle) {
+			this.prefix = prefix;
+			this.suffix = suffix;
+			this.middle = middle;
+		}
+		
+		/**
+		 * Compute the difference that turns newList back in to oldList
+		 * @param oldList the saved list
+		 * @param newList the current list
+		 * @return the delta or null if the lists are the same
+		 */
+		static <T> ListDelta<T> create(List<T> oldList, List<T> newList) {
+			int oldSize = oldList.size();
+			int newSize = newList.size();
+			int max = Math.min(oldSize, newSize);
+			int prefix = 0;
+			while (prefix < max && oldList.get(prefix) == newList.get(prefix)) {
+				prefix++;
+			}
+			if (prefix == oldSize && prefix == newSize) {
+				return null;
+			}
+			int suffix = 0;
+			while (suffix < max - prefix && oldList.get(oldSize - 1 - suffix) == newList.get(newSize - 1 - suffix)) {
+				suffix++;
+			}
+			return new ListDelta<T>(prefix, suffix, new ArrayList<T>(oldList.subList(prefix, oldSize - suffix)));
+		}
+		
+		/**
+		 * @param current the current list
+		 * @return a new list with the saved contents
+		 * @throws IllegalStateException if the current list is not the one the delta was created against
+		 */
+		ArrayList<T> apply(List<T> current) {
+			int size = current.size();
+			if (size < prefix + suffix) {
+				throw new IllegalStateException("list has " + size + " entries, delta expects at least " + (prefix + suffix));
+			}
+			ArrayList<T> result = new ArrayList<T>(prefix + middle.size() + suffix);
+			result.addAll(current.subList(0, prefix));
+			result.addAll(middle);
+			result.addAll(current.subList(size - suffix, size));
+			return result;
+		}
+		
+		int size() {
+			return middle.size();
+		}
+	}
 	
 	/**
 	 * This class contains a past state of a {@link OsmElement}.
 	 * It is stored in {@link Checkpoint}s and used to restore the state of the element on undo.
 	 * The constructor saves the state, {@link #restore()} restores it.
+	 * After {@link #seal()} only the differences to the state of the element at that time are kept, 
+	 * {@link #unseal()} reverses this.
 	 * @author Jan
 	 */
 	private abstract class UndoElement implements Serializable {
-		private static final long serialVersionUID = 1L;
+		private static final long serialVersionUID = 2L;
 
 		protected final OsmElement element;
 		
 		private final long osmId;
 		private final long osmVersion;
 		private final byte state;
-		private final SortedMap<String, String> tags;
+		
+		/**
+		 * the complete tags, null if sealed
+		 */
+		private SortedMap<String, String> tags;
+		/**
+		 * if sealed the old values of changed and removed tags, null values for added tags, 
+		 * null if the tags didn't change
+		 */
+		private TreeMap<String, String> tagDelta;
 		
 		private final boolean inCurrentStorage;
 		private final boolean inApiStorage;
@@ -288,6 +483,62 @@ public class UndoStorage implements Serializable {
 			}
 		}
 		
+		/**
+		 * @return true if only the differences to a later state are stored
+		 */
+		public boolean isSealed() {
+			return tags == null;
+		}
+		
+		/**
+		 * Reduce the saved state to the differences to the current state of the element
+		 */
+		public void seal() {
+			tagDelta = null;
+			if (!tags.equals(element.tags)) {
+				tagDelta = new TreeMap<String, String>();
+				for (Entry<String, String> tag : tags.entrySet()) {
+					if (!tag.getValue().equals(element.tags.get(tag.getKey()))) {
+						tagDelta.put(tag.getKey(), tag.getValue());
+					}
+				}
+				for (String key : element.tags.keySet()) {
+					if (!tags.containsKey(key)) {
+						tagDelta.put(key, null);
+					}
+				}
+			}
+			tags = null;
+		}
+		
+		/**
+		 * Restore the complete saved state from the differences and the current state of the element
+		 */
+		public void unseal() {
+			tags = getSavedTags();
+			tagDelta = null;
+		}
+		
+		/**
+		 * @return the complete saved tags
+		 */
+		private SortedMap<String, String> getSavedTags() {
+			if (tags != null) {
+				return tags;
+			}
+			TreeMap<String, String> result = new TreeMap<String, String>(element.tags);
+			if (tagDelta != null) {
+				for (Entry<String, String> tag : tagDelta.entrySet()) {
+					if (tag.getValue() == null) {
+						result.remove(tag.getKey());
+					} else {
+						result.put(tag.getKey(), tag.getValue());
+					}
+				}
+			}
+			return result;
+		}
+		
 		/**
 		 * Restores the saved state of the element
 		 */
@@ -305,15 +556,34 @@ public class UndoStorage implements Serializable {
 			}
 			
 			// restore saved values
-			element.osmId      = osmId;
+			element.setOsmId(osmId);
 			element.osmVersion = osmVersion;
 			element.state      = state;
-			element.setTags(tags);
+			if (tags != null || tagDelta != null) {
+				element.setTags(getSavedTags());
+			}
 			
 			if (parentRelations != null) {
 				element.parentRelations = new ArrayList<Relation>();
 				element.parentRelations.addAll(parentRelations);
+				element.invalidateParentRelationIndex();
+			}
+		}
+		
+		/**
+		 * @return the estimated memory used by this state in bytes
+		 */
+		public long getEstimatedSize() {
+			long size = MemoryBudget.UNDO_ELEMENT_BYTES;
+			if (tags != null) {
+				size += (long) tags.size() * MemoryBudget.TAG_BYTES;
+			} else if (tagDelta != null) {
+				size += (long) tagDelta.size() * MemoryBudget.TAG_BYTES;
+			}
+			if (parentRelations != null) {
+				size += (long) parentRelations.size() * MemoryBudget.WAY_NODE_BYTES;
 			}
+			return size;
 		}
 	}
 	
@@ -345,19 +615,58 @@ public class UndoStorage implements Serializable {
 	 * @see UndoElement
 	 */
 	private class UndoWay extends UndoElement implements Serializable {
-		private static final long serialVersionUID = 1L;
+		private static final long serialVersionUID = 2L;
+		/**
+		 * the complete way nodes, null if sealed
+		 */
 		private ArrayList<Node> nodes;
+		/**
+		 * the changed section of the way nodes if sealed, null if they didn't change
+		 */
+		private ListDelta<Node> nodeDelta;
 
 		public UndoWay(Way originalWay) {
 			super(originalWay);
 			nodes = new ArrayList<Node>(originalWay.nodes);
 		}
 		
+		@Override
+		public void seal() {
+			super.seal();
+			nodeDelta = ListDelta.create(nodes, ((Way)element).nodes);
+			nodes = null;
+		}
+		
+		@Override
+		public void unseal() {
+			super.unseal();
+			nodes = nodeDelta != null ? nodeDelta.apply(((Way)element).nodes) : new ArrayList<Node>(((Way)element).nodes);
+			nodeDelta = null;
+		}
+		
 		@Override
 		public void restore() {
 			super.restore();
+			List<Node> saved = nodes;
+			if (saved == null) {
+				if (nodeDelta == null) {
+					return; // unchanged
+				}
+				saved = nodeDelta.apply(((Way)element).nodes);
+			}
 			((Way)element).nodes.clear();
-			((Way)element).nodes.addAll(nodes);
+			((Way)element).nodes.addAll(saved);
+		}
+		
+		@Override
+		public long getEstimatedSize() {
+			long size = super.getEstimatedSize();
+			if (nodes != null) {
+				size += (long) nodes.size() * MemoryBudget.WAY_NODE_BYTES;
+			} else if (nodeDelta != null) {
+				size += (long) nodeDelta.size() * MemoryBudget.WAY_NODE_BYTES;
+			}
+			return size;
 		}
 	}
 	
@@ -366,19 +675,57 @@ public class UndoStorage implements Serializable {
 	 * @see UndoElement
 	 */
 	private class UndoRelation extends UndoElement implements Serializable {
-		private static final long serialVersionUID = 1L;
+		private static final long serialVersionUID = 2L;
+		/**
+		 * the complete members, null if sealed
+		 */
 		private ArrayList<RelationMember> members;
+		/**
+		 * the changed section of the members if sealed, null if they didn't change
+		 */
+		private ListDelta<RelationMember> memberDelta;
 
 		public UndoRelation(Relation originalRelation) {
 			super(originalRelation);
-			members = new ArrayList<RelationMember>(originalRelation.members);
+			members = new ArrayList<RelationMember>(originalRelation.getMembers());
+		}
+		
+		@Override
+		public void seal() {
+			super.seal();
+			memberDelta = ListDelta.create(members, ((Relation)element).getMembers());
+			members = null;
+		}
+		
+		@Override
+		public void unseal() {
+			super.unseal();
+			members = memberDelta != null ? memberDelta.apply(((Relation)element).getMembers()) : new ArrayList<RelationMember>(((Relation)element).getMembers());
+			memberDelta = null;
 		}
 		
 		@Override
 		public void restore() {
 			super.restore();
-			((Relation)element).members.clear();
-			((Relation)element).members.addAll(members);
+			List<RelationMember> saved = members;
+			if (saved == null) {
+				if (memberDelta == null) {
+					return; // unchanged
+				}
+				saved = memberDelta.apply(((Relation)element).getMembers());
+			}
+			((Relation)element).setMembers(saved);
+		}
+		
+		@Override
+		public long getEstimatedSize() {
+			long size = super.getEstimatedSize();
+			if (members != null) {
+				size += (long) members.size() * MemoryBudget.MEMBER_BYTES;
+			} else if (memberDelta != null) {
+				size += (long) memberDelta.size() * MemoryBudget.MEMBER_BYTES;
+			}
+			return size;
 		}
 	}
 
@@ -403,4 +750,128 @@ public class UndoStorage implements Serializable {
 		for (Checkpoint checkpoint : redoCheckpoints) result[i++] = checkpoint.name;
 		return result;
 	}
+	
+	/**
+	 * Set the storages after loading
+	 * @param currentStorage the currentStorage in use
+	 * @param apiStorage the apiStorage in use
+	 */
+	void setStorages(Storage currentStorage, Storage apiStorage) {
+		this.currentStorage = currentStorage;
+		this.apiStorage = apiStorage;
+	}
+	
+	/**
+	 * Save the undo history, elements in the storages are written as references
+	 * @param token identifies the saved state the history belongs to
+	 * @return true if successful
+	 */
+	public boolean writeToFile(long token) {
+		this.token = token;
+		return new UndoSavingHelper(currentStorage, apiStorage).save(FILENAME, this, true);
+	}
+	
+	/**
+	 * Load a saved undo history
+	 * @param currentStorage the loaded currentStorage
+	 * @param apiStorage the loaded apiStorage
+	 * @param token identifies the loaded state
+	 * @return the undo history or null if none could be loaded or it doesn't belong to the state
+	 */
+	public static UndoStorage readFromFile(Storage currentStorage, Storage apiStorage, long token) {
+		UndoStorage undo = new UndoSavingHelper(currentStorage, apiStorage).load(FILENAME, true);
+		if (undo == null) {
+			return null;
+		}
+		if (undo.token != token) {
+			Log.w(TAG, "undo history doesn't match saved state, discarding");
+			return null;
+		}
+		undo.setStorages(currentStorage, apiStorage);
+		return undo;
+	}
+	
+	/**
+	 * Replaces an element that is present in the storages when saving
+	 */
+	private static class ElementReference implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		final String type;
+		final long osmId;
+		
+		ElementReference(String type, long osmId) {
+			this.type = type;
+			this.osmId = osmId;
+		}
+	}
+	
+	/**
+	 * SavingHelper that writes elements in the storages as {@link ElementReference} and resolves them on loading
+	 */
+	private static class UndoSavingHelper extends SavingHelper<UndoStorage> {
+		private final Storage currentStorage;
+		private final Storage apiStorage;
+		
+		UndoSavingHelper(Storage currentStorage, Storage apiStorage) {
+			this.currentStorage = currentStorage;
+			this.apiStorage = apiStorage;
+		}
+		
+		@Override
+		protected ObjectOutputStream createObjectOutputStream(OutputStream out) throws IOException {
+			final IdentityHashMap<OsmElement, Boolean> stored = new IdentityHashMap<OsmElement, Boolean>();
+			for (Storage storage : new Storage[] {currentStorage, apiStorage}) {
+				for (OsmElement e : storage.getNodes()) stored.put(e, Boolean.TRUE);
+				for (OsmElement e : storage.getWays()) stored.put(e, Boolean.TRUE);
+				for (OsmElement e : storage.getRelations()) stored.put(e, Boolean.TRUE);
+			}
+			return new ObjectOutputStream(out) {
+				{
+					enableReplaceObject(true);
+				}
+				
+				@Override
+				protected Object replaceObject(Object obj) {
+					if (obj instanceof OsmElement && stored.containsKey(obj)) {
+						OsmElement e = (OsmElement) obj;
+						return new ElementReference(e.getName(), e.getOsmId());
+					}
+					return obj;
+				}
+			};
+		}
+		
+		@Override
+		protected ObjectInputStream createObjectInputStream(InputStream in) throws IOException {
+			final HashMap<String, HashMap<Long, OsmElement>> index = new HashMap<String, HashMap<Long, OsmElement>>();
+			index.put(Node.NAME, new HashMap<Long, OsmElement>());
+			index.put(Way.NAME, new HashMap<Long, OsmElement>());
+			index.put(Relation.NAME, new HashMap<Long, OsmElement>());
+			for (Storage storage : new Storage[] {apiStorage, currentStorage}) { // current storage takes precedence
+				for (OsmElement e : storage.getNodes()) index.get(Node.NAME).put(e.getOsmId(), e);
+				for (OsmElement e : storage.getWays()) index.get(Way.NAME).put(e.getOsmId(), e);
+				for (OsmElement e : storage.getRelations()) index.get(Relation.NAME).put(e.getOsmId(), e);
+			}
+			return new ObjectInputStream(in) {
+				{
+					enableResolveObject(true);
+				}
+				
+				@Override
+				protected Object resolveObject(Object obj) throws IOException {
+					if (obj instanceof ElementReference) {
+						ElementReference ref = (ElementReference) obj;
+						HashMap<Long, OsmElement> elements = index.get(ref.type);
+						OsmElement e = elements != null ? elements.get(ref.osmId) : null;
+						if (e == null) {
+							throw new InvalidObjectException(ref.type + " " + ref.osmId + " not found in storage");
+						}
+						return e;
+					}
+					return obj;
+				}
+			};
+		}
+	}
 }
@@ -12,8 +12,6 @@ import java.util.TreeMap;
 import org.xmlpull.v1.XmlSerializer;
 
 import android.util.Log;
-import de.blau.android.Application;
-import de.blau.android.R;
 import de.blau.android.resources.Profile.FeatureProfile;
 
 public class Way extends OsmElement {
@@ -23,8 +21,6 @@ public class Way extends OsmElement {
 	 */
 	private static final long serialVersionUID = 1104911642016294266L;
 	
-	private static final String[] importantHighways;
-
 	protected final ArrayList<Node> nodes;
 
 	public static final String NAME = "way";
@@ -35,13 +31,6 @@ public class Way extends OsmElement {
 	
 	transient FeatureProfile featureProfile = null; // FeatureProfile is currently not serializable
 	
-	static {
-		importantHighways = (
-				"motorway,motorway_link,trunk,trunk_link,primary,primary_link,"+
-				"secondary,secondary_link,tertiary,residential,unclassified,living_street"
-		).split(",");
-	}
-
 	Way(final long osmId, final long osmVersion, final byte status) {
 		super(osmId, osmVersion, status);
 		nodes = new ArrayList<Node>();
@@ -145,9 +134,15 @@ public class Way extends OsmElement {
 				Log.i("Way", "removeNode removed duplicate node");
 			}
 		}
-		while (nodes.remove(node)) {
-			;
+		// remove all occurrences in one pass
+		int size = 0;
+		for (int i = 0; i < nodes.size(); i++) {
+			Node n = nodes.get(i);
+			if (n != node) {
+				nodes.set(size++, n);
+			}
 		}
+		nodes.subList(size, nodes.size()).clear();
 	}
 	
 	/**
@@ -446,9 +441,10 @@ public class Way extends OsmElement {
 	 * @param newNode The new node.
 	 */
 	void replaceNode(Node existing, Node newNode) {
-		int idx;
-		while ((idx = nodes.indexOf(existing)) != -1) {
-			nodes.set(idx, newNode);
+		for (int i = 0; i < nodes.size(); i++) {
+			if (nodes.get(i) == existing) {
+				nodes.set(i, newNode);
+			}
 		}
 	}
 
@@ -530,61 +526,11 @@ public class Way extends OsmElement {
 		return brainDead;
 	}
 	
-	private boolean hasTagWithValue(String tag, String value) {
+	public boolean hasTagWithValue(String tag, String value) {
 		String tagValue = getTagWithKey(tag);
 		return tagValue != null ? tagValue.equalsIgnoreCase(value) : false;
 	}
 	
-	/**
-	 * Test if the way has a problem.
-	 * @return true if the way has a problem, false if it doesn't.
-	 */
-	@Override
-	protected boolean calcProblem() {
-		String highway = getTagWithKey(Tags.KEY_HIGHWAY); // cache frequently accessed key
-		if (Tags.VALUE_ROAD.equalsIgnoreCase(highway)) {
-			// unsurveyed road
-			return true;
-		}
-		if ((getTagWithKey(Tags.KEY_NAME) == null) && (getTagWithKey(Tags.KEY_REF) == null) 
-				&& !(hasTagWithValue(Tags.KEY_NONAME,Tags.VALUE_YES) || hasTagWithValue(Tags.KEY_VALIDATE_NO_NAME,Tags.VALUE_YES))) {
-			// unnamed way - only the important ones need names
-			for (String h : importantHighways) {
-				if (h.equalsIgnoreCase(highway)) {
-					return true;
-				}
-			}
-		}
-		return super.calcProblem();
-	}
-	
-	@Override
-	public String describeProblem() {
-		String superProblem = super.describeProblem();
-		String wayProblem = "";
-		String highway = getTagWithKey(Tags.KEY_HIGHWAY);
-		if (Tags.VALUE_ROAD.equalsIgnoreCase(highway)) {
-			wayProblem = Application.mainActivity.getString(R.string.toast_unsurveyed_road);
-		}
-		if ((getTagWithKey(Tags.KEY_NAME) == null) && (getTagWithKey(Tags.KEY_REF) == null)
-				&& !(hasTagWithValue(Tags.KEY_NONAME,Tags.VALUE_YES) || hasTagWithValue(Tags.KEY_VALIDATE_NO_NAME,Tags.VALUE_YES))) {
-			boolean isImportant = false;
-			for (String h : importantHighways) {
-				if (h.equalsIgnoreCase(highway)) {
-					isImportant = true;
-					break;
-				}
-			}
-			if (isImportant) {
-				wayProblem = !wayProblem.equals("") ? wayProblem +", " :  Application.mainActivity.getString(R.string.toast_noname);
-			}
-		}
-		if (!superProblem.equals("")) 
-			return superProblem + (!wayProblem.equals("") ? "\n" + wayProblem : "");
-		else
-			return wayProblem;
-	}
-	
 	@Override
 	public ElementType getType() {
 		if (nodes.size() < 2) return ElementType.WAY; // should not happen
@@ -53,6 +53,7 @@ public class Profile  extends DefaultHandler {
 	public final static String WAY = "way";
 	public final static String SELECTED_WAY = "selected_way";
 	public final static String PROBLEM_WAY = "problem_way";
+	public final static String STAGED_WAY = "staged_way";
 	public final static String NODE = "node";
 	public final static String NODE_THIN = "node_thin";
 	public static final String NODE_TAGGED = "node_tagged";
@@ -322,6 +323,11 @@ public class Profile  extends DefaultHandler {
 		fp.setWidthFactor(1.5f);
 		featureProfiles.put(fp.getName(), fp);
 
+		fp = new FeatureProfile(STAGED_WAY, standardPath);
+		fp.setColor(resources.getColor(R.color.grey));
+		fp.getPaint().setAlpha(160);
+		featureProfiles.put(fp.getName(), fp);
+
 		fp = new FeatureProfile(VIEWBOX, standardPath);
 		fp.setColor(resources.getColor(R.color.grey));
 		fp.dontUpdate();
@@ -8,6 +8,7 @@ import android.util.Log;
 import de.blau.android.prefs.Preferences;
 import de.blau.android.services.util.OpenStreetMapTile;
 import de.blau.android.services.util.OpenStreetMapTileFilesystemProvider;
+import de.blau.android.services.util.TileStats;
 import de.blau.android.views.util.OpenStreetMapTileServer;
 
 /**
@@ -33,7 +34,7 @@ public class OpenStreetMapTileProviderService extends Service {
 		}
 		Log.d("OpenStreetMapTilePRoviderService", "Setting cache size to " + tileCacheSize);
 		mFileSystemProvider = new OpenStreetMapTileFilesystemProvider(
-				getBaseContext(),tileCacheSize * 1024 * 1024); //  FSCache
+				getBaseContext(),tileCacheSize * 1024L * 1024L); //  FSCache
 	}
 	
 	@Override
@@ -57,10 +58,22 @@ public class OpenStreetMapTileProviderService extends Service {
 		}
 		//@Override
 		public void getMapTile(String rendererID, int zoomLevel, int tileX,
-				int tileY, IOpenStreetMapTileProviderCallback callback)
+				int tileY, int priority, IOpenStreetMapTileProviderCallback callback)
 				throws RemoteException {
 			OpenStreetMapTile tile = new OpenStreetMapTile(rendererID, zoomLevel, tileX, tileY);
-			mFileSystemProvider.loadMapTileAsync(tile, callback);
+			mFileSystemProvider.loadMapTileAsync(tile, priority, callback);
+		}
+		
+		public void setViewport(String rendererID, int zoomLevel, int left, int top, int right, int bottom) {
+			mFileSystemProvider.setViewport(rendererID, zoomLevel, left, top, right, bottom);
+		}
+		
+		public String getQueueInfo() {
+			return mFileSystemProvider.getQueueInfo();
+		}
+		
+		public String getStats() {
+			return TileStats.toCSV("service");
 		}
 		
 		public void flushCache(String rendererId) {
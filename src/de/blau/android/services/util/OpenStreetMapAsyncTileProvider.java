@@ -1,16 +1,22 @@
 package de.blau.android.services.util;
 
-import java.util.HashSet;
-import java.util.concurrent.ExecutorService;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import android.os.RemoteException;
+import android.util.Log;
 import de.blau.android.services.IOpenStreetMapTileProviderCallback;
 
 /**
- * 
+ *
  * <br/>
  * This class was taken from OpenStreetMapViewer (original package org.andnav.osm) in 2010-06
  * by Marcus Wolschon  to be integrated into the de.blau.androin
- * OSMEditor. 
+ * OSMEditor.
  * @author Nicolas Gramlich
  * @author Marcus Wolschon <Marcus@Wolschon.biz>
  *
@@ -19,37 +25,208 @@ public abstract class OpenStreetMapAsyncTileProvider {
 
 	public static final int IOERR = 1;
 	public static final int DOESNOTEXIST = 2;
-	
-	protected ExecutorService mThreadPool;
-	private final HashSet<String> mPending = new HashSet<String>();
-	
-	public void loadMapTileAsync(final OpenStreetMapTile aTile,
+	/** request was dropped because the tile is no longer visible */
+	public static final int CANCELLED = 3;
+
+	/** Request priorities, lower values are processed first */
+	public static final int PRIORITY_VISIBLE = 0;
+	public static final int PRIORITY_PREFETCH = 1;
+	public static final int PRIORITY_SEED = 2;
+
+	/** number of tiles around the viewport for which we don't cancel requests */
+	private static final int VIEWPORT_MARGIN = 1;
+
+	protected ThreadPoolExecutor mThreadPool;
+	/** prefix for the statistics of this provider */
+	protected String mStatsName = "tile";
+	private final ConcurrentHashMap<String, TileLoader> mPending = new ConcurrentHashMap<String, TileLoader>();
+
+	/** currently visible tile ranges per renderer */
+	private final HashMap<String, Viewport> mViewports = new HashMap<String, Viewport>();
+
+	/** statistics */
+	private final AtomicLong mSequence = new AtomicLong();
+	private final AtomicLong mStarted = new AtomicLong();
+	private final AtomicLong mCancelled = new AtomicLong();
+	private final AtomicLong mTotalWait = new AtomicLong();
+	private final AtomicLong mMaxWait = new AtomicLong();
+
+	/**
+	 * Create a thread pool that runs the {@link TileLoader} with the highest priority first
+	 * @param threads number of threads
+	 * @return the thread pool
+	 */
+	protected static ThreadPoolExecutor newPriorityThreadPool(final int threads) {
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+	}
+
+	public void loadMapTileAsync(final OpenStreetMapTile aTile, final int aPriority,
 			final IOpenStreetMapTileProviderCallback aCallback) {
-		final String tileID = aTile.toString();
-		
-		if(mPending.contains(tileID))
-			return;
-		
-		mPending.add(tileID);
+		schedule(getTileLoader(aTile, aPriority, aCallback));
+	}
+
+	/**
+	 * Run a loader for a tile unless one is already pending for it,
+	 * if the pending one is still queued and has a lower priority it is raised
+	 * @param aLoader the loader, needs to call {@link TileLoader#finished()} when done
+	 */
+	protected void schedule(final TileLoader aLoader) {
+		final String tileID = aLoader.mTile.toString();
+
+		synchronized (mPending) {
+			TileLoader existing = mPending.get(tileID);
+			if (existing != null) {
+				if (aLoader.mPriority < existing.mPriority && mThreadPool.getQueue().remove(existing)) {
+					existing.mPriority = aLoader.mPriority;
+					existing.mQueued = System.currentTimeMillis();
+					mThreadPool.execute(existing);
+				}
+				return;
+			}
+			mPending.put(tileID, aLoader);
+		}
+		mThreadPool.execute(aLoader);
+	}
+
+	/**
+	 * Set the range of tiles that is currently being displayed for a renderer,
+	 * queued requests with {@link #PRIORITY_VISIBLE} outside of the range will be cancelled
+	 * @param rendererID the renderer
+	 * @param zoomLevel the current zoom level
+	 * @param left left most tile x
+	 * @param top top most tile y
+	 * @param right right most tile x
+	 * @param bottom bottom most tile y
+	 */
+	public void setViewport(final String rendererID, final int zoomLevel, final int left, final int top, final int right, final int bottom) {
+		synchronized (mViewports) {
+			mViewports.put(rendererID, new Viewport(zoomLevel, left - VIEWPORT_MARGIN, top - VIEWPORT_MARGIN, right + VIEWPORT_MARGIN, bottom + VIEWPORT_MARGIN));
+		}
+	}
+
+	/**
+	 * Check if a tile is outside of the current viewport of its renderer
+	 * @param aTile the tile
+	 * @return true if the tile isn't visible
+	 */
+	private boolean isOffScreen(final OpenStreetMapTile aTile) {
+		Viewport v;
+		synchronized (mViewports) {
+			v = mViewports.get(aTile.rendererID);
+		}
+		return v != null && !v.contains(aTile);
+	}
+
+	/**
+	 * @return the number of requests waiting to be processed
+	 */
+	public int getQueueDepth() {
+		return mThreadPool.getQueue().size();
+	}
+
+	/**
+	 * @return the average time in ms a request waited before being processed
+	 */
+	public long getAverageWaitTime() {
+		long started = mStarted.get();
+		return started > 0 ? mTotalWait.get() / started : 0;
+	}
 
-		mThreadPool.execute(getTileLoader(aTile, aCallback));
+	/**
+	 * @return a short human readable description of the queue state
+	 */
+	public String getQueueInfo() {
+		return "queued " + getQueueDepth() + " pending " + mPending.size() + " avg. wait " + getAverageWaitTime() + " ms max. wait " + mMaxWait.get() + " ms cancelled " + mCancelled.get();
 	}
-	
-	protected abstract Runnable getTileLoader(final OpenStreetMapTile aTile,
+
+	protected abstract TileLoader getTileLoader(final OpenStreetMapTile aTile, final int aPriority,
 			final IOpenStreetMapTileProviderCallback aCallback);
 
-	protected abstract class TileLoader implements Runnable {
+	/**
+	 * Loads a single tile, the thread pool runs the loader with the highest priority first,
+	 * for equal priority the most recent request wins so that after panning the new tiles are loaded first
+	 */
+	protected abstract class TileLoader implements Runnable, Comparable<TileLoader> {
 		final OpenStreetMapTile mTile;
 		final IOpenStreetMapTileProviderCallback mCallback;
-		
-		public TileLoader(final OpenStreetMapTile aTile, final IOpenStreetMapTileProviderCallback aCallback) {
+		final long mSeq;
+		volatile int mPriority;
+		volatile long mQueued;
+
+		public TileLoader(final OpenStreetMapTile aTile, final int aPriority, final IOpenStreetMapTileProviderCallback aCallback) {
 			mTile = aTile;
 			mCallback = aCallback;
+			mPriority = aPriority;
+			mSeq = mSequence.incrementAndGet();
+			mQueued = System.currentTimeMillis();
 		}
-		
+
+		@Override
+		public final void run() {
+			long wait = System.currentTimeMillis() - mQueued;
+			mStarted.incrementAndGet();
+			mTotalWait.addAndGet(wait);
+			TileStats.record(mStatsName + TileStats.QUEUE_WAIT, wait);
+			if (wait > mMaxWait.get()) {
+				mMaxWait.set(wait);
+			}
+			if (mPriority == PRIORITY_VISIBLE && isOffScreen(mTile)) {
+				mCancelled.incrementAndGet();
+				try {
+					mCallback.mapTileFailed(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, CANCELLED);
+				} catch (RemoteException e) {
+					Log.e("OpenStreetMapAsyncTileProvider", "Error cancelling tile " + mTile, e);
+				} finally {
+					finished();
+				}
+				return;
+			}
+			load();
+		}
+
+		/**
+		 * Actually load the tile, this has to call {@link #finished()} when done
+		 */
+		protected abstract void load();
+
 		protected void finished() {
 			mPending.remove(mTile.toString());
 		}
+
+		@Override
+		public int compareTo(TileLoader another) {
+			if (mPriority != another.mPriority) {
+				return mPriority < another.mPriority ? -1 : 1;
+			}
+			return mSeq > another.mSeq ? -1 : (mSeq == another.mSeq ? 0 : 1);
+		}
+	}
+
+	/**
+	 * A range of tiles at one zoom level, x values wrap around
+	 */
+	private static class Viewport {
+		final int zoomLevel;
+		final int left;
+		final int top;
+		final int right;
+		final int bottom;
+
+		Viewport(int zoomLevel, int left, int top, int right, int bottom) {
+			this.zoomLevel = zoomLevel;
+			this.left = left;
+			this.top = top;
+			this.right = right;
+			this.bottom = bottom;
+		}
+
+		boolean contains(final OpenStreetMapTile aTile) {
+			if (aTile.zoomLevel != zoomLevel) {
+				return false;
+			}
+			final int size = 1 << zoomLevel;
+			final int dx = ((aTile.x - left) % size + size) % size;
+			return dx <= right - left && aTile.y >= top && aTile.y <= bottom;
+		}
 	}
-	
 }
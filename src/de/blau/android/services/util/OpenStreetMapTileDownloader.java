@@ -2,21 +2,24 @@
 package de.blau.android.services.util;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.concurrent.Executors;
+import java.util.Locale;
 
 import android.content.Context;
 import android.os.RemoteException;
 import android.util.Log;
 import de.blau.android.Application;
 import de.blau.android.services.IOpenStreetMapTileProviderCallback;
+import de.blau.android.services.util.OpenStreetMapTileProviderDataBase.CacheInfo;
 import de.blau.android.views.util.OpenStreetMapTileServer;
 
 /**
@@ -36,6 +39,11 @@ public class OpenStreetMapTileDownloader extends OpenStreetMapAsyncTileProvider
 	// ===========================================================
 
 	private static final String DEBUGTAG = "OSM_DOWNLOADER";
+	
+	private static final int TIMEOUT = 30 * 1000; // connect and read timeout in ms
+	
+	/** HTTP status code for rate limiting, not defined in HttpURLConnection */
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
 
 	// ===========================================================
 	// Fields
@@ -43,6 +51,8 @@ public class OpenStreetMapTileDownloader extends OpenStreetMapAsyncTileProvider
 
 	protected final Context mCtx;
 	protected final OpenStreetMapTileFilesystemProvider mMapTileFSProvider;
+	/** per host connection limits and statistics */
+	protected final TileHostManager mHosts = new TileHostManager();
 
 	// ===========================================================
 	// Constructors
@@ -51,7 +61,11 @@ public class OpenStreetMapTileDownloader extends OpenStreetMapAsyncTileProvider
 	public OpenStreetMapTileDownloader(final Context ctx, final OpenStreetMapTileFilesystemProvider aMapTileFSProvider){
 		mCtx = ctx;
 		mMapTileFSProvider = aMapTileFSProvider;
-		mThreadPool = Executors.newFixedThreadPool(4);
+		mThreadPool = newPriorityThreadPool(4);
+		mStatsName = "download";
+		// keep idle connections open for reuse, this only affects the tile service process
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", Integer.toString(TileHostManager.MAX_CONNECTIONS_PER_HOST));
 	}
 
 	// ===========================================================
@@ -63,18 +77,86 @@ public class OpenStreetMapTileDownloader extends OpenStreetMapAsyncTileProvider
 	// ===========================================================
 
 	@Override
-	protected Runnable getTileLoader(OpenStreetMapTile aTile, IOpenStreetMapTileProviderCallback aCallback) {
-		return new TileLoader(aTile, aCallback);
+	protected TileLoader getTileLoader(OpenStreetMapTile aTile, int aPriority, IOpenStreetMapTileProviderCallback aCallback) {
+		return new TileLoader(aTile, aPriority, aCallback, null);
 	};
 	
+	@Override
+	public String getQueueInfo() {
+		return super.getQueueInfo() + " hosts " + mHosts.getInfo();
+	}
+	
 	// ===========================================================
 	// Methodsorg.andnav.osm.services
 	// ===========================================================
 
+	/**
+	 * Check if there is a newer version of an expired tile on the server, the tile is only
+	 * re-downloaded and passed to the callback if the server indicates that it has changed
+	 * @param aTile the expired tile
+	 * @param aCallback callback to call if we received a new version of the tile
+	 * @param info the validators for a conditional request 
+	 */
+	void revalidateMapTileAsync(final OpenStreetMapTile aTile, final IOpenStreetMapTileProviderCallback aCallback, final CacheInfo info) {
+		schedule(new TileLoader(aTile, PRIORITY_PREFETCH, aCallback, info));
+	}
+	
+	/**
+	 * Determine the expiry time of a tile, an explicit max age for the tile source 
+	 * overrides what the server tells us 
+	 * @param conn the connection the tile was retrieved with
+	 * @param renderer the tile source
+	 * @return the expiry time in ms since the epoch or 0 if the tile doesn't expire
+	 */
+	private static long getExpires(final URLConnection conn, final OpenStreetMapTileServer renderer) {
+		long now = System.currentTimeMillis();
+		if (renderer.getMaxAge() > 0) {
+			return now + renderer.getMaxAge() * 1000L;
+		}
+		String cacheControl = conn.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (String directive:cacheControl.toLowerCase(Locale.US).split(",")) {
+				directive = directive.trim();
+				if (directive.startsWith("max-age=")) {
+					try {
+						return now + Long.parseLong(directive.substring(8).trim()) * 1000L;
+					} catch (NumberFormatException e) {
+						// ignore and try the Expires header
+					}
+				} else if ("no-cache".equals(directive) || "no-store".equals(directive)) {
+					return now; // always revalidate
+				}
+			}
+		}
+		return conn.getExpiration(); // 0 if not present or invalid
+	}
+
+	/**
+	 * Get the retry delay a server asked for
+	 * @param conn the connection
+	 * @return the delay in s or 0 if none was given or it isn't in the delta seconds format
+	 */
+	private static long getRetryAfter(final URLConnection conn) {
+		String retryAfter = conn.getHeaderField("Retry-After");
+		if (retryAfter != null) {
+			try {
+				return Long.parseLong(retryAfter.trim());
+			} catch (NumberFormatException e) {
+				// HTTP date, ignore
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Get the URL for a tile
+	 * @param tile the tile
+	 * @return the URL, an empty String if the metadata hasn't been loaded yet or null if all hosts for the tile are backing off
+	 */
 	private String buildURL(final OpenStreetMapTile tile) {
 		OpenStreetMapTileServer renderer = OpenStreetMapTileServer.get(mCtx, tile.rendererID, false);
 		// Log.d("OpenStreetMapTileDownloader","metadata loaded "+ renderer.isMetadataLoaded() + " " + renderer.getTileURLString(tile));
-		return renderer.isMetadataLoaded() ? renderer.getTileURLString(tile) : "";
+		return renderer.isMetadataLoaded() ? mHosts.getTileURLString(renderer, tile) : "";
 	}
 
 	// ===========================================================
@@ -83,49 +165,117 @@ public class OpenStreetMapTileDownloader extends OpenStreetMapAsyncTileProvider
 	
 	private class TileLoader extends OpenStreetMapAsyncTileProvider.TileLoader {
 		
-		public TileLoader(final OpenStreetMapTile aTile, final IOpenStreetMapTileProviderCallback aCallback) {
-			super(aTile, aCallback);
+		/** validators of the tile we already have, null if this is not a revalidation */
+		final CacheInfo mCacheInfo;
+		
+		public TileLoader(final OpenStreetMapTile aTile, final int aPriority, final IOpenStreetMapTileProviderCallback aCallback, final CacheInfo aCacheInfo) {
+			super(aTile, aPriority, aCallback);
+			mCacheInfo = aCacheInfo;
 		}
 		
-		//@Override
 		@Override
-		public void run() {
+		protected void load() {
 			InputStream in = null;
-			OutputStream out = null;
 			
 			String tileURLString = buildURL(mTile);
+			TileHostManager.Host host = null;
 			
 			try {
+				if (tileURLString == null) {
+					throw new IOException("all hosts are backing off");
+				}
 				if (tileURLString.length() > 0) {
 					if(Log.isLoggable(DEBUGTAG, Log.DEBUG))
 						Log.d(DEBUGTAG, "Downloading Maptile from url: " + tileURLString);
 					
-					URLConnection conn = new URL(tileURLString).openConnection();
+					URL url = new URL(tileURLString);
+					TileHostManager.Host h = mHosts.getHost(url);
+					if (!h.acquire()) {
+						throw new IOException("no connection to " + url.getHost() + " available");
+					}
+					host = h;
+					long start = System.currentTimeMillis();
+					URLConnection conn = url.openConnection();
+					conn.setConnectTimeout(TIMEOUT);
+					conn.setReadTimeout(TIMEOUT);
 					conn.setRequestProperty("User-Agent", Application.userAgent);
+					final boolean conditional = mCacheInfo != null && mCacheInfo.hasValidator();
+					if (conditional) {
+						if (mCacheInfo.etag != null) {
+							conn.setRequestProperty("If-None-Match", mCacheInfo.etag);
+						}
+						if (mCacheInfo.lastModified != null) {
+							conn.setRequestProperty("If-Modified-Since", mCacheInfo.lastModified);
+						}
+					}
+					OpenStreetMapTileServer renderer = OpenStreetMapTileServer.get(mCtx, mTile.rendererID, false);
+					int responseCode = conn instanceof HttpURLConnection ? ((HttpURLConnection)conn).getResponseCode() : HttpURLConnection.HTTP_OK;
+					if (responseCode == HTTP_TOO_MANY_REQUESTS || responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+						// server is overloaded, give it a break
+						StreamUtils.closeStream(((HttpURLConnection)conn).getErrorStream());
+						host.failure(getRetryAfter(conn));
+						throw new IOException("server returned " + responseCode);
+					}
+					if (conditional && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+						// the tile we already have is still current, only update the expiry time
+						String etag = conn.getHeaderField("ETag");
+						String lastModified = conn.getHeaderField("Last-Modified");
+						OpenStreetMapTileDownloader.this.mMapTileFSProvider.setCacheInfo(mTile, 
+								new CacheInfo(etag != null ? etag : mCacheInfo.etag, lastModified != null ? lastModified : mCacheInfo.lastModified, getExpires(conn, renderer)));
+						if(Log.isLoggable(DEBUGTAG, Log.DEBUG)) {
+							Log.d(DEBUGTAG, "Maptile not modified: " + tileURLString);
+						}
+						host.success(0, System.currentTimeMillis() - start);
+						return;
+					}
 					if ("no-tile".equals(conn.getHeaderField("X-VE-Tile-Info"))) {
 						// handle special Bing header that indicates no tile is available
 						throw new FileNotFoundException("tile not available");
 					}
-					in = new BufferedInputStream(conn.getInputStream(), StreamUtils.IO_BUFFER_SIZE);
-					
-					final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-					out = new BufferedOutputStream(dataStream, StreamUtils.IO_BUFFER_SIZE);
-					StreamUtils.copy(in, out);
-					out.flush();
-					
-					final byte[] data = dataStream.toByteArray();
+					final byte[] data;
+					final int contentLength = conn.getContentLength();
+					if (contentLength > 0) {
+						// read directly in to the array that is saved and passed on 
+						in = new DataInputStream(conn.getInputStream());
+						data = new byte[contentLength];
+						((DataInputStream)in).readFully(data);
+					} else {
+						in = new BufferedInputStream(conn.getInputStream(), StreamUtils.IO_BUFFER_SIZE);
+						final ByteArrayOutputStream dataStream = new ByteArrayOutputStream(StreamUtils.IO_BUFFER_SIZE * 2);
+						StreamUtils.copy(in, dataStream);
+						data = dataStream.toByteArray();
+					}
 					
 					if (data.length == 0) {
 						throw new IOException("no tile data");
 					}
+					long elapsed = System.currentTimeMillis() - start;
+					host.success(data.length, elapsed);
+					TileStats.record(TileStats.DOWNLOAD, elapsed);
+					TileStats.record(TileStats.DOWNLOAD_BYTES, data.length);
 					
 					OpenStreetMapTileDownloader.this.mMapTileFSProvider.saveFile(mTile, data);
+					OpenStreetMapTileDownloader.this.mMapTileFSProvider.setCacheInfo(mTile, 
+							new CacheInfo(conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"), getExpires(conn, renderer)));
 					if(Log.isLoggable(DEBUGTAG, Log.DEBUG)) {
 						Log.d(DEBUGTAG, "Maptile saved to: " + tileURLString);
 					}
 					mCallback.mapTileLoaded(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, data);
 				}
 			} catch (IOException ioe) {
+				if (!(ioe instanceof FileNotFoundException)) {
+					TileStats.count(TileStats.DOWNLOAD_ERROR);
+				}
+				if (host != null && (ioe instanceof SocketTimeoutException || ioe instanceof ConnectException)) {
+					host.failure(0); // host unreachable or too slow
+				}
+				if (mCacheInfo != null) {
+					// revalidation failed, we simply keep on using the tile we have
+					if(Log.isLoggable(DEBUGTAG, Log.DEBUG)) {
+						Log.d(DEBUGTAG, "Revalidating MapTile failed. Exception: " + ioe.getClass().getSimpleName() + " " + tileURLString);
+					}
+					return;
+				}
 				try {
 					int reason = ioe instanceof FileNotFoundException ? DOESNOTEXIST : IOERR;
 					if (reason == DOESNOTEXIST)
@@ -148,7 +298,9 @@ public class OpenStreetMapTileDownloader extends OpenStreetMapAsyncTileProvider
 			} catch (RemoteException re) {
 			} finally {
 				StreamUtils.closeStream(in);
-				StreamUtils.closeStream(out);
+				if (host != null) {
+					host.release();
+				}
 				finished();
 			}
 		}
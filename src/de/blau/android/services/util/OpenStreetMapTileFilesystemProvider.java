@@ -11,7 +11,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 import android.os.Environment;
@@ -19,6 +22,8 @@ import android.os.RemoteException;
 import android.util.Log;
 import de.blau.android.services.IOpenStreetMapTileProviderCallback;
 import de.blau.android.services.exceptions.EmptyCacheException;
+import de.blau.android.services.util.OpenStreetMapTileProviderDataBase.CacheInfo;
+import de.blau.android.util.Hash;
 import de.blau.android.views.util.OpenStreetMapTileServer;
 
 /**
@@ -44,8 +49,12 @@ public class OpenStreetMapTileFilesystemProvider extends OpenStreetMapAsyncTileP
 
 	protected final Context mCtx;
 	protected final OpenStreetMapTileProviderDataBase mDatabase;
-	protected final int mMaxFSCacheByteSize;
-	protected int mCurrentFSCacheByteSize;
+	protected final long mMaxFSCacheByteSize;
+	protected final AtomicLong mCurrentFSCacheByteSize;
+	
+	/** eviction runs on its own thread so that downloads never wait for it */
+	private final ExecutorService mEvictionExecutor = Executors.newSingleThreadExecutor();
+	private final AtomicBoolean mEvicting = new AtomicBoolean(false);
 
 	/** online provider */
 	protected OpenStreetMapTileDownloader mTileDownloader;
@@ -59,12 +68,13 @@ public class OpenStreetMapTileFilesystemProvider extends OpenStreetMapAsyncTileP
 	 * @param aMaxFSCacheByteSize the size of the cached MapTiles will not exceed this size.
 	 * @param aCache to load fs-tiles to.
 	 */
-	public OpenStreetMapTileFilesystemProvider(final Context ctx, final int aMaxFSCacheByteSize) {
+	public OpenStreetMapTileFilesystemProvider(final Context ctx, final long aMaxFSCacheByteSize) {
 		mCtx = ctx;
 		mMaxFSCacheByteSize = aMaxFSCacheByteSize;
 		mDatabase = new OpenStreetMapTileProviderDataBase(ctx, this);
-		mCurrentFSCacheByteSize = mDatabase.getCurrentFSCacheByteSize();
-		mThreadPool = Executors.newFixedThreadPool(2);
+		mCurrentFSCacheByteSize = new AtomicLong(mDatabase.getCurrentFSCacheByteSize());
+		mThreadPool = newPriorityThreadPool(2);
+		mStatsName = "fs";
 
 		mTileDownloader = new OpenStreetMapTileDownloader(ctx, this);
 
@@ -76,8 +86,8 @@ public class OpenStreetMapTileFilesystemProvider extends OpenStreetMapAsyncTileP
 	// Getter & Setter
 	// ===========================================================
 	
-	public int getCurrentFSCacheByteSize() {
-		return mCurrentFSCacheByteSize;
+	public long getCurrentFSCacheByteSize() {
+		return mCurrentFSCacheByteSize.get();
 	}
 
 
@@ -86,61 +96,124 @@ public class OpenStreetMapTileFilesystemProvider extends OpenStreetMapAsyncTileP
 	// ===========================================================
 
 	@Override
-	protected Runnable getTileLoader(OpenStreetMapTile aTile, IOpenStreetMapTileProviderCallback aCallback) {
-		return new TileLoader(aTile, aCallback);
+	protected TileLoader getTileLoader(OpenStreetMapTile aTile, int aPriority, IOpenStreetMapTileProviderCallback aCallback) {
+		return new TileLoader(aTile, aPriority, aCallback);
 	};
 	
+	@Override
+	public void setViewport(final String rendererID, final int zoomLevel, final int left, final int top, final int right, final int bottom) {
+		super.setViewport(rendererID, zoomLevel, left, top, right, bottom);
+		mTileDownloader.setViewport(rendererID, zoomLevel, left, top, right, bottom);
+	}
+	
+	@Override
+	public String getQueueInfo() {
+		return "FS " + super.getQueueInfo() + " / Download " + mTileDownloader.getQueueInfo();
+	}
+	
 	// ===========================================================
 	// Methods
 	// ===========================================================
 
+	/**
+	 * Store a tile, tiles are stored by the hash of their contents so that identical tiles 
+	 * (sea, empty overlay tiles, "no imagery" place holders) only use space once
+	 * @param tile the tile
+	 * @param someData the tile contents
+	 * @throws IOException
+	 */
 	public void saveFile(final OpenStreetMapTile tile, final byte[] someData) throws IOException{
-		final OutputStream bos = getOutput(tile);
-		bos.write(someData);
-		bos.flush();
-		bos.close();
-
-		synchronized (this) {
-			try {
-				final int bytesGrown = mDatabase.addTileOrIncrement(tile, someData.length);
-				mCurrentFSCacheByteSize += bytesGrown;
+		final String path = buildPath(tile);
+		if (path == null) {
+			throw new FileNotFoundException("null tile path");
+		}
+		final String hash = Hash.sha256(someData);
+		final File blob = new File(buildBlobPath(hash));
+		writeBlob(blob, someData);
+		(new File(path)).delete(); // may have been stored in its own file previously
 
-				if (Log.isLoggable(DEBUGTAG, Log.DEBUG))
-					Log.i(DEBUGTAG, "FSCache Size is now: " + mCurrentFSCacheByteSize + " Bytes");
+		try {
+			final long currentSize = mCurrentFSCacheByteSize.addAndGet(mDatabase.addTileOrIncrement(tile, someData.length, hash));
+			// an unreferenced blob with the same contents may have been purged after the check above,
+			// now that the tile references it purging won't touch it any more
+			writeBlob(blob, someData);
 
-				/* If Cache is full... */
-				try {
+			if (Log.isLoggable(DEBUGTAG, Log.DEBUG))
+				Log.i(DEBUGTAG, "FSCache Size is now: " + currentSize + " Bytes");
 
-					if (mCurrentFSCacheByteSize > mMaxFSCacheByteSize){
-						if (Log.isLoggable(DEBUGTAG, Log.DEBUG))
-							Log.d(DEBUGTAG, "Freeing FS cache...");
-						mCurrentFSCacheByteSize -= mDatabase.deleteOldest((int)(mMaxFSCacheByteSize * 0.05f)); // Free 5% of cache
+			/* If Cache is full... */
+			if (currentSize > mMaxFSCacheByteSize && mEvicting.compareAndSet(false, true)) {
+				mEvictionExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (Log.isLoggable(DEBUGTAG, Log.DEBUG))
+								Log.d(DEBUGTAG, "Freeing FS cache...");
+							long sizeNeeded = mCurrentFSCacheByteSize.get() - (long)(mMaxFSCacheByteSize * 0.95f); // Free at least 5% of cache
+							mDatabase.deleteOldest(sizeNeeded);
+						} catch (EmptyCacheException e) {
+							if(Log.isLoggable(DEBUGTAG, Log.DEBUG))
+								Log.e(DEBUGTAG, "Cache empty", e);
+						} catch (IllegalStateException e) {
+							if (Log.isLoggable(DEBUGTAG, Log.DEBUG)) {
+								Log.e(DEBUGTAG, "Freeing FS cache failed", e);
+							}
+						} finally {
+							// resync with the running total in the DB
+							mCurrentFSCacheByteSize.set(mDatabase.getCurrentFSCacheByteSize());
+							mEvicting.set(false);
+						}
 					}
-				} catch (EmptyCacheException e) {
-					if(Log.isLoggable(DEBUGTAG, Log.DEBUG))
-						Log.e(DEBUGTAG, "Cache empty", e);
-				}
-			} catch (IllegalStateException e) {
-				if (Log.isLoggable(DEBUGTAG, Log.DEBUG)) {
-					Log.e(DEBUGTAG, "Tile saving failed", e);
-				}
+				});
+			}
+		} catch (IllegalStateException e) {
+			if (Log.isLoggable(DEBUGTAG, Log.DEBUG)) {
+				Log.e(DEBUGTAG, "Tile saving failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Write the contents of a blob if the file doesn't exist
+	 * @param blob the blob file
+	 * @param someData the tile contents
+	 * @throws IOException
+	 */
+	private void writeBlob(final File blob, final byte[] someData) throws IOException {
+		if (!blob.exists()) {
+			// write to a temporary file first, other threads may be storing the same contents
+			final File tempFile = new File(blob.getPath() + "." + Thread.currentThread().getId());
+			final OutputStream bos = getOutput(tempFile);
+			bos.write(someData);
+			bos.flush();
+			bos.close();
+			if (!tempFile.renameTo(blob)) {
+				tempFile.delete();
 			}
 		}
 	}
 
+	/**
+	 * Store the HTTP cache validators and expiry time for a tile
+	 * @param tile the tile
+	 * @param info validators and expiry time
+	 */
+	void setCacheInfo(final OpenStreetMapTile tile, final CacheInfo info) {
+		mDatabase.setCacheInfo(tile, info);
+	}
+
 	public void clearCurrentFSCache(){
-		cutCurrentFSCacheBy(Integer.MAX_VALUE); // Delete all
+		cutCurrentFSCacheBy(Long.MAX_VALUE); // Delete all
 	}
 	
-	public void cutCurrentFSCacheBy(final int bytesToCut){
+	public void cutCurrentFSCacheBy(final long bytesToCut){
 		try {
-			synchronized (this) {
-				mDatabase.deleteOldest(Integer.MAX_VALUE); // Delete all
-			}
-			mCurrentFSCacheByteSize = 0;
+			mDatabase.deleteOldest(bytesToCut);
 		} catch (EmptyCacheException e) {
 			if (Log.isLoggable(DEBUGTAG, Log.DEBUG))
 				Log.e(DEBUGTAG, "Cache empty", e);
+		} finally {
+			mCurrentFSCacheByteSize.set(mDatabase.getCurrentFSCacheByteSize());
 		}
 	}
 
@@ -155,6 +228,8 @@ public class OpenStreetMapTileFilesystemProvider extends OpenStreetMapAsyncTileP
 			if (Log.isLoggable(DEBUGTAG, Log.DEBUG)) {
 				Log.e(DEBUGTAG, "Flushing tile cache failed", e);
 			}
+		} finally {
+			mCurrentFSCacheByteSize.set(mDatabase.getCurrentFSCacheByteSize());
 		}
 	}
 	
@@ -167,6 +242,17 @@ public class OpenStreetMapTileFilesystemProvider extends OpenStreetMapAsyncTileP
 				+ tile.x + "/" + tile.y + ext + ".andnav"; 
 	}
 	
+	/**
+	 * Get the path of the file holding tile contents with a specific hash, the files are 
+	 * spread over sub-directories by the first two characters of the hash
+	 * @param hash the SHA-256 hash of the contents
+	 * @return the path
+	 */
+	public String buildBlobPath(final String hash) {
+		return Environment.getExternalStorageDirectory().getPath()
+				+ "/andnav2/tiles/blobs/" + hash.substring(0, 2) + "/" + hash + ".andnav";
+	}
+	
 	private InputStream getInput(final OpenStreetMapTile tile) throws FileNotFoundException {
 		String path = buildPath(tile);
 		if (path == null) {
@@ -175,12 +261,7 @@ public class OpenStreetMapTileFilesystemProvider extends OpenStreetMapAsyncTileP
 		return new BufferedInputStream(new FileInputStream(path), StreamUtils.IO_BUFFER_SIZE);
 	}
 	
-	private OutputStream getOutput(final OpenStreetMapTile tile) throws IOException {
-		String path = buildPath(tile);
-		if (path == null) {
-			throw new FileNotFoundException("null tile path");
-		}
-		File file = new File(path);
+	private OutputStream getOutput(final File file) throws IOException {
 		File parent = file.getParentFile();
 		if (!parent.isDirectory()) {
 			synchronized (this) {
@@ -200,13 +281,12 @@ public class OpenStreetMapTileFilesystemProvider extends OpenStreetMapAsyncTileP
 
 	private class TileLoader extends OpenStreetMapAsyncTileProvider.TileLoader {
 
-		public TileLoader(final OpenStreetMapTile aTile, final IOpenStreetMapTileProviderCallback aCallback) {
-			super(aTile, aCallback);
+		public TileLoader(final OpenStreetMapTile aTile, final int aPriority, final IOpenStreetMapTileProviderCallback aCallback) {
+			super(aTile, aPriority, aCallback);
 		}
 
-		//@Override
 		@Override
-		public void run() {
+		protected void load() {
 			DataInputStream dataIs = null;
 			try {
 				synchronized (OpenStreetMapTileFilesystemProvider.this) {
@@ -224,23 +304,32 @@ public class OpenStreetMapTileFilesystemProvider extends OpenStreetMapAsyncTileP
 					mCallback.mapTileFailed(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, DOESNOTEXIST);
 					return;
 				}
-				String path = buildPath(mTile);
+				String hash = OpenStreetMapTileFilesystemProvider.this.mDatabase.getTileHash(mTile);
+				String path = hash != null ? buildBlobPath(hash) : buildPath(mTile);
 				if (path == null) {
 					throw new FileNotFoundException("null tile path");
 				}
+				long start = System.currentTimeMillis();
 				File tileFile = new File(path);
 				byte[] data = new byte[(int)tileFile.length()];
 				dataIs = new DataInputStream(new FileInputStream(tileFile));
 				dataIs.readFully(data);
+				TileStats.record(TileStats.FS_READ, System.currentTimeMillis() - start);
 				mCallback.mapTileLoaded(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, data);
 				// the following will add back tiles to the DB if the DB was deleted
 				OpenStreetMapTileFilesystemProvider.this.mDatabase.addTileOrIncrement(mTile, (int)tileFile.length());
+				// stale tiles are displayed immediately and checked for a newer version in the background
+				CacheInfo info = OpenStreetMapTileFilesystemProvider.this.mDatabase.getCacheInfo(mTile);
+				if (info != null && info.isExpired()) {
+					mTileDownloader.revalidateMapTileAsync(mTile, mCallback, info);
+				}
 				if (Log.isLoggable(DEBUGTAG, Log.DEBUG))
 					Log.d(DEBUGTAG, "Loaded: " + mTile.toString());
 			} catch (FileNotFoundException e) {
+				TileStats.count(TileStats.FS_MISS);
 				if (Log.isLoggable(DEBUGTAG, Log.DEBUG))
 					Log.i(DEBUGTAG, "FS failed, request for download.");
-				mTileDownloader.loadMapTileAsync(mTile, mCallback);
+				mTileDownloader.loadMapTileAsync(mTile, mPriority, mCallback);
 			} catch (IOException e) {
 				try {
 					mCallback.mapTileFailed(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, IOERR);
@@ -277,6 +366,7 @@ public class OpenStreetMapTileFilesystemProvider extends OpenStreetMapAsyncTileP
 	 */
 	public void destroy() {
 		Log.d(DEBUGTAG, "Closing tile database");
+		mEvictionExecutor.shutdownNow();
 		mDatabase.close();
 	}
 
@@ -11,9 +11,11 @@ import org.acra.ACRA;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import de.blau.android.services.exceptions.EmptyCacheException;
 import de.blau.android.views.util.OpenStreetMapViewConstants;
@@ -30,17 +32,33 @@ import de.blau.android.views.util.OpenStreetMapViewConstants;
 class OpenStreetMapTileProviderDataBase implements OpenStreetMapViewConstants {
 
 	private static final String DATABASE_NAME = "osmaptilefscache_db";
-	private static final int DATABASE_VERSION = 4;
+	private static final int DATABASE_VERSION = 7;
 
 	private static final String T_FSCACHE = "t_fscache";	
 	private static final String T_FSCACHE_RENDERER_ID = "rendererID";
 	private static final String T_FSCACHE_ZOOM_LEVEL = "zoomLevel";
 	private static final String T_FSCACHE_TILE_X = "tileX";
 	private static final String T_FSCACHE_TILE_Y = "tileY";
-//	private static final String T_FSCACHE_LINK = "link";			// TODO store link (multiple use for similar tiles)
 	private static final String T_FSCACHE_TIMESTAMP = "timestamp";
 	private static final String T_FSCACHE_USAGECOUNT = "countused";
 	private static final String T_FSCACHE_FILESIZE = "filesize";
+	private static final String T_FSCACHE_ETAG = "etag";
+	private static final String T_FSCACHE_LASTMODIFIED = "lastmodified";
+	private static final String T_FSCACHE_EXPIRES = "expires";
+	private static final String T_FSCACHE_HASH = "hash"; // if not null the tile is stored in the blob with this hash
+	
+	private static final String T_FSCACHE_TIMESTAMP_INDEX = "t_fscache_timestamp_idx";
+	
+	private static final String T_METADATA = "t_metadata";
+	private static final String T_METADATA_KEY = "key";
+	private static final String T_METADATA_VALUE = "value";
+	private static final String METADATA_CACHE_SIZE = "fscache_size";
+	
+	// identical tiles are stored only once, this table holds the reference counts 
+	private static final String T_BLOBS = "t_blobs";
+	private static final String T_BLOBS_HASH = "hash";
+	private static final String T_BLOBS_REFCOUNT = "refcount";
+	private static final String T_BLOBS_FILESIZE = "filesize";
 	
 	private static final String T_RENDERER               = "t_renderer";
 	private static final String T_RENDERER_ID            = "id";
@@ -59,6 +77,10 @@ class OpenStreetMapTileProviderDataBase implements OpenStreetMapViewConstants {
 	+ T_FSCACHE_TIMESTAMP + " DATE NOT NULL,"
 	+ T_FSCACHE_USAGECOUNT + " INTEGER NOT NULL DEFAULT 1,"
 	+ T_FSCACHE_FILESIZE + " INTEGER NOT NULL,"
+	+ T_FSCACHE_ETAG + " VARCHAR(255),"
+	+ T_FSCACHE_LASTMODIFIED + " VARCHAR(255),"
+	+ T_FSCACHE_EXPIRES + " INTEGER NOT NULL DEFAULT 0,"
+	+ T_FSCACHE_HASH + " VARCHAR(64),"
 	+ " PRIMARY KEY(" 	+ T_FSCACHE_RENDERER_ID + ","
 						+ T_FSCACHE_ZOOM_LEVEL + ","
 						+ T_FSCACHE_TILE_X + ","
@@ -75,6 +97,47 @@ class OpenStreetMapTileProviderDataBase implements OpenStreetMapViewConstants {
 	+ T_RENDERER_TILE_SIZE_LOG + " INTEGER NOT NULL"
 	+ ");";
 
+	private static final String T_METADATA_CREATE_COMMAND = "CREATE TABLE IF NOT EXISTS " + T_METADATA
+	+ " ("
+	+ T_METADATA_KEY + " VARCHAR(255) PRIMARY KEY,"
+	+ T_METADATA_VALUE + " INTEGER NOT NULL DEFAULT 0"
+	+ ");";
+	
+	private static final String T_BLOBS_CREATE_COMMAND = "CREATE TABLE IF NOT EXISTS " + T_BLOBS
+	+ " ("
+	+ T_BLOBS_HASH + " VARCHAR(64) PRIMARY KEY,"
+	+ T_BLOBS_REFCOUNT + " INTEGER NOT NULL DEFAULT 0,"
+	+ T_BLOBS_FILESIZE + " INTEGER NOT NULL"
+	+ ");";
+	
+	private static final String T_FSCACHE_TIMESTAMP_INDEX_CREATE_COMMAND = "CREATE INDEX IF NOT EXISTS " + T_FSCACHE_TIMESTAMP_INDEX 
+	+ " ON " + T_FSCACHE + "(" + T_FSCACHE_TIMESTAMP + ");";
+	
+	// the triggers keep the running total of the cache size and the blob reference counts up to date,
+	// tiles stored in a blob are accounted for by the blob
+	private static final String UPDATE_CACHE_SIZE = "UPDATE " + T_METADATA + " SET " + T_METADATA_VALUE + " = " + T_METADATA_VALUE;
+	private static final String WHERE_CACHE_SIZE = " WHERE " + T_METADATA_KEY + "='" + METADATA_CACHE_SIZE + "';";
+	private static final String NEW_TILE_SIZE = "(CASE WHEN NEW." + T_FSCACHE_HASH + " IS NULL THEN NEW." + T_FSCACHE_FILESIZE + " ELSE 0 END)";
+	private static final String OLD_TILE_SIZE = "(CASE WHEN OLD." + T_FSCACHE_HASH + " IS NULL THEN OLD." + T_FSCACHE_FILESIZE + " ELSE 0 END)";
+	private static final String UPDATE_REFCOUNT = "UPDATE " + T_BLOBS + " SET " + T_BLOBS_REFCOUNT + " = " + T_BLOBS_REFCOUNT;
+	private static final String[] TRIGGER_NAMES = new String[] {"t_fscache_insert", "t_fscache_delete", "t_fscache_update", "t_blobs_insert", "t_blobs_delete"};
+	private static final String[] TRIGGER_CREATE_COMMANDS = new String[] {
+		"CREATE TRIGGER IF NOT EXISTS t_fscache_insert AFTER INSERT ON " + T_FSCACHE + " BEGIN "
+			+ UPDATE_CACHE_SIZE + " + " + NEW_TILE_SIZE + WHERE_CACHE_SIZE
+			+ UPDATE_REFCOUNT + " + 1 WHERE " + T_BLOBS_HASH + " = NEW." + T_FSCACHE_HASH + "; END;",
+		"CREATE TRIGGER IF NOT EXISTS t_fscache_delete AFTER DELETE ON " + T_FSCACHE + " BEGIN "
+			+ UPDATE_CACHE_SIZE + " - " + OLD_TILE_SIZE + WHERE_CACHE_SIZE
+			+ UPDATE_REFCOUNT + " - 1 WHERE " + T_BLOBS_HASH + " = OLD." + T_FSCACHE_HASH + "; END;",
+		"CREATE TRIGGER IF NOT EXISTS t_fscache_update AFTER UPDATE OF " + T_FSCACHE_FILESIZE + "," + T_FSCACHE_HASH + " ON " + T_FSCACHE + " BEGIN "
+			+ UPDATE_CACHE_SIZE + " - " + OLD_TILE_SIZE + " + " + NEW_TILE_SIZE + WHERE_CACHE_SIZE
+			+ UPDATE_REFCOUNT + " - 1 WHERE " + T_BLOBS_HASH + " = OLD." + T_FSCACHE_HASH + " AND (NEW." + T_FSCACHE_HASH + " IS NULL OR NEW." + T_FSCACHE_HASH + " <> OLD." + T_FSCACHE_HASH + ");"
+			+ UPDATE_REFCOUNT + " + 1 WHERE " + T_BLOBS_HASH + " = NEW." + T_FSCACHE_HASH + " AND (OLD." + T_FSCACHE_HASH + " IS NULL OR NEW." + T_FSCACHE_HASH + " <> OLD." + T_FSCACHE_HASH + "); END;",
+		"CREATE TRIGGER IF NOT EXISTS t_blobs_insert AFTER INSERT ON " + T_BLOBS + " BEGIN "
+			+ UPDATE_CACHE_SIZE + " + NEW." + T_BLOBS_FILESIZE + WHERE_CACHE_SIZE + " END;",
+		"CREATE TRIGGER IF NOT EXISTS t_blobs_delete AFTER DELETE ON " + T_BLOBS + " BEGIN "
+			+ UPDATE_CACHE_SIZE + " - OLD." + T_BLOBS_FILESIZE + WHERE_CACHE_SIZE + " END;"
+	};
+	
 	private static final String SQL_ARG = "=?";
 	private static final String AND = " AND ";
 
@@ -89,8 +152,18 @@ class OpenStreetMapTileProviderDataBase implements OpenStreetMapViewConstants {
 														+ T_FSCACHE_TILE_Y + SQL_ARG + AND
 														+ T_FSCACHE_FILESIZE + "=0";
 	
+	private static final String[] T_FSCACHE_CACHEINFO_COLUMNS = new String[]{T_FSCACHE_ETAG, T_FSCACHE_LASTMODIFIED, T_FSCACHE_EXPIRES};
+	private static final String[] T_FSCACHE_HASH_COLUMNS = new String[]{T_FSCACHE_HASH};
+	private static final String[] T_BLOBS_HASH_COLUMNS = new String[]{T_BLOBS_HASH};
+	private static final String T_BLOBS_WHERE = T_BLOBS_HASH + SQL_ARG;
+	private static final String T_BLOBS_WHERE_UNREFERENCED = T_BLOBS_REFCOUNT + " <= 0";
+
 	private static final String T_FSCACHE_SELECT_LEAST_USED = "SELECT " + T_FSCACHE_RENDERER_ID  + "," + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + "," + T_FSCACHE_TILE_Y + "," + T_FSCACHE_FILESIZE + " FROM " + T_FSCACHE + " WHERE "  + T_FSCACHE_USAGECOUNT + " = (SELECT MIN(" + T_FSCACHE_USAGECOUNT + ") FROM "  + T_FSCACHE + ")";
-	private static final String T_FSCACHE_SELECT_OLDEST = "SELECT " + T_FSCACHE_RENDERER_ID  + "," + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + "," + T_FSCACHE_TILE_Y + "," + T_FSCACHE_FILESIZE + " FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_FILESIZE + " > 0 ORDER BY " + T_FSCACHE_TIMESTAMP + " ASC";
+	/** number of tiles we delete in one transaction */
+	private static final int DELETE_BATCH_SIZE = 200;
+	private static final String T_FSCACHE_SELECT_OLDEST = "SELECT rowid," + T_FSCACHE_RENDERER_ID  + "," + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + "," + T_FSCACHE_TILE_Y + "," + T_FSCACHE_FILESIZE + "," + T_FSCACHE_HASH + " FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_FILESIZE + " > 0 ORDER BY " + T_FSCACHE_TIMESTAMP + " ASC LIMIT " + DELETE_BATCH_SIZE;
+	private static final String T_FSCACHE_DELETE_ROWID = "DELETE FROM " + T_FSCACHE + " WHERE rowid=?";
+	private static final String T_METADATA_SELECT_CACHE_SIZE = "SELECT " + T_METADATA_VALUE + " FROM " + T_METADATA + " WHERE " + T_METADATA_KEY + "='" + METADATA_CACHE_SIZE + "'";
 	
 	// ===========================================================
 	// Fields
@@ -135,12 +208,29 @@ class OpenStreetMapTileProviderDataBase implements OpenStreetMapViewConstants {
 	}
 	
 	public boolean incrementUse(final OpenStreetMapTile aTile) {
+		return incrementUse(aTile, 0, null);
+	}
+	
+	/**
+	 * Update the usage information for a tile 
+	 * @param aTile the tile
+	 * @param aByteFilesize if > 0 the new size of the tile
+	 * @param aHash if not null the hash of the blob the tile is now stored in
+	 * @return true if the tile was found
+	 */
+	private boolean incrementUse(final OpenStreetMapTile aTile, final int aByteFilesize, final String aHash) {
 		boolean ret = false;
 		if (mDatabase.isOpen()) {
 			final String[] args = new String[]{"" + aTile.rendererID, "" + aTile.zoomLevel, "" + aTile.x, "" + aTile.y};
 			ContentValues cv = new ContentValues();
 			cv.put(T_FSCACHE_USAGECOUNT, T_FSCACHE_USAGECOUNT + " + 1");
 			cv.put(T_FSCACHE_TIMESTAMP, getNowAsIso8601());
+			if (aByteFilesize > 0) {
+				cv.put(T_FSCACHE_FILESIZE, aByteFilesize);
+			}
+			if (aHash != null) {
+				cv.put(T_FSCACHE_HASH, aHash);
+			}
 			
 			try {
 				ret = mDatabase.update(T_FSCACHE, cv, T_FSCACHE_WHERE, args) > 0;
@@ -157,19 +247,139 @@ class OpenStreetMapTileProviderDataBase implements OpenStreetMapViewConstants {
 		return ret;
 	}
 
-	public synchronized int addTileOrIncrement(final OpenStreetMapTile aTile, final int aByteFilesize) { 
+	public int addTileOrIncrement(final OpenStreetMapTile aTile, final int aByteFilesize) {
+		return addTileOrIncrement(aTile, aByteFilesize, null);
+	}
+	
+	/**
+	 * Add a tile or update its usage information
+	 * @param aTile the tile
+	 * @param aByteFilesize the size of the tile, 0 marks the tile as invalid
+	 * @param aHash if not null the hash of the blob the tile is stored in
+	 * @return the number of bytes the cache has grown by
+	 */
+	public synchronized int addTileOrIncrement(final OpenStreetMapTile aTile, final int aByteFilesize, final String aHash) { 
 		// there seems to be danger for  a race condition here
-		if (incrementUse(aTile)) {
+		int added = 0;
+		if (aHash != null && addBlob(aHash, aByteFilesize)) {
+			added = aByteFilesize;
+		}
+		if (incrementUse(aTile, aByteFilesize, aHash)) {
 			if(DEBUGMODE)
 				Log.d(OpenStreetMapTileFilesystemProvider.DEBUGTAG, "Tile existed");
-			return 0;
+			return added;
 		} else {
-			insertNewTileInfo(aTile, aByteFilesize);
-			return aByteFilesize;
+			insertNewTileInfo(aTile, aByteFilesize, aHash);
+			return aHash != null ? added : aByteFilesize;
+		}
+	}
+	
+	/**
+	 * Add a blob if it doesn't exist yet, the reference count is maintained by triggers 
+	 * on the tile table so the tile referencing it needs to be added afterwards
+	 * @param aHash the hash of the contents
+	 * @param aByteFilesize the size of the contents
+	 * @return true if the blob was added
+	 */
+	private boolean addBlob(final String aHash, final int aByteFilesize) {
+		boolean added = false;
+		if (mDatabase.isOpen()) {
+			final String[] args = new String[]{aHash};
+			final Cursor c = mDatabase.query(T_BLOBS, T_BLOBS_HASH_COLUMNS, T_BLOBS_WHERE, args, null, null, null);
+			final boolean exists = c.getCount() > 0;
+			c.close();
+			if (!exists) {
+				final ContentValues cv = new ContentValues();
+				cv.put(T_BLOBS_HASH, aHash);
+				cv.put(T_BLOBS_REFCOUNT, 0);
+				cv.put(T_BLOBS_FILESIZE, aByteFilesize);
+				added = mDatabase.insert(T_BLOBS, null, cv) != -1;
+			}
+		}
+		return added;
+	}
+	
+	/**
+	 * Get the hash of the blob a tile is stored in
+	 * @param aTile the tile
+	 * @return the hash or null if the tile is stored in its own file or not in the DB
+	 */
+	public String getTileHash(final OpenStreetMapTile aTile) {
+		String hash = null;
+		if (mDatabase.isOpen()) {
+			final String[] args = new String[]{"" + aTile.rendererID, "" + aTile.zoomLevel, "" + aTile.x, "" + aTile.y};
+			final Cursor c = mDatabase.query(T_FSCACHE, T_FSCACHE_HASH_COLUMNS, T_FSCACHE_WHERE, args, null, null, null);
+			if (c.moveToFirst()) {
+				hash = c.getString(0);
+			}
+			c.close();
+		}
+		return hash;
+	}
+	
+	/**
+	 * Delete all blobs that are no longer referenced by any tile and their files
+	 */
+	synchronized void purgeUnreferencedBlobs() {
+		if (!mDatabase.isOpen()) {
+			return;
+		}
+		try {
+			final Cursor c = mDatabase.query(T_BLOBS, T_BLOBS_HASH_COLUMNS, T_BLOBS_WHERE_UNREFERENCED, null, null, null, null);
+			if (c.moveToFirst()) {
+				do {
+					String path = mFSProvider.buildBlobPath(c.getString(0));
+					(new File(path)).delete();
+					if(DEBUGMODE)
+						Log.i(OpenStreetMapTileFilesystemProvider.DEBUGTAG, "Deleted blob from FS: " + path);
+				} while (c.moveToNext());
+			}
+			c.close();
+			mDatabase.delete(T_BLOBS, T_BLOBS_WHERE_UNREFERENCED, null);
+		} catch (SQLException e) {
+			Log.e(OpenStreetMapTileFilesystemProvider.DEBUGTAG, "Purging blobs failed " + e);
 		}
 	}
 
-	private void insertNewTileInfo(final OpenStreetMapTile aTile, final int aByteFilesize) {
+	/**
+	 * Get the HTTP cache validators and expiry time stored for a tile
+	 * @param aTile the tile
+	 * @return the stored CacheInfo or null if the tile is not in the DB
+	 */
+	public CacheInfo getCacheInfo(final OpenStreetMapTile aTile) {
+		CacheInfo info = null;
+		if (mDatabase.isOpen()) {
+			final String[] args = new String[]{"" + aTile.rendererID, "" + aTile.zoomLevel, "" + aTile.x, "" + aTile.y};
+			final Cursor c = mDatabase.query(T_FSCACHE, T_FSCACHE_CACHEINFO_COLUMNS, T_FSCACHE_WHERE, args, null, null, null);
+			if (c.moveToFirst()) {
+				info = new CacheInfo(c.getString(0), c.getString(1), c.getLong(2));
+			}
+			c.close();
+		}
+		return info;
+	}
+	
+	/**
+	 * Store the HTTP cache validators and expiry time for a tile
+	 * @param aTile the tile
+	 * @param info validators and expiry time
+	 */
+	public void setCacheInfo(final OpenStreetMapTile aTile, final CacheInfo info) {
+		if (mDatabase.isOpen()) {
+			final String[] args = new String[]{"" + aTile.rendererID, "" + aTile.zoomLevel, "" + aTile.x, "" + aTile.y};
+			ContentValues cv = new ContentValues();
+			cv.put(T_FSCACHE_ETAG, info.etag);
+			cv.put(T_FSCACHE_LASTMODIFIED, info.lastModified);
+			cv.put(T_FSCACHE_EXPIRES, info.expires);
+			try {
+				mDatabase.update(T_FSCACHE, cv, T_FSCACHE_WHERE, args);
+			} catch (Exception e) {
+				Log.e(OpenStreetMapTileFilesystemProvider.DEBUGTAG, "setCacheInfo failed " + e);
+			}
+		}
+	}
+
+	private void insertNewTileInfo(final OpenStreetMapTile aTile, final int aByteFilesize, final String aHash) {
 		if (mDatabase.isOpen()) {
 			final ContentValues cv = new ContentValues();
 			cv.put(T_FSCACHE_RENDERER_ID, aTile.rendererID);
@@ -178,60 +388,108 @@ class OpenStreetMapTileProviderDataBase implements OpenStreetMapViewConstants {
 			cv.put(T_FSCACHE_TILE_Y, aTile.y);
 			cv.put(T_FSCACHE_TIMESTAMP, getNowAsIso8601());
 			cv.put(T_FSCACHE_FILESIZE, aByteFilesize);
+			if (aHash != null) {
+				cv.put(T_FSCACHE_HASH, aHash);
+			}
 			mDatabase.insert(T_FSCACHE, null, cv);
 		}
 	}
 	
-	long deleteOldest(final int pSizeNeeded) throws EmptyCacheException {
-		if (!mDatabase.isOpen()) { // this seems to happen, protect against crashing
-			Log.e(OpenStreetMapTileFilesystemProvider.DEBUGTAG,"deleteOldest called on closed DB");
-			return 0;
-		}
-		final Cursor c = mDatabase.rawQuery(T_FSCACHE_SELECT_OLDEST, null);
-		final ArrayList<OpenStreetMapTile> deleteFromDB = new ArrayList<OpenStreetMapTile>();
+	/**
+	 * Delete the least recently used tiles, this uses the index on the timestamp and deletes
+	 * in batches of {@link #DELETE_BATCH_SIZE} tiles, each batch in one transaction. Blobs are only
+	 * deleted once no tile references them any more, the actually freed space is determined from the running total.
+	 * @param pSizeNeeded number of bytes that should be freed
+	 * @return number of bytes actually freed
+	 * @throws EmptyCacheException if there was nothing to delete
+	 */
+	long deleteOldest(final long pSizeNeeded) throws EmptyCacheException {
+		final long initialSize = getCurrentFSCacheByteSize();
 		long sizeGained = 0;
-		if(c != null){
-			OpenStreetMapTile tileToBeDeleted; 
+		boolean first = true;
+		final ArrayList<Long> deleteFromDB = new ArrayList<Long>(DELETE_BATCH_SIZE);
+		while (sizeGained < pSizeNeeded) {
+			if (!mDatabase.isOpen()) { // this seems to happen, protect against crashing
+				Log.e(OpenStreetMapTileFilesystemProvider.DEBUGTAG,"deleteOldest called on closed DB");
+				return sizeGained;
+			}
+			final Cursor c = mDatabase.rawQuery(T_FSCACHE_SELECT_OLDEST, null);
+			if (c == null) {
+				break;
+			}
+			deleteFromDB.clear();
 			if(c.moveToFirst()){
+				OpenStreetMapTile tileToBeDeleted; 
+				long batchSize = 0;
 				do{
-					final int sizeItem = c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_FILESIZE));
-					sizeGained += sizeItem;
+					final int sizeItem = c.getInt(5);
+					batchSize += sizeItem;
 					
-					tileToBeDeleted = new OpenStreetMapTile(c.getString(c.getColumnIndexOrThrow(T_FSCACHE_RENDERER_ID)),c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_ZOOM_LEVEL)),
-							c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_TILE_X)),c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_TILE_Y)));
-
-					deleteFromDB.add(tileToBeDeleted);
-					Log.d("OpenStreetMapTileProvierDatabase","deleteOldest " + tileToBeDeleted.toString());
-					// mCtx.deleteFile(mFSProvider.buildPath(tileToBeDeleted));
-					(new File(mFSProvider.buildPath(tileToBeDeleted))).delete();
-					
-					if(DEBUGMODE)
-						Log.i(OpenStreetMapTileFilesystemProvider.DEBUGTAG, "Deleted from FS: " + mFSProvider.buildPath(tileToBeDeleted) + " for " + sizeItem + " Bytes");
-				}while(c.moveToNext() && sizeGained < pSizeNeeded);
+					deleteFromDB.add(Long.valueOf(c.getLong(0)));
+					if (c.isNull(6)) { // blobs are deleted when they are no longer referenced
+						tileToBeDeleted = new OpenStreetMapTile(c.getString(1),c.getInt(2),c.getInt(3),c.getInt(4));
+						// mCtx.deleteFile(mFSProvider.buildPath(tileToBeDeleted));
+						String path = mFSProvider.buildPath(tileToBeDeleted);
+						if (path != null) {
+							(new File(path)).delete();
+						}
+						if(DEBUGMODE)
+							Log.i(OpenStreetMapTileFilesystemProvider.DEBUGTAG, "Deleted from FS: " + path + " for " + sizeItem + " Bytes");
+					}
+				}while(c.moveToNext() && sizeGained + batchSize < pSizeNeeded);
+				c.close();
 			}else{
 				c.close();
-				throw new EmptyCacheException("Cache seems to be empty.");
+				if (first) {
+					throw new EmptyCacheException("Cache seems to be empty.");
+				}
+				break;
 			}
-			c.close();
-
-			for(OpenStreetMapTile t : deleteFromDB) {
-				final String[] args = new String[]{"" + t.rendererID, "" + t.zoomLevel, "" + t.x, "" + t.y};
+			first = false;
+			// note we have already deleted the on disks tiles so it is not really an issue if we don't delete everything from the DB
+			if (deleteRows(deleteFromDB) == 0) {
+				break; // avoid looping for ever
+			}
+			purgeUnreferencedBlobs();
+			sizeGained = initialSize - getCurrentFSCacheByteSize();
+		}
+		return sizeGained;
+	}
+	
+	/**
+	 * Delete rows from the tile table in one transaction
+	 * @param rowids the rowids of the tiles to delete
+	 * @return the number of deleted rows
+	 */
+	private int deleteRows(final ArrayList<Long> rowids) {
+		int count = 0;
+		try {
+			if (mDatabase.isOpen()) {
+				mDatabase.beginTransaction();
 				try {
-					if (mDatabase.isOpen()) { // note we have already deleted the on disks tiles so it is not really an issue if we don't delete everything from the DB
-						mDatabase.delete(T_FSCACHE, T_FSCACHE_WHERE, args);
-					}
-				} catch (Exception e) {
-					if (e instanceof NullPointerException) {
-						// just log ... likely these are really spurious
-						Log.e(OpenStreetMapTileFilesystemProvider.DEBUGTAG, "NPE in deleteOldest");
-					} else {
-						ACRA.getErrorReporter().putCustomData("STATUS","NOCRASH");
-						ACRA.getErrorReporter().handleException(e);	
+					final SQLiteStatement delete = mDatabase.compileStatement(T_FSCACHE_DELETE_ROWID);
+					for (Long rowid:rowids) {
+						delete.bindLong(1, rowid.longValue());
+						delete.execute();
+						count++;
 					}
+					delete.close();
+					mDatabase.setTransactionSuccessful();
+				} finally {
+					mDatabase.endTransaction();
 				}
 			}
+		} catch (Exception e) {
+			if (e instanceof NullPointerException) {
+				// just log ... likely these are really spurious
+				Log.e(OpenStreetMapTileFilesystemProvider.DEBUGTAG, "NPE in deleteRows");
+			} else {
+				ACRA.getErrorReporter().putCustomData("STATUS","NOCRASH");
+				ACRA.getErrorReporter().handleException(e);	
+			}
+			return 0;
 		}
-		return sizeGained;
+		return count;
 	}
 	
 	/**
@@ -241,8 +499,8 @@ class OpenStreetMapTileProviderDataBase implements OpenStreetMapViewConstants {
 	 */
 	public void flushCache(String rendererID) throws EmptyCacheException {
 		Log.d(OpenStreetMapTileFilesystemProvider.DEBUGTAG, "Flushing cache for " + rendererID); 
-		final Cursor c = mDatabase.rawQuery("SELECT " + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + "," + T_FSCACHE_TILE_Y + "," + T_FSCACHE_FILESIZE + " FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_RENDERER_ID + "='" + rendererID + "' ORDER BY " + T_FSCACHE_TIMESTAMP + " ASC", null);
-		final ArrayList<OpenStreetMapTile> deleteFromDB = new ArrayList<OpenStreetMapTile>();
+		final String[] args = new String[]{rendererID};
+		final Cursor c = mDatabase.rawQuery("SELECT " + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + "," + T_FSCACHE_TILE_Y + "," + T_FSCACHE_FILESIZE + "," + T_FSCACHE_HASH + " FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_RENDERER_ID + SQL_ARG, args);
 		long sizeGained = 0;
 		if(c != null){
 			OpenStreetMapTile tileToBeDeleted; 
@@ -254,11 +512,7 @@ class OpenStreetMapTileProviderDataBase implements OpenStreetMapViewConstants {
 					
 					tileToBeDeleted = new OpenStreetMapTile(rendererID,c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_ZOOM_LEVEL)),
 							c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_TILE_X)),c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_TILE_Y)));
-					Log.d("OpenStreetMapTileProvierDatabase","deleteOldest " + tileToBeDeleted.toString());
-			
-					deleteFromDB.add(tileToBeDeleted);
-					
-					if (sizeItem > 0) { // 0 size marker for invalid tiles
+					if (sizeItem > 0 && c.isNull(c.getColumnIndexOrThrow(T_FSCACHE_HASH))) { // 0 size marker for invalid tiles, blobs are deleted when no longer referenced
 						// mCtx.deleteFile(mFSProvider.buildPath(tileToBeDeleted));
 						(new File(mFSProvider.buildPath(tileToBeDeleted))).delete();
 					}
@@ -271,29 +525,27 @@ class OpenStreetMapTileProviderDataBase implements OpenStreetMapViewConstants {
 			}
 			c.close();
 
-			for(OpenStreetMapTile t : deleteFromDB) {
-				final String[] args = new String[]{"" + t.rendererID, "" + t.zoomLevel, "" + t.x, "" + t.y};
-				mDatabase.delete(T_FSCACHE, T_FSCACHE_WHERE, args);
-			}
+			mDatabase.delete(T_FSCACHE, T_FSCACHE_RENDERER_ID + SQL_ARG, args);
+			purgeUnreferencedBlobs();
 		}
 	}
 
 	// ===========================================================
 	// Methods
 	// ===========================================================
-	private String TMP_COLUMN = "tmp"; 
-	public int getCurrentFSCacheByteSize() {
-		int ret = 0;
+	/**
+	 * Get the current size of the cache, this is read from a running total maintained by triggers
+	 * @return the size of all cached tiles in bytes 
+	 */
+	public long getCurrentFSCacheByteSize() {
+		long ret = 0;
 		if (mDatabase.isOpen()) {
-			final Cursor c = mDatabase.rawQuery("SELECT SUM(" + T_FSCACHE_FILESIZE + ") AS " + TMP_COLUMN + " FROM " + T_FSCACHE, null);
-			if(c != null){
-				if(c.moveToFirst()){
-					ret = c.getInt(c.getColumnIndexOrThrow(TMP_COLUMN));
-				}
-				c.close();
+			try {
+				ret = DatabaseUtils.longForQuery(mDatabase, T_METADATA_SELECT_CACHE_SIZE, null);
+			} catch (SQLException e) {
+				Log.e(OpenStreetMapTileFilesystemProvider.DEBUGTAG, "Reading cache size failed " + e);
 			}
 		}
-
 		return ret;
 	}
 
@@ -320,22 +572,94 @@ class OpenStreetMapTileProviderDataBase implements OpenStreetMapViewConstants {
 			try {
 				db.execSQL(T_RENDERER_CREATE_COMMAND);
 				db.execSQL(T_FSCACHE_CREATE_COMMAND);
+				db.execSQL(T_BLOBS_CREATE_COMMAND);
+				createSizeAccounting(db);
 			} catch (SQLException e) {
 				Log.w(OpenStreetMapTileFilesystemProvider.DEBUGTAG, "Problem creating database", e);
 			}
 		}
+		
+		/**
+		 * Create the index on the timestamp, the table holding the total cache size and
+		 * the triggers updating it and the blob reference counts, the total is initialized from the existing tiles and blobs.
+		 * @param db the database
+		 */
+		private void createSizeAccounting(SQLiteDatabase db) {
+			db.execSQL(T_FSCACHE_TIMESTAMP_INDEX_CREATE_COMMAND);
+			db.execSQL(T_METADATA_CREATE_COMMAND);
+			db.execSQL("INSERT OR REPLACE INTO " + T_METADATA + " (" + T_METADATA_KEY + "," + T_METADATA_VALUE + ") SELECT '" + METADATA_CACHE_SIZE 
+					+ "', IFNULL((SELECT SUM(" + T_FSCACHE_FILESIZE + ") FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_HASH + " IS NULL),0)"
+					+ " + IFNULL((SELECT SUM(" + T_BLOBS_FILESIZE + ") FROM " + T_BLOBS + "),0)");
+			for (String trigger:TRIGGER_NAMES) {
+				db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+			}
+			for (String trigger:TRIGGER_CREATE_COMMANDS) {
+				db.execSQL(trigger);
+			}
+		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			if (oldVersion >= 4) {
+				// keep the existing tiles
+				try {
+					if (oldVersion == 4) { // they simply don't have any expiry information 
+						db.execSQL("ALTER TABLE " + T_FSCACHE + " ADD COLUMN " + T_FSCACHE_ETAG + " VARCHAR(255)");
+						db.execSQL("ALTER TABLE " + T_FSCACHE + " ADD COLUMN " + T_FSCACHE_LASTMODIFIED + " VARCHAR(255)");
+						db.execSQL("ALTER TABLE " + T_FSCACHE + " ADD COLUMN " + T_FSCACHE_EXPIRES + " INTEGER NOT NULL DEFAULT 0");
+					}
+					if (oldVersion <= 6) { // existing tiles stay in their own files
+						db.execSQL("ALTER TABLE " + T_FSCACHE + " ADD COLUMN " + T_FSCACHE_HASH + " VARCHAR(64)");
+						db.execSQL(T_BLOBS_CREATE_COMMAND);
+						createSizeAccounting(db);
+					}
+					return;
+				} catch (SQLException e) {
+					Log.w(OpenStreetMapTileFilesystemProvider.DEBUGTAG, "Problem upgrading database", e);
+				}
+			}
 			if(DEBUGMODE)
 				Log.w(OpenStreetMapTileFilesystemProvider.DEBUGTAG, "Upgrading database from version " + oldVersion + " to " + newVersion + ", which will destroy all old data");
 
 			db.execSQL("DROP TABLE IF EXISTS " + T_FSCACHE);
+			db.execSQL("DROP TABLE IF EXISTS " + T_BLOBS);
 
 			onCreate(db);
 		}
 	}
 
+	/**
+	 * HTTP cache validators and expiry time for a stored tile
+	 */
+	static class CacheInfo {
+		/** ETag header of the last response, may be null */
+		final String etag;
+		/** Last-Modified header of the last response, may be null */
+		final String lastModified;
+		/** expiry time in ms since the epoch, 0 if the tile doesn't expire */
+		final long expires;
+		
+		CacheInfo(String etag, String lastModified, long expires) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.expires = expires;
+		}
+		
+		/**
+		 * @return true if the tile has an expiry time and it has passed
+		 */
+		boolean isExpired() {
+			return expires != 0 && expires < System.currentTimeMillis();
+		}
+		
+		/**
+		 * @return true if we can make a conditional request for the tile
+		 */
+		boolean hasValidator() {
+			return etag != null || lastModified != null;
+		}
+	}
+
 	/**
 	 * Close the DB handle
 	 */
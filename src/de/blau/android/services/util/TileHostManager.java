@@ -0,0 +1,208 @@
+package de.blau.android.services.util;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+import de.blau.android.views.util.OpenStreetMapTileServer;
+
+/**
+ * Keeps track of the hosts we download tiles from: limits the number of concurrent connections per host,
+ * selects the subdomain with the best observed latency and backs off from hosts that tell us they are overloaded.
+ * @author simon
+ *
+ */
+public class TileHostManager {
+
+	private static final String DEBUGTAG = "TileHostManager";
+
+	/** maximum number of concurrent connections to one host, this is what the OSM tile usage policy asks for */
+	public static final int MAX_CONNECTIONS_PER_HOST = 2;
+	/** how long we wait for a free connection to a host */
+	private static final long ACQUIRE_TIMEOUT = 10000L;
+	/** backoff after the first error, doubled for every further consecutive error */
+	private static final long MIN_BACKOFF = 1000L;
+	private static final long MAX_BACKOFF = 5 * 60 * 1000L;
+	/** weight of a new sample in the moving average of the latency */
+	private static final float LATENCY_WEIGHT = 0.2f;
+
+	private final Map<String, Host> hosts = new TreeMap<String, Host>();
+
+	/** used to spread requests over hosts we don't have any latency information for yet */
+	private int rotation = 0;
+
+	/**
+	 * Connection limit, latency and error statistics for one host
+	 */
+	public static class Host {
+		final String name;
+		private final Semaphore connections = new Semaphore(MAX_CONNECTIONS_PER_HOST, true);
+
+		private long latency = 0; // moving average in ms, 0 if unknown
+		private int failures = 0; // consecutive failures
+		private long backoffUntil = 0;
+
+		private long tiles = 0;
+		private long bytes = 0;
+		private long errors = 0;
+		private long time = 0; // total time spent downloading in ms
+
+		Host(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Wait for a free connection to this host
+		 * @return true if we got a connection, false if we timed out or were interrupted
+		 */
+		public boolean acquire() {
+			try {
+				return connections.tryAcquire(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Release a connection acquired with {@link #acquire()}
+		 */
+		public void release() {
+			connections.release();
+		}
+
+		/**
+		 * Record a successful download
+		 * @param size number of bytes received
+		 * @param elapsed time the download took in ms
+		 */
+		public synchronized void success(int size, long elapsed) {
+			tiles++;
+			bytes += size;
+			time += elapsed;
+			latency = latency == 0 ? elapsed : (long) (latency * (1 - LATENCY_WEIGHT) + elapsed * LATENCY_WEIGHT);
+			failures = 0;
+			backoffUntil = 0;
+		}
+
+		/**
+		 * Record a response that indicates that the host is overloaded (429 or 5xx) or a failed connection
+		 * @param retryAfter the delay in s the server asked for, 0 if none
+		 */
+		public synchronized void failure(long retryAfter) {
+			errors++;
+			failures++;
+			long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures - 1, 16));
+			if (retryAfter > 0) {
+				backoff = Math.min(MAX_BACKOFF, Math.max(backoff, retryAfter * 1000L));
+			}
+			backoffUntil = System.currentTimeMillis() + backoff;
+			Log.w(DEBUGTAG, "Backing off from " + name + " for " + backoff + " ms");
+		}
+
+		/**
+		 * @return true if we shouldn't use this host at the moment
+		 */
+		public synchronized boolean isBackingOff() {
+			return backoffUntil > System.currentTimeMillis();
+		}
+
+		/**
+		 * @return a value that is lower for hosts that are expected to deliver faster
+		 */
+		synchronized long getScore() {
+			int active = MAX_CONNECTIONS_PER_HOST - connections.availablePermits();
+			return latency * (1 + Math.max(0, active));
+		}
+
+		@Override
+		public synchronized String toString() {
+			return name + " tiles " + tiles + " " + (bytes / 1024) + " kB avg. " + (tiles > 0 ? time / tiles : 0) + " ms "
+					+ (time > 0 ? bytes * 1000 / time / 1024 : 0) + " kB/s errors " + errors + (isBackingOff() ? " backing off" : "");
+		}
+	}
+
+	/**
+	 * Get the statistics and connection limit for a host
+	 * @param name the host name
+	 * @return the Host object
+	 */
+	public synchronized Host getHost(final String name) {
+		Host host = hosts.get(name);
+		if (host == null) {
+			host = new Host(name);
+			hosts.put(name, host);
+		}
+		return host;
+	}
+
+	/**
+	 * Get the URL for a tile, if the tile server has multiple subdomains the one that
+	 * is not backing off and is expected to deliver fastest is chosen
+	 * @param renderer the tile server
+	 * @param tile the tile
+	 * @return the URL or null if all hosts are currently backing off
+	 */
+	public String getTileURLString(final OpenStreetMapTileServer renderer, final OpenStreetMapTile tile) {
+		List<String> subdomains = renderer.getSubdomains();
+		if (subdomains.isEmpty()) {
+			String url = renderer.getTileURLString(tile, null);
+			return getHostForURL(url).isBackingOff() ? null : url;
+		}
+		int start;
+		synchronized (this) {
+			start = rotation++ & Integer.MAX_VALUE;
+		}
+		String best = null;
+		long bestScore = Long.MAX_VALUE;
+		int count = subdomains.size();
+		for (int i = 0; i < count; i++) {
+			String url = renderer.getTileURLString(tile, subdomains.get((start + i) % count));
+			Host host = getHostForURL(url);
+			if (host.isBackingOff()) {
+				continue;
+			}
+			long score = host.getScore();
+			if (score < bestScore) {
+				best = url;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Get the Host object for the host in a URL
+	 * @param url the URL
+	 * @return the Host object
+	 */
+	public Host getHost(final URL url) {
+		return getHost(url.getHost());
+	}
+
+	private Host getHostForURL(final String url) {
+		try {
+			return getHost(new URL(url));
+		} catch (MalformedURLException e) {
+			return getHost(url);
+		}
+	}
+
+	/**
+	 * @return a short human readable description of the per host statistics
+	 */
+	public synchronized String getInfo() {
+		StringBuilder result = new StringBuilder();
+		for (Host host:hosts.values()) {
+			if (result.length() > 0) {
+				result.append(", ");
+			}
+			result.append(host.toString());
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,124 @@
+package de.blau.android.services.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.blau.android.util.Histogram;
+
+/**
+ * Counters and timing histograms for the tile pipeline. The UI and the tile service run in
+ * different processes, each has its own set of statistics.
+ * @author simon
+ *
+ */
+public class TileStats {
+
+	// UI process
+	public static final String MEMORY_HIT = "memory_hit";
+	public static final String MEMORY_MISS = "memory_miss";
+	public static final String DECODE = "decode_ms";
+	public static final String DECODE_SHARED = "decode_shared";
+	public static final String DRAW = "draw_ms";
+
+	// tile service
+	public static final String FS_READ = "fs_read_ms";
+	public static final String FS_MISS = "fs_miss";
+	public static final String DOWNLOAD = "download_ms";
+	public static final String DOWNLOAD_BYTES = "download_bytes";
+	public static final String DOWNLOAD_ERROR = "download_error";
+	/** suffix for the queue wait time of a tile provider */
+	public static final String QUEUE_WAIT = "_queue_wait_ms";
+
+	public static final String CSV_HEADER = "process,name,count,sum,min,max,mean,p50,p90,p99";
+
+	private static final Map<String, Histogram> histograms = new TreeMap<String, Histogram>();
+	private static final Map<String, long[]> counters = new TreeMap<String, long[]>();
+
+	/**
+	 * Add a value to a histogram
+	 * @param name the name of the histogram
+	 * @param value the value
+	 */
+	public static void record(final String name, final long value) {
+		Histogram h;
+		synchronized (histograms) {
+			h = histograms.get(name);
+			if (h == null) {
+				h = new Histogram();
+				histograms.put(name, h);
+			}
+		}
+		h.add(value);
+	}
+
+	/**
+	 * Increment a counter
+	 * @param name the name of the counter
+	 */
+	public static void count(final String name) {
+		synchronized (counters) {
+			long[] c = counters.get(name);
+			if (c == null) {
+				c = new long[1];
+				counters.put(name, c);
+			}
+			c[0]++;
+		}
+	}
+
+	/**
+	 * @param name the name of the counter
+	 * @return the current value of the counter
+	 */
+	public static long getCount(final String name) {
+		synchronized (counters) {
+			long[] c = counters.get(name);
+			return c != null ? c[0] : 0;
+		}
+	}
+
+	/**
+	 * @param name the name of the histogram
+	 * @return the histogram or null if nothing has been recorded yet
+	 */
+	public static Histogram getHistogram(final String name) {
+		synchronized (histograms) {
+			return histograms.get(name);
+		}
+	}
+
+	/**
+	 * Get all counters and histograms as CSV lines in the format given by {@link #CSV_HEADER}, without the header
+	 * @param process the name of the process for the first column
+	 * @return the CSV lines
+	 */
+	public static String toCSV(final String process) {
+		StringBuilder result = new StringBuilder();
+		synchronized (counters) {
+			for (Map.Entry<String, long[]> e : counters.entrySet()) {
+				long c = e.getValue()[0];
+				result.append(process + "," + e.getKey() + "," + c + "," + c + ",,,,,,\n");
+			}
+		}
+		synchronized (histograms) {
+			for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+				Histogram h = e.getValue();
+				result.append(process + "," + e.getKey() + "," + h.getCount() + "," + h.getSum() + "," + h.getMin() + "," + h.getMax() + ","
+						+ h.getMean() + "," + h.getPercentile(50) + "," + h.getPercentile(90) + "," + h.getPercentile(99) + "\n");
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Remove all counters and histograms
+	 */
+	public static void reset() {
+		synchronized (counters) {
+			counters.clear();
+		}
+		synchronized (histograms) {
+			histograms.clear();
+		}
+	}
+}
@@ -335,6 +335,27 @@ public class GeoMath {
 		return new float[]{cx, cy};
 	}
 	
+	/**
+	 * Test if two segments cross, segments that only touch (an end point lies on the other segment) 
+	 * or are collinear are not considered to cross. 
+	 * Uses long arithmetic so that it is exact for E7 coordinates of segments that don't span half the globe.
+	 * @return true if segment a-b properly crosses segment c-d
+	 */
+	public static boolean segmentsCross(final int ax, final int ay, final int bx, final int by, final int cx, final int cy, final int dx, final int dy) {
+		long d1 = orientation(cx, cy, dx, dy, ax, ay);
+		long d2 = orientation(cx, cy, dx, dy, bx, by);
+		long d3 = orientation(ax, ay, bx, by, cx, cy);
+		long d4 = orientation(ax, ay, bx, by, dx, dy);
+		return ((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0));
+	}
+	
+	/**
+	 * @return positive if p is left of the line a-b, negative if right, 0 if on the line
+	 */
+	private static long orientation(final int ax, final int ay, final int bx, final int by, final int px, final int py) {
+		return ((long) bx - ax) * ((long) py - ay) - ((long) by - ay) * ((long) px - ax);
+	}
+	
 	/**
 	 * Caculate the haversine distance between two points
 	 * @param lon1
@@ -0,0 +1,114 @@
+package de.blau.android.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import de.blau.android.osm.BoundingBox;
+
+/**
+ * Simple spatial index that stores objects in the cells of a fixed lon/lat grid
+ * covering all cells their bounding box touches.
+ * Queries return candidates only, callers have to do the exact test themselves.
+ * @author simon
+ *
+ * @param <T> Type of the indexed objects
+ */
+public class GridIndex<T> {
+
+	private static final int LON_RANGE_E7 = 360 * 10000000;
+	private static final int LAT_RANGE_E7 = 180 * 10000000;
+
+	private final int cellSizeE7;
+	private final int columns;
+	private final int rows;
+	private final ArrayList<ArrayList<T>> cells;
+	/** objects that cover (nearly) everything */
+	private final ArrayList<T> global = new ArrayList<T>();
+
+	/**
+	 * Create an empty index
+	 * @param cellSizeDegrees size of a grid cell in degrees
+	 */
+	public GridIndex(int cellSizeDegrees) {
+		cellSizeE7 = cellSizeDegrees * 10000000;
+		columns = (LON_RANGE_E7 + cellSizeE7 - 1) / cellSizeE7;
+		rows = (LAT_RANGE_E7 + cellSizeE7 - 1) / cellSizeE7;
+		cells = new ArrayList<ArrayList<T>>(columns * rows);
+		for (int i = 0; i < columns * rows; i++) {
+			cells.add(null);
+		}
+	}
+
+	private int column(int lonE7) {
+		return Math.max(0, Math.min(columns - 1, (int) (((long) lonE7 + LON_RANGE_E7 / 2) / cellSizeE7)));
+	}
+
+	private int row(int latE7) {
+		return Math.max(0, Math.min(rows - 1, (int) (((long) latE7 + LAT_RANGE_E7 / 2) / cellSizeE7)));
+	}
+
+	/**
+	 * Add an object
+	 * @param box the area the object covers, null for everywhere
+	 * @param t the object
+	 */
+	public void add(BoundingBox box, T t) {
+		if (box == null) {
+			global.add(t);
+			return;
+		}
+		int left = column(box.getLeft());
+		int right = column(box.getRight());
+		int bottom = row(box.getBottom());
+		int top = row(box.getTop());
+		if ((right - left + 1) * (top - bottom + 1) > cells.size() / 4) {
+			// not worth indexing
+			global.add(t);
+			return;
+		}
+		for (int c = left; c <= right; c++) {
+			for (int r = bottom; r <= top; r++) {
+				int i = r * columns + c;
+				ArrayList<T> cell = cells.get(i);
+				if (cell == null) {
+					cell = new ArrayList<T>();
+					cells.set(i, cell);
+				}
+				cell.add(t);
+			}
+		}
+	}
+
+	/**
+	 * Get all objects that may intersect with an area
+	 * @param box the area
+	 * @return the candidates in insertion order without duplicates
+	 */
+	public Set<T> query(BoundingBox box) {
+		LinkedHashSet<T> result = new LinkedHashSet<T>(global);
+		int left = column(box.getLeft());
+		int right = column(box.getRight());
+		int bottom = row(box.getBottom());
+		int top = row(box.getTop());
+		for (int c = left; c <= right; c++) {
+			for (int r = bottom; r <= top; r++) {
+				ArrayList<T> cell = cells.get(r * columns + c);
+				if (cell != null) {
+					result.addAll(cell);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Remove all objects
+	 */
+	public void clear() {
+		global.clear();
+		for (int i = 0; i < cells.size(); i++) {
+			cells.set(i, null);
+		}
+	}
+}
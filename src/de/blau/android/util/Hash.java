@@ -1,5 +1,7 @@
 package de.blau.android.util;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -22,6 +24,39 @@ public abstract class Hash {
 		
 	}
 	
+	/**
+	 * Hashes a byte array with SHA256
+	 * @param data the data to hash
+	 * @return a hexadecimal representation of the SHA-256 hash
+	 */
+	public static String sha256(byte[] data) {
+		try {
+			return toHex(MessageDigest.getInstance("SHA-256").digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Your Java is broken", e);
+		}
+	}
+	
+	/**
+	 * Hashes the contents of a stream with SHA256, the stream is not closed
+	 * @param is the stream to hash
+	 * @return a hexadecimal representation of the SHA-256 hash
+	 * @throws IOException if reading the stream fails
+	 */
+	public static String sha256(InputStream is) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+			return toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Your Java is broken", e);
+		}
+	}
+	
 	/**
 	 * Converts a byte array to lowercase hexadecimal (without separators)
 	 * @param data a byte array to convert
@@ -0,0 +1,97 @@
+package de.blau.android.util;
+
+/**
+ * Histogram with logarithmic buckets for non-negative values like durations or sizes,
+ * percentiles are approximated by the upper bound of the bucket they fall in.
+ * @author simon
+ *
+ */
+public class Histogram {
+
+	/** bucket i holds values up to 2^i - 1 */
+	private static final int BUCKETS = 40;
+
+	private final long[] buckets = new long[BUCKETS];
+	private long count = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	/**
+	 * Add a value
+	 * @param value the value, negative values are treated as 0
+	 */
+	public synchronized void add(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+		buckets[bucket]++;
+		count++;
+		sum += value;
+		if (value < min) {
+			min = value;
+		}
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized long getSum() {
+		return sum;
+	}
+
+	public synchronized long getMin() {
+		return count > 0 ? min : 0;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	public synchronized long getMean() {
+		return count > 0 ? sum / count : 0;
+	}
+
+	/**
+	 * Get an approximation of a percentile
+	 * @param percent the percentile (0-100)
+	 * @return the upper bound of the bucket the percentile falls in, limited to the maximum value seen
+	 */
+	public synchronized long getPercentile(int percent) {
+		if (count == 0) {
+			return 0;
+		}
+		long threshold = (count * percent + 99) / 100;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i];
+			if (seen >= threshold) {
+				return Math.min(max, (1L << i) - 1);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Remove all values
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = 0;
+		}
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "n " + count + " avg " + getMean() + " p50 " + getPercentile(50) + " p90 " + getPercentile(90) + " max " + max;
+	}
+}
@@ -101,7 +101,7 @@ public class SavingHelper<T extends Serializable> {
         		if (compress) {
         			out = new GZIPOutputStream(out);
         		}
-        		objectOut = new ObjectOutputStream(out);
+        		objectOut = createObjectOutputStream(out);
         		objectOut.writeObject(object);
         		rename(context, filename, filename + ".backup"); // don't overwrite last saved state
         		rename(context, tempFilename, filename); 		 // rename to expected name 
@@ -149,6 +149,26 @@ public class SavingHelper<T extends Serializable> {
 		}
 	}
 	
+	/**
+	 * Create the stream objects are written to, override to customize serialization
+	 * @param out the underlying stream
+	 * @return an ObjectOutputStream
+	 * @throws IOException
+	 */
+	protected ObjectOutputStream createObjectOutputStream(OutputStream out) throws IOException {
+		return new ObjectOutputStream(out);
+	}
+	
+	/**
+	 * Create the stream objects are read from, override to customize deserialization
+	 * @param in the underlying stream
+	 * @return an ObjectInputStream
+	 * @throws IOException
+	 */
+	protected ObjectInputStream createObjectInputStream(InputStream in) throws IOException {
+		return new ObjectInputStream(in);
+	}
+	
 	public class LoadThread implements Runnable {
 		
 		String filename;
@@ -183,7 +203,7 @@ public class SavingHelper<T extends Serializable> {
 				if (compressed) {
 					in = new GZIPInputStream(in);
 				}
-				objectIn = new ObjectInputStream(in);
+				objectIn = createObjectInputStream(in);
 				@SuppressWarnings("unchecked") // casting exceptions are caught by the exception handler
 				T object = (T) objectIn.readObject();
 				Log.d("SavingHelper", "loaded " + filename + " successfully");
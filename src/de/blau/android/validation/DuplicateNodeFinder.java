@@ -0,0 +1,324 @@
+package de.blau.android.validation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import android.util.Log;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.StorageDelegator;
+import de.blau.android.osm.Way;
+import de.blau.android.util.GeoMath;
+
+/**
+ * Finds nodes that are at the same position or closer to each other than a tolerance and proposes merges.
+ *
+ * Nodes are sorted in to a grid with cells the size of the tolerance, so only nodes in neighbouring cells need
+ * to be compared. Occupied cells are kept as a sorted array of keys to avoid hashing and boxing. Nodes within the tolerance of each other are clustered, every cluster results in one proposed
+ * merge in to the node that is most likely to be the original one (existing in the OSM database, most tags).
+ * Nodes are left out of a merge if their tags conflict, if they have different roles in a common relation
+ * (see {@link StorageDelegator#roleConflict(de.blau.android.osm.OsmElement, de.blau.android.osm.OsmElement)}),
+ * if merging would collapse a way, or if they are not within the tolerance of the target node.
+ * @author simon
+ *
+ */
+public class DuplicateNodeFinder {
+
+	private static final String DEBUG_TAG = DuplicateNodeFinder.class.getSimpleName();
+
+	/**
+	 * A proposed merge of several nodes in to one
+	 */
+	public static class Merge {
+		private final Node target;
+		private final List<Node> nodes;
+
+		Merge(final Node target, final List<Node> nodes) {
+			this.target = target;
+			this.nodes = nodes;
+		}
+
+		/**
+		 * @return the node the others will be merged in to
+		 */
+		public Node getTarget() {
+			return target;
+		}
+
+		/**
+		 * @return the nodes that will be merged in to the target
+		 */
+		public List<Node> getNodes() {
+			return nodes;
+		}
+	}
+
+	/**
+	 * Find mergeable nodes, can be run on any thread as long as the data is not modified at the same time
+	 * @param nodes the nodes to check
+	 * @param ways all ways, needed to avoid merges that would collapse a way
+	 * @param delegator the delegator holding the data
+	 * @param tolerance maximum distance in metres, 0 for nodes at exactly the same position
+	 * @return the proposed merges
+	 */
+	public static List<Merge> find(final List<Node> nodes, final List<Way> ways, final StorageDelegator delegator, final float tolerance) {
+		long start = System.currentTimeMillis();
+		List<Merge> result = new ArrayList<Merge>();
+		final int count = nodes.size();
+		if (count < 2) {
+			return result;
+		}
+
+		// grid cells are the tolerance high and, at the latitude furthest from the equator, the tolerance wide
+		final double toleranceE7 = GeoMath.convertMetersToGeoDistance(tolerance) * 1E7d;
+		int maxLat = 0;
+		for (Node n:nodes) {
+			maxLat = Math.max(maxLat, Math.abs(n.getLat()));
+		}
+		double minCos = Math.max(0.01d, Math.cos(maxLat / 1E7d * GeoMath.PI_180));
+		double cellHeight = Math.max(1d, toleranceE7);
+		double cellWidth = Math.max(1d, toleranceE7 / minCos);
+		// cells are identified by a key ordered by row and column, the nodes of cell k are
+		// members[cellStart[k]] to members[cellStart[k + 1] - 1]
+		final int[] rows = new int[count];
+		final int[] columns = new int[count];
+		int minRow = Integer.MAX_VALUE;
+		int minColumn = Integer.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			Node n = nodes.get(i);
+			rows[i] = (int) Math.floor(n.getLat() / cellHeight);
+			columns[i] = (int) Math.floor(n.getLon() / cellWidth);
+			minRow = Math.min(minRow, rows[i]);
+			minColumn = Math.min(minColumn, columns[i]);
+		}
+		long[] keys = new long[count];
+		for (int i = 0; i < count; i++) {
+			rows[i] -= minRow;
+			columns[i] -= minColumn;
+			keys[i] = cellKey(rows[i], columns[i]);
+		}
+		long[] cells = keys.clone();
+		Arrays.sort(cells);
+		int cellCount = 0;
+		for (int i = 0; i < count; i++) {
+			if (cellCount == 0 || cells[cellCount - 1] != cells[i]) {
+				cells[cellCount++] = cells[i];
+			}
+		}
+		int[] cellStart = new int[cellCount + 1];
+		int[] cellOf = new int[count];
+		for (int i = 0; i < count; i++) {
+			cellOf[i] = Arrays.binarySearch(cells, 0, cellCount, keys[i]);
+			cellStart[cellOf[i] + 1]++;
+		}
+		for (int k = 1; k <= cellCount; k++) {
+			cellStart[k] += cellStart[k - 1];
+		}
+		int[] members = new int[count];
+		int[] fill = new int[cellCount];
+		System.arraycopy(cellStart, 0, fill, 0, cellCount);
+		for (int i = 0; i < count; i++) {
+			members[fill[cellOf[i]]++] = i;
+		}
+
+		// cluster nodes within the tolerance of each other
+		int[] parent = new int[count];
+		for (int i = 0; i < count; i++) {
+			parent[i] = i;
+		}
+		int pairs = 0;
+		for (int i = 0; i < count; i++) {
+			// the three neighbouring cells of a row are consecutive in the sorted keys
+			for (int row = Math.max(0, rows[i] - 1); row <= rows[i] + 1; row++) {
+				long last = cellKey(row, columns[i] + 1);
+				for (int k = lowerBound(cells, cellCount, cellKey(row, Math.max(0, columns[i] - 1))); k < cellCount && cells[k] <= last; k++) {
+					for (int m = cellStart[k]; m < cellStart[k + 1]; m++) {
+						int j = members[m];
+						if (j > i && withinTolerance(nodes.get(i), nodes.get(j), toleranceE7)) {
+							union(parent, i, j);
+							pairs++;
+						}
+					}
+				}
+			}
+		}
+		int[] size = new int[count];
+		for (int i = 0; i < count; i++) {
+			size[find(parent, i)]++;
+		}
+		HashMap<Integer, List<Node>> clusters = new HashMap<Integer, List<Node>>();
+		for (int i = 0; i < count; i++) {
+			int root = find(parent, i);
+			if (size[root] > 1) {
+				Integer key = Integer.valueOf(root);
+				List<Node> cluster = clusters.get(key);
+				if (cluster == null) {
+					cluster = new ArrayList<Node>(size[root]);
+					clusters.put(key, cluster);
+				}
+				cluster.add(nodes.get(i));
+			}
+		}
+
+		// plan merges
+		if (!clusters.isEmpty()) {
+			// only the ways of clustered nodes are needed
+			HashMap<Node, List<Way>> waysForNode = new HashMap<Node, List<Way>>();
+			for (List<Node> cluster:clusters.values()) {
+				for (Node n:cluster) {
+					waysForNode.put(n, new ArrayList<Way>(1));
+				}
+			}
+			for (Way w:ways) {
+				for (Node n:w.getNodes()) {
+					List<Way> l = waysForNode.get(n);
+					if (l != null && (l.isEmpty() || l.get(l.size() - 1) != w)) {
+						l.add(w);
+					}
+				}
+			}
+			for (List<Node> cluster:clusters.values()) {
+				Merge merge = planMerge(cluster, waysForNode, delegator, toleranceE7);
+				if (merge != null) {
+					result.add(merge);
+				}
+			}
+		}
+		if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
+			Log.d(DEBUG_TAG, count + " nodes, " + pairs + " close pairs, " + clusters.size() + " clusters, " + result.size() + " merges in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+		return result;
+	}
+
+	/**
+	 * @param row row relative to the lowest row, at most 2^31 - 1
+	 * @param column column relative to the lowest column, at most 2^32 - 1
+	 * @return a key that sorts by row and then column
+	 */
+	private static long cellKey(final int row, final int column) {
+		return ((long) row << 32) | (column & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return the index of the first key that is not smaller than the given key
+	 */
+	private static int lowerBound(final long[] keys, final int length, final long key) {
+		int low = 0;
+		int high = length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (keys[mid] < key) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private static int find(final int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(final int[] parent, final int i, final int j) {
+		int ri = find(parent, i);
+		int rj = find(parent, j);
+		if (ri != rj) {
+			parent[Math.max(ri, rj)] = Math.min(ri, rj);
+		}
+	}
+
+	/**
+	 * @return true if the distance between the nodes is at most the tolerance
+	 */
+	private static boolean withinTolerance(final Node n1, final Node n2, final double toleranceE7) {
+		double dy = (double) n1.getLat() - n2.getLat();
+		double dx = ((double) n1.getLon() - n2.getLon()) * Math.cos((n1.getLat() / 2d + n2.getLat() / 2d) / 1E7d * GeoMath.PI_180);
+		return dx * dx + dy * dy <= toleranceE7 * toleranceE7;
+	}
+
+	/**
+	 * Select the target node of a cluster and the nodes that can be merged in to it
+	 * @return the merge or null if nothing can be merged
+	 */
+	private static Merge planMerge(final List<Node> cluster, final Map<Node, List<Way>> waysForNode, final StorageDelegator delegator,
+			final double toleranceE7) {
+		Node target = cluster.get(0);
+		for (Node n:cluster) {
+			if (isBetterTarget(n, target)) {
+				target = n;
+			}
+		}
+		Map<String, String> tags = new TreeMap<String, String>(target.getTags());
+		Set<Way> ways = new HashSet<Way>(waysForNode.get(target));
+		List<Node> accepted = new ArrayList<Node>();
+		for (Node n:cluster) {
+			if (n == target || !withinTolerance(n, target, toleranceE7) || tagConflict(tags, n) || sharesWay(ways, waysForNode.get(n))) {
+				continue;
+			}
+			boolean conflict = delegator.roleConflict(target, n);
+			for (int i = 0; i < accepted.size() && !conflict; i++) {
+				conflict = delegator.roleConflict(accepted.get(i), n);
+			}
+			if (conflict) {
+				continue;
+			}
+			accepted.add(n);
+			tags.putAll(n.getTags());
+			ways.addAll(waysForNode.get(n));
+		}
+		return accepted.isEmpty() ? null : new Merge(target, accepted);
+	}
+
+	/**
+	 * Prefer nodes that exist in the OSM database, then nodes with more tags, then older nodes
+	 */
+	private static boolean isBetterTarget(final Node candidate, final Node current) {
+		boolean candidateExists = candidate.getOsmId() > 0;
+		boolean currentExists = current.getOsmId() > 0;
+		if (candidateExists != currentExists) {
+			return candidateExists;
+		}
+		int candidateTags = candidate.getTags().size();
+		int currentTags = current.getTags().size();
+		if (candidateTags != currentTags) {
+			return candidateTags > currentTags;
+		}
+		return Math.abs(candidate.getOsmId()) < Math.abs(current.getOsmId());
+	}
+
+	/**
+	 * @return true if the node has a tag with the same key as but a different value than the merged tags
+	 */
+	private static boolean tagConflict(final Map<String, String> tags, final Node node) {
+		for (Map.Entry<String, String> tag:node.getTags().entrySet()) {
+			String value = tags.get(tag.getKey());
+			if (value != null && !value.equals(tag.getValue())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if merging would put the same node in to a way twice
+	 */
+	private static boolean sharesWay(final Set<Way> ways, final List<Way> nodeWays) {
+		for (Way w:nodeWays) {
+			if (ways.contains(w)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,28 @@
+package de.blau.android.validation;
+
+import android.content.Context;
+import de.blau.android.R;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.OsmElement;
+
+/**
+ * Nodes at exactly the same position as another node
+ * @author simon
+ *
+ */
+public class DuplicateNodeRule implements ValidationRule {
+
+	@Override
+	public boolean check(final OsmElement element, final ValidationContext context) {
+		if (!(element instanceof Node)) {
+			return false;
+		}
+		Node node = (Node) element;
+		return context.getNodesAt(node.getLat(), node.getLon()).size() > 1;
+	}
+
+	@Override
+	public String describe(final OsmElement element, final Context ctx) {
+		return ctx.getString(R.string.validation_duplicate_node);
+	}
+}
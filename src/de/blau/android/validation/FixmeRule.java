@@ -0,0 +1,37 @@
+package de.blau.android.validation;
+
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+
+import android.content.Context;
+import de.blau.android.osm.OsmElement;
+
+/**
+ * Elements where someone has noted a problem in a "fixme" or "todo" key or value
+ * @author simon
+ *
+ */
+public class FixmeRule implements ValidationRule {
+
+	private static final Pattern FIXME = Pattern.compile("(?i)\\b(?:fixme|todo)\\b");
+
+	@Override
+	public boolean check(final OsmElement element, final ValidationContext context) {
+		return findFixme(element) != null;
+	}
+
+	@Override
+	public String describe(final OsmElement element, final Context ctx) {
+		Entry<String, String> tag = findFixme(element);
+		return tag != null ? tag.getKey() + ": " + tag.getValue() : "";
+	}
+
+	private static Entry<String, String> findFixme(final OsmElement element) {
+		for (Entry<String, String> tag:element.getTags().entrySet()) {
+			if (FIXME.matcher(tag.getKey()).find() || (tag.getValue() != null && FIXME.matcher(tag.getValue()).find())) {
+				return tag;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,53 @@
+package de.blau.android.validation;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import android.content.Context;
+import de.blau.android.R;
+import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.Tags;
+import de.blau.android.osm.Way;
+
+/**
+ * Unsurveyed roads (highway=road) and important roads without name or ref
+ * @author simon
+ *
+ */
+public class HighwayNameRule implements ValidationRule {
+
+	private static final Set<String> IMPORTANT_HIGHWAYS = new HashSet<String>(Arrays.asList((
+			"motorway,motorway_link,trunk,trunk_link,primary,primary_link,"+
+			"secondary,secondary_link,tertiary,residential,unclassified,living_street"
+	).split(",")));
+
+	@Override
+	public boolean check(final OsmElement element, final ValidationContext context) {
+		if (!(element instanceof Way)) {
+			return false;
+		}
+		return isUnsurveyed((Way) element) || isUnnamed((Way) element);
+	}
+
+	@Override
+	public String describe(final OsmElement element, final Context ctx) {
+		Way way = (Way) element;
+		if (isUnsurveyed(way)) {
+			return ctx.getString(R.string.toast_unsurveyed_road);
+		}
+		return ctx.getString(R.string.toast_noname);
+	}
+
+	private static boolean isUnsurveyed(final Way way) {
+		return Tags.VALUE_ROAD.equalsIgnoreCase(way.getTagWithKey(Tags.KEY_HIGHWAY));
+	}
+
+	private static boolean isUnnamed(final Way way) {
+		String highway = way.getTagWithKey(Tags.KEY_HIGHWAY);
+		return highway != null && IMPORTANT_HIGHWAYS.contains(highway.toLowerCase(Locale.US))
+				&& way.getTagWithKey(Tags.KEY_NAME) == null && way.getTagWithKey(Tags.KEY_REF) == null
+				&& !(way.hasTagWithValue(Tags.KEY_NONAME, Tags.VALUE_YES) || way.hasTagWithValue(Tags.KEY_VALIDATE_NO_NAME, Tags.VALUE_YES));
+	}
+}
@@ -0,0 +1,99 @@
+package de.blau.android.validation;
+
+import android.content.Context;
+import de.blau.android.R;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.Way;
+import de.blau.android.util.GeoMath;
+
+/**
+ * A crossing of two way segments without a common node, found by {@link IntersectionFinder}.
+ * The segments are stored as their end nodes so that the position follows edits and
+ * the crossing can be checked again cheaply, see {@link #isValid()}.
+ * @author simon
+ *
+ */
+public class Intersection {
+
+	private final Way way1;
+	private final Node a1;
+	private final Node a2;
+	private final Way way2;
+	private final Node b1;
+	private final Node b2;
+
+	Intersection(final Way way1, final Node a1, final Node a2, final Way way2, final Node b1, final Node b2) {
+		this.way1 = way1;
+		this.a1 = a1;
+		this.a2 = a2;
+		this.way2 = way2;
+		this.b1 = b1;
+		this.b2 = b2;
+	}
+
+	public Way getWay1() {
+		return way1;
+	}
+
+	public Way getWay2() {
+		return way2;
+	}
+
+	/**
+	 * @return true if a way crosses itself
+	 */
+	public boolean isSelfIntersection() {
+		return way1 == way2;
+	}
+
+	/**
+	 * @return true if the ways still exist and the segments still cross at their current positions
+	 */
+	public boolean isValid() {
+		return way1.getState() != OsmElement.STATE_DELETED && way2.getState() != OsmElement.STATE_DELETED
+				&& GeoMath.segmentsCross(a1.getLon(), a1.getLat(), a2.getLon(), a2.getLat(), b1.getLon(), b1.getLat(), b2.getLon(), b2.getLat());
+	}
+
+	/**
+	 * @return the latitude * 1E7 of the crossing point
+	 */
+	public int getLat() {
+		double t = parameter();
+		return (int) Math.round(a1.getLat() + t * (a2.getLat() - a1.getLat()));
+	}
+
+	/**
+	 * @return the longitude * 1E7 of the crossing point
+	 */
+	public int getLon() {
+		double t = parameter();
+		return (int) Math.round(a1.getLon() + t * (a2.getLon() - a1.getLon()));
+	}
+
+	/**
+	 * @return the position of the crossing point along the first segment, 0 to 1
+	 */
+	private double parameter() {
+		double rx = (double) a2.getLon() - a1.getLon();
+		double ry = (double) a2.getLat() - a1.getLat();
+		double sx = (double) b2.getLon() - b1.getLon();
+		double sy = (double) b2.getLat() - b1.getLat();
+		double denominator = rx * sy - ry * sx;
+		if (denominator == 0) { // parallel, no longer crossing
+			return 0;
+		}
+		return (((double) b1.getLon() - a1.getLon()) * sy - ((double) b1.getLat() - a1.getLat()) * sx) / denominator;
+	}
+
+	/**
+	 * @param ctx Android context for string resources
+	 * @return a description for display in lists
+	 */
+	public String getDescription(final Context ctx) {
+		if (isSelfIntersection()) {
+			return ctx.getString(R.string.intersection_self, way1.getDescription());
+		}
+		return ctx.getString(R.string.intersection_crossing, way1.getDescription(), way2.getDescription());
+	}
+}
@@ -0,0 +1,218 @@
+package de.blau.android.validation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.Tags;
+import de.blau.android.osm.Way;
+import de.blau.android.util.GeoMath;
+
+/**
+ * Finds crossings between ways that do not share a node at the crossing, and self-intersections of closed ways.
+ *
+ * Segments are sorted in to a uniform grid over the bounding box of the data, only segments in the same cell are
+ * compared. A pair of segments that share several cells is only tested in the cell containing the lower left corner
+ * of the intersection of their bounding boxes, so every pair is tested at most once. With the cell size derived
+ * from the segment density and length this is close to linear in the number of segments for OSM data.
+ *
+ * Only ways of the same layer of the transport and water networks (highway, railway, waterway) are checked against
+ * each other, bridges and tunnels are ignored. Everything works on the E7 coordinates of the nodes.
+ * @author simon
+ *
+ */
+public class IntersectionFinder {
+
+	private static final String DEBUG_TAG = IntersectionFinder.class.getSimpleName();
+
+	/** target average number of segments per grid cell */
+	private static final int SEGMENTS_PER_CELL = 4;
+
+	private static final String[] NETWORK_KEYS = {Tags.KEY_HIGHWAY, Tags.KEY_RAILWAY, Tags.KEY_WATERWAY};
+
+	/**
+	 * Find intersections, can be run on any thread as long as the ways are not modified at the same time
+	 * @param ways the ways to check
+	 * @return the intersections found
+	 */
+	public static List<Intersection> find(final List<Way> ways) {
+		long start = System.currentTimeMillis();
+		List<Intersection> result = new ArrayList<Intersection>();
+
+		// select ways and count segments
+		ArrayList<Way> candidates = new ArrayList<Way>();
+		ArrayList<Integer> layers = new ArrayList<Integer>();
+		ArrayList<Boolean> networks = new ArrayList<Boolean>();
+		int count = 0;
+		for (Way w:ways) {
+			boolean network = isNetwork(w);
+			if ((network || w.isClosed()) && w.getNodes().size() > 1) {
+				candidates.add(w);
+				layers.add(Integer.valueOf(getLayer(w)));
+				networks.add(Boolean.valueOf(network));
+				count += w.getNodes().size() - 1;
+			}
+		}
+		if (count < 2) {
+			return result;
+		}
+
+		// segments as parallel arrays, x is longitude, y is latitude
+		int[] minX = new int[count];
+		int[] minY = new int[count];
+		int[] maxX = new int[count];
+		int[] maxY = new int[count];
+		int[] wayIndex = new int[count];
+		int[] segIndex = new int[count];
+		Node[] segStart = new Node[count];
+		Node[] segEnd = new Node[count];
+		int left = Integer.MAX_VALUE;
+		int bottom = Integer.MAX_VALUE;
+		int right = Integer.MIN_VALUE;
+		int top = Integer.MIN_VALUE;
+		long extent = 0;
+		int s = 0;
+		for (int wi = 0; wi < candidates.size(); wi++) {
+			List<Node> nodes = candidates.get(wi).getNodes();
+			for (int i = 0, size = nodes.size() - 1; i < size; i++) {
+				Node a = nodes.get(i);
+				Node b = nodes.get(i + 1);
+				minX[s] = Math.min(a.getLon(), b.getLon());
+				maxX[s] = Math.max(a.getLon(), b.getLon());
+				minY[s] = Math.min(a.getLat(), b.getLat());
+				maxY[s] = Math.max(a.getLat(), b.getLat());
+				wayIndex[s] = wi;
+				segIndex[s] = i;
+				segStart[s] = a;
+				segEnd[s] = b;
+				left = Math.min(left, minX[s]);
+				right = Math.max(right, maxX[s]);
+				bottom = Math.min(bottom, minY[s]);
+				top = Math.max(top, maxY[s]);
+				extent += Math.max(maxX[s] - minX[s], maxY[s] - minY[s]);
+				s++;
+			}
+		}
+
+		// grid geometry
+		double width = (double) right - left + 1;
+		double height = (double) top - bottom + 1;
+		double cell = Math.max(Math.sqrt(width * height * SEGMENTS_PER_CELL / count), (double) extent / count);
+		cell = Math.max(cell, Math.max(width, height) / count); // limit the grid size for long and narrow areas
+		cell = Math.max(1d, cell);
+		int columns = (int) (width / cell) + 1;
+		int rows = (int) (height / cell) + 1;
+
+		// count entries per cell, then fill, cell i has the entries from cellStart[i] to cellStart[i+1]
+		int[] cellStart = new int[columns * rows + 1];
+		for (int i = 0; i < count; i++) {
+			int c0 = (int) ((minX[i] - left) / cell);
+			int c1 = (int) ((maxX[i] - left) / cell);
+			int r0 = (int) ((minY[i] - bottom) / cell);
+			int r1 = (int) ((maxY[i] - bottom) / cell);
+			for (int r = r0; r <= r1; r++) {
+				for (int c = c0; c <= c1; c++) {
+					cellStart[r * columns + c + 1]++;
+				}
+			}
+		}
+		for (int i = 1; i < cellStart.length; i++) {
+			cellStart[i] += cellStart[i - 1];
+		}
+		int[] entries = new int[cellStart[cellStart.length - 1]];
+		int[] fill = new int[columns * rows];
+		System.arraycopy(cellStart, 0, fill, 0, fill.length);
+		for (int i = 0; i < count; i++) {
+			int c0 = (int) ((minX[i] - left) / cell);
+			int c1 = (int) ((maxX[i] - left) / cell);
+			int r0 = (int) ((minY[i] - bottom) / cell);
+			int r1 = (int) ((maxY[i] - bottom) / cell);
+			for (int r = r0; r <= r1; r++) {
+				for (int c = c0; c <= c1; c++) {
+					entries[fill[r * columns + c]++] = i;
+				}
+			}
+		}
+
+		// test pairs
+		long tests = 0;
+		for (int c = 0; c < columns * rows; c++) {
+			int end = cellStart[c + 1];
+			for (int p = cellStart[c]; p < end; p++) {
+				int i = entries[p];
+				for (int q = p + 1; q < end; q++) {
+					int j = entries[q];
+					if (minX[i] > maxX[j] || minX[j] > maxX[i] || minY[i] > maxY[j] || minY[j] > maxY[i]) {
+						continue;
+					}
+					// only test in the cell with the lower left corner of the common area
+					int refColumn = (int) ((Math.max(minX[i], minX[j]) - left) / cell);
+					int refRow = (int) ((Math.max(minY[i], minY[j]) - bottom) / cell);
+					if (refRow * columns + refColumn != c) {
+						continue;
+					}
+					int wi = wayIndex[i];
+					int wj = wayIndex[j];
+					if (wi == wj) {
+						Way w = candidates.get(wi);
+						if (!w.isClosed()) {
+							continue;
+						}
+						int d = Math.abs(segIndex[i] - segIndex[j]);
+						if (d <= 1 || d == w.getNodes().size() - 2) { // adjacent, including the last and first segment
+							continue;
+						}
+					} else if (!networks.get(wi).booleanValue() || !networks.get(wj).booleanValue() || !layers.get(wi).equals(layers.get(wj))
+							|| layers.get(wi).intValue() == Integer.MIN_VALUE) {
+						continue;
+					}
+					tests++;
+					if (GeoMath.segmentsCross(segStart[i].getLon(), segStart[i].getLat(), segEnd[i].getLon(), segEnd[i].getLat(),
+							segStart[j].getLon(), segStart[j].getLat(), segEnd[j].getLon(), segEnd[j].getLat())) {
+						result.add(new Intersection(candidates.get(wi), segStart[i], segEnd[i], candidates.get(wj), segStart[j], segEnd[j]));
+					}
+				}
+			}
+		}
+		if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
+			Log.d(DEBUG_TAG, count + " segments, " + columns + "x" + rows + " cells, " + entries.length + " entries, " + tests + " tests, "
+					+ result.size() + " intersections in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		return result;
+	}
+
+	/**
+	 * @param way the way
+	 * @return true if the way is part of a transport or water network
+	 */
+	private static boolean isNetwork(final Way way) {
+		for (String key:NETWORK_KEYS) {
+			if (way.getTagWithKey(key) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param way the way
+	 * @return the layer of the way, Integer.MIN_VALUE for bridges and tunnels which are not checked against other ways
+	 */
+	private static int getLayer(final Way way) {
+		String bridge = way.getTagWithKey(Tags.KEY_BRIDGE);
+		String tunnel = way.getTagWithKey(Tags.KEY_TUNNEL);
+		if ((bridge != null && !Tags.VALUE_NO.equals(bridge)) || (tunnel != null && !Tags.VALUE_NO.equals(tunnel))) {
+			return Integer.MIN_VALUE;
+		}
+		String layer = way.getTagWithKey(Tags.KEY_LAYER);
+		if (layer != null) {
+			try {
+				return Integer.parseInt(layer.trim());
+			} catch (NumberFormatException e) {
+				// ignore and use the default
+			}
+		}
+		return 0;
+	}
+}
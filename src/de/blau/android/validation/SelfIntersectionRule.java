@@ -0,0 +1,60 @@
+package de.blau.android.validation;
+
+import java.util.List;
+
+import android.content.Context;
+import de.blau.android.R;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.Way;
+import de.blau.android.util.GeoMath;
+
+/**
+ * Ways that cross themselves without a shared node
+ * @author simon
+ *
+ */
+public class SelfIntersectionRule implements ValidationRule {
+
+	@Override
+	public boolean check(final OsmElement element, final ValidationContext context) {
+		if (!(element instanceof Way)) {
+			return false;
+		}
+		List<Node> nodes = ((Way) element).getNodes();
+		int segments = nodes.size() - 1;
+		if (segments < 3) {
+			return false;
+		}
+		boolean closed = nodes.get(0) == nodes.get(segments);
+		for (int i = 0; i < segments - 1; i++) {
+			Node a = nodes.get(i);
+			Node b = nodes.get(i + 1);
+			int minLat = Math.min(a.getLat(), b.getLat());
+			int maxLat = Math.max(a.getLat(), b.getLat());
+			int minLon = Math.min(a.getLon(), b.getLon());
+			int maxLon = Math.max(a.getLon(), b.getLon());
+			// skip the adjacent segment, and for closed ways the first/last pair
+			for (int j = i + 2; j < segments; j++) {
+				if (closed && i == 0 && j == segments - 1) {
+					continue;
+				}
+				Node c = nodes.get(j);
+				Node d = nodes.get(j + 1);
+				if ((c.getLat() < minLat && d.getLat() < minLat) || (c.getLat() > maxLat && d.getLat() > maxLat)
+						|| (c.getLon() < minLon && d.getLon() < minLon) || (c.getLon() > maxLon && d.getLon() > maxLon)) {
+					continue;
+				}
+				if (GeoMath.segmentsCross(a.getLon(), a.getLat(), b.getLon(), b.getLat(), c.getLon(), c.getLat(), d.getLon(), d.getLat())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String describe(final OsmElement element, final Context ctx) {
+		return ctx.getString(R.string.validation_self_intersection);
+	}
+}
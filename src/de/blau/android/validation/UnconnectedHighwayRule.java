@@ -0,0 +1,41 @@
+package de.blau.android.validation;
+
+import android.content.Context;
+import de.blau.android.R;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.Tags;
+import de.blau.android.osm.Way;
+
+/**
+ * Highways that do not share a node with any other highway.
+ * Ways that extend outside of the downloaded area are ignored as the connection may simply not be loaded.
+ * @author simon
+ *
+ */
+public class UnconnectedHighwayRule implements ValidationRule {
+
+	@Override
+	public boolean check(final OsmElement element, final ValidationContext context) {
+		if (!(element instanceof Way) || element.getTagWithKey(Tags.KEY_HIGHWAY) == null) {
+			return false;
+		}
+		Way way = (Way) element;
+		for (Node n:way.getNodes()) {
+			if (!context.isInDownload(n.getLat(), n.getLon())) {
+				return false;
+			}
+			for (Way other:context.getWays(n)) {
+				if (other != way && other.getTagWithKey(Tags.KEY_HIGHWAY) != null) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String describe(final OsmElement element, final Context ctx) {
+		return ctx.getString(R.string.validation_unconnected_highway);
+	}
+}
@@ -0,0 +1,24 @@
+package de.blau.android.validation;
+
+import android.content.Context;
+import de.blau.android.R;
+import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.Way;
+
+/**
+ * Ways without tags that are not members of a relation either
+ * @author simon
+ *
+ */
+public class UntaggedWayRule implements ValidationRule {
+
+	@Override
+	public boolean check(final OsmElement element, final ValidationContext context) {
+		return element instanceof Way && !element.isTagged() && !element.hasParentRelations();
+	}
+
+	@Override
+	public String describe(final OsmElement element, final Context ctx) {
+		return ctx.getString(R.string.validation_untagged_way);
+	}
+}
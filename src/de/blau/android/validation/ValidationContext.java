@@ -0,0 +1,107 @@
+package de.blau.android.validation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import de.blau.android.osm.Node;
+import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.Relation;
+import de.blau.android.osm.StorageDelegator;
+import de.blau.android.osm.Way;
+
+/**
+ * Indices over a snapshot of the data that rules can use instead of searching the storage.
+ * Built on the validation thread for every run, building is linear in the size of the data.
+ * @author simon
+ *
+ */
+public class ValidationContext {
+
+	private final StorageDelegator delegator;
+	private final IdentityHashMap<OsmElement, Boolean> present;
+	private final HashMap<Node, List<Way>> waysForNode;
+	private final HashMap<Long, List<Node>> nodesAt;
+
+	/**
+	 * @param nodes copies of the nodes in current storage
+	 * @param ways copies of the ways in current storage
+	 * @param relations copies of the relations in current storage
+	 * @param delegator the delegator, only used for the downloaded areas
+	 */
+	ValidationContext(final List<Node> nodes, final List<Way> ways, final List<Relation> relations, final StorageDelegator delegator) {
+		this.delegator = delegator;
+		present = new IdentityHashMap<OsmElement, Boolean>(nodes.size() + ways.size() + relations.size());
+		nodesAt = new HashMap<Long, List<Node>>(nodes.size());
+		for (Node n:nodes) {
+			present.put(n, Boolean.TRUE);
+			Long key = key(n.getLat(), n.getLon());
+			List<Node> l = nodesAt.get(key);
+			if (l == null) {
+				l = new ArrayList<Node>(1);
+				nodesAt.put(key, l);
+			}
+			l.add(n);
+		}
+		waysForNode = new HashMap<Node, List<Way>>(nodes.size());
+		for (Way w:ways) {
+			present.put(w, Boolean.TRUE);
+			for (Node n:w.getNodes()) {
+				List<Way> l = waysForNode.get(n);
+				if (l == null) {
+					l = new ArrayList<Way>(1);
+					waysForNode.put(n, l);
+				}
+				if (l.isEmpty() || l.get(l.size() - 1) != w) { // closed ways contain a node twice
+					l.add(w);
+				}
+			}
+		}
+		for (Relation r:relations) {
+			present.put(r, Boolean.TRUE);
+		}
+	}
+
+	private static Long key(final int lat, final int lon) {
+		// multiplying with an odd constant keeps keys unique and spreads them over the hash buckets
+		return Long.valueOf((((long) lat << 32) | (lon & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L);
+	}
+
+	/**
+	 * @param element an element
+	 * @return true if the element is part of the validated data
+	 */
+	public boolean contains(final OsmElement element) {
+		return present.containsKey(element);
+	}
+
+	/**
+	 * @param node a node
+	 * @return the ways containing the node, an empty list if there are none
+	 */
+	public List<Way> getWays(final Node node) {
+		List<Way> l = waysForNode.get(node);
+		return l != null ? l : Collections.<Way>emptyList();
+	}
+
+	/**
+	 * @param lat latitude * 1E7
+	 * @param lon longitude * 1E7
+	 * @return all nodes at exactly this position, an empty list if there are none
+	 */
+	public List<Node> getNodesAt(final int lat, final int lon) {
+		List<Node> l = nodesAt.get(key(lat, lon));
+		return l != null ? l : Collections.<Node>emptyList();
+	}
+
+	/**
+	 * @param lat latitude * 1E7
+	 * @param lon longitude * 1E7
+	 * @return true if the position is in a downloaded area
+	 */
+	public boolean isInDownload(final int lat, final int lon) {
+		return delegator.isInDownload(lat, lon);
+	}
+}
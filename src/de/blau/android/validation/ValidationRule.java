@@ -0,0 +1,29 @@
+package de.blau.android.validation;
+
+import android.content.Context;
+import de.blau.android.osm.OsmElement;
+
+/**
+ * A check run by the {@link Validator}.
+ * Rules are called on the validation thread with copies of the elements, see {@link de.blau.android.osm.Snapshot},
+ * and must not change them, they should only look at the element and use the {@link ValidationContext} for anything that would require searching the storage.
+ * @author simon
+ *
+ */
+public interface ValidationRule {
+
+	/**
+	 * @param element the element to check
+	 * @param context indices of the data being validated
+	 * @return true if the element has the problem this rule checks for
+	 */
+	public boolean check(OsmElement element, ValidationContext context);
+
+	/**
+	 * Called on the UI thread for elements that were found to have the problem
+	 * @param element the element
+	 * @param ctx Android context for string resources
+	 * @return a short description of the problem
+	 */
+	public String describe(OsmElement element, Context ctx);
+}
@@ -0,0 +1,321 @@
+package de.blau.android.validation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.Relation;
+import de.blau.android.osm.Snapshot;
+import de.blau.android.osm.Storage;
+import de.blau.android.osm.StorageDelegator;
+import de.blau.android.osm.Way;
+
+/**
+ * Runs {@link ValidationRule}s on a background thread.
+ *
+ * Changed elements are collected via {@link #markDirty(OsmElement)} and validated together shortly after the
+ * last change, only the changed elements, elements that depend on them (ways of changed nodes, nodes at the
+ * same position, ways connected to changed ways) and elements that had problems before are checked.
+ * After loading or merging data everything is validated with {@link #validateAll()}.
+ *
+ * Results are stored in the elements, see {@link OsmElement#hasProblem()}, so that rendering never waits for
+ * validation, and are available as a list from {@link #getProblems()}.
+ *
+ * The rules run on copies of the elements made on the UI thread, see {@link Snapshot}, and the results are stored
+ * on the UI thread, so the data can be edited while a run is in progress. Elements changed during a run are
+ * checked again by the next one.
+ * @author simon
+ *
+ */
+public class Validator implements StorageDelegator.ChangeListener {
+
+	private static final String DEBUG_TAG = Validator.class.getSimpleName();
+
+	/** time to wait after a change before validating, changes in this time are validated together */
+	private static final long DELAY = 300;
+
+	/** the problems of an element are stored as a bit mask, one bit per rule */
+	private static final int MAX_RULES = 32;
+
+	private final StorageDelegator delegator;
+	private final ArrayList<ValidationRule> rules = new ArrayList<ValidationRule>();
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Validator");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	/** run on the UI thread when new results have been published, may be null */
+	private Runnable onResults = null;
+
+	// guarded by this
+	private HashSet<OsmElement> dirty = new HashSet<OsmElement>();
+	private boolean fullPending = false;
+	private boolean running = false;
+	private boolean scheduled = false;
+
+	/** elements with problems, only accessed on the UI thread */
+	private LinkedHashSet<OsmElement> flagged = new LinkedHashSet<OsmElement>();
+
+	/** published copy of {@link #flagged} */
+	private volatile List<OsmElement> problems = Collections.emptyList();
+
+	/**
+	 * Create a validator with the default rules
+	 * @param delegator the delegator holding the data
+	 */
+	public Validator(final StorageDelegator delegator) {
+		this.delegator = delegator;
+		addRule(new FixmeRule());
+		addRule(new HighwayNameRule());
+		addRule(new UntaggedWayRule());
+		addRule(new UnconnectedHighwayRule());
+		addRule(new DuplicateNodeRule());
+		addRule(new SelfIntersectionRule());
+	}
+
+	/**
+	 * Add a rule, existing results are not updated until the next run that checks the elements
+	 * @param rule the rule
+	 */
+	public synchronized void addRule(final ValidationRule rule) {
+		if (rules.size() >= MAX_RULES) {
+			throw new IllegalStateException("Too many validation rules");
+		}
+		rules.add(rule);
+	}
+
+	/**
+	 * @param onResults run on the UI thread every time new results have been published
+	 */
+	public void setOnResults(final Runnable onResults) {
+		this.onResults = onResults;
+	}
+
+	/**
+	 * Note that an element is going to change, can be called from any thread
+	 * @param element the element
+	 */
+	@Override
+	public void onElementChanged(final OsmElement element) {
+		markDirty(element);
+	}
+
+	/**
+	 * Data was loaded or merged, can be called from any thread
+	 */
+	@Override
+	public void onDataChanged() {
+		validateAll();
+	}
+
+	/**
+	 * Schedule validation of an element that has changed or is going to change.
+	 * For ways the current nodes are remembered too, so that ways that were connected before the change
+	 * are checked again.
+	 * @param element the element
+	 */
+	public synchronized void markDirty(final OsmElement element) {
+		dirty.add(element);
+		if (element instanceof Way) {
+			dirty.addAll(((Way) element).getNodes());
+		}
+		schedule();
+	}
+
+	/**
+	 * Schedule validation of all data
+	 */
+	public synchronized void validateAll() {
+		fullPending = true;
+		schedule();
+	}
+
+	/**
+	 * @return the elements that currently have problems
+	 */
+	public List<OsmElement> getProblems() {
+		return problems;
+	}
+
+	/**
+	 * @param element an element
+	 * @param ctx Android context for string resources
+	 * @return descriptions of the problems of the element separated by new lines, an empty string if none
+	 */
+	public String describeProblem(final OsmElement element, final Context ctx) {
+		int mask = element.getProblems();
+		StringBuilder result = new StringBuilder();
+		synchronized (this) {
+			for (int i = 0; i < rules.size(); i++) {
+				if ((mask & (1 << i)) != 0) {
+					if (result.length() > 0) {
+						result.append('\n');
+					}
+					result.append(rules.get(i).describe(element, ctx));
+				}
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * must be called with the lock held
+	 */
+	private void schedule() {
+		if (!scheduled && !running) {
+			scheduled = true;
+			handler.postDelayed(start, DELAY);
+		}
+	}
+
+	/**
+	 * Copies the data on the UI thread and starts validation
+	 */
+	private final Runnable start = new Runnable() {
+		@Override
+		public void run() {
+			final Collection<OsmElement> toCheck;
+			final boolean full;
+			final List<ValidationRule> currentRules;
+			synchronized (Validator.this) {
+				scheduled = false;
+				if (dirty.isEmpty() && !fullPending) {
+					return;
+				}
+				toCheck = dirty;
+				full = fullPending;
+				dirty = new HashSet<OsmElement>();
+				fullPending = false;
+				running = true;
+				currentRules = new ArrayList<ValidationRule>(rules);
+			}
+			// copy everything the rules read, the data can then be edited while they run
+			final Snapshot snapshot = new Snapshot(true);
+			Storage current = delegator.getCurrentStorage();
+			final List<Node> nodes = snapshot.copy(current.getNodes());
+			final List<Way> ways = snapshot.copy(current.getWays());
+			final List<Relation> relations = snapshot.copy(current.getRelations());
+			final List<OsmElement> changed = snapshot.copy(new ArrayList<OsmElement>(toCheck));
+			final List<OsmElement> previous = snapshot.copy(new ArrayList<OsmElement>(flagged));
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final Map<OsmElement, Integer> results = validate(currentRules, snapshot, nodes, ways, relations, full, changed, previous);
+						handler.post(new Runnable() {
+							@Override
+							public void run() {
+								publishResults(results);
+							}
+						});
+					} catch (RuntimeException e) {
+						// a rule that fails will fail again on the same data, so the elements are not checked again until they change
+						Log.e(DEBUG_TAG, "validation failed", e);
+					} finally {
+						synchronized (Validator.this) {
+							running = false;
+							if (!dirty.isEmpty() || fullPending) {
+								schedule();
+							}
+						}
+					}
+				}
+			});
+		}
+	};
+
+	/**
+	 * Run the rules on the copies, called on the validation thread
+	 * @param snapshot the snapshot the copies were made with
+	 * @param changed copies of the changed elements
+	 * @param previous copies of the elements that had problems
+	 * @return the problems of the checked elements by original element, in the order they were checked
+	 */
+	private Map<OsmElement, Integer> validate(final List<ValidationRule> currentRules, final Snapshot snapshot, final List<Node> nodes,
+			final List<Way> ways, final List<Relation> relations, final boolean full, final List<OsmElement> changed, final List<OsmElement> previous) {
+		long start = System.currentTimeMillis();
+		ValidationContext context = new ValidationContext(nodes, ways, relations, delegator);
+		Collection<OsmElement> candidates;
+		if (full) {
+			candidates = new ArrayList<OsmElement>(nodes.size() + ways.size() + relations.size());
+			candidates.addAll(nodes);
+			candidates.addAll(ways);
+			candidates.addAll(relations);
+			candidates.addAll(previous); // to clear results of elements that are gone
+		} else {
+			LinkedHashSet<OsmElement> related = new LinkedHashSet<OsmElement>(changed);
+			for (OsmElement e:changed) {
+				if (e instanceof Node) {
+					Node n = (Node) e;
+					related.addAll(context.getWays(n));
+					related.addAll(context.getNodesAt(n.getLat(), n.getLon()));
+				} else if (e instanceof Way) {
+					for (Node n:((Way) e).getNodes()) {
+						related.addAll(context.getWays(n));
+					}
+				}
+			}
+			related.addAll(previous); // problems may have been fixed by changes to other elements
+			candidates = related;
+		}
+		LinkedHashMap<OsmElement, Integer> results = new LinkedHashMap<OsmElement, Integer>(candidates.size());
+		for (OsmElement e:candidates) {
+			int mask = 0;
+			if (context.contains(e)) {
+				for (int i = 0; i < currentRules.size(); i++) {
+					if (currentRules.get(i).check(e, context)) {
+						mask |= 1 << i;
+					}
+				}
+			}
+			results.put(snapshot.getOriginal(e), Integer.valueOf(mask));
+		}
+		if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
+			Log.d(DEBUG_TAG, "checked " + candidates.size() + " elements in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		return results;
+	}
+
+	/**
+	 * Store the results in the elements, called on the UI thread
+	 * @param results the problems by element
+	 */
+	private void publishResults(final Map<OsmElement, Integer> results) {
+		for (Entry<OsmElement, Integer> entry:results.entrySet()) {
+			OsmElement e = entry.getKey();
+			int mask = entry.getValue().intValue();
+			e.setProblems(mask);
+			if (mask != 0) {
+				flagged.add(e);
+			} else {
+				flagged.remove(e);
+			}
+		}
+		problems = Collections.unmodifiableList(new ArrayList<OsmElement>(flagged));
+		if (onResults != null) {
+			onResults.run();
+		}
+	}
+}
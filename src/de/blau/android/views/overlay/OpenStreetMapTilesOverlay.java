@@ -1,5 +1,8 @@
 package de.blau.android.views.overlay;
 
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -22,6 +25,7 @@ import de.blau.android.DialogFactory;
 import de.blau.android.Map;
 import de.blau.android.resources.Profile;
 import de.blau.android.services.util.OpenStreetMapTile;
+import de.blau.android.services.util.TileStats;
 import de.blau.android.util.GeoMath;
 import de.blau.android.util.Offset;
 import de.blau.android.views.IMapView;
@@ -68,6 +72,29 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
 	// do not invalidate while we are drawing
 	private static boolean drawing = false;
 	
+	/**
+	 * Contrast adjustment, instead of filtering every drawBitmap call the adjustment is baked 
+	 * into copies of the tiles once per contrast level. The copies are private to this overlay,
+	 * the bitmaps in the tile cache may be shared between tiles and are never modified.
+	 */
+	private float contrast = 0f;
+	private final Paint bakePaint = new Paint();
+	/** minimum number of baked tiles we keep, the limit grows with the number of tiles on screen */
+	private static final int MIN_BAKED_TILES = 16;
+	private int bakedLimit = MIN_BAKED_TILES;
+	private final LinkedHashMap<Bitmap, Bitmap> bakedTiles = new LinkedHashMap<Bitmap, Bitmap>(MIN_BAKED_TILES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Entry<Bitmap, Bitmap> eldest) {
+			if (size() > bakedLimit) {
+				eldest.getValue().recycle();
+				return true;
+			}
+			return false;
+		}
+	};
+	
 
 	/**
 	 * 
@@ -126,6 +153,7 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
+		clearBakedTiles();
 		mTileProvider.clear();
 	}
 	
@@ -135,6 +163,7 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
 	@Override
 	public void onLowMemory() {
 		super.onLowMemory();
+		clearBakedTiles();
 		// The tile provider with its cache consumes the most memory.
 		mTileProvider.onLowMemory();
 	}
@@ -154,8 +183,24 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
 		return mTileProvider;
 	}
 	
+	/**
+	 * Set the contrast of the tiles, tiles are re-baked with the new value when they are next drawn
+	 * @param a contrast adjustment from -1 to +1, 0 leaves the tiles unchanged
+	 */
 	public void setContrast(float a) {
 		// mPaint.setAlpha(a);
+		if (Math.abs(a) < 0.01f) { // the seek bar can't hit 0 exactly
+			a = 0f;
+		}
+		if (a == contrast) {
+			return;
+		}
+		contrast = a;
+		clearBakedTiles();
+		if (contrast == 0f) {
+			bakePaint.setColorFilter(null);
+			return;
+		}
 		float scale = a + 1.f;
         float translate = (-.5f * scale + .5f) * 255.f;
         ColorMatrix cm = new ColorMatrix();
@@ -164,7 +209,41 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
             0, scale, 0, 0, translate,
             0, 0, scale, 0, translate,
             0, 0, 0, 1, 0 });
-        mPaint.setColorFilter(new ColorMatrixColorFilter(cm));
+        bakePaint.setColorFilter(new ColorMatrixColorFilter(cm));
+	}
+	
+	/**
+	 * Get a copy of a tile with the current contrast adjustment applied
+	 * @param tileBitmap the tile as found in the cache
+	 * @return the adjusted copy, or tileBitmap if no adjustment is needed or the copy couldn't be created
+	 */
+	private Bitmap getBakedTile(final Bitmap tileBitmap) {
+		if (contrast == 0f) {
+			return tileBitmap;
+		}
+		Bitmap baked = bakedTiles.get(tileBitmap);
+		if (baked == null) {
+			try {
+				baked = Bitmap.createBitmap(tileBitmap.getWidth(), tileBitmap.getHeight(), Bitmap.Config.ARGB_8888);
+			} catch (OutOfMemoryError e) {
+				Log.e("OpenStreetMapTilesOverlay", "Out of memory baking tile");
+				clearBakedTiles();
+				return tileBitmap;
+			}
+			new Canvas(baked).drawBitmap(tileBitmap, 0, 0, bakePaint);
+			bakedTiles.put(tileBitmap, baked);
+		}
+		return baked;
+	}
+	
+	/**
+	 * Remove and recycle all tiles with baked contrast adjustment
+	 */
+	private void clearBakedTiles() {
+		for (Bitmap baked:bakedTiles.values()) {
+			baked.recycle();
+		}
+		bakedTiles.clear();
 	}
 
 	/**
@@ -191,6 +270,7 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
 	 */
 	@Override
 	public void onDraw(Canvas c, IMapView osmv) {
+		long start = System.currentTimeMillis();
 		try {
 			drawing = true;
 			long owner = (long) (Math.random() * Long.MAX_VALUE); // unique values so that we can track in the cache which invocation of onDraw the tile belongs too
@@ -211,7 +291,6 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
 			}
 
 			final OpenStreetMapTile tile = new OpenStreetMapTile(myRendererInfo.getId(), 0, 0, 0); // reused instance of OpenStreetMapTile
-			final OpenStreetMapTile originalTile = new OpenStreetMapTile(tile);
 			// 
 			final double lonLeft   =  osmv.getViewBox().getLeft() / 1E7d - (lonOffset > 0 ? lonOffset : 0d); 	
 			final double lonRight  =  osmv.getViewBox().getRight() / 1E7d - (lonOffset < 0 ? lonOffset : 0d);	
@@ -239,6 +318,10 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
 			//		Log.d("OpenStreetMapTileOverlay","lonLeft " + lonLeft + " lonRight " + lonRight + " latTop " + Math.toDegrees(latTop)+ " latBottom " + Math.toDegrees(latBottom));
 
 			final int mapTileMask = (1 << zoomLevel) - 1;
+			
+			// let the tile service drop queued requests for tiles we no longer need
+			mTileProvider.setViewport(myRendererInfo.getId(), zoomLevel, tileNeededLeft & mapTileMask, tileNeededTop, 
+					(tileNeededLeft & mapTileMask) + tileNeededRight - tileNeededLeft, tileNeededBottom);
 
 			Rect destRect = null; // destination rect for bit map
 			int destIncX = 0, destIncY = 0;
@@ -248,6 +331,7 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
 			// Draw all the MapTiles that intersect with the screen
 			// y = y tile number (latitude)
 			int requiredTiles = (tileNeededBottom - tileNeededTop + 1) * (tileNeededRight - tileNeededLeft + 1);
+			bakedLimit = Math.max(MIN_BAKED_TILES, 2 * requiredTiles); // keep tiles around for panning
 			// Log.d("OpenStreetMapTileOverlay", "" + requiredTiles + " tiles needed to cover the screen at this level");
 			for (int y = tileNeededTop; y <= tileNeededBottom; y++) {
 				// x = x tile number (longitude)
@@ -256,9 +340,6 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
 					tile.zoomLevel = zoomLevel;
 					tile.x = x & mapTileMask;
 					tile.y = y & mapTileMask;
-					originalTile.zoomLevel = tile.zoomLevel;
-					originalTile.x = tile.x;
-					originalTile.y = tile.y;
 
 					// destination rect
 					if (destRect == null) { // avoid recalculating this for every tile
@@ -268,60 +349,21 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
 						// Log.d("OpenStreetMapTileOverlay","tile width " + destIncX + " height " + destIncY);
 					}
 
-					// Set the size and top left corner on the source bitmap
-					int sw = myRendererInfo.getTileWidth();
-					int sh = myRendererInfo.getTileHeight();
-					int tx = 0;
-					int ty = 0;
+					final int sw = myRendererInfo.getTileWidth();
+					final int sh = myRendererInfo.getTileHeight();
 					Bitmap tileBitmap = mTileProvider.getMapTile(tile, owner);
 					if (tileBitmap == null) {
-						// Log.d("OpenStreetMapTileOverlay","tile " + tile.toString() + " not available trying larger");
-						// OVERZOOM
-						// Preferred tile is not available - request it
-						// mTileProvider.preCacheTile(tile); already done in getMapTile
-						// See if there are any alternative tiles available - try
-						// using larger tiles
-						// maximum 3 zoom  levels up, with standard tiles this reduces the width to 64 bits
-						while ((tileBitmap == null) && (zoomLevel - tile.zoomLevel) < 3 && tile.zoomLevel > myRendererInfo.getMinZoomLevel()) {
-							// As we zoom out to larger-scale tiles, we want to
-							// draw smaller and smaller sections of them
-							sw >>= 1; // smaller size
-							sh >>= 1;
-							tx >>= 1; // smaller offsets
-							ty >>= 1;
-							// select the correct quarter
-							if ((tile.x & 1) != 0) { tx += (myRendererInfo.getTileWidth() >> 1); }
-							if ((tile.y & 1) != 0) { ty += (myRendererInfo.getTileHeight() >> 1); }
-							// zoom out to next level
-							tile.x >>= 1;
-							tile.y >>= 1;
-							--tile.zoomLevel;
-							// Log.d("OpenStreetMapTileOverlay","trying zoom level " + tile.zoomLevel);
-							if (mTileProvider.isTileAvailable(tile)) { // Guarantees that we only try this for stuff in the cache
-								// Log.d("OpenStreetMapTileOverlay","larger tile " + tile.toString() + " available");
-								tileBitmap = mTileProvider.getMapTile(tile, owner);
-							}
-						}
+						// Preferred tile is not available - it has been requested in getMapTile
+						// use a replacement built from tiles of other zoom levels that are in the cache
+						tileBitmap = getCompositeTile(tile, owner);
 					}
 
-					if (tileBitmap != null) {
+					if (tileBitmap != null && !tileBitmap.isRecycled()) {
 						c.drawBitmap(
-								tileBitmap,
-								new Rect(tx, ty, tx + sw, ty + sh),
+								getBakedTile(tileBitmap),
+								new Rect(0, 0, sw, sh),
 								new Rect(destRect.left + xPos, destRect.top + yPos, destRect.right + xPos,  destRect.bottom + yPos),
 								mPaint);
-					} else {
-						// Still no tile available - try smaller scale tiles
-						if (!drawTile(owner, c, osmv, 0, zoomLevel + 2, zoomLevel, x & mapTileMask, y & mapTileMask, squareTiles, lonOffset, latOffset)) {
-							// Log.d("OpenStreetMapTileOverlay","no usable tiles found");
-							// store an error tile
-							tile.zoomLevel = zoomLevel;
-							tile.x = x & mapTileMask;
-							tile.y = y & mapTileMask;
-							if (!mTileProvider.isTileAvailable(originalTile)) { // might have turned up in the mean time
-								// mTileProvider.cacheError(originalTile);
-							}
-						}
 					}
 					// Log.d("OpenStreetMapTileOverlay","Dest rect " + (destRect.left + xPos) + " " + (destRect.right + xPos) + " " + (destRect.top + yPos) +  " " + (destRect.bottom + yPos));
 					xPos += destIncX;
@@ -358,6 +400,7 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
 		}
 		finally {
 			drawing=false;
+			TileStats.record(TileStats.DRAW, System.currentTimeMillis() - start);
 		}
 	}
 
@@ -371,49 +414,118 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
 		tapArea.bottom = viewPort.bottom - bottomOffset;
 	}
 	
-	/** Recursively search the cache for smaller tiles to fill in the required
-	 * space.
-	 * @param owner TODO
-	 * @param c Canvas to draw on.
-	 * @param osmv Map view area.
-	 * @param minz Minimum zoom level.
+	/**
+	 * Get a replacement for a missing tile, the replacement is built once from larger or smaller scale 
+	 * tiles in the cache and then kept in a separate cache until the tile or better source tiles arrive.
+	 * @param tile the missing tile
+	 * @param owner the current draw cycle
+	 * @return a bitmap of the same size as a tile or null if nothing suitable was found
+	 */
+	private Bitmap getCompositeTile(final OpenStreetMapTile tile, final long owner) {
+		Bitmap composite = mTileProvider.getCompositeTile(tile);
+		if (composite != null) {
+			return composite;
+		}
+		final CompositeTile ct = new CompositeTile(myRendererInfo.getTileWidth(), myRendererInfo.getTileHeight());
+		// OVERZOOM
+		// try using larger tiles
+		// maximum 3 zoom  levels up, with standard tiles this reduces the width to 64 bits
+		final OpenStreetMapTile larger = new OpenStreetMapTile(tile);
+		for (int d = 1; d <= OpenStreetMapTileProvider.MAX_OVERZOOM && tile.zoomLevel - d >= myRendererInfo.getMinZoomLevel(); d++) {
+			larger.zoomLevel = tile.zoomLevel - d;
+			larger.x = tile.x >> d;
+			larger.y = tile.y >> d;
+			if (mTileProvider.isTileAvailable(larger)) { // Guarantees that we only try this for stuff in the cache
+				// As we zoom out to larger-scale tiles, we want to
+				// draw smaller and smaller sections of them
+				final int sw = ct.width >> d;
+				final int sh = ct.height >> d;
+				final int mask = (1 << d) - 1;
+				final int tx = (tile.x & mask) * sw;
+				final int ty = (tile.y & mask) * sh;
+				ct.draw(mTileProvider.getMapTile(larger, owner), new Rect(tx, ty, tx + sw, ty + sh), new Rect(0, 0, ct.width, ct.height));
+				break;
+			}
+		}
+		if (ct.bitmap == null) {
+			// try smaller scale tiles
+			drawSmallerTiles(ct, owner, tile.zoomLevel + OpenStreetMapTileProvider.MAX_UNDERZOOM, tile.zoomLevel, tile.x, tile.y, new Rect(0, 0, ct.width, ct.height));
+		}
+		if (ct.bitmap != null) {
+			mTileProvider.putCompositeTile(tile, ct.bitmap, owner);
+		}
+		return ct.bitmap;
+	}
+	
+	/** 
+	 * Recursively search the cache for smaller tiles to fill in the required space.
+	 * @param ct the composite tile to draw on
+	 * @param owner the current draw cycle
 	 * @param maxz Maximum zoom level to attempt - don't take too long searching.
-	 * @param z Zoom level to draw.
-	 * @param x Tile X to draw.
-	 * @param y Tile Y to draw.
-	 * @param lonOffset TODO
-	 * @param latOffset TODO
+	 * @param z Zoom level of the area to fill
+	 * @param x Tile X of the area to fill
+	 * @param y Tile Y of the area to fill
+	 * @param dest the area to fill in the composite tile
 	 */
-	private boolean drawTile(long owner, Canvas c, IMapView osmv, int minz, int maxz, int z, int x, int y, boolean squareTiles, double lonOffset, double latOffset) {
-		final OpenStreetMapTile tile = new OpenStreetMapTile(myRendererInfo.getId(), z, x, y);
-		if (mTileProvider.isTileAvailable(tile)) {
-			// Log.d("OpenStreetMapTileOverlay","smaller tile " + tile.toString() + " available");
-			c.drawBitmap(
-				mTileProvider.getMapTile(tile, owner),
-				new Rect(0, 0, myRendererInfo.getTileWidth(), myRendererInfo.getTileHeight()),
-				getScreenRectForTile(c, osmv, z, y, x, squareTiles, lonOffset, latOffset),
-				mPaint);
-			return true;
-		} else {
-			if (z < maxz && z < myRendererInfo.getMaxZoomLevel()) {
-				// Log.d("OpenStreetMapTileOverlay","tile not available trying smaller");
-				// try smaller scale tiles
-				x <<= 1;
-				y <<= 1;
-				++z;
-				// Log.d("OpenStreetMapTileOverlay","trying higher zoom level " + z);
-				boolean result = drawTile(owner, c, osmv, z, maxz, z    , x    , y, squareTiles, lonOffset, latOffset);
-				result = drawTile(owner, c, osmv, z, maxz, z, x + 1    , y, squareTiles, lonOffset, latOffset) && result;
-				result = drawTile(owner, c, osmv, z, maxz, z    , x, y + 1, squareTiles, lonOffset, latOffset) && result;
-				result = drawTile(owner, c, osmv, z, maxz, z, x + 1, y + 1, squareTiles, lonOffset, latOffset) && result;
-				return result;
-			} else {
-				// final fail
-				return false;
+	private void drawSmallerTiles(final CompositeTile ct, final long owner, final int maxz, int z, int x, int y, final Rect dest) {
+		if (z >= maxz || z >= myRendererInfo.getMaxZoomLevel()) {
+			return;
+		}
+		x <<= 1;
+		y <<= 1;
+		++z;
+		final int halfWidth = dest.width() / 2;
+		final int halfHeight = dest.height() / 2;
+		for (int i = 0; i < 2; i++) {
+			for (int j = 0; j < 2; j++) {
+				final Rect quarter = new Rect(dest.left + i * halfWidth, dest.top + j * halfHeight, dest.left + (i + 1) * halfWidth, dest.top + (j + 1) * halfHeight);
+				final OpenStreetMapTile smaller = new OpenStreetMapTile(myRendererInfo.getId(), z, x + i, y + j);
+				if (mTileProvider.isTileAvailable(smaller)) {
+					ct.draw(mTileProvider.getMapTile(smaller, owner), null, quarter);
+				} else {
+					drawSmallerTiles(ct, owner, maxz, z, x + i, y + j, quarter);
+				}
 			}
 		}
 	}
 	
+	/**
+	 * A tile sized bitmap that is only allocated once something is drawn on it
+	 */
+	private static class CompositeTile {
+		final int width;
+		final int height;
+		Bitmap bitmap = null;
+		private Canvas canvas = null;
+		
+		CompositeTile(int width, int height) {
+			this.width = width;
+			this.height = height;
+		}
+		
+		/**
+		 * Draw (part of) a tile, no color filter is applied, that is done when the composite is drawn
+		 * @param source the source tile
+		 * @param src area of the source to draw, null for all of it
+		 * @param dst destination area
+		 */
+		void draw(Bitmap source, Rect src, Rect dst) {
+			if (source == null) {
+				return;
+			}
+			if (canvas == null) {
+				try {
+					bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+				} catch (OutOfMemoryError e) {
+					Log.e("OpenStreetMapTilesOverlay", "Out of memory building composite tile");
+					return;
+				}
+				canvas = new Canvas(bitmap);
+			}
+			canvas.drawBitmap(source, src, dst, null);
+		}
+	}
+	
 	/**
 	 * NOTE: currently assumes square tiles
 	 * @param c the canvas we draw to (we need its clip-bound's width and height)
@@ -490,39 +602,40 @@ public class OpenStreetMapTilesOverlay extends OpenStreetMapViewOverlay {
 	}
 
 	/**
-	 * Invalidate myView when a new tile got downloaded.
+	 * Invalidate myView when a new tile got downloaded, all tiles arriving within 
+	 * REDRAW_INTERVAL result in one redraw.
 	 */
 	private static class SimpleInvalidationHandler extends Handler {
+		/** minimum time between two redraws caused by arriving tiles in ms */
+		private static final long REDRAW_INTERVAL = 50;
+		
 		private View v;
-		private int viewInvalidates = 0;
+		private boolean scheduled = false;
+		private long lastInvalidate = 0;
 		
 		public SimpleInvalidationHandler(View v) {
 			super();
 			this.v = v;
 		}
 		
-		class R implements Runnable { 
+		private final Runnable invalidate = new Runnable() { 
 	         @Override
 			public void run() { 
-	        	 // Log.d("OpenStreetMapOverlay", "SimpleInvalidationHandler #viewInvalidates " + viewInvalidates);
-	        	 // if (!drawing) { // don't invalidate when we are drawing
-	        		 viewInvalidates = 0;
-	             	 v.invalidate();
-	        	 //} 
+	        	 scheduled = false;
+	        	 lastInvalidate = System.currentTimeMillis();
+	        	 v.invalidate();
 	         } 
-	    }
+	    };
 		
 		@Override
 		public void handleMessage(final Message msg) {
 			switch (msg.what) {
 				case OpenStreetMapTile.MAPTILE_SUCCESS_ID:
 					// Log.d("OpenStreetMapTileOverlay","received invalidate");
-				    if (viewInvalidates == 0) { // try to suppress inordinate number of invalidates
-						Handler handler = new Handler(); 
-					    handler.postDelayed(new R(), 100); // wait 1/10th of a second
-					    viewInvalidates++;
-				    } else
-				    	viewInvalidates++;
+				    if (!scheduled) { // try to suppress inordinate number of invalidates
+				    	scheduled = true;
+					    postDelayed(invalidate, Math.max(0, REDRAW_INTERVAL - (System.currentTimeMillis() - lastInvalidate)));
+				    }
 					break;
 			}
 		}
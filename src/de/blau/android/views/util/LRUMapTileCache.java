@@ -3,6 +3,7 @@ package de.blau.android.views.util;
 
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 
 import de.blau.android.exception.StorageException;
@@ -13,6 +14,8 @@ import android.util.Log;
  * Simple LRU cache for any type of object. Implemented as an extended
  * <code>HashMap</code> with a maximum size and an aggregated <code>List</code>
  * as LRU queue.
+ * Tiles with identical contents can share one bitmap, it is only recycled when
+ * the last tile using it is removed.
  * <br/>
  * This class was taken from OpenStreetMapViewer (original package org.andnav.osm) in 2010-06
  * by Marcus Wolschon to be integrated into the de.blau.androin
@@ -37,6 +40,11 @@ public class LRUMapTileCache extends HashMap<String, Bitmap> {
 	private long maxCacheSize;
 	/** LRU list. */
 	private final LinkedList<CacheElement> list;
+	/** number of keys using a bitmap */
+	private final IdentityHashMap<Bitmap, Integer> refCount = new IdentityHashMap<Bitmap, Integer>();
+	/** bitmaps by the hash of the data they were decoded from and the reverse */
+	private final HashMap<String, Bitmap> byHash = new HashMap<String, Bitmap>();
+	private final IdentityHashMap<Bitmap, String> hashes = new IdentityHashMap<Bitmap, String>();
 	private class CacheElement implements Serializable {
 		private static final long serialVersionUID = 1;
 		boolean recycleable = true;
@@ -81,12 +89,43 @@ public class LRUMapTileCache extends HashMap<String, Bitmap> {
 	public synchronized void clear() {
 		for (CacheElement ce:list) {
 			Bitmap b = super.get(ce.key);
-			if (b != null && ce.recycleable) {
+			if (b != null && release(b) && ce.recycleable) {
 				b.recycle();
 			}
 		}
 		list.clear();
 		super.clear();
+		refCount.clear();
+		byHash.clear();
+		hashes.clear();
+	}
+	
+	/**
+	 * Add a reference to a bitmap
+	 * @param b the bitmap
+	 */
+	private void retain(Bitmap b) {
+		Integer count = refCount.get(b);
+		refCount.put(b, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+	}
+	
+	/**
+	 * Remove a reference to a bitmap
+	 * @param b the bitmap
+	 * @return true if the bitmap is no longer used
+	 */
+	private boolean release(Bitmap b) {
+		Integer count = refCount.get(b);
+		if (count != null && count.intValue() > 1) {
+			refCount.put(b, Integer.valueOf(count.intValue() - 1));
+			return false;
+		}
+		refCount.remove(b);
+		String hash = hashes.remove(b);
+		if (hash != null) {
+			byHash.remove(hash);
+		}
+		return true;
 	}
 	
 	/**
@@ -108,10 +147,13 @@ public class LRUMapTileCache extends HashMap<String, Bitmap> {
 				Log.d("LRUMapTileCache","cache too small, failing");
 				return false;
 			}
-			Bitmap b = remove(ce.key);
-			if (b != null && !b.isRecycled() && ce.recycleable) {
+			list.remove(ce);
+			Bitmap b = super.remove(ce.key);
+			if (b != null && release(b) && !b.isRecycled()) {
 				cacheSize -= b.getRowBytes() * b.getHeight();
-				b.recycle();
+				if (ce.recycleable) {
+					b.recycle();
+				}
 			}
 		}
 		return true; // success
@@ -141,9 +183,9 @@ public class LRUMapTileCache extends HashMap<String, Bitmap> {
 	 * Calculate the amount of memory used by the cache.
 	 * @return The number of bytes used by the cache.
 	 */
-	public long cacheSizeBytes() {
+	public synchronized long cacheSizeBytes() {
 		long result = 0;
-		for (Bitmap b : values()) {
+		for (Bitmap b : refCount.keySet()) { // shared bitmaps are only counted once
 			if (b != null && !b.isRecycled()) {
 				result += b.getRowBytes() * b.getHeight();
 			}
@@ -169,13 +211,28 @@ public class LRUMapTileCache extends HashMap<String, Bitmap> {
 	 * @throws StorageException 
 	 */
 	public synchronized Bitmap put(final String key, final Bitmap value, boolean recycleable, long owner) throws StorageException {
+		return put(key, value, null, recycleable, owner);
+	}
+	
+	/**
+	 * Add a bitmap that can be shared with other keys
+	 * 
+	 * @param key key with which the specified value is to be associated
+	 * @param value value to be associated with the key
+	 * @param hash if not null hash of the data the bitmap was decoded from
+	 * @param recycleable if true the bitmap can be recycled when it is removed
+	 * @param owner the draw cycle adding the bitmap
+	 * @return previous value associated with key or <code>null</code>
+	 * @throws StorageException
+	 */
+	public synchronized Bitmap put(final String key, final Bitmap value, final String hash, boolean recycleable, long owner) throws StorageException {
 		// Log.d("LRUMapTileCache","put " + key + " " + recycleable);
-		if (maxCacheSize == 0 || value == null){
+		if (maxCacheSize == 0 || value == null || value.isRecycled()){ // a shared bitmap may have been recycled in the mean time
 			return null;
 		}
 
 		// if the key isn't in the cache and the cache is full...
-		if (!containsKey(key)) {
+		if (!containsKey(key) && !refCount.containsKey(value)) {
 			long bitmapSize = value.getRowBytes() * value.getHeight();
 			if (!applyCacheLimit(bitmapSize, owner)) {
 				// failed: cache is to small to handle all tiles necessary for one draw cycle
@@ -191,7 +248,30 @@ public class LRUMapTileCache extends HashMap<String, Bitmap> {
 
 		updateKey(key, recycleable, owner);
 		// Log.d("LRUMapTileCache","put done");
-		return super.put(key, value);
+		retain(value);
+		if (hash != null && !hashes.containsKey(value)) {
+			byHash.put(hash, value);
+			hashes.put(value, hash);
+		}
+		Bitmap previous = super.put(key, value);
+		if (previous != null) {
+			release(previous); // not recycled as it may still be in use
+		}
+		return previous;
+	}
+	
+	/**
+	 * Get a bitmap that was decoded from data with a specific hash
+	 * 
+	 * @param hash the hash of the data
+	 * @return the bitmap or null if there is none in the cache
+	 */
+	public synchronized Bitmap getByHash(final String hash) {
+		Bitmap b = byHash.get(hash);
+		if (b != null && b.isRecycled()) {
+			return null;
+		}
+		return b;
 	}
 
 	/**
@@ -228,7 +308,11 @@ public class LRUMapTileCache extends HashMap<String, Bitmap> {
 		}
 		if (toRemove != null)
 			list.remove(toRemove);
-		return super.remove(key);
+		Bitmap b = super.remove(key);
+		if (b != null) {
+			release(b);
+		}
+		return b;
 	}
 
 	/**
@@ -57,6 +57,28 @@ public class OpenStreetMapTileCache implements OpenStreetMapViewConstants{
 	public synchronized boolean putTile(final OpenStreetMapTile aTile, final Bitmap aImage, final boolean recycleable, final long owner) throws StorageException {
 		return mCachedTiles.put(aTile.toString(), aImage, recycleable, owner) != null;
 	}
+	
+	/**
+	 * Add a tile whose bitmap can be shared with other tiles that have identical contents
+	 * @param aTile the tile
+	 * @param aImage the decoded bitmap
+	 * @param hash hash of the data the bitmap was decoded from
+	 * @param owner the draw cycle adding the tile
+	 * @return true if there was a previous entry for the tile
+	 * @throws StorageException
+	 */
+	public synchronized boolean putTile(final OpenStreetMapTile aTile, final Bitmap aImage, final String hash, final long owner) throws StorageException {
+		return mCachedTiles.put(aTile.toString(), aImage, hash, true, owner) != null;
+	}
+	
+	/**
+	 * Get an already decoded bitmap for tile data
+	 * @param hash hash of the data
+	 * @return the bitmap or null if no tile with this data is in the cache
+	 */
+	public synchronized Bitmap getBitmapByHash(final String hash) {
+		return mCachedTiles.getByHash(hash);
+	}
 
 	// ===========================================================
 	// Methods from SuperClass/Interfaces
@@ -91,6 +113,24 @@ public class OpenStreetMapTileCache implements OpenStreetMapViewConstants{
 		return mCachedTiles.containsKey(aTile.toString());
 	}
 	
+	/**
+	 * Remove a tile from the cache, the bitmap is not recycled as it may still be in use.
+	 * @param aTile the tile to remove
+	 */
+	public synchronized void removeTile(final OpenStreetMapTile aTile) {
+		final String key = aTile.toString();
+		if (mCachedTiles.containsKey(key)) {
+			mCachedTiles.remove(key);
+		}
+	}
+	
+	/**
+	 * @return true if the cache doesn't hold any tiles
+	 */
+	public boolean isEmpty() {
+		return mCachedTiles.isEmpty();
+	}
+	
 	/**
 	 * Try to reduce memory use.
 	 */
@@ -1,9 +1,19 @@
 // Created by plusminus on 21:46:22 - 25.09.2008
 package  de.blau.android.views.util;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.ComponentName;
 import android.content.Context;
@@ -20,6 +30,8 @@ import de.blau.android.services.IOpenStreetMapTileProviderCallback;
 import de.blau.android.services.IOpenStreetMapTileProviderService;
 import de.blau.android.services.util.OpenStreetMapAsyncTileProvider;
 import de.blau.android.services.util.OpenStreetMapTile;
+import de.blau.android.services.util.TileStats;
+import de.blau.android.util.Hash;
 
 /**
  * 
@@ -41,6 +53,22 @@ public class OpenStreetMapTileProvider implements ServiceConnection,
 	 * Tag used in debug log-entries.
 	 */
 	public static final String DEBUGTAG = "OpenStreetMapTileProvider";
+	
+	/**
+	 * Maximum number of zoom levels a lower zoom tile is scaled up to replace a missing tile
+	 */
+	public static final int MAX_OVERZOOM = 3;
+	/**
+	 * Maximum number of zoom levels higher zoom tiles are combined to replace a missing tile
+	 */
+	public static final int MAX_UNDERZOOM = 2;
+	
+	/**
+	 * Number of threads decoding tiles and the maximum number of tiles waiting to be decoded,
+	 * if the queue is full the binder thread delivering the tile decodes it itself, which slows down the service
+	 */
+	private static final int DECODE_THREADS = 2;
+	private static final int DECODE_QUEUE_SIZE = 64;
 
 	// ===========================================================
 	// Fields
@@ -57,16 +85,34 @@ public class OpenStreetMapTileProvider implements ServiceConnection,
 	 * cache provider
 	 */
 	protected OpenStreetMapTileCache mTileCache;
-	private HashMap<String,Long> pending = new HashMap<String,Long>();
+	/**
+	 * cache for tiles that have been synthesized from tiles of other zoom levels
+	 */
+	protected OpenStreetMapTileCache mCompositeTileCache;
+	private Map<String,Long> pending = Collections.synchronizedMap(new HashMap<String,Long>());
+	
+	/** last viewport sent to the service, avoids calling it on every redraw */
+	private String viewportRendererId = null;
+	private int[] viewport = new int[5];
 
 	private IOpenStreetMapTileProviderService mTileService;
 	private Handler mDownloadFinishedHandler;
 	
+	/**
+	 * Tiles are decoded here and not on the binder thread, shared by all providers
+	 */
+	private static ThreadPoolExecutor decodeExecutor = null;
+	
 	/**
 	 * Set to true if we have less than 64 MB heep or have other caching issues
 	 */
 	private boolean smallHeap = false;
 	
+	/** statistics from the tile service, only retrieved once a second for display */
+	private static final long SERVICE_STATS_INTERVAL = 1000L;
+	private String serviceStats = "";
+	private long serviceStatsTime = 0;
+	
 	// ===========================================================
 	// Constructors
 	// ===========================================================
@@ -79,6 +125,7 @@ public class OpenStreetMapTileProvider implements ServiceConnection,
 		mLoadingMapTile = BitmapFactory.decodeResource(ctx.getResources(),
 				R.drawable.no_tiles);
 		mTileCache = new OpenStreetMapTileCache();
+		mCompositeTileCache = new OpenStreetMapTileCache(Runtime.getRuntime().maxMemory() / 16);
 		
 		smallHeap = Runtime.getRuntime().maxMemory() <= 32L*1024L*1024L; // less than 32MB
 	
@@ -87,6 +134,21 @@ public class OpenStreetMapTileProvider implements ServiceConnection,
 		}
 		
 		mDownloadFinishedHandler = aDownloadFinishedListener;
+		
+		synchronized (OpenStreetMapTileProvider.class) {
+			if (decodeExecutor == null) {
+				decodeExecutor = new ThreadPoolExecutor(DECODE_THREADS, DECODE_THREADS, 0L, TimeUnit.MILLISECONDS, 
+						new LinkedBlockingQueue<Runnable>(DECODE_QUEUE_SIZE), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "TileDecoder");
+						t.setDaemon(true);
+						t.setPriority(Thread.NORM_PRIORITY - 1);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+			}
+		}
 	}
 
 	// ===========================================================
@@ -121,6 +183,7 @@ public class OpenStreetMapTileProvider implements ServiceConnection,
 	public void clear() {
 		pending.clear();
 		mTileCache.clear();
+		mCompositeTileCache.clear();
 		mCtx.unbindService(this);
 	}
 	
@@ -129,6 +192,7 @@ public class OpenStreetMapTileProvider implements ServiceConnection,
 	 */
 	public void onLowMemory() {
 		mTileCache.onLowMemory();
+		mCompositeTileCache.clear();
 	}
 	
 	/**
@@ -143,12 +207,14 @@ public class OpenStreetMapTileProvider implements ServiceConnection,
 	public Bitmap getMapTile(final OpenStreetMapTile aTile, long owner) {
 		Bitmap tile = mTileCache.getMapTile(aTile); 
 		if (tile != null) {
+			TileStats.count(TileStats.MEMORY_HIT);
 			// from cache
 			//if (DEBUGMODE)
 			//	Log.i(DEBUGTAG, "MapTileCache succeeded for: " + aTile.toString());
 			return tile;
 		} else {
 			// from service
+			TileStats.count(TileStats.MEMORY_MISS);
 			if (DEBUGMODE)
 				Log.i(DEBUGTAG, "MapTileCache failed for: " + aTile.toString());
 			preCacheTile(aTile, owner);
@@ -156,11 +222,77 @@ public class OpenStreetMapTileProvider implements ServiceConnection,
 		return null;
 	}
 
+	/**
+	 * Get a previously synthesized replacement for a missing tile
+	 * @param aTile the missing tile
+	 * @return the replacement or null if none has been stored
+	 */
+	public Bitmap getCompositeTile(final OpenStreetMapTile aTile) {
+		return mCompositeTileCache.getMapTile(aTile);
+	}
+	
+	/**
+	 * Store a replacement for a missing tile that has been synthesized from tiles of other zoom levels, 
+	 * it will be removed as soon as the tile itself or one it was built from arrives
+	 * @param aTile the missing tile
+	 * @param aImage the replacement 
+	 * @param owner the draw cycle creating the tile
+	 */
+	public void putCompositeTile(final OpenStreetMapTile aTile, final Bitmap aImage, long owner) {
+		try {
+			mCompositeTileCache.putTile(aTile, aImage, owner);
+		} catch (StorageException e) {
+			// not fatal, we will simply build it again
+			Log.w(DEBUGTAG, "Unable to cache composite tile " + aTile);
+		}
+	}
+	
+	/**
+	 * Remove all synthesized tiles that could have been built with a tile
+	 * @param aTile a newly arrived tile
+	 */
+	private void invalidateCompositeTiles(final OpenStreetMapTile aTile) {
+		if (mCompositeTileCache.isEmpty()) {
+			return;
+		}
+		final OpenStreetMapTile t = new OpenStreetMapTile(aTile);
+		mCompositeTileCache.removeTile(t);
+		// composites built from higher zoom tiles
+		for (int d = 1; d <= MAX_UNDERZOOM; d++) {
+			t.zoomLevel = aTile.zoomLevel - d;
+			t.x = aTile.x >> d;
+			t.y = aTile.y >> d;
+			mCompositeTileCache.removeTile(t);
+		}
+		// composites built from this tile scaled up
+		for (int d = 1; d <= MAX_OVERZOOM; d++) {
+			final int n = 1 << d;
+			t.zoomLevel = aTile.zoomLevel + d;
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					t.x = (aTile.x << d) + i;
+					t.y = (aTile.y << d) + j;
+					mCompositeTileCache.removeTile(t);
+				}
+			}
+		}
+	}
+
 	public void preCacheTile(final OpenStreetMapTile aTile, long owner) {
+		preCacheTile(aTile, owner, OpenStreetMapAsyncTileProvider.PRIORITY_VISIBLE);
+	}
+	
+	/**
+	 * Request a tile from the tile service if it isn't in the in memory cache
+	 * @param aTile the tile
+	 * @param owner the draw cycle requesting the tile
+	 * @param priority one of the OpenStreetMapAsyncTileProvider.PRIORITY_* values
+	 */
+	public void preCacheTile(final OpenStreetMapTile aTile, long owner, int priority) {
 		if (!isTileAvailable(aTile) && mTileService != null && !pending.containsKey(aTile.toString())) {
 			try {
 				pending.put(aTile.toString(), Long.valueOf(owner));
-				mTileService.getMapTile(aTile.rendererID, aTile.zoomLevel, aTile.x, aTile.y, mServiceCallback);
+				mTileService.getMapTile(aTile.rendererID, aTile.zoomLevel, aTile.x, aTile.y, priority, mServiceCallback);
 			} catch (RemoteException e) {
 				Log.e("OpenStreetMapTileProvider", "RemoteException in preCacheTile()", e);
 			} catch (Exception e) {
@@ -169,6 +301,33 @@ public class OpenStreetMapTileProvider implements ServiceConnection,
 		}
 	}
 	
+	/**
+	 * Tell the tile service which tiles are currently visible so that it can drop requests for tiles that are not
+	 * @param rendererId the renderer
+	 * @param zoomLevel the current zoom level
+	 * @param left left most tile x
+	 * @param top top most tile y
+	 * @param right right most tile x
+	 * @param bottom bottom most tile y
+	 */
+	public void setViewport(String rendererId, int zoomLevel, int left, int top, int right, int bottom) {
+		if (mTileService == null || (rendererId.equals(viewportRendererId) && viewport[0] == zoomLevel 
+				&& viewport[1] == left && viewport[2] == top && viewport[3] == right && viewport[4] == bottom)) {
+			return;
+		}
+		try {
+			mTileService.setViewport(rendererId, zoomLevel, left, top, right, bottom);
+			viewportRendererId = rendererId;
+			viewport[0] = zoomLevel;
+			viewport[1] = left;
+			viewport[2] = top;
+			viewport[3] = right;
+			viewport[4] = bottom;
+		} catch (RemoteException e) {
+			Log.e("OpenStreetMapTileProvider", "RemoteException in setViewport()", e);
+		}
+	}
+	
 	public void flushCache(String rendererId) { 
 		try {
 			mTileService.flushCache(rendererId);
@@ -178,6 +337,7 @@ public class OpenStreetMapTileProvider implements ServiceConnection,
 			Log.e("OpenStreetMapTileProvider", "Exception in flushCache()", e);
 		}
 		mTileCache.clear(); // zap everything in in memory cache
+		mCompositeTileCache.clear();
 	}
 
 	// ===========================================================
@@ -191,43 +351,23 @@ public class OpenStreetMapTileProvider implements ServiceConnection,
 		
 		//@Override
 		public void mapTileLoaded(final String rendererID, final int zoomLevel, final int tileX, final int tileY, final byte[] data) throws RemoteException {
-			BitmapFactory.Options options = new BitmapFactory.Options();
-			if (smallHeap) {
-				 options.inPreferredConfig =  Bitmap.Config.RGB_565;
-			} else {
-				options.inPreferredConfig = Bitmap.Config.ARGB_8888; // Bitmap.Config.RGB_565;
-			}
-	        
-			OpenStreetMapTile t = new OpenStreetMapTile(rendererID, zoomLevel, tileX, tileY);
-			//long start = System.currentTimeMillis();
-			Bitmap aTile = BitmapFactory.decodeByteArray(data, 0, data.length, options);
-			// long duration = System.currentTimeMillis() - start;
-			if (aTile == null) {
-				throw new RemoteException();
-			}
-			// Log.d("OpenStreetMapTileProvider", "raw data size " + data.length + " decoded bitmap size " + aTile.getRowBytes()*aTile.getHeight());
-			try {
-				mTileCache.putTile(t, aTile,pending.get(t.toString()).longValue());
-				pending.remove(t.toString());
-				mDownloadFinishedHandler.sendEmptyMessage(OpenStreetMapTile.MAPTILE_SUCCESS_ID);
-				// Log.d("OpenStreetMapTileProvider", "Sending tile success message");
-			} catch (StorageException e) {
-				// unable to cache tile
-				if (!smallHeap) { // reduce tile size to half
-					smallHeap = true;
-					mTileCache.clear();
-					// should toast this
-				} else {
-					// FIXME this should show a toast ... or a special tile
+			// data is a fresh array unmarshalled from the parcel, it is handed on without copying
+			final OpenStreetMapTile t = new OpenStreetMapTile(rendererID, zoomLevel, tileX, tileY);
+			decodeExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					decodeTile(t, data);
 				}
-			}
-			if (DEBUGMODE)
-				Log.i(DEBUGTAG, "MapTile download success."+t.toString());
+			});
 		}
 		
 		//@Override
 		public void mapTileFailed(final String rendererID, final int zoomLevel, final int tileX, final int tileY, final int reason) throws RemoteException {
 			OpenStreetMapTile t = new OpenStreetMapTile(rendererID, zoomLevel, tileX, tileY);
+			if (reason == OpenStreetMapAsyncTileProvider.CANCELLED) { // no longer visible, will be requested again if necessary
+				pending.remove(t.toString());
+				return;
+			}
 			if (reason == OpenStreetMapAsyncTileProvider.DOESNOTEXIST) {// only show error tile if we have no chance of getting the proper one
 				OpenStreetMapTileServer osmts = OpenStreetMapTileServer.get(mCtx, rendererID, false);
 				//TODO check if we are inside the providers bounding box
@@ -248,7 +388,131 @@ public class OpenStreetMapTileProvider implements ServiceConnection,
 		}
 	};
 
+	/**
+	 * Decode a tile and add it to the cache, runs on one of the decoder threads
+	 * @param t the tile
+	 * @param data the encoded tile as received from the service
+	 */
+	private void decodeTile(final OpenStreetMapTile t, final byte[] data) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		if (smallHeap) {
+			 options.inPreferredConfig =  Bitmap.Config.RGB_565;
+		} else {
+			options.inPreferredConfig = Bitmap.Config.ARGB_8888; // Bitmap.Config.RGB_565;
+		}
+        
+		// identical tiles share one bitmap
+		String hash = Hash.sha256(data);
+		Bitmap aTile = mTileCache.getBitmapByHash(hash);
+		if (aTile == null) {
+			long start = System.currentTimeMillis();
+			aTile = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+			TileStats.record(TileStats.DECODE, System.currentTimeMillis() - start);
+		} else {
+			TileStats.count(TileStats.DECODE_SHARED);
+		}
+		if (aTile == null) {
+			Log.e(DEBUGTAG, "Decoding tile " + t + " failed");
+			pending.remove(t.toString());
+			return;
+		}
+		// Log.d("OpenStreetMapTileProvider", "raw data size " + data.length + " decoded bitmap size " + aTile.getRowBytes()*aTile.getHeight());
+		try {
+			// tiles that have been revalidated in the background are no longer pending
+			Long owner = pending.get(t.toString());
+			mTileCache.putTile(t, aTile, hash, owner != null ? owner.longValue() : 0);
+			invalidateCompositeTiles(t);
+			pending.remove(t.toString());
+			requestRedraw();
+			// Log.d("OpenStreetMapTileProvider", "Sending tile success message");
+		} catch (StorageException e) {
+			// unable to cache tile
+			if (!smallHeap) { // reduce tile size to half
+				smallHeap = true;
+				mTileCache.clear();
+				// should toast this
+			} else {
+				// FIXME this should show a toast ... or a special tile
+			}
+		}
+		if (DEBUGMODE)
+			Log.i(DEBUGTAG, "MapTile download success."+t.toString());
+	}
+	
+	/**
+	 * Ask for the map to be redrawn, if a request is already waiting to be processed nothing is sent
+	 * so that a burst of arriving tiles doesn't flood the UI thread
+	 */
+	private void requestRedraw() {
+		synchronized (mDownloadFinishedHandler) {
+			if (!mDownloadFinishedHandler.hasMessages(OpenStreetMapTile.MAPTILE_SUCCESS_ID)) {
+				mDownloadFinishedHandler.sendEmptyMessage(OpenStreetMapTile.MAPTILE_SUCCESS_ID);
+			}
+		}
+	}
+
 	public String getCacheUsageInfo() {
-		return mTileCache.getCacheUsageInfo();
+		String queueInfo = "";
+		if (mTileService != null) {
+			try {
+				queueInfo = " " + mTileService.getQueueInfo();
+			} catch (RemoteException e) {
+				Log.e("OpenStreetMapTileProvider", "RemoteException in getCacheUsageInfo()", e);
+			}
+		}
+		return mTileCache.getCacheUsageInfo() + queueInfo;
+	}
+	
+	/**
+	 * Get the statistics of the UI and the tile service process
+	 * @param refresh if false the statistics of the tile service are only retrieved once a second
+	 * @return CSV lines in the format given by TileStats.CSV_HEADER without header
+	 */
+	private String getStats(boolean refresh) {
+		long now = System.currentTimeMillis();
+		if (mTileService != null && (refresh || now - serviceStatsTime > SERVICE_STATS_INTERVAL)) {
+			try {
+				serviceStats = mTileService.getStats();
+				serviceStatsTime = now;
+			} catch (RemoteException e) {
+				Log.e("OpenStreetMapTileProvider", "RemoteException in getStats()", e);
+			}
+		}
+		return TileStats.toCSV("ui") + serviceStats;
+	}
+	
+	/**
+	 * Get a short summary of the tile pipeline statistics for display
+	 * @return one line per counter or histogram
+	 */
+	public List<String> getStatsSummary() {
+		List<String> result = new ArrayList<String>();
+		for (String line:getStats(false).split("\n")) {
+			String[] fields = line.split(",", -1);
+			if (fields.length < 10) {
+				continue;
+			}
+			if ("".equals(fields[4])) { // counter
+				result.add(fields[1] + " " + fields[2]);
+			} else {
+				result.add(fields[1] + " n " + fields[2] + " avg " + fields[6] + " p50 " + fields[7] + " p90 " + fields[8] + " max " + fields[5]);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Write the tile pipeline statistics to a CSV file
+	 * @param file the file to write to
+	 * @throws IOException
+	 */
+	public void exportStats(File file) throws IOException {
+		Writer writer = new FileWriter(file);
+		try {
+			writer.write(TileStats.CSV_HEADER + "\n");
+			writer.write(getStats(true));
+		} finally {
+			writer.close();
+		}
 	}
 }
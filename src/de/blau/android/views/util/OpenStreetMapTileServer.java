@@ -1,6 +1,13 @@
 // Created by plusminus on 18:23:16 - 25.09.2008
 package  de.blau.android.views.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -10,8 +17,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Queue;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -34,7 +43,10 @@ import de.blau.android.exception.OsmException;
 import de.blau.android.osm.BoundingBox;
 import de.blau.android.prefs.Preferences;
 import de.blau.android.services.util.OpenStreetMapTile;
+import de.blau.android.services.util.StreamUtils;
 import de.blau.android.util.Density;
+import de.blau.android.util.GridIndex;
+import de.blau.android.util.Hash;
 import de.blau.android.util.Offset;
 import de.blau.android.util.jsonreader.JsonReader;
 
@@ -208,6 +220,21 @@ public class OpenStreetMapTileServer {
 			return false;
 		}
 		
+		/**
+		 * Add the coverage areas of this provider to a spatial index
+		 * @param index the index
+		 * @param o the object to store for the coverage areas
+		 */
+		public <T> void addToIndex(GridIndex<T> index, T o) {
+			if (coverageAreas.size() == 0) {
+				index.add(null, o); // covers everything
+				return;
+			}
+			for (CoverageArea a : coverageAreas) {
+				index.add(a.bbox, o);
+			}
+		}
+		
 		public CoverageArea getCoverageArea(double lon, double lat) {
 			if (coverageAreas.size() == 0)
 				return null;
@@ -227,6 +254,96 @@ public class OpenStreetMapTileServer {
 		}
 	}
 	
+	/**
+	 * The information we use from an entry in the imagery configuration files, this is 
+	 * stored in a compact binary index so that we don't have to parse the JSON on every start
+	 */
+	private static class ImageryEntry {
+		String type;
+		String id;
+		String name;
+		String url;
+		boolean overlay = false;
+		boolean defaultLayer = false;
+		long maxAge = 0;
+		/** true if the entry has an extent or attribution */
+		boolean hasProvider = false;
+		Provider.CoverageArea extent = null;
+		String attribution = null;
+		String termsOfUseUrl = null;
+		
+		void write(DataOutputStream out) throws IOException {
+			writeString(out, type);
+			writeString(out, id);
+			writeString(out, name);
+			writeString(out, url);
+			out.writeBoolean(overlay);
+			out.writeBoolean(defaultLayer);
+			out.writeLong(maxAge);
+			out.writeBoolean(hasProvider);
+			out.writeBoolean(extent != null);
+			if (extent != null) {
+				out.writeInt(extent.zoomMin);
+				out.writeInt(extent.zoomMax);
+				out.writeBoolean(extent.bbox != null);
+				if (extent.bbox != null) {
+					out.writeInt(extent.bbox.getLeft());
+					out.writeInt(extent.bbox.getBottom());
+					out.writeInt(extent.bbox.getRight());
+					out.writeInt(extent.bbox.getTop());
+				}
+			}
+			writeString(out, attribution);
+			writeString(out, termsOfUseUrl);
+		}
+		
+		static ImageryEntry read(DataInputStream in) throws IOException {
+			ImageryEntry e = new ImageryEntry();
+			e.type = readString(in);
+			e.id = readString(in);
+			e.name = readString(in);
+			e.url = readString(in);
+			e.overlay = in.readBoolean();
+			e.defaultLayer = in.readBoolean();
+			e.maxAge = in.readLong();
+			e.hasProvider = in.readBoolean();
+			if (in.readBoolean()) {
+				int zoomMin = in.readInt();
+				int zoomMax = in.readInt();
+				BoundingBox bbox = null;
+				if (in.readBoolean()) {
+					try {
+						bbox = new BoundingBox(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+					} catch (OsmException ex) {
+						throw new IOException("Invalid bounding box in imagery index");
+					}
+				}
+				e.extent = new Provider.CoverageArea(zoomMin, zoomMax, bbox);
+			}
+			e.attribution = readString(in);
+			e.termsOfUseUrl = readString(in);
+			return e;
+		}
+		
+		private static void writeString(DataOutputStream out, String s) throws IOException {
+			out.writeBoolean(s != null);
+			if (s != null) {
+				out.writeUTF(s);
+			}
+		}
+		
+		private static String readString(DataInputStream in) throws IOException {
+			return in.readBoolean() ? in.readUTF() : null;
+		}
+	}
+	
+	/** name and format version of the binary imagery index */
+	private static final String IMAGERY_INDEX = "imagery.idx";
+	private static final int IMAGERY_INDEX_VERSION = 1;
+	
+	/** grid cell size in degrees for the coverage indices */
+	private static final int COVERAGE_CELL_SIZE = 5;
+	
 	private static OpenStreetMapTileServer cachedBackground = null;
 	private static OpenStreetMapTileServer cachedOverlay = null;
 	
@@ -244,9 +361,21 @@ public class OpenStreetMapTileServer {
 	private Drawable brandLogo;
 	private Queue<String> subdomains = new LinkedList<String>();
 	private int defaultAlpha;
+	private long maxAge = 0; // seconds, 0 = use what the server tells us
 	private Collection<Provider> providers = new ArrayList<Provider>();
 	private Offset[] offsets;
 	
+	/** spatial index over the coverage areas of providers with attribution, null if it needs to be rebuilt */
+	private GridIndex<Provider> attributionIndex = null;
+	/** result of the last getAttributions call */
+	private int lastAttributionZoom = -1;
+	private final int[] lastAttributionArea = new int[4];
+	private Collection<String> lastAttributions = null;
+	
+	/** spatial indices over the coverage of all tile servers, null if they need to be rebuilt */
+	private static GridIndex<OpenStreetMapTileServer> backgroundCoverageIndex = null;
+	private static GridIndex<OpenStreetMapTileServer> overlayCoverageIndex = null;
+	
 	private static HashMap<String,OpenStreetMapTileServer> backgroundServerList =new HashMap<String,OpenStreetMapTileServer>();
 	private static HashMap<String,OpenStreetMapTileServer> overlayServerList = new HashMap<String,OpenStreetMapTileServer>();
 	private static boolean ready = false;
@@ -348,6 +477,15 @@ public class OpenStreetMapTileServer {
 					}
 				}
 			}
+			synchronized (this) { // same lock as getAttributions
+				// providers have changed
+				attributionIndex = null;
+				lastAttributions = null;
+			}
+			synchronized (OpenStreetMapTileServer.class) {
+				backgroundCoverageIndex = null;
+				overlayCoverageIndex = null;
+			}
 			metadataLoaded = true;
 			// once we've got here, a selected layer that was previously non-available might now be available ... reset map preferences
 			if (myCtx == Application.mainActivity) { // don't do this in the service
@@ -477,44 +615,20 @@ public class OpenStreetMapTileServer {
 			if (!ready) {
 				Log.d("OpenStreetMapTileServer","Parsing configuration files");
 
-				AssetManager assetManager = ctx.getAssets();
-				
 				String[] imageryFiles = {"imagery_vespucci.json","imagery.json"}; // entries in earlier files will not be overwritten by later ones
-				for (String fn:imageryFiles) {
-					try {
-						InputStream is = assetManager.open(fn);
-						JsonReader reader = new JsonReader(new InputStreamReader(is, "UTF-8"));
-						try {
-							
-							try {
-								reader.beginArray();
-								while (reader.hasNext()) {
-									OpenStreetMapTileServer osmts = readServer(reader, r, async);
-									if (osmts != null) {
-										if (osmts.overlay && !overlayServerList.containsKey(osmts.id)) {
-											// Log.d("OpenStreetMapTileServer","Adding overlay " + osmts.overlay + " " + osmts.toString());
-											overlayServerList.put(osmts.id,osmts);
-										}
-										else if (!backgroundServerList.containsKey(osmts.id)){
-											// Log.d("OpenStreetMapTileServer","Adding background " + osmts.overlay + " " + osmts.toString());
-											backgroundServerList.put(osmts.id,osmts);
-										}
-									}
-								}
-								reader.endArray();
-							} catch (IOException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							} 
-						}
-						finally {
-						       reader.close();
-						}
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+				for (ImageryEntry entry:readImagery(ctx, imageryFiles)) {
+					OpenStreetMapTileServer osmts = createServer(entry, r, async);
+					if (osmts.overlay && !overlayServerList.containsKey(osmts.id)) {
+						// Log.d("OpenStreetMapTileServer","Adding overlay " + osmts.overlay + " " + osmts.toString());
+						overlayServerList.put(osmts.id,osmts);
+					}
+					else if (!backgroundServerList.containsKey(osmts.id)){
+						// Log.d("OpenStreetMapTileServer","Adding background " + osmts.overlay + " " + osmts.toString());
+						backgroundServerList.put(osmts.id,osmts);
 					}
 				}
+				backgroundCoverageIndex = null;
+				overlayCoverageIndex = null;
 				ready = true;
 			}
 		}
@@ -548,43 +662,165 @@ public class OpenStreetMapTileServer {
 		} 
 	}
 	
-	private static OpenStreetMapTileServer readServer(JsonReader reader, final Resources r, boolean async) {
-		String id = null;
-		String name = null;
-		String url = null;
-		String type = null;
-		boolean overlay = false;
-		boolean defaultLayer = false;
-		Provider.CoverageArea extent = null;
-		Provider provider = null;
-		String termsOfUseUrl = null;
+	/**
+	 * Get the entries from the imagery configuration files, if the binary index is missing
+	 * or the files have changed the JSON is parsed and the index written
+	 * @param ctx Android context
+	 * @param imageryFiles names of the configuration files in the assets
+	 * @return list of the entries in the order they were found
+	 */
+	private static List<ImageryEntry> readImagery(final Context ctx, final String[] imageryFiles) {
+		AssetManager assetManager = ctx.getAssets();
+		String hash = null;
+		try {
+			StringBuilder hashes = new StringBuilder();
+			for (String fn:imageryFiles) {
+				InputStream is = assetManager.open(fn);
+				try {
+					hashes.append(Hash.sha256(is));
+				} finally {
+					StreamUtils.closeStream(is);
+				}
+			}
+			hash = Hash.sha256(hashes.toString());
+		} catch (IOException e) {
+			Log.e("OpenStreetMapTileServer", "Hashing imagery configuration failed " + e);
+		}
+		File indexFile = new File(ctx.getFilesDir(), IMAGERY_INDEX);
+		if (hash != null) {
+			List<ImageryEntry> entries = readIndex(indexFile, hash);
+			if (entries != null) {
+				Log.d("OpenStreetMapTileServer","Using imagery index");
+				return entries;
+			}
+		}
+		
+		Log.d("OpenStreetMapTileServer","Parsing configuration files");
+		List<ImageryEntry> entries = new ArrayList<ImageryEntry>();
+		for (String fn:imageryFiles) {
+			try {
+				InputStream is = assetManager.open(fn);
+				JsonReader reader = new JsonReader(new InputStreamReader(is, "UTF-8"));
+				try {
+					
+					try {
+						reader.beginArray();
+						while (reader.hasNext()) {
+							ImageryEntry entry = readServer(reader);
+							if (entry != null) {
+								entries.add(entry);
+							}
+						}
+						reader.endArray();
+					} catch (IOException e) {
+						// TODO Auto-generated catch block
+						e.printStackTrace();
+					} 
+				}
+				finally {
+				       reader.close();
+				}
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+				hash = null; // don't store an incomplete index
+			}
+		}
+		if (hash != null) {
+			writeIndex(indexFile, hash, entries);
+		}
+		return entries;
+	}
+	
+	/**
+	 * Read the binary imagery index
+	 * @param indexFile the index file
+	 * @param hash hash of the current configuration files
+	 * @return the entries or null if the index is missing, outdated or unreadable 
+	 */
+	private static List<ImageryEntry> readIndex(final File indexFile, final String hash) {
+		if (!indexFile.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), StreamUtils.IO_BUFFER_SIZE));
+			if (in.readInt() != IMAGERY_INDEX_VERSION || !hash.equals(in.readUTF())) {
+				return null;
+			}
+			int count = in.readInt();
+			List<ImageryEntry> entries = new ArrayList<ImageryEntry>(count);
+			for (int i = 0; i < count; i++) {
+				entries.add(ImageryEntry.read(in));
+			}
+			return entries;
+		} catch (IOException e) {
+			Log.e("OpenStreetMapTileServer", "Reading imagery index failed " + e);
+			return null;
+		} finally {
+			StreamUtils.closeStream(in);
+		}
+	}
+	
+	/**
+	 * Write the binary imagery index, the file is written under a temporary name and then 
+	 * renamed as the tile service process may be reading it at the same time 
+	 * @param indexFile the index file
+	 * @param hash hash of the configuration files
+	 * @param entries the entries to store
+	 */
+	private static void writeIndex(final File indexFile, final String hash, final List<ImageryEntry> entries) {
+		File tempFile = new File(indexFile.getPath() + "." + android.os.Process.myPid());
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), StreamUtils.IO_BUFFER_SIZE));
+			out.writeInt(IMAGERY_INDEX_VERSION);
+			out.writeUTF(hash);
+			out.writeInt(entries.size());
+			for (ImageryEntry e:entries) {
+				e.write(out);
+			}
+			out.close();
+			out = null;
+			if (!tempFile.renameTo(indexFile)) {
+				Log.e("OpenStreetMapTileServer", "Renaming imagery index failed");
+				tempFile.delete();
+			}
+		} catch (IOException e) {
+			Log.e("OpenStreetMapTileServer", "Writing imagery index failed " + e);
+			StreamUtils.closeStream(out);
+			tempFile.delete();
+		}
+	}
+	
+	private static ImageryEntry readServer(JsonReader reader) {
+		ImageryEntry entry = new ImageryEntry();
 		try {
 			reader.beginObject();
 			while (reader.hasNext()) {
 				String jsonName = reader.nextName();
 				if (jsonName.equals("type")) {
-					type = reader.nextString(); 
+					entry.type = reader.nextString(); 
 			    } else if (jsonName.equals("id")) {
-					id = reader.nextString();
+					entry.id = reader.nextString();
 			    } else if (jsonName.equals("url")) {
-			        url = reader.nextString();
+			        entry.url = reader.nextString();
 			    } else if (jsonName.equals("name")) {
-			    	name = reader.nextString();
+			    	entry.name = reader.nextString();
 			    } else if (jsonName.equals("overlay")) {
-			    	overlay = reader.nextBoolean();
+			    	entry.overlay = reader.nextBoolean();
 			    } else if (jsonName.equals("default")) {
-			    	defaultLayer = reader.nextBoolean();
+			    	entry.defaultLayer = reader.nextBoolean();
+			    } else if (jsonName.equals("max_age")) {
+			    	entry.maxAge = reader.nextLong();
 			    } else if (jsonName.equals("extent")) {
-			    	extent = readExtent(reader);
-			    	if (extent != null) {
-			    		if (provider == null)
-			    			provider = new Provider();
-			    		provider.addCoverageArea(extent);
+			    	entry.extent = readExtent(reader);
+			    	if (entry.extent != null) {
+			    		entry.hasProvider = true;
 			    	}
 			    } else if (jsonName.equals("attribution")) {
-			    	if (provider == null) 
-			    		provider = new Provider();
-			    	readAttribution(reader, provider, termsOfUseUrl);
+			    	entry.hasProvider = true;
+			    	readAttribution(reader, entry);
 			    } else {
 			    	reader.skipValue();
 			    }
@@ -594,10 +830,23 @@ public class OpenStreetMapTileServer {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		if (type == null || type.equals("wms"))
+		if (entry.type == null || entry.type.equals("wms"))
 			return null;
-		OpenStreetMapTileServer osmts = new OpenStreetMapTileServer(r, id, name, url, type, overlay, defaultLayer, provider, termsOfUseUrl,
-				extent != null ? extent.zoomMin : 0, extent != null ? extent.zoomMax : 18, 256, 256, async);
+		return entry;
+	}
+	
+	private static OpenStreetMapTileServer createServer(final ImageryEntry entry, final Resources r, boolean async) {
+		Provider provider = null;
+		if (entry.hasProvider) {
+			provider = new Provider();
+			if (entry.extent != null) {
+				provider.addCoverageArea(entry.extent);
+			}
+			provider.attribution = entry.attribution;
+		}
+		OpenStreetMapTileServer osmts = new OpenStreetMapTileServer(r, entry.id, entry.name, entry.url, entry.type, entry.overlay, entry.defaultLayer, provider, entry.termsOfUseUrl,
+				entry.extent != null ? entry.extent.zoomMin : 0, entry.extent != null ? entry.extent.zoomMax : 18, 256, 256, async);
+		osmts.maxAge = entry.maxAge;
 		return osmts;
 	}
 	
@@ -661,16 +910,16 @@ public class OpenStreetMapTileServer {
 		return bbox;
 	}
 	
-	private static void readAttribution(JsonReader reader, Provider provider, String termsOfUseUrl) {
+	private static void readAttribution(JsonReader reader, ImageryEntry entry) {
 	
 		try {
 			reader.beginObject();
 			while (reader.hasNext()) {
 				String jsonName = reader.nextName();
 				if (jsonName.equals("text")) {
-					provider.attribution = reader.nextString();
+					entry.attribution = reader.nextString();
 				} else if (jsonName.equals("url")) {
-					termsOfUseUrl = reader.nextString();
+					entry.termsOfUseUrl = reader.nextString();
 				} else {
 			    	reader.skipValue();
 			    }
@@ -768,18 +1017,43 @@ public class OpenStreetMapTileServer {
 	 * @param area Displayed area to get the attributions of.
 	 * @return Collections of attributions that apply to the specified area and zoom.
 	 */
-	public Collection<String> getAttributions(final int zoom, final BoundingBox area) {
+	public synchronized Collection<String> getAttributions(final int zoom, final BoundingBox area) {
 		if (!metadataLoaded) throw new IllegalStateException("metadata not loaded");
-		Collection<String> ret = new ArrayList<String>();
-		for (Provider p : providers) {
-			if (p.getAttribution() != null)
-				if (p.covers(zoom, area)) {
-					ret.add(p.getAttribution());
+		if (lastAttributions != null && zoom == lastAttributionZoom && area.getLeft() == lastAttributionArea[0] && area.getBottom() == lastAttributionArea[1] 
+				&& area.getRight() == lastAttributionArea[2] && area.getTop() == lastAttributionArea[3]) {
+			return lastAttributions; // unchanged
+		}
+		if (attributionIndex == null) {
+			attributionIndex = new GridIndex<Provider>(COVERAGE_CELL_SIZE);
+			for (Provider p : providers) {
+				if (p.getAttribution() != null) {
+					p.addToIndex(attributionIndex, p);
 				}
+			}
+		}
+		Collection<String> ret = new ArrayList<String>();
+		for (Provider p : attributionIndex.query(area)) {
+			if (p.covers(zoom, area)) {
+				ret.add(p.getAttribution());
+			}
 		}
+		lastAttributionZoom = zoom;
+		lastAttributionArea[0] = area.getLeft();
+		lastAttributionArea[1] = area.getBottom();
+		lastAttributionArea[2] = area.getRight();
+		lastAttributionArea[3] = area.getTop();
+		lastAttributions = ret;
 		return ret;
 	}
 	
+	/**
+	 * Get the maximum time a tile from this source should be used without checking for a newer version. 
+	 * @return max age in seconds, 0 if the values supplied by the tile server should be used
+	 */
+	public long getMaxAge() {
+		return maxAge;
+	}
+	
 	/**
 	 * Get the End User Terms Of Use URI.
 	 * @return The End User Terms Of Use URI.
@@ -856,18 +1130,61 @@ public class OpenStreetMapTileServer {
 	 * @return All available tile layer IDs.
 	 */
 	public static String[] getIds(boolean filtered) {
+		GridIndex<OpenStreetMapTileServer> index = null;
+		if (filtered) {
+			synchronized (OpenStreetMapTileServer.class) {
+				if (backgroundCoverageIndex == null) {
+					backgroundCoverageIndex = buildCoverageIndex(backgroundServerList);
+				}
+				index = backgroundCoverageIndex;
+			}
+		}
+		return getIds(backgroundServerList, index);
+	}
+	
+	/**
+	 * Build a spatial index over the coverage areas of tile servers 
+	 * @param serverList the tile servers
+	 * @return the index
+	 */
+	private static GridIndex<OpenStreetMapTileServer> buildCoverageIndex(HashMap<String,OpenStreetMapTileServer> serverList) {
+		GridIndex<OpenStreetMapTileServer> index = new GridIndex<OpenStreetMapTileServer>(COVERAGE_CELL_SIZE);
+		for (OpenStreetMapTileServer osmts:serverList.values()) {
+			for (Provider p:osmts.providers) {
+				p.addToIndex(index, osmts);
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * Get the IDs of tile servers in a reasonable order
+	 * @param serverList the tile servers
+	 * @param index if not null only return servers that have no coverage information or that are found in the index 
+	 * 			and overlap/intersect with the current bbox 
+	 * @return the tile server IDs
+	 */
+	private static String[] getIds(HashMap<String,OpenStreetMapTileServer> serverList, GridIndex<OpenStreetMapTileServer> index) {
 		LinkedList<String> ids = new LinkedList<String>();
 		boolean noneSeen = false;
-		TreeSet<String> sortedKeySet = new TreeSet<String>(backgroundServerList.keySet());
+		Set<OpenStreetMapTileServer> candidates = null;
+		BoundingBox viewBox = null;
+		if (index != null) {
+			viewBox = Application.mainActivity.getMap().getViewBox();
+			candidates = index.query(viewBox);
+		}
+		TreeSet<String> sortedKeySet = new TreeSet<String>(serverList.keySet());
 		for (String key:sortedKeySet) {
-			OpenStreetMapTileServer osmts = backgroundServerList.get(key);
-			if (filtered) {
+			OpenStreetMapTileServer osmts = serverList.get(key);
+			if (candidates != null) {
 				if (osmts.providers.size() > 0) {
 					boolean covers = false; // default is to not include  
-					for (Provider p:osmts.providers) {
-						if (p.covers(Application.mainActivity.getMap().getViewBox())) { 
-							covers = true;
-							break;
+					if (candidates.contains(osmts)) {
+						for (Provider p:osmts.providers) {
+							if (p.covers(viewBox)) { 
+								covers = true;
+								break;
+							}
 						}
 					}
 					if (!covers) {
@@ -931,40 +1248,16 @@ public class OpenStreetMapTileServer {
 	 * @return All available tile layer IDs.
 	 */
 	public static String[] getOverlayIds(boolean filtered) {
-		LinkedList<String> ids = new LinkedList<String>();
-		boolean noneSeen = false;
-		TreeSet<String> sortedKeySet = new TreeSet<String>(overlayServerList.keySet());
-		for (String key:sortedKeySet) {
-			OpenStreetMapTileServer osmts = overlayServerList.get(key);
-			if (filtered) {
-				if (osmts.providers.size() > 0) {
-					boolean covers = false; // default is to not include  
-					for (Provider p:osmts.providers) {
-						if (p.covers(Application.mainActivity.getMap().getViewBox())) { 
-							covers = true;
-							break;
-						}
-					}
-					if (!covers) {
-						continue;
-					}
+		GridIndex<OpenStreetMapTileServer> index = null;
+		if (filtered) {
+			synchronized (OpenStreetMapTileServer.class) {
+				if (overlayCoverageIndex == null) {
+					overlayCoverageIndex = buildCoverageIndex(overlayServerList);
 				}
+				index = overlayCoverageIndex;
 			}
-			
-			if (osmts.defaultLayer) {
-				if (noneSeen)
-					ids.add(1,key);
-				else
-					ids.add(0,key);
-				if (key.equals("NONE"))
-					noneSeen = true;
-			} else
-				ids.addLast(key);
 		}
-		String [] result = new String[ids.size()];
-		for (int i = 0; i<result.length; i++)
-			result[i] = ids.get(i);
-		return  result;
+		return getIds(overlayServerList, index);
 	}
 	
 	/**
@@ -1032,6 +1325,32 @@ public class OpenStreetMapTileServer {
 	 * @return URL of the given tile.
 	 */
 	public String getTileURLString(final OpenStreetMapTile aTile) {
+		// Rotate through the list of subdomains
+		String subdomain = null;
+		synchronized (subdomains) {
+			subdomain = subdomains.poll();
+			if (subdomain != null) subdomains.add(subdomain);
+		}
+		return getTileURLString(aTile, subdomain);
+	}
+	
+	/**
+	 * Get the subdomains the tiles can be retrieved from
+	 * @return list of the subdomains, empty if the URL doesn't contain a subdomain parameter
+	 */
+	public List<String> getSubdomains() {
+		synchronized (subdomains) {
+			return new ArrayList<String>(subdomains);
+		}
+	}
+	
+	/**
+	 * Get the URL that can be used to obtain the image of the given tile from a specific subdomain.
+	 * @param aTile The tile to get the URL for.
+	 * @param subdomain the subdomain to use, if null the subdomain parameter is not replaced
+	 * @return URL of the given tile.
+	 */
+	public String getTileURLString(final OpenStreetMapTile aTile, final String subdomain) {
 		if (!metadataLoaded) throw new IllegalStateException("metadata not loaded");
 		String result = tileUrl;
 		
@@ -1050,12 +1369,6 @@ public class OpenStreetMapTileServer {
 		result = replaceParameter(result, "-y", Integer.toString(y));
 		result = replaceParameter(result, "quadkey", quadTree(aTile));
 		
-		// Rotate through the list of subdomains
-		String subdomain = null;
-		synchronized (subdomains) {
-			subdomain = subdomains.poll();
-			if (subdomain != null) subdomains.add(subdomain);
-		}
 		if (subdomain != null) result = replaceParameter(result, "subdomain", subdomain);
 		// Log.d("OpenStreetMapTileServer",result);
 		return result;